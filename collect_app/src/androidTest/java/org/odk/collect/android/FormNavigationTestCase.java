@@ -30,6 +30,7 @@ import org.odk.collect.android.test.FormLoadingUtils;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 
 import timber.log.Timber;
@@ -126,6 +127,10 @@ public class FormNavigationTestCase {
             public void loadingError(String errorMsg) {
             }
 
+            @Override
+            public void loadingStagesTimed(Map<String, Long> stageTimings) {
+            }
+
             @Override
             public void onProgressStep(String stepMessage) {
 
@@ -60,11 +60,6 @@ import androidx.lifecycle.LifecycleOwner;
 import androidx.lifecycle.ViewModel;
 import androidx.lifecycle.ViewModelProvider;
 import androidx.lifecycle.ViewModelProviders;
-import androidx.work.Constraints;
-import androidx.work.ExistingWorkPolicy;
-import androidx.work.NetworkType;
-import androidx.work.OneTimeWorkRequest;
-import androidx.work.WorkManager;
 
 import com.google.zxing.integration.android.IntentIntegrator;
 import com.google.zxing.integration.android.IntentResult;
@@ -141,7 +136,6 @@ import org.odk.collect.android.utilities.DestroyableLifecyleOwner;
 import org.odk.collect.android.utilities.DialogUtils;
 import org.odk.collect.android.utilities.FileUtils;
 import org.odk.collect.android.utilities.FormNameUtils;
-import org.odk.collect.android.utilities.ImageConverter;
 import org.odk.collect.android.utilities.MediaManager;
 import org.odk.collect.android.utilities.MediaUtils;
 import org.odk.collect.android.utilities.PermissionUtils;
@@ -803,25 +797,12 @@ public class FormEntryActivity extends CollectAbstractActivity implements Animat
                  * from Android 1.6) we want to handle images the audio and video
                  */
                 // The intent is empty, but we know we saved the image to the temp
-                // file
-                StoragePathProvider storagePathProvider = new StoragePathProvider();
-                ImageConverter.execute(storagePathProvider.getTmpFilePath(), getWidgetWaitingForBinaryData(), this);
-                File fi = new File(storagePathProvider.getTmpFilePath());
+                // file. It is converted and moved in the background.
+                ProgressDialogFragment imageProgressDialog = new ProgressDialogFragment();
+                imageProgressDialog.setMessage(getString(R.string.please_wait));
+                imageProgressDialog.show(getSupportFragmentManager(), ProgressDialogFragment.COLLECT_PROGRESS_DIALOG_TAG);
 
-                String instanceFolder = formController.getInstanceFile()
-                        .getParent();
-                String s = instanceFolder + File.separator + System.currentTimeMillis() + ".jpg";
-
-                File nf = new File(s);
-                if (!fi.renameTo(nf)) {
-                    Timber.e("Failed to rename %s", fi.getAbsolutePath());
-                } else {
-                    Timber.i("Renamed %s to %s", fi.getAbsolutePath(), nf.getAbsolutePath());
-                }
-
-                if (getCurrentViewIfODKView() != null) {
-                    getCurrentViewIfODKView().setBinaryData(nf);
-                }
+                mediaLoadingFragment.beginCapturedImageTask(new File(new StoragePathProvider().getTmpFilePath()));
                 break;
             case RequestCodes.ALIGNED_IMAGE:
                 /*
@@ -831,11 +812,11 @@ public class FormEntryActivity extends CollectAbstractActivity implements Animat
                  */
                 String path = intent
                         .getStringExtra(android.provider.MediaStore.EXTRA_OUTPUT);
-                fi = new File(path);
-                instanceFolder = formController.getInstanceFile().getParent();
-                s = instanceFolder + File.separator + System.currentTimeMillis() + ".jpg";
+                File fi = new File(path);
+                String instanceFolder = formController.getInstanceFile().getParent();
+                String s = instanceFolder + File.separator + System.currentTimeMillis() + ".jpg";
 
-                nf = new File(s);
+                File nf = new File(s);
                 if (!fi.renameTo(nf)) {
                     Timber.e("Failed to rename %s", fi.getAbsolutePath());
                 } else {
@@ -1856,7 +1837,7 @@ public class FormEntryActivity extends CollectAbstractActivity implements Animat
                             // finalized specifies that it should always be auto-sent.
                             String formId = getFormController().getFormDef().getMainInstance().getRoot().getAttributeValue("", "id");
                             if (AutoSendWorker.formShouldBeAutoSent(formId, GeneralSharedPreferences.isAutoSendEnabled())) {
-                                requestAutoSend();
+                                AutoSendWorker.requestAutoSend();
                             }
                         }
 
@@ -2511,6 +2492,14 @@ public class FormEntryActivity extends CollectAbstractActivity implements Animat
         }
     }
 
+    @Override
+    public void loadingStagesTimed(Map<String, Long> stageTimings) {
+        for (Map.Entry<String, Long> stageTiming : stageTimings.entrySet()) {
+            Timber.i("Form loading stage %s took %.3f seconds.", stageTiming.getKey(),
+                    stageTiming.getValue() / 1000F);
+        }
+    }
+
     public void onProgressStep(String stepMessage) {
         DialogUtils.showIfNotShowing(
                 new FormLoadingDialogFragment(),
@@ -2525,25 +2514,6 @@ public class FormEntryActivity extends CollectAbstractActivity implements Animat
         }
     }
 
-    /**
-     * Requests that unsent finalized forms be auto-sent. If no network connection is available,
-     * the work will be performed when a connection becomes available.
-     * <p>
-     * TODO: if the user changes auto-send settings, should an auto-send job immediately be enqueued?
-     */
-    private void requestAutoSend() {
-        Constraints constraints = new Constraints.Builder()
-                .setRequiredNetworkType(NetworkType.CONNECTED)
-                .build();
-        OneTimeWorkRequest autoSendWork =
-                new OneTimeWorkRequest.Builder(AutoSendWorker.class)
-                        .addTag(AutoSendWorker.class.getName())
-                        .setConstraints(constraints)
-                        .build();
-        WorkManager.getInstance().beginUniqueWork(AutoSendWorker.class.getName(),
-                ExistingWorkPolicy.KEEP, autoSendWork).enqueue();
-    }
-
     /**
      * Returns the instance that was just filled out to the calling activity, if
      * requested.
@@ -47,7 +47,9 @@ import org.odk.collect.android.utilities.DialogUtils;
 import org.odk.collect.android.utilities.FormEntryPromptUtils;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import timber.log.Timber;
 
@@ -69,6 +71,10 @@ import timber.log.Timber;
  * Although the user gets the impression of navigating "into" a repeat, the view is refreshed in
  * {@link #refreshView()} rather than another activity/fragment being added to the back stack.
  *
+ * The form is walked on a background thread to find the rows of a screen. The labels and answers
+ * of a row are only evaluated once the row is scrolled into view and are then kept for as long as
+ * the activity is shown so that going back to a screen doesn't evaluate them again.
+ *
  * Buttons at the bottom of the screen allow users to navigate the form.
  */
 public class FormHierarchyActivity extends CollectAbstractActivity {
@@ -76,7 +82,28 @@ public class FormHierarchyActivity extends CollectAbstractActivity {
      * The questions and repeats at the current level.
      * Recreated every time {@link #refreshView()} is called.
      */
-    private List<HierarchyElement> elementsToDisplay;
+    private List<HierarchyRow> rowsToDisplay = new ArrayList<>();
+
+    /**
+     * The elements that have been displayed so far, by row type and form index. Answers can't
+     * change while the hierarchy is shown, only repeats can be deleted.
+     */
+    private final Map<String, HierarchyElement> displayedElements = new HashMap<>();
+
+    /**
+     * Walks the form to find the rows of the current level. The FormController mustn't be used
+     * while a walk is running because the walk moves its current index. Shared by all the
+     * hierarchy activities because the walk of an activity that is being recreated can still be
+     * running when the new activity is created.
+     */
+    private static final HierarchyWalker WALKER = new HierarchyWalker();
+
+    /**
+     * Whether to scroll to the question the user was looking at once the rows have been found.
+     */
+    private boolean shouldScrollToStartIndex = true;
+
+    private TextView emptyView;
 
     /**
      * The label shown at the top of a hierarchy screen for a repeat instance. Set by
@@ -134,7 +161,7 @@ public class FormHierarchyActivity extends CollectAbstractActivity {
         recyclerView.setLayoutManager(new LinearLayoutManager(this));
         recyclerView.addItemDecoration(new DividerItemDecoration(this, DividerItemDecoration.VERTICAL));
 
-        TextView emptyView = findViewById(android.R.id.empty);
+        emptyView = findViewById(android.R.id.empty);
         Toolbar toolbar = findViewById(R.id.toolbar);
         setSupportActionBar(toolbar);
 
@@ -147,40 +174,56 @@ public class FormHierarchyActivity extends CollectAbstractActivity {
             return;
         }
 
-        startIndex = formController.getFormIndex();
-
-        setTitle(formController.getFormTitle());
-
         groupPathTextView = findViewById(R.id.pathtext);
 
         jumpBeginningButton = findViewById(R.id.jumpBeginningButton);
         jumpEndButton = findViewById(R.id.jumpEndButton);
 
-        configureButtons(formController);
-
         restoreInstanceState(savedInstanceState);
 
-        refreshView();
+        WALKER.afterWalk(() -> {
+            startIndex = formController.getFormIndex();
 
-        // Scroll to the last question the user was looking at
-        // TODO: avoid another iteration through all displayed elements
-        if (recyclerView != null && recyclerView.getAdapter() != null && recyclerView.getAdapter().getItemCount() > 0) {
-            emptyView.setVisibility(View.GONE);
-            recyclerView.post(() -> {
-                int position = 0;
-                // Iterate over all the elements currently displayed looking for a match with the
-                // startIndex which can either represent a question or a field list.
-                for (HierarchyElement hierarchyElement : elementsToDisplay) {
-                    FormIndex indexToCheck = hierarchyElement.getFormIndex();
-                    if (startIndex.equals(indexToCheck)
-                            || (formController.indexIsInFieldList(startIndex) && indexToCheck.toString().startsWith(startIndex.toString()))) {
-                        position = elementsToDisplay.indexOf(hierarchyElement);
-                        break;
-                    }
-                }
-                ((LinearLayoutManager) recyclerView.getLayoutManager()).scrollToPositionWithOffset(position, 0);
-            });
+            setTitle(formController.getFormTitle());
+
+            configureButtons(formController);
+
+            refreshView();
+        });
+    }
+
+    @Override
+    public void finish() {
+        // The activity being returned to uses the FormController
+        WALKER.afterWalk(super::finish);
+    }
+
+    @Override
+    protected void onDestroy() {
+        WALKER.cancel();
+        super.onDestroy();
+    }
+
+    /**
+     * Scrolls to the last question the user was looking at.
+     */
+    private void scrollToStartIndex() {
+        FormController formController = Collect.getInstance().getFormController();
+        boolean isStartIndexInFieldList = formController.indexIsInFieldList(startIndex);
+
+        int position = 0;
+        // Look for a match with the startIndex which can either represent a question or a field list.
+        for (int i = 0; i < rowsToDisplay.size(); i++) {
+            FormIndex indexToCheck = rowsToDisplay.get(i).index;
+            if (startIndex.equals(indexToCheck)
+                    || (isStartIndexInFieldList && indexToCheck.toString().startsWith(startIndex.toString()))) {
+                position = i;
+                break;
+            }
         }
+
+        final int startPosition = position;
+        recyclerView.post(() -> ((LinearLayoutManager) recyclerView.getLayoutManager()).scrollToPositionWithOffset(startPosition, 0));
     }
 
     @Override
@@ -214,7 +257,7 @@ public class FormHierarchyActivity extends CollectAbstractActivity {
         FormController formController = Collect.getInstance().getFormController();
 
         // Not ready yet. Menu will be updated automatically once it's been prepared.
-        if (optionsMenu == null || formController == null) {
+        if (optionsMenu == null || formController == null || isWalkingHierarchy()) {
             return;
         }
 
@@ -261,9 +304,16 @@ public class FormHierarchyActivity extends CollectAbstractActivity {
 
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
+        if (isWalkingHierarchy()) {
+            return true;
+        }
+
         switch (item.getItemId()) {
             case R.id.menu_delete_child:
                 DialogUtils.showDeleteRepeatConfirmDialog(this, () -> {
+                    // The indexes of the following repeat instances have changed
+                    displayedElements.clear();
+
                     if (didDeleteLastRepeatItem()) {
                         // goUpLevel would put us in a weird state after deleting the last item;
                         // just go back one event instead.
@@ -296,21 +346,21 @@ public class FormHierarchyActivity extends CollectAbstractActivity {
      * Configure the navigation buttons at the bottom of the screen.
      */
     void configureButtons(FormController formController) {
-        jumpBeginningButton.setOnClickListener(v -> {
+        jumpBeginningButton.setOnClickListener(v -> WALKER.afterWalk(() -> {
             formController.getAuditEventLogger().flush();
             formController.jumpToIndex(FormIndex.createBeginningOfFormIndex());
 
             setResult(RESULT_OK);
             finish();
-        });
+        }));
 
-        jumpEndButton.setOnClickListener(v -> {
+        jumpEndButton.setOnClickListener(v -> WALKER.afterWalk(() -> {
             formController.getAuditEventLogger().flush();
             formController.jumpToIndex(FormIndex.createEndOfFormIndex());
 
             setResult(RESULT_OK);
             finish();
-        });
+        }));
     }
 
     /**
@@ -523,6 +573,10 @@ public class FormHierarchyActivity extends CollectAbstractActivity {
      * @see #refreshView()
      */
     private void refreshView(boolean isGoingUp) {
+        WALKER.afterWalk(() -> startHierarchyWalk(isGoingUp));
+    }
+
+    private void startHierarchyWalk(boolean isGoingUp) {
         try {
             FormController formController = Collect.getInstance().getFormController();
 
@@ -530,8 +584,6 @@ public class FormHierarchyActivity extends CollectAbstractActivity {
             // in the event of an error.
             currentIndex = formController.getFormIndex();
 
-            elementsToDisplay = new ArrayList<>();
-
             jumpToHierarchyStartIndex();
             updateOptionsMenu();
 
@@ -544,171 +596,262 @@ public class FormHierarchyActivity extends CollectAbstractActivity {
                 groupPathTextView.setVisibility(View.VISIBLE);
                 groupPathTextView.setText(getCurrentPath());
             }
+        } catch (Exception e) {
+            Timber.e(e);
+            createErrorDialog(e.getMessage());
+            return;
+        }
+
+        // Rows mustn't be bound while the walk moves the index
+        recyclerView.setAdapter(null);
+
+        TreeReference contextGroupRef = this.contextGroupRef;
+        FormIndex repeatGroupPickerIndex = this.repeatGroupPickerIndex;
+        FormIndex indexBeforeWalk = currentIndex;
+        WALKER.walk(cancellation -> {
+            FormController formController = Collect.getInstance().getFormController();
+            try {
+                return walkHierarchy(formController, contextGroupRef, repeatGroupPickerIndex, cancellation);
+            } finally {
+                formController.jumpToIndex(indexBeforeWalk);
+            }
+        }, new HierarchyWalker.Listener<List<HierarchyRow>>() {
+            @Override
+            public void onWalked(List<HierarchyRow> rows) {
+                onHierarchyWalked(rows, isGoingUp);
+            }
+
+            @Override
+            public void onWalkFailed(Exception e) {
+                Timber.e(e);
+                createErrorDialog(e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Shows the rows found by walking the current level of the form.
+     */
+    private void onHierarchyWalked(List<HierarchyRow> rows, boolean isGoingUp) {
+        rowsToDisplay = rows;
+        updateOptionsMenu();
+
+        recyclerView.setAdapter(new HierarchyListAdapter(rowsToDisplay.size(), this::getElement, this::onElementClick));
+        emptyView.setVisibility(rowsToDisplay.isEmpty() ? View.VISIBLE : View.GONE);
 
-            // Refresh the current event in case we did step forward.
-            event = formController.getEvent();
+        // Prevent a redundant middle screen (common on many forms
+        // that use presentation groups to display labels).
+        if (isDisplayingSingleGroup() && !screenIndex.isBeginningOfFormIndex()) {
+            if (isGoingUp) {
+                // Back out once more.
+                goUpLevel();
+            } else {
+                // Enter automatically.
+                Collect.getInstance().getFormController().jumpToIndex(rowsToDisplay.get(0).index);
+                refreshView();
+            }
+        } else if (shouldScrollToStartIndex) {
+            shouldScrollToStartIndex = false;
+            scrollToStartIndex();
+        }
+    }
 
-            // Ref to the parent group that's currently being displayed.
-            //
-            // Because of the guard conditions below, we will skip
-            // everything until we exit this group.
-            TreeReference visibleGroupRef = null;
+    private boolean isWalkingHierarchy() {
+        return WALKER.isWalking();
+    }
 
-            while (event != FormEntryController.EVENT_END_OF_FORM) {
-                // get the ref to this element
-                TreeReference currentRef = getGroupRef(formController);
+    /**
+     * Steps through the current level of the form and returns the rows to display. Labels aren't
+     * evaluated, see {@link #getElement(int)}.
+     */
+    private static List<HierarchyRow> walkHierarchy(FormController formController, TreeReference contextGroupRef,
+                                                    FormIndex repeatGroupPickerIndex, HierarchyWalker.Cancellation cancellation) {
+        List<HierarchyRow> rows = new ArrayList<>();
+        boolean shouldShowRepeatGroupPicker = repeatGroupPickerIndex != null;
+
+        int event = formController.getEvent();
+
+        // Ref to the parent group that's currently being displayed.
+        //
+        // Because of the guard conditions below, we will skip
+        // everything until we exit this group.
+        TreeReference visibleGroupRef = null;
+
+        while (event != FormEntryController.EVENT_END_OF_FORM && !cancellation.isCancelled()) {
+            // get the ref to this element
+            TreeReference currentRef = formController.getFormIndex().getReference();
+
+            // retrieve the current group
+            TreeReference curGroup = (visibleGroupRef == null) ? contextGroupRef : visibleGroupRef;
+
+            if (curGroup != null && !curGroup.isParentOf(currentRef, false)) {
+                // We have left the current group
+                if (visibleGroupRef == null) {
+                    // We are done.
+                    break;
+                } else {
+                    // exit the inner group
+                    visibleGroupRef = null;
+                }
+            }
 
-                // retrieve the current group
-                TreeReference curGroup = (visibleGroupRef == null) ? contextGroupRef : visibleGroupRef;
+            if (visibleGroupRef != null) {
+                // We're in a group within the one we want to list
+                // skip this question/group/repeat and move to the next index.
+                event =
+                        formController.stepToNextEvent(FormController.STEP_INTO_GROUP);
+                continue;
+            }
 
-                if (curGroup != null && !curGroup.isParentOf(currentRef, false)) {
-                    // We have left the current group
-                    if (visibleGroupRef == null) {
-                        // We are done.
+            switch (event) {
+                case FormEntryController.EVENT_QUESTION: {
+                    // Nothing but repeat group instances should show up in the picker.
+                    if (shouldShowRepeatGroupPicker) {
                         break;
-                    } else {
-                        // exit the inner group
-                        visibleGroupRef = null;
                     }
-                }
 
-                if (visibleGroupRef != null) {
-                    // We're in a group within the one we want to list
-                    // skip this question/group/repeat and move to the next index.
-                    event =
-                            formController.stepToNextEvent(FormController.STEP_INTO_GROUP);
-                    continue;
+                    rows.add(new HierarchyRow(HierarchyElement.Type.QUESTION, formController.getFormIndex(), null));
+                    break;
                 }
+                case FormEntryController.EVENT_GROUP: {
+                    if (!formController.isGroupRelevant()) {
+                        break;
+                    }
+                    // Nothing but repeat group instances should show up in the picker.
+                    if (shouldShowRepeatGroupPicker) {
+                        break;
+                    }
 
-                switch (event) {
-                    case FormEntryController.EVENT_QUESTION: {
-                        // Nothing but repeat group instances should show up in the picker.
-                        if (shouldShowRepeatGroupPicker()) {
-                            break;
-                        }
+                    FormIndex index = formController.getFormIndex();
 
-                        FormEntryPrompt fp = formController.getQuestionPrompt();
-                        String label = fp.getShortText();
-                        String answerDisplay = FormEntryPromptUtils.getAnswerText(fp, this, formController);
-                        elementsToDisplay.add(
-                                new HierarchyElement(FormEntryPromptUtils.markQuestionIfIsRequired(label, fp.isRequired()), answerDisplay, null,
-                                        HierarchyElement.Type.QUESTION, fp.getIndex()));
+                    // Only display groups with a specific appearance attribute.
+                    if (!formController.isDisplayableGroup(index)) {
                         break;
                     }
-                    case FormEntryController.EVENT_GROUP: {
-                        if (!formController.isGroupRelevant()) {
-                            break;
-                        }
-                        // Nothing but repeat group instances should show up in the picker.
-                        if (shouldShowRepeatGroupPicker()) {
-                            break;
-                        }
 
-                        FormIndex index = formController.getFormIndex();
+                    // Don't render other groups' children.
+                    if (contextGroupRef != null && !contextGroupRef.isParentOf(currentRef, false)) {
+                        break;
+                    }
 
-                        // Only display groups with a specific appearance attribute.
-                        if (!formController.isDisplayableGroup(index)) {
-                            break;
-                        }
+                    visibleGroupRef = currentRef;
 
-                        // Don't render other groups' children.
-                        if (contextGroupRef != null && !contextGroupRef.isParentOf(currentRef, false)) {
-                            break;
-                        }
+                    rows.add(new HierarchyRow(HierarchyElement.Type.VISIBLE_GROUP, index, null));
 
-                        visibleGroupRef = currentRef;
+                    // Skip to the next item outside the group.
+                    event = formController.stepOverGroup();
+                    continue;
+                }
+                case FormEntryController.EVENT_PROMPT_NEW_REPEAT: {
+                    // this would display the 'add new repeat' dialog
+                    // ignore it.
+                    break;
+                }
+                case FormEntryController.EVENT_REPEAT: {
+                    if (!formController.isGroupRelevant()) {
+                        break;
+                    }
 
-                        FormEntryCaption caption = formController.getCaptionPrompt();
-                        HierarchyElement groupElement = new HierarchyElement(
-                                caption.getShortText(), getString(R.string.group_label),
-                                ContextCompat.getDrawable(this, R.drawable.ic_folder_open),
-                                HierarchyElement.Type.VISIBLE_GROUP, caption.getIndex());
-                        elementsToDisplay.add(groupElement);
+                    visibleGroupRef = currentRef;
 
-                        // Skip to the next item outside the group.
-                        event = formController.stepOverGroup();
-                        continue;
-                    }
-                    case FormEntryController.EVENT_PROMPT_NEW_REPEAT: {
-                        // this would display the 'add new repeat' dialog
-                        // ignore it.
+                    // Don't render other groups' children.
+                    if (contextGroupRef != null && !contextGroupRef.isParentOf(currentRef, false)) {
                         break;
                     }
-                    case FormEntryController.EVENT_REPEAT: {
-                        if (!formController.isGroupRelevant()) {
-                            break;
-                        }
-
-                        visibleGroupRef = currentRef;
 
-                        FormEntryCaption fc = formController.getCaptionPrompt();
+                    FormIndex index = formController.getFormIndex();
 
-                        // Don't render other groups' children.
-                        if (contextGroupRef != null && !contextGroupRef.isParentOf(currentRef, false)) {
+                    if (shouldShowRepeatGroupPicker) {
+                        // Don't render other groups' instances.
+                        String repeatGroupPickerRef = repeatGroupPickerIndex.getReference().toString(false);
+                        if (!currentRef.toString(false).equals(repeatGroupPickerRef)) {
                             break;
                         }
 
-                        if (shouldShowRepeatGroupPicker()) {
-                            // Don't render other groups' instances.
-                            String repeatGroupPickerRef = getGroupRef(repeatGroupPickerIndex).toString(false);
-                            if (!currentRef.toString(false).equals(repeatGroupPickerRef)) {
-                                break;
-                            }
-
-                            int itemNumber = fc.getMultiplicity() + 1;
-
-                            // e.g. `friends > 1`
-                            String repeatLabel = fc.getShortText() + " > " + itemNumber;
-
-                            // If the child of the group has a more descriptive label, use that instead.
-                            if (fc.getFormElement().getChildren().size() == 1 && fc.getFormElement().getChild(0) instanceof GroupDef) {
-                                formController.stepToNextEvent(FormController.STEP_INTO_GROUP);
-                                String itemLabel = formController.getCaptionPrompt().getShortText();
-                                if (itemLabel != null) {
-                                    // e.g. `1. Alice`
-                                    repeatLabel = itemNumber + ".\u200E " + itemLabel;
-                                }
-                            }
-
-                            HierarchyElement instance = new HierarchyElement(
-                                    repeatLabel, null,
-                                    null, HierarchyElement.Type.REPEAT_INSTANCE, fc.getIndex());
-                            elementsToDisplay.add(instance);
-                        } else if (fc.getMultiplicity() == 0) {
-                            // Display the repeat header for the group.
-                            HierarchyElement group = new HierarchyElement(
-                                    fc.getShortText(), getString(R.string.repeatable_group_label),
-                                    ContextCompat.getDrawable(this, R.drawable.ic_repeat),
-                                    HierarchyElement.Type.REPEATABLE_GROUP, fc.getIndex());
-                            elementsToDisplay.add(group);
+                        // If the child of the group has a more descriptive label, use that instead.
+                        FormIndex labelIndex = null;
+                        IFormElement repeat = formController.getCaptionPrompt().getFormElement();
+                        if (repeat.getChildren().size() == 1 && repeat.getChild(0) instanceof GroupDef) {
+                            formController.stepToNextEvent(FormController.STEP_INTO_GROUP);
+                            labelIndex = formController.getFormIndex();
                         }
 
-                        break;
+                        rows.add(new HierarchyRow(HierarchyElement.Type.REPEAT_INSTANCE, index, labelIndex));
+                    } else if (index.getElementMultiplicity() == 0) {
+                        // Display the repeat header for the group.
+                        rows.add(new HierarchyRow(HierarchyElement.Type.REPEATABLE_GROUP, index, null));
                     }
-                }
 
-                event = formController.stepToNextEvent(FormController.STEP_INTO_GROUP);
+                    break;
+                }
             }
 
-            recyclerView.setAdapter(new HierarchyListAdapter(elementsToDisplay, this::onElementClick));
+            event = formController.stepToNextEvent(FormController.STEP_INTO_GROUP);
+        }
 
-            formController.jumpToIndex(currentIndex);
+        return rows;
+    }
 
-            // Prevent a redundant middle screen (common on many forms
-            // that use presentation groups to display labels).
-            if (isDisplayingSingleGroup() && !screenIndex.isBeginningOfFormIndex()) {
-                if (isGoingUp) {
-                    // Back out once more.
-                    goUpLevel();
-                } else {
-                    // Enter automatically.
-                    formController.jumpToIndex(elementsToDisplay.get(0).getFormIndex());
-                    refreshView();
+    /**
+     * Returns the element to display for the row at the given position, evaluating its labels and
+     * answer the first time it is displayed.
+     */
+    private HierarchyElement getElement(int position) {
+        HierarchyRow row = rowsToDisplay.get(position);
+        String key = row.type + " " + row.index;
+
+        HierarchyElement element = displayedElements.get(key);
+        if (element == null) {
+            element = createElement(row);
+            displayedElements.put(key, element);
+        }
+        return element;
+    }
+
+    private HierarchyElement createElement(HierarchyRow row) {
+        FormController formController = Collect.getInstance().getFormController();
+
+        switch (row.type) {
+            case QUESTION: {
+                FormEntryPrompt fp = formController.getQuestionPrompt(row.index);
+                String label = fp.getShortText();
+                String answerDisplay = FormEntryPromptUtils.getAnswerText(fp, this, formController);
+                return new HierarchyElement(FormEntryPromptUtils.markQuestionIfIsRequired(label, fp.isRequired()), answerDisplay, null,
+                        HierarchyElement.Type.QUESTION, fp.getIndex());
+            }
+            case VISIBLE_GROUP: {
+                FormEntryCaption caption = formController.getCaptionPrompt(row.index);
+                return new HierarchyElement(
+                        caption.getShortText(), getString(R.string.group_label),
+                        ContextCompat.getDrawable(this, R.drawable.ic_folder_open),
+                        HierarchyElement.Type.VISIBLE_GROUP, caption.getIndex());
+            }
+            case REPEATABLE_GROUP: {
+                FormEntryCaption fc = formController.getCaptionPrompt(row.index);
+                return new HierarchyElement(
+                        fc.getShortText(), getString(R.string.repeatable_group_label),
+                        ContextCompat.getDrawable(this, R.drawable.ic_repeat),
+                        HierarchyElement.Type.REPEATABLE_GROUP, fc.getIndex());
+            }
+            default: {
+                FormEntryCaption fc = formController.getCaptionPrompt(row.index);
+                int itemNumber = fc.getMultiplicity() + 1;
+
+                // e.g. `friends > 1`
+                String repeatLabel = fc.getShortText() + " > " + itemNumber;
+
+                if (row.labelIndex != null) {
+                    String itemLabel = formController.getCaptionPrompt(row.labelIndex).getShortText();
+                    if (itemLabel != null) {
+                        // e.g. `1. Alice`
+                        repeatLabel = itemNumber + ".\u200E " + itemLabel;
+                    }
                 }
+
+                return new HierarchyElement(
+                        repeatLabel, null,
+                        null, HierarchyElement.Type.REPEAT_INSTANCE, fc.getIndex());
             }
-        } catch (Exception e) {
-            Timber.e(e);
-            createErrorDialog(e.getMessage());
         }
     }
 
@@ -717,14 +860,18 @@ public class FormHierarchyActivity extends CollectAbstractActivity {
      * Groups like this are often used to display a label in the hierarchy path.
      */
     private boolean isDisplayingSingleGroup() {
-        return elementsToDisplay.size() == 1
-                && elementsToDisplay.get(0).getType() == HierarchyElement.Type.VISIBLE_GROUP;
+        return rowsToDisplay.size() == 1
+                && rowsToDisplay.get(0).type == HierarchyElement.Type.VISIBLE_GROUP;
     }
 
     /**
      * Handles clicks on a specific row in the hierarchy view.
      */
     public void onElementClick(HierarchyElement element) {
+        if (isWalkingHierarchy()) {
+            return;
+        }
+
         FormIndex index = element.getFormIndex();
 
         switch (element.getType()) {
@@ -781,13 +928,15 @@ public class FormHierarchyActivity extends CollectAbstractActivity {
      */
     @Override
     public void onBackPressed() {
-        FormController formController = Collect.getInstance().getFormController();
-        if (formController != null) {
-            formController.getAuditEventLogger().flush();
-            formController.jumpToIndex(startIndex);
-        }
+        WALKER.afterWalk(() -> {
+            FormController formController = Collect.getInstance().getFormController();
+            if (formController != null) {
+                formController.getAuditEventLogger().flush();
+                formController.jumpToIndex(startIndex);
+            }
 
-        onBackPressedWithoutLogger();
+            onBackPressedWithoutLogger();
+        });
     }
 
     protected void onBackPressedWithoutLogger() {
@@ -818,4 +967,23 @@ public class FormHierarchyActivity extends CollectAbstractActivity {
         alertDialog.setButton(getString(R.string.ok), errorListener);
         alertDialog.show();
     }
+
+    /**
+     * A row of the hierarchy whose labels haven't been evaluated yet.
+     */
+    private static class HierarchyRow {
+        final HierarchyElement.Type type;
+        final FormIndex index;
+
+        /**
+         * The index of the group whose label is used for a repeat instance, if any.
+         */
+        final FormIndex labelIndex;
+
+        HierarchyRow(HierarchyElement.Type type, FormIndex index, FormIndex labelIndex) {
+            this.type = type;
+            this.index = index;
+            this.labelIndex = labelIndex;
+        }
+    }
 }
@@ -297,10 +297,12 @@ public class FormMapActivity extends BaseGeoMapActivity {
             case InstanceProviderAPI.STATUS_INCOMPLETE:
                 return R.drawable.ic_room_blue_24dp;
             case InstanceProviderAPI.STATUS_COMPLETE:
+            case InstanceProviderAPI.STATUS_ENCRYPTING:
                 return R.drawable.ic_room_deep_purple_24dp;
             case InstanceProviderAPI.STATUS_SUBMITTED:
                 return R.drawable.ic_room_green_24dp;
             case InstanceProviderAPI.STATUS_SUBMISSION_FAILED:
+            case InstanceProviderAPI.STATUS_ENCRYPTION_FAILED:
                 return R.drawable.ic_room_red_24dp;
         }
         return R.drawable.ic_map_point;
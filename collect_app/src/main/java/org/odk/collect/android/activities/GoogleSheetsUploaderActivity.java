@@ -277,6 +277,11 @@ public class GoogleSheetsUploaderActivity extends CollectAbstractActivity implem
         }
     }
 
+    @Override
+    public void progressUpdate(int progress, int total, long bytesUploaded, long totalBytes) {
+        progressUpdate(progress, total);
+    }
+
     @Override
     protected Dialog onCreateDialog(int id) {
         if (id == GOOGLE_USER_DIALOG) {
@@ -0,0 +1,120 @@
+package org.odk.collect.android.activities;
+
+import android.os.AsyncTask;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs walks through the form on a background thread for {@link FormHierarchyActivity}, one at a
+ * time. A walk moves the FormController's current index so nothing else may use the FormController
+ * until the walk has ended. Work that needs it is passed to {@link #afterWalk(Runnable)}, which
+ * cancels the walk that is in progress and runs the work once the walk has stopped.
+ *
+ * Cancelling only sets a flag that the walk checks between steps, so the main thread never waits
+ * for a walk. All the methods must be called on the main thread.
+ */
+class HierarchyWalker {
+
+    private WalkTask<?> runningWalk;
+
+    /**
+     * Returns true while a walk is running or is being cancelled.
+     */
+    boolean isWalking() {
+        return runningWalk != null;
+    }
+
+    /**
+     * Starts a walk once the walk in progress, if any, has stopped. The listener is called on the
+     * main thread unless the walk is cancelled.
+     */
+    <T> void walk(Walk<T> walk, Listener<T> listener) {
+        afterWalk(() -> {
+            WalkTask<T> task = new WalkTask<>(walk, listener);
+            runningWalk = task;
+            task.execute();
+        });
+    }
+
+    /**
+     * Runs the action straight away if no walk is running. Otherwise cancels the walk and runs the
+     * action once it has stopped.
+     */
+    void afterWalk(Runnable action) {
+        if (runningWalk == null) {
+            action.run();
+        } else {
+            runningWalk.cancelled = true;
+            runningWalk.actionsAfterWalk.add(action);
+        }
+    }
+
+    /**
+     * Cancels the walk in progress, if any, without waiting for it to stop.
+     */
+    void cancel() {
+        if (runningWalk != null) {
+            runningWalk.cancelled = true;
+        }
+    }
+
+    interface Walk<T> {
+        /**
+         * Walks the form on a background thread. Should return early once the cancellation says so.
+         */
+        T walk(Cancellation cancellation) throws Exception;
+    }
+
+    interface Cancellation {
+        boolean isCancelled();
+    }
+
+    interface Listener<T> {
+        void onWalked(T result);
+
+        void onWalkFailed(Exception e);
+    }
+
+    private class WalkTask<T> extends AsyncTask<Void, Void, T> {
+        private final Walk<T> walk;
+        private final Listener<T> listener;
+        private final List<Runnable> actionsAfterWalk = new ArrayList<>();
+        private volatile boolean cancelled;
+        private Exception exception;
+
+        WalkTask(Walk<T> walk, Listener<T> listener) {
+            this.walk = walk;
+            this.listener = listener;
+        }
+
+        @Override
+        protected T doInBackground(Void... voids) {
+            if (cancelled) {
+                return null;
+            }
+
+            try {
+                return walk.walk(() -> cancelled);
+            } catch (Exception e) {
+                exception = e;
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(T result) {
+            runningWalk = null;
+
+            if (cancelled) {
+                for (Runnable action : actionsAfterWalk) {
+                    action.run();
+                }
+            } else if (exception != null) {
+                listener.onWalkFailed(exception);
+            } else {
+                listener.onWalked(result);
+            }
+        }
+    }
+}
@@ -19,6 +19,7 @@ import android.app.ProgressDialog;
 import android.content.DialogInterface;
 import android.net.Uri;
 import android.os.Bundle;
+import android.text.format.Formatter;
 
 import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
@@ -262,6 +263,13 @@ public class InstanceUploaderActivity extends CollectAbstractActivity implements
         progressDialog.setMessage(alertMsg);
     }
 
+    @Override
+    public void progressUpdate(int progress, int total, long bytesUploaded, long totalBytes) {
+        alertMsg = getString(R.string.sending_items_bytes, String.valueOf(progress), String.valueOf(total),
+                Formatter.formatShortFileSize(this, bytesUploaded), Formatter.formatShortFileSize(this, totalBytes));
+        progressDialog.setMessage(alertMsg);
+    }
+
     @Override
     protected Dialog onCreateDialog(int id) {
         switch (id) {
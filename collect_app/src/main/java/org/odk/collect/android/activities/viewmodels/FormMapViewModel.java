@@ -110,8 +110,10 @@ public class FormMapViewModel extends ViewModel {
             }
 
             if ((instance.getStatus().equals(InstanceProviderAPI.STATUS_COMPLETE)
+                    || instance.getStatus().equals(InstanceProviderAPI.STATUS_ENCRYPTING)
                     || instance.getStatus().equals(InstanceProviderAPI.STATUS_SUBMITTED)
-                    || instance.getStatus().equals(InstanceProviderAPI.STATUS_SUBMISSION_FAILED))
+                    || instance.getStatus().equals(InstanceProviderAPI.STATUS_SUBMISSION_FAILED)
+                    || instance.getStatus().equals(InstanceProviderAPI.STATUS_ENCRYPTION_FAILED))
                     && !instance.canEditWhenComplete()) {
                 return ClickAction.NOT_VIEWABLE_TOAST;
             } else if (instance.getDatabaseId() != null) {
@@ -34,10 +34,20 @@ public class HierarchyListAdapter extends RecyclerView.Adapter<HierarchyListAdap
 
     private final OnElementClickListener listener;
 
-    private final List<HierarchyElement> hierarchyElements;
+    private final int itemCount;
+
+    private final ElementLoader elementLoader;
 
     public HierarchyListAdapter(List<HierarchyElement> listElements, OnElementClickListener listener) {
-        this.hierarchyElements = listElements;
+        this(listElements.size(), listElements::get, listener);
+    }
+
+    /**
+     * Creates an adapter that only asks for the elements that are displayed.
+     */
+    public HierarchyListAdapter(int itemCount, ElementLoader elementLoader, OnElementClickListener listener) {
+        this.itemCount = itemCount;
+        this.elementLoader = elementLoader;
         this.listener = listener;
     }
 
@@ -48,17 +58,18 @@ public class HierarchyListAdapter extends RecyclerView.Adapter<HierarchyListAdap
 
     @Override
     public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
-        holder.bind(hierarchyElements.get(position), listener);
-        if (hierarchyElements.get(position).getIcon() != null) {
+        HierarchyElement element = elementLoader.getElement(position);
+        holder.bind(element, listener);
+        if (element.getIcon() != null) {
             holder.icon.setVisibility(View.VISIBLE);
-            holder.icon.setImageDrawable(hierarchyElements.get(position).getIcon());
+            holder.icon.setImageDrawable(element.getIcon());
         } else {
             holder.icon.setVisibility(View.GONE);
         }
-        holder.primaryText.setText(StringUtils.textToHtml(hierarchyElements.get(position).getPrimaryText()));
-        if (hierarchyElements.get(position).getSecondaryText() != null && !hierarchyElements.get(position).getSecondaryText().isEmpty()) {
+        holder.primaryText.setText(StringUtils.textToHtml(element.getPrimaryText()));
+        if (element.getSecondaryText() != null && !element.getSecondaryText().isEmpty()) {
             holder.secondaryText.setVisibility(View.VISIBLE);
-            holder.secondaryText.setText(StringUtils.textToHtml(hierarchyElements.get(position).getSecondaryText()));
+            holder.secondaryText.setText(StringUtils.textToHtml(element.getSecondaryText()));
         } else {
             holder.secondaryText.setVisibility(View.GONE);
         }
@@ -66,7 +77,7 @@ public class HierarchyListAdapter extends RecyclerView.Adapter<HierarchyListAdap
 
     @Override
     public int getItemCount() {
-        return hierarchyElements.size();
+        return itemCount;
     }
 
     static class ViewHolder extends RecyclerView.ViewHolder {
@@ -89,4 +100,8 @@ public class HierarchyListAdapter extends RecyclerView.Adapter<HierarchyListAdap
     public interface OnElementClickListener {
         void onElementClick(HierarchyElement element);
     }
+
+    public interface ElementLoader {
+        HierarchyElement getElement(int position);
+    }
 }
\ No newline at end of file
@@ -160,10 +160,12 @@ public class InstanceListCursorAdapter extends SimpleCursorAdapter {
             case InstanceProviderAPI.STATUS_INCOMPLETE:
                 return R.drawable.form_state_saved;
             case InstanceProviderAPI.STATUS_COMPLETE:
+            case InstanceProviderAPI.STATUS_ENCRYPTING:
                 return R.drawable.form_state_finalized;
             case InstanceProviderAPI.STATUS_SUBMITTED:
                 return R.drawable.form_state_submitted;
             case InstanceProviderAPI.STATUS_SUBMISSION_FAILED:
+            case InstanceProviderAPI.STATUS_ENCRYPTION_FAILED:
                 return R.drawable.form_state_submission_failed;
         }
 
@@ -16,9 +16,13 @@
 
 package org.odk.collect.android.dao;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.RemoteException;
 import android.provider.BaseColumns;
 
 import org.odk.collect.android.application.Collect;
@@ -220,6 +224,14 @@ public class FormsDao {
         deleteFormsFromIDs(idsToDelete.toArray(new String[idsToDelete.size()]));
     }
 
+    /**
+     * Applies the given inserts and updates of forms in a single transaction.
+     */
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws RemoteException, OperationApplicationException {
+        return Collect.getInstance().getContentResolver().applyBatch(FormsColumns.CONTENT_URI.getAuthority(), operations);
+    }
+
     public Uri saveForm(ContentValues values) {
         return Collect.getInstance().getContentResolver().insert(FormsColumns.CONTENT_URI, values);
     }
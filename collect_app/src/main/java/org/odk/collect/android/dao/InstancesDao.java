@@ -252,6 +252,15 @@ public class InstancesDao {
         return Collect.getInstance().getContentResolver().insert(InstanceColumns.CONTENT_URI, values);
     }
 
+    /**
+     * Saves the given instances in a single transaction.
+     *
+     * @return the number of instances that were saved
+     */
+    public int saveInstances(ContentValues[] values) {
+        return Collect.getInstance().getContentResolver().bulkInsert(InstanceColumns.CONTENT_URI, values);
+    }
+
     public int updateInstance(ContentValues values, String where, String[] whereArgs) {
         return Collect.getInstance().getContentResolver().update(InstanceColumns.CONTENT_URI, values, where, whereArgs);
     }
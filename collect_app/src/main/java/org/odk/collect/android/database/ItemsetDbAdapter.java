@@ -5,14 +5,31 @@ import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.model.IFormElement;
+import org.javarosa.core.model.QuestionDef;
 import org.odk.collect.android.storage.StoragePathProvider;
 import org.odk.collect.android.storage.StorageSubdirectory;
 
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.math.BigInteger;
+import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import au.com.bytecode.opencsv.CSVReader;
 import timber.log.Timber;
 
 public class ItemsetDbAdapter {
@@ -22,18 +39,34 @@ public class ItemsetDbAdapter {
 
     public static final String DATABASE_NAME = "itemsets.db";
     private static final String DATABASE_TABLE = "itemset_";
-    private static final int DATABASE_VERSION = 2;
+    private static final int DATABASE_VERSION = 3;
 
     private static final String ITEMSET_TABLE = "itemsets";
     private static final String KEY_ITEMSET_HASH = "hash";
     private static final String KEY_PATH = "path";
+    private static final String KEY_SIZE = "size";
+    private static final String KEY_LAST_MODIFIED = "last_modified";
 
     private static final String CREATE_ITEMSET_TABLE =
             "CREATE TABLE IF NOT EXISTS " + ITEMSET_TABLE + " (_id integer primary key autoincrement, "
                     + KEY_ITEMSET_HASH + " text, "
-                    + KEY_PATH + " text "
+                    + KEY_PATH + " text, "
+                    + KEY_SIZE + " integer, "
+                    + KEY_LAST_MODIFIED + " integer "
                     + ");";
 
+    private static final String LIST_NAME_COLUMN = "list_name";
+    private static final int IMPORT_BUFFER_SIZE = 64 * 1024;
+
+    /** The names that an itemset query can compare as columns, e.g. state or label::English */
+    private static final Pattern COLUMN_NAME = Pattern.compile("[\\p{L}_][\\p{L}\\p{N}_.:-]*");
+
+    /**
+     * Itemsets are imported when a form is opened and in the background after it has been
+     * downloaded so imports of the same file have to take turns.
+     */
+    private static final Object IMPORT_LOCK = new Object();
+
     /**
      * This class helps open, create, and upgrade the database file.
      */
@@ -51,6 +84,14 @@ public class ItemsetDbAdapter {
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            if (oldVersion == 2) {
+                // The imported itemsets are kept. They are re-imported once because their size
+                // and last modified time are unknown.
+                db.execSQL("ALTER TABLE " + ITEMSET_TABLE + " ADD COLUMN " + KEY_SIZE + " integer");
+                db.execSQL("ALTER TABLE " + ITEMSET_TABLE + " ADD COLUMN " + KEY_LAST_MODIFIED + " integer");
+                return;
+            }
+
             Timber.w("Upgrading database from version %d to %d, which will destroy all old data", oldVersion, newVersion);
             // first drop all of our generated itemset tables
             Cursor c = db.query(ITEMSET_TABLE, null, null, null, null, null, null);
@@ -88,15 +129,129 @@ public class ItemsetDbAdapter {
         dbHelper.close();
     }
 
-    public boolean createTable(String formHash, String pathHash, String[] columns, String path) {
-        StringBuilder sb = new StringBuilder();
+    /**
+     * Imports the given itemsets.csv unless it has already been imported and hasn't changed since.
+     * The file is only read once: its hash is computed while the rows are inserted. The new rows
+     * replace the previous import in a single transaction so that the previous import can be
+     * queried until the new one is complete and a partial import is never used.
+     *
+     * @return true if the file was imported
+     */
+    public boolean importItemsetsIfChanged(File csv) throws IOException {
+        synchronized (IMPORT_LOCK) {
+            String pathHash = getMd5FromString(csv.getAbsolutePath());
+            if (isImported(csv, pathHash)) {
+                return false;
+            }
+
+            final long start = System.currentTimeMillis();
+            int rowCount = importItemsets(csv, pathHash);
+            Timber.i("Imported %d itemsets from %s in %.3f seconds", rowCount, csv.getAbsolutePath(),
+                    (System.currentTimeMillis() - start) / 1000F);
+            return true;
+        }
+    }
+
+    private boolean isImported(File csv, String pathHash) {
+        String selection = KEY_PATH + "=? and " + KEY_SIZE + "=? and " + KEY_LAST_MODIFIED + "=?";
+        String[] selectionArgs = {
+                new StoragePathProvider().getFormDbPath(csv.getAbsolutePath()),
+                String.valueOf(csv.length()),
+                String.valueOf(csv.lastModified())
+        };
 
-        // get md5 of the path to itemset.csv, which is unique per form
-        // the md5 is easier to use because it doesn't have chars like '/'
+        Cursor c = db.query(ITEMSET_TABLE, null, selection, selectionArgs, null, null, null);
+        try {
+            return c.getCount() == 1 && tableExists(pathHash);
+        } finally {
+            c.close();
+        }
+    }
+
+    private int importItemsets(File csv, String pathHash) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        long size = csv.length();
+        long lastModified = csv.lastModified();
+        String tableName = DATABASE_TABLE + pathHash;
+        String importTableName = tableName + "_import";
+        int rowCount = 0;
+
+        CSVReader reader = new CSVReader(new InputStreamReader(new DigestInputStream(
+                new BufferedInputStream(new FileInputStream(csv), IMPORT_BUFFER_SIZE), md), "UTF-8"));
+        db.beginTransaction();
+        try {
+            // first line of csv is column headers
+            String[] columns = reader.readNext();
+            if (columns == null) {
+                throw new IOException(csv.getName() + " is empty");
+            }
+
+            db.execSQL("DROP TABLE IF EXISTS " + importTableName);
+            db.execSQL(getCreateTableStatement(importTableName, columns));
+
+            SQLiteStatement insertStatement = db.compileStatement(getInsertStatement(importTableName, columns));
+            try {
+                String[] row;
+                while ((row = reader.readNext()) != null) {
+                    insertStatement.clearBindings();
+                    int parameterIndex = 1;
+                    for (int i = 0; i < columns.length; i++) {
+                        if (columns[i].isEmpty()) {
+                            continue;
+                        }
+                        // rows don't necessarily use all the columns
+                        if (i < row.length) {
+                            insertStatement.bindString(parameterIndex, row[i]);
+                        }
+                        parameterIndex++;
+                    }
+                    insertStatement.executeInsert();
+                    rowCount++;
+                }
+            } finally {
+                insertStatement.close();
+            }
+
+            // The whole file has been read so the digest is complete
+            String hash = String.format(Locale.US, "%032x", new BigInteger(1, md.digest()));
+
+            db.execSQL("DROP TABLE IF EXISTS " + tableName);
+            db.execSQL("ALTER TABLE " + importTableName + " RENAME TO " + tableName);
+
+            // Indexes are much faster to build once all the rows are there
+            for (String createIndexStatement : getCreateIndexStatements(tableName, columns)) {
+                db.execSQL(createIndexStatement);
+            }
+
+            String path = new StoragePathProvider().getFormDbPath(csv.getAbsolutePath());
+            db.delete(ITEMSET_TABLE, KEY_PATH + "=?", new String[]{path});
+            ContentValues cv = new ContentValues();
+            cv.put(KEY_ITEMSET_HASH, hash);
+            cv.put(KEY_PATH, path);
+            cv.put(KEY_SIZE, size);
+            cv.put(KEY_LAST_MODIFIED, lastModified);
+            db.insert(ITEMSET_TABLE, null, cv);
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            reader.close();
+        }
+
+        return rowCount;
+    }
+
+    private static String getCreateTableStatement(String tableName, String[] columns) {
+        StringBuilder sb = new StringBuilder();
 
         sb.append("create table ")
-                .append(DATABASE_TABLE)
-                .append(pathHash)
+                .append(tableName)
                 .append(" (_id integer primary key autoincrement ");
 
         for (String column : columns) {
@@ -106,35 +261,61 @@ public class ItemsetDbAdapter {
                         .append(" , \"")
                         .append(column)
                         .append("\" text ");
-                // create database with first line
             }
         }
         sb.append(");");
 
-        String tableCreate = sb.toString();
-        Timber.i("create string: %s", tableCreate);
-        db.execSQL(tableCreate);
-
-        ContentValues cv = new ContentValues();
-        cv.put(KEY_ITEMSET_HASH, formHash);
-        cv.put(KEY_PATH, new StoragePathProvider().getFormDbPath(path));
-        db.insert(ITEMSET_TABLE, null, cv);
+        return sb.toString();
+    }
 
-        return true;
+    private static String getInsertStatement(String tableName, String[] columns) {
+        StringBuilder sb = new StringBuilder("insert into ").append(tableName).append(" (");
+        StringBuilder placeholders = new StringBuilder();
+        for (String column : columns) {
+            if (!column.isEmpty()) {
+                if (placeholders.length() > 0) {
+                    sb.append(", ");
+                    placeholders.append(", ");
+                }
+                sb.append('"').append(column).append('"');
+                placeholders.append('?');
+            }
+        }
+        return sb.append(") values (").append(placeholders).append(')').toString();
     }
 
-    public boolean addRow(String tableName, String[] columns, String[] newRow) {
-        ContentValues cv = new ContentValues();
+    /**
+     * Returns statements that index the columns that itemset queries filter by: the list name
+     * and the columns that refer to other answers, e.g. the state a city is in.
+     */
+    private static List<String> getCreateIndexStatements(String tableName, String[] columns) {
+        boolean hasListName = false;
+        for (String column : columns) {
+            hasListName |= column.equals(LIST_NAME_COLUMN);
+        }
 
-        // rows don't necessarily use all the columns
-        // but a column is guaranteed to exist for a row (or else blow up)
-        for (int i = 0; i < newRow.length; i++) {
-            if (!columns[i].isEmpty()) {
-                cv.put("\"" + columns[i] + "\"", newRow[i]);
+        // Every query filters by list name so it leads each index
+        List<String> createIndexStatements = new ArrayList<>();
+        for (int i = 0; i < columns.length; i++) {
+            if (isFilterColumn(columns[i])) {
+                createIndexStatements.add("create index " + tableName + "_" + i + "_idx on "
+                        + tableName + " (" + (hasListName ? "\"" + LIST_NAME_COLUMN + "\", " : "")
+                        + "\"" + columns[i] + "\")");
             }
         }
-        db.insert(DATABASE_TABLE + tableName, null, cv);
-        return true;
+        if (hasListName && createIndexStatements.isEmpty()) {
+            createIndexStatements.add("create index " + tableName + "_list_name_idx on "
+                    + tableName + " (\"" + LIST_NAME_COLUMN + "\")");
+        }
+        return createIndexStatements;
+    }
+
+    private static boolean isFilterColumn(String column) {
+        return !column.isEmpty()
+                && !column.equals(LIST_NAME_COLUMN)
+                && !column.equals("name")
+                && !column.equals("label") && !column.startsWith("label::")
+                && !column.equals("image") && !column.startsWith("media::");
     }
 
     public boolean tableExists(String tableName) {
@@ -154,29 +335,222 @@ public class ItemsetDbAdapter {
 
     }
 
-    public void beginTransaction() {
-        db.execSQL("BEGIN");
+    /**
+     * Returns the name and label columns of the matching items in the order of the csv.
+     */
+    public Cursor query(String hash, String selection, String[] selectionArgs) throws SQLException {
+        List<String> columns = new ArrayList<>();
+        for (String column : getResultColumns(hash)) {
+            columns.add('"' + column + '"');
+        }
+        return db.query(DATABASE_TABLE + hash, columns.toArray(new String[0]), selection, selectionArgs,
+                null, null, "_id");
+    }
+
+    /**
+     * Creates the covering indexes for the itemset questions of the given form that don't exist
+     * yet. This runs while the form is loaded or cached rather than when the questions are shown
+     * because building an index of a large csv takes a while.
+     */
+    public void createCoveringIndexes(File csv, FormDef formDef) throws SQLException {
+        synchronized (IMPORT_LOCK) {
+            String pathHash = getMd5FromString(csv.getAbsolutePath());
+            if (!tableExists(pathHash)) {
+                return;
+            }
+
+            Set<String> itemsetQueries = new LinkedHashSet<>();
+            collectItemsetQueries(formDef, itemsetQueries);
+            List<String> tableColumns = getTableColumns(pathHash);
+            for (String itemsetQuery : itemsetQueries) {
+                List<String> filterColumns = getFilterColumns(itemsetQuery);
+                // Columns that aren't in the csv can't be indexed; the query reports them when it runs
+                filterColumns.retainAll(tableColumns);
+                try {
+                    createCoveringIndex(pathHash, filterColumns);
+                } catch (SQLException e) {
+                    // The other itemsets of the form can still be indexed
+                    Timber.w(e, "Unable to index itemset query %s", itemsetQuery);
+                }
+            }
+        }
+    }
+
+    private static void collectItemsetQueries(IFormElement element, Set<String> itemsetQueries) {
+        if (element instanceof QuestionDef) {
+            // e.g. instance('cities')/root/item[state=/data/state and county=/data/county]
+            String itemsetQuery = ((QuestionDef) element).getAdditionalAttribute(null, "query");
+            if (itemsetQuery != null) {
+                itemsetQueries.add(itemsetQuery);
+            }
+        }
+
+        List<IFormElement> children = element.getChildren();
+        if (children != null) {
+            for (IFormElement child : children) {
+                collectItemsetQueries(child, itemsetQueries);
+            }
+        }
     }
 
-    public void commit() {
-        db.execSQL("COMMIT");
+    /**
+     * Returns the columns that an itemset query compares with other answers for equality, e.g.
+     * state and county for instance('cities')/root/item[state=/data/state and county=/data/county].
+     * The predicate is split at the and/or keywords that aren't in a string literal or in brackets
+     * and only the left side of a condition whose operator is = is kept if it is a plain name.
+     * Other comparisons such as != or < can't use an index that leads with the column.
+     */
+    static List<String> getFilterColumns(String itemsetQuery) {
+        List<String> filterColumns = new ArrayList<>();
+        int start = itemsetQuery.indexOf('[');
+        int end = itemsetQuery.lastIndexOf(']');
+        if (start == -1 || end < start) {
+            return filterColumns;
+        }
+
+        for (String condition : splitConditions(itemsetQuery.substring(start + 1, end))) {
+            String column = getEqualityColumn(condition);
+            if (column != null && !filterColumns.contains(column)) {
+                filterColumns.add(column);
+            }
+        }
+        return filterColumns;
     }
 
-    public Cursor query(String hash, String selection, String[] selectionArgs) throws SQLException {
-        return db.query(true, DATABASE_TABLE + hash, null, selection, selectionArgs,
-                null, null, null, null);
+    private static List<String> splitConditions(String predicate) {
+        List<String> conditions = new ArrayList<>();
+        int conditionStart = 0;
+        int depth = 0;
+        char quote = 0;
+        for (int i = 0; i < predicate.length(); i++) {
+            char c = predicate.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+            } else if (c == '(' || c == '[') {
+                depth++;
+            } else if (c == ')' || c == ']') {
+                depth--;
+            } else if (depth == 0 && predicate.startsWith(" and ", i)) {
+                conditions.add(predicate.substring(conditionStart, i));
+                conditionStart = i + " and ".length();
+                i = conditionStart - 1;
+            } else if (depth == 0 && predicate.startsWith(" or ", i)) {
+                conditions.add(predicate.substring(conditionStart, i));
+                conditionStart = i + " or ".length();
+                i = conditionStart - 1;
+            }
+        }
+        conditions.add(predicate.substring(conditionStart));
+        return conditions;
     }
 
-    public void dropTable(String pathHash, String path) {
-        // drop the table
-        db.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE + pathHash);
+    /**
+     * Returns the name on the left of the first comparison operator of the condition if that
+     * operator is = or null otherwise.
+     */
+    private static String getEqualityColumn(String condition) {
+        char quote = 0;
+        for (int i = 0; i < condition.length(); i++) {
+            char c = condition.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+            } else if (c == '!' || c == '<' || c == '>') {
+                // !=, <, <=, >, >=
+                return null;
+            } else if (c == '=') {
+                String column = condition.substring(0, i).trim();
+                return COLUMN_NAME.matcher(column).matches() ? column : null;
+            }
+        }
+        return null;
+    }
 
-        // and remove the entry from the itemsets table
-        String where = KEY_PATH + "=?";
-        String[] whereArgs = {
-                new StoragePathProvider().getFormDbPath(path)
-        };
-        db.delete(ITEMSET_TABLE, where, whereArgs);
+    /**
+     * Creates an index that covers the queries of an itemset that filters by the given columns
+     * unless it already exists: the list name and the filter columns lead so that the index finds
+     * the items, and the name and label columns follow so that the items can be read from the
+     * index alone. The index is dropped with the table when the csv is re-imported.
+     */
+    private void createCoveringIndex(String hash, List<String> filterColumns) throws SQLException {
+        String tableName = DATABASE_TABLE + hash;
+
+        Set<String> columns = new LinkedHashSet<>();
+        columns.add(LIST_NAME_COLUMN);
+        columns.addAll(filterColumns);
+        columns.addAll(getResultColumns(hash));
+
+        StringBuilder indexedColumns = new StringBuilder();
+        for (String column : columns) {
+            if (indexedColumns.length() > 0) {
+                indexedColumns.append(", ");
+            }
+            indexedColumns.append('"').append(column).append('"');
+        }
+
+        String indexName = tableName + "_" + getMd5FromString(indexedColumns.toString()) + "_idx";
+        if (indexExists(indexName)) {
+            return;
+        }
+
+        final long start = System.currentTimeMillis();
+        db.execSQL("create index " + indexName + " on " + tableName + " (" + indexedColumns + ")");
+        Timber.i("Created index on %s in %.3f seconds", indexedColumns,
+                (System.currentTimeMillis() - start) / 1000F);
+    }
+
+    /**
+     * Returns the hash of the csv that the itemsets at the given path were imported from or null
+     * if they haven't been imported.
+     */
+    public String getItemsetHash(String path) {
+        Cursor c = getItemsets(path);
+        try {
+            return c.moveToFirst() ? c.getString(c.getColumnIndex(KEY_ITEMSET_HASH)) : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    private List<String> getResultColumns(String hash) {
+        List<String> resultColumns = new ArrayList<>();
+        for (String column : getTableColumns(hash)) {
+            if (column.equals("name") || column.equals("label") || column.startsWith("label::")) {
+                resultColumns.add(column);
+            }
+        }
+        return resultColumns;
+    }
+
+    private List<String> getTableColumns(String hash) {
+        List<String> tableColumns = new ArrayList<>();
+        Cursor c = db.rawQuery("PRAGMA table_info(" + DATABASE_TABLE + hash + ")", null);
+        try {
+            int nameColumnIndex = c.getColumnIndex("name");
+            while (c.moveToNext()) {
+                tableColumns.add(c.getString(nameColumnIndex));
+            }
+        } finally {
+            c.close();
+        }
+        return tableColumns;
+    }
+
+    private boolean indexExists(String indexName) {
+        Cursor c = db.query("sqlite_master", null, "type=? and name=?",
+                new String[]{"index", indexName}, null, null, null);
+        try {
+            return c.getCount() == 1;
+        } finally {
+            c.close();
+        }
     }
 
     public Cursor getItemsets(String path) {
@@ -45,6 +45,7 @@ import static org.odk.collect.android.provider.InstanceProviderAPI.InstanceColum
 import static org.odk.collect.android.provider.InstanceProviderAPI.InstanceColumns.LAST_STATUS_CHANGE_DATE;
 import static org.odk.collect.android.provider.InstanceProviderAPI.InstanceColumns.STATUS;
 import static org.odk.collect.android.provider.InstanceProviderAPI.InstanceColumns.SUBMISSION_URI;
+import static org.odk.collect.android.provider.InstanceProviderAPI.InstanceColumns.UPLOADED_ATTACHMENTS;
 
 /**
  * This class helps open, create, and upgrade the database file.
@@ -54,7 +55,7 @@ public class InstancesDatabaseHelper extends SQLiteOpenHelper {
     public static final String DATABASE_PATH = new StoragePathProvider().getDirPath(StorageSubdirectory.METADATA) + File.separator + DATABASE_NAME;
     public static final String INSTANCES_TABLE_NAME = "instances";
 
-    static final int DATABASE_VERSION = 6;
+    static final int DATABASE_VERSION = 7;
 
     private static final String[] COLUMN_NAMES_V5 = {_ID, DISPLAY_NAME, SUBMISSION_URI, CAN_EDIT_WHEN_COMPLETE,
             INSTANCE_FILE_PATH, JR_FORM_ID, JR_VERSION, STATUS, LAST_STATUS_CHANGE_DATE, DELETED_DATE};
@@ -63,7 +64,11 @@ public class InstancesDatabaseHelper extends SQLiteOpenHelper {
         CAN_EDIT_WHEN_COMPLETE, INSTANCE_FILE_PATH, JR_FORM_ID, JR_VERSION, STATUS,
         LAST_STATUS_CHANGE_DATE, DELETED_DATE, GEOMETRY, GEOMETRY_TYPE};
 
-    static final String[] CURRENT_VERSION_COLUMN_NAMES = COLUMN_NAMES_V6;
+    private static final String[] COLUMN_NAMES_V7 = {_ID, DISPLAY_NAME, SUBMISSION_URI,
+        CAN_EDIT_WHEN_COMPLETE, INSTANCE_FILE_PATH, JR_FORM_ID, JR_VERSION, STATUS,
+        LAST_STATUS_CHANGE_DATE, DELETED_DATE, GEOMETRY, GEOMETRY_TYPE, UPLOADED_ATTACHMENTS};
+
+    static final String[] CURRENT_VERSION_COLUMN_NAMES = COLUMN_NAMES_V7;
 
     private static boolean isDatabaseBeingMigrated;
 
@@ -75,6 +80,7 @@ public class InstancesDatabaseHelper extends SQLiteOpenHelper {
     public void onCreate(SQLiteDatabase db) {
         createInstancesTableV5(db, INSTANCES_TABLE_NAME);
         upgradeToVersion6(db, INSTANCES_TABLE_NAME);
+        upgradeToVersion7(db, INSTANCES_TABLE_NAME);
     }
 
     /**
@@ -100,6 +106,8 @@ public class InstancesDatabaseHelper extends SQLiteOpenHelper {
                     upgradeToVersion5(db);
                 case 5:
                     upgradeToVersion6(db, INSTANCES_TABLE_NAME);
+                case 6:
+                    upgradeToVersion7(db, INSTANCES_TABLE_NAME);
                     break;
                 default:
                     Timber.i("Unknown version %d", oldVersion);
@@ -121,6 +129,7 @@ public class InstancesDatabaseHelper extends SQLiteOpenHelper {
             String temporaryTableName = INSTANCES_TABLE_NAME + "_tmp";
             createInstancesTableV5(db, temporaryTableName);
             upgradeToVersion6(db, temporaryTableName);
+            upgradeToVersion7(db, temporaryTableName);
 
             dropObsoleteColumns(db, CURRENT_VERSION_COLUMN_NAMES, temporaryTableName);
             Timber.i("Downgrading database from version %d to %d completed with success.", oldVersion, newVersion);
@@ -197,6 +206,10 @@ public class InstancesDatabaseHelper extends SQLiteOpenHelper {
         SQLiteUtils.addColumn(db, name, GEOMETRY_TYPE, "text");
     }
 
+    private void upgradeToVersion7(SQLiteDatabase db, String name) {
+        SQLiteUtils.addColumn(db, name, UPLOADED_ATTACHMENTS, "text");
+    }
+
     private void createInstancesTableV5(SQLiteDatabase db, String name) {
         db.execSQL("CREATE TABLE IF NOT EXISTS " + name + " ("
                 + _ID + " integer primary key, "
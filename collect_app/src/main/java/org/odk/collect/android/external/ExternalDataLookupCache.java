@@ -0,0 +1,157 @@
+package org.odk.collect.android.external;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.LruCache;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import timber.log.Timber;
+
+/**
+ * Remembers the results of pulldata() lookups for a form session. JavaRosa re-evaluates
+ * calculations on every answer change so the same lookups are repeated many times.
+ *
+ * Recent lookups are kept in an LRU cache. For small data sets, the first lookup of a
+ * queried/reference column pair instead loads both columns into a map so that every later
+ * lookup of that pair is answered from memory.
+ */
+public class ExternalDataLookupCache {
+
+    private static final int MAX_CACHED_LOOKUPS = 2000;
+    private static final long MAX_PRELOADED_ROWS = 10000;
+    private static final int LOOKUPS_BETWEEN_STATS = 1000;
+
+    private final LruCache<String, String> lookups = new LruCache<>(MAX_CACHED_LOOKUPS);
+    private final Map<String, Map<String, String>> preloadedColumns = new HashMap<>();
+    private final Map<String, Long> rowCounts = new HashMap<>();
+
+    private long hits;
+    private long misses;
+
+    /**
+     * Returns the value of the queried column in the first row where the reference column has the
+     * given value or an empty string if there is no such row.
+     */
+    public synchronized String pull(SQLiteDatabase db, String dataSetName, String queriedColumn,
+                                    String referenceColumn, String referenceValue) {
+        String columnsKey = dataSetName + '\u0000' + queriedColumn + '\u0000' + referenceColumn;
+
+        Map<String, String> preloaded = preloadedColumns.get(columnsKey);
+        if (preloaded == null && getRowCount(db, dataSetName) <= MAX_PRELOADED_ROWS) {
+            preloaded = preload(db, queriedColumn, referenceColumn);
+            preloadedColumns.put(columnsKey, preloaded);
+        }
+
+        if (preloaded != null) {
+            recordLookup(true);
+            return ExternalDataUtil.nullSafe(preloaded.get(ExternalDataUtil.foldCase(referenceValue)));
+        }
+
+        String lookupKey = columnsKey + '\u0000' + referenceValue;
+        String value = lookups.get(lookupKey);
+        if (value != null) {
+            recordLookup(true);
+            return value;
+        }
+
+        recordLookup(false);
+        value = query(db, queriedColumn, referenceColumn, referenceValue);
+        lookups.put(lookupKey, value);
+        return value;
+    }
+
+    /**
+     * Forgets everything about the given data set, e.g. because it has been re-imported.
+     */
+    public synchronized void invalidate(String dataSetName) {
+        String prefix = dataSetName.toLowerCase(Locale.US) + '\u0000';
+        for (String lookupKey : lookups.snapshot().keySet()) {
+            if (lookupKey.startsWith(prefix)) {
+                lookups.remove(lookupKey);
+            }
+        }
+        for (String columnsKey : preloadedColumns.keySet().toArray(new String[0])) {
+            if (columnsKey.startsWith(prefix)) {
+                preloadedColumns.remove(columnsKey);
+            }
+        }
+        rowCounts.remove(dataSetName.toLowerCase(Locale.US));
+    }
+
+    public synchronized void clear() {
+        lookups.evictAll();
+        preloadedColumns.clear();
+        rowCounts.clear();
+    }
+
+    public synchronized double getHitRatio() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    public synchronized String getStats() {
+        return String.format(Locale.US, "pulldata lookups: %d hits, %d misses (%.1f%% hit ratio), %d cached, %d columns preloaded",
+                hits, misses, getHitRatio() * 100, lookups.size(), preloadedColumns.size());
+    }
+
+    private void recordLookup(boolean hit) {
+        if (hit) {
+            hits++;
+        } else {
+            misses++;
+        }
+
+        if ((hits + misses) % LOOKUPS_BETWEEN_STATS == 0) {
+            Timber.i(getStats());
+        }
+    }
+
+    private long getRowCount(SQLiteDatabase db, String dataSetName) {
+        Long rowCount = rowCounts.get(dataSetName);
+        if (rowCount == null) {
+            rowCount = DatabaseUtils.queryNumEntries(db, ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME);
+            rowCounts.put(dataSetName, rowCount);
+        }
+        return rowCount;
+    }
+
+    private static Map<String, String> preload(SQLiteDatabase db, String queriedColumn, String referenceColumn) {
+        Map<String, String> values = new HashMap<>();
+        String[] columns = {ExternalDataUtil.toSafeColumnName(referenceColumn), ExternalDataUtil.toSafeColumnName(queriedColumn)};
+
+        try (Cursor c = db.query(ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME, columns, null, null,
+                null, null, "rowid")) {
+            while (c.moveToNext()) {
+                String key = ExternalDataUtil.foldCase(c.getString(0));
+                // The lookup query returns the first matching row
+                if (!values.containsKey(key)) {
+                    values.put(key, c.getString(1));
+                }
+            }
+        }
+
+        return values;
+    }
+
+    private static String query(SQLiteDatabase db, String queriedColumn, String referenceColumn, String referenceValue) {
+        String[] columns = {ExternalDataUtil.toSafeColumnName(queriedColumn)};
+        String selection = ExternalDataUtil.toSafeColumnName(referenceColumn) + "=?";
+        String[] selectionArgs = {referenceValue};
+
+        try (Cursor c = db.query(ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME, columns, selection,
+                selectionArgs, null, null, null)) {
+            if (c.getCount() > 0) {
+                c.moveToFirst();
+                return ExternalDataUtil.nullSafe(c.getString(0));
+            } else {
+                Timber.i("Could not find a value in %s where the column %s has the value %s",
+                        queriedColumn, referenceColumn, referenceValue);
+                return "";
+            }
+        }
+    }
+}
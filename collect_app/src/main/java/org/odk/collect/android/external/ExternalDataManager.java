@@ -39,5 +39,10 @@ public interface ExternalDataManager {
      */
     ExternalSQLiteOpenHelper getDatabase(String dataSetName, boolean required);
 
+    /**
+     * Returns the cache of pulldata() lookups for this form session.
+     */
+    ExternalDataLookupCache getLookupCache();
+
     void close();
 }
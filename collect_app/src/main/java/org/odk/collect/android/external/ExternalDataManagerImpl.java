@@ -36,6 +36,7 @@ import timber.log.Timber;
 public class ExternalDataManagerImpl implements ExternalDataManager {
 
     private final Map<String, ExternalSQLiteOpenHelper> dbMap = new HashMap<>();
+    private final ExternalDataLookupCache lookupCache = new ExternalDataLookupCache();
 
     private final File mediaFolder;
 
@@ -63,8 +64,16 @@ public class ExternalDataManagerImpl implements ExternalDataManager {
         return sqLiteOpenHelper;
     }
 
+    @Override
+    public ExternalDataLookupCache getLookupCache() {
+        return lookupCache;
+    }
+
     @Override
     public void close() {
+        Timber.i(lookupCache.getStats());
+        lookupCache.clear();
+
         if (dbMap != null) {
             for (ExternalSQLiteOpenHelper externalSQLiteOpenHelper : dbMap.values()) {
                 Timber.w("Closing database handler:%s", externalSQLiteOpenHelper.toString());
@@ -29,4 +29,10 @@ import java.util.Map;
 public interface ExternalDataReader {
 
     void doImport(Map<String, File> externalDataMap);
+
+    /**
+     * Marks the data files imported by {@link #doImport(Map)} so that they aren't imported again.
+     * This is separate from the import because the form definition may read the same files.
+     */
+    void archiveImportedFiles();
 }
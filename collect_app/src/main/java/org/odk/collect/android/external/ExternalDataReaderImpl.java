@@ -18,13 +18,14 @@
 
 package org.odk.collect.android.external;
 
-import android.database.sqlite.SQLiteDatabase;
-
 import org.apache.commons.io.FileUtils;
 import org.odk.collect.android.tasks.FormLoaderTask;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 import timber.log.Timber;
@@ -36,7 +37,11 @@ import timber.log.Timber;
  */
 public class ExternalDataReaderImpl implements ExternalDataReader {
 
+    private static final String IMPORT_FILE_SUFFIX = ".importing";
+    private static final String JOURNAL_FILE_SUFFIX = "-journal";
+
     private final FormLoaderTask formLoaderTask;
+    private final List<File> importedFiles = new ArrayList<>();
 
     public ExternalDataReaderImpl(FormLoaderTask formLoaderTask) {
         this.formLoaderTask = formLoaderTask;
@@ -50,58 +55,110 @@ public class ExternalDataReaderImpl implements ExternalDataReader {
             if (dataSetFile.exists()) {
                 File dbFile = new File(dataSetFile.getParentFile().getAbsolutePath(),
                         dataSetName + ".db");
-                if (dbFile.exists()) {
-                    // this means the someone updated the csv file, so we need to reload it
-                    boolean deleted = dbFile.delete();
-                    if (!deleted) {
-                        Timber.e("%s has changed but we could not delete the previous DB at %s",
-                                dataSetFile.getName(), dbFile.getAbsolutePath());
-                        continue;
-                    }
-                }
                 ExternalSQLiteOpenHelper externalSQLiteOpenHelper = new ExternalSQLiteOpenHelper(
                         dbFile);
-                externalSQLiteOpenHelper.importFromCSV(dataSetFile, this, formLoaderTask);
-
-                if (formLoaderTask.isCancelled()) {
-                    Timber.w(
-                            "The import was cancelled, so we need to rollback.");
-
-                    // we need to drop the database file since it might be partially populated.
-                    // It will be re-created next time.
+                // this means the someone updated the csv file, so we need to apply the changes
+                // or reload it if that isn't possible
+                boolean updated = dbFile.exists()
+                        && externalSQLiteOpenHelper.updateFromCSV(dataSetFile, this, formLoaderTask);
+                if (!updated) {
+                    // The data is imported into a separate file that only replaces the previous
+                    // database once it is complete. The import doesn't use a journal so a crash
+                    // or cancellation can leave that file in any state.
+                    File importFile = new File(dbFile.getParentFile(), dbFile.getName() + IMPORT_FILE_SUFFIX);
+                    deleteDatabaseFiles(importFile);
+                    try {
+                        new ExternalSQLiteOpenHelper(importFile).importFromCSV(dataSetFile, this, formLoaderTask);
+                    } catch (RuntimeException e) {
+                        deleteDatabaseFiles(importFile);
+                        throw e;
+                    }
 
-                    Timber.w("Closing database to be deleted %s", dbFile.toString());
+                    if (formLoaderTask.isCancelled()) {
+                        Timber.w("The import of %s was cancelled. It will be imported again next time.",
+                                dataSetFile.getName());
+                        deleteDatabaseFiles(importFile);
 
-                    // then close the database
-                    SQLiteDatabase db = externalSQLiteOpenHelper.getReadableDatabase();
-                    db.close();
+                        // then just exit and do not process any other CSVs.
+                        return;
+                    }
 
-                    // the physically delete the db.
                     try {
-                        FileUtils.forceDelete(dbFile);
-                        Timber.w("Deleted %s", dbFile.getName());
+                        replaceDatabase(importFile, dbFile);
                     } catch (IOException e) {
-                        Timber.e(e);
+                        Timber.e(e, "%s has changed but we could not replace the previous DB at %s",
+                                dataSetFile.getName(), dbFile.getAbsolutePath());
+                        deleteDatabaseFiles(importFile);
+                        continue;
                     }
-
-                    // then just exit and do not process any other CSVs.
+                } else if (formLoaderTask.isCancelled()) {
+                    // the changes were rolled back so the previous data is still intact and the
+                    // csv will be applied again next time.
+                    Timber.w("The update of %s was cancelled.", dbFile.getName());
                     return;
+                }
 
-                } else {
-                    // rename the dataSetFile into "dataSetFile.csv.imported" in order not to be
-                    // loaded again
-                    File importedFile = new File(dataSetFile.getParentFile(),
-                            dataSetFile.getName() + ".imported");
-                    boolean renamed = dataSetFile.renameTo(importedFile);
-                    if (!renamed) {
-                        Timber.e("%s could not be renamed to be archived. It will be re-imported "
-                                + "again! :(", dataSetFile.getName());
-                    } else {
-                        Timber.e("%s was renamed to %s", dataSetFile.getName(), importedFile.getName());
-                    }
+                importedFiles.add(dataSetFile);
+
+                // any lookups made before the import are out of date
+                ExternalDataManager externalDataManager = formLoaderTask.getExternalDataManager();
+                if (externalDataManager != null) {
+                    externalDataManager.getLookupCache().invalidate(dataSetName);
                 }
             }
         }
     }
 
+    /**
+     * Moves a completely imported database into place. Its content is written to the disk first
+     * because it was imported without waiting for that and a rename can reach the disk before
+     * the data does.
+     */
+    private static void replaceDatabase(File importFile, File dbFile) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(importFile, "rw")) {
+            randomAccessFile.getFD().sync();
+        }
+
+        // A journal left by the previous database would otherwise be rolled back into the new one
+        File journalFile = new File(dbFile.getPath() + JOURNAL_FILE_SUFFIX);
+        if (journalFile.exists()) {
+            FileUtils.forceDelete(journalFile);
+        }
+
+        if (!importFile.renameTo(dbFile)) {
+            throw new IOException("Unable to rename " + importFile + " to " + dbFile);
+        }
+        Timber.i("Replaced %s with the imported data", dbFile.getName());
+    }
+
+    private static void deleteDatabaseFiles(File dbFile) {
+        for (File file : new File[]{dbFile, new File(dbFile.getPath() + JOURNAL_FILE_SUFFIX)}) {
+            if (file.exists()) {
+                try {
+                    FileUtils.forceDelete(file);
+                    Timber.w("Deleted %s", file.getName());
+                } catch (IOException e) {
+                    Timber.e(e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void archiveImportedFiles() {
+        for (File dataSetFile : importedFiles) {
+            // rename the dataSetFile into "dataSetFile.csv.imported" in order not to be
+            // loaded again
+            File importedFile = new File(dataSetFile.getParentFile(),
+                    dataSetFile.getName() + ".imported");
+            boolean renamed = dataSetFile.renameTo(importedFile);
+            if (!renamed) {
+                Timber.e("%s could not be renamed to be archived. It will be re-imported "
+                        + "again! :(", dataSetFile.getName());
+            } else {
+                Timber.e("%s was renamed to %s", dataSetFile.getName(), importedFile.getName());
+            }
+        }
+        importedFiles.clear();
+    }
 }
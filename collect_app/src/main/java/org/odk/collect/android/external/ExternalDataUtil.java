@@ -59,6 +59,7 @@ public final class ExternalDataUtil {
 
     public static final String EXTERNAL_DATA_TABLE_NAME = "externalData";
     public static final String SORT_COLUMN_NAME = "c_sortby";
+    public static final String EXTERNAL_DATA_FTS_TABLE_NAME = EXTERNAL_DATA_TABLE_NAME + "_fts";
 
     public static final Pattern SEARCH_FUNCTION_REGEX = Pattern.compile("search\\(.+\\)");
     private static final String COLUMN_SEPARATOR = ",";
@@ -324,6 +325,28 @@ public final class ExternalDataUtil {
         return fullRow;
     }
 
+    /**
+     * Folds case the way SQLite's NOCASE collation and the full-text search tokenizer do: only
+     * the ASCII letters are folded.
+     */
+    public static String foldCase(String value) {
+        if (value == null) {
+            return null;
+        }
+
+        char[] chars = null;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                if (chars == null) {
+                    chars = value.toCharArray();
+                }
+                chars[i] = (char) (c + ('a' - 'A'));
+            }
+        }
+        return chars == null ? value : new String(chars);
+    }
+
     public static String nullSafe(String value) {
         return value == null ? "" : value;
     }
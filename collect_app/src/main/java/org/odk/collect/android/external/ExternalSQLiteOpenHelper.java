@@ -18,9 +18,12 @@
 
 package org.odk.collect.android.external;
 
-import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 
 import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
@@ -34,8 +37,10 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import au.com.bytecode.opencsv.CSVReader;
 import timber.log.Timber;
@@ -51,6 +56,9 @@ public class ExternalSQLiteOpenHelper extends SQLiteOpenHelper {
     private static final char DELIMITING_CHAR = ",".charAt(0);
     private static final char QUOTE_CHAR = "\"".charAt(0);
     private static final char ESCAPE_CHAR = "\0".charAt(0);
+    private static final int IMPORT_BATCH_SIZE = 10000;
+    // Only created once all rows, indexes and the full-text index have been written
+    private static final String IMPORT_COMPLETE_TABLE_NAME = ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME + "_complete";
 
     private File dataSetFile;
     private ExternalDataReader externalDataReader;
@@ -69,6 +77,11 @@ public class ExternalSQLiteOpenHelper extends SQLiteOpenHelper {
         SQLiteDatabase writableDatabase = null;
         try {
             writableDatabase = getWritableDatabase();
+            importNamed(writableDatabase, ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME);
+        } catch (Exception e) {
+            throw new ExternalDataException(
+                    Collect.getInstance().getString(R.string.ext_import_generic_error,
+                            dataSetFile.getName(), e.getMessage()), e);
         } finally {
             if (writableDatabase != null) {
                 writableDatabase.close();
@@ -76,27 +89,42 @@ public class ExternalSQLiteOpenHelper extends SQLiteOpenHelper {
         }
     }
 
-    @Override
-    public void onCreate(SQLiteDatabase db) {
-        if (externalDataReader == null) {
-            // this means that the function handler needed the database through calling
-            // getReadableDatabase() --> getWritableDatabase(),
-            // but this is not allowed, so just return;
-            Timber.e("The function handler triggered this external data population. This is not "
-                            + "good.");
-            return;
-        }
+    /**
+     * Applies the differences between the csv and the previously imported data to the existing
+     * database in a single transaction. Rows are matched using the values of the _key columns.
+     *
+     * @return false if the data has to be fully re-imported instead because the existing
+     * database wasn't completely imported, the columns have changed, there are no _key columns,
+     * the existing keys aren't unique or the changes couldn't be applied.
+     */
+    boolean updateFromCSV(File dataSetFile, ExternalDataReader externalDataReader,
+                          FormLoaderTask formLoaderTask) {
+        this.dataSetFile = dataSetFile;
+        this.externalDataReader = externalDataReader;
+        this.formLoaderTask = formLoaderTask;
 
+        SQLiteDatabase writableDatabase = null;
         try {
-            onCreateNamed(db, ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME);
+            writableDatabase = getWritableDatabase();
+            return updateNamed(writableDatabase, ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME);
         } catch (Exception e) {
-            throw new ExternalDataException(
-                    Collect.getInstance().getString(R.string.ext_import_generic_error,
-                            dataSetFile.getName(), e.getMessage()), e);
+            Timber.w(e, "Unable to apply the changes to %s", dataSetFile.getName());
+            return false;
+        } finally {
+            if (writableDatabase != null) {
+                writableDatabase.close();
+            }
         }
     }
 
-    private void onCreateNamed(SQLiteDatabase db, String tableName) throws Exception {
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        // The data is imported by importFromCSV once the database has been opened rather than
+        // here so that it isn't all written in the single transaction that wraps onCreate. The
+        // database is therefore also created empty when a function handler opens it first.
+    }
+
+    private void importNamed(SQLiteDatabase db, String tableName) throws Exception {
         Timber.w("Reading data from '%s", dataSetFile.toString());
 
         onProgress(Collect.getInstance().getString(R.string.ext_import_progress_message,
@@ -104,132 +132,60 @@ public class ExternalSQLiteOpenHelper extends SQLiteOpenHelper {
 
         CSVReader reader = null;
         try {
-            reader = new CSVReader(new InputStreamReader(new FileInputStream(dataSetFile), "UTF-8"),
-                    DELIMITING_CHAR, QUOTE_CHAR, ESCAPE_CHAR);
-            String[] headerRow = reader.readNext();
-
-            headerRow[0] = removeByteOrderMark(headerRow[0]);
-
-            if (!ExternalDataUtil.containsAnyData(headerRow)) {
-                throw new ExternalDataException(
-                        Collect.getInstance().getString(R.string.ext_file_no_data_error));
-            }
-
-            List<String> conflictingColumns =
-                    ExternalDataUtil.findMatchingColumnsAfterSafeningNames(headerRow);
-
-            if (conflictingColumns != null && !conflictingColumns.isEmpty()) {
-                // this means that after removing invalid characters, some column names resulted
-                // with the same name,
-                // so the create table query will fail with "duplicate column" error.
-                throw new ExternalDataException(
-                        Collect.getInstance().getString(R.string.ext_conflicting_columns_error,
-                                conflictingColumns));
-            }
-
-            Map<String, String> columnNamesCache = new HashMap<>();
-
-            StringBuilder sb = new StringBuilder();
-
-            boolean sortColumnAlreadyPresent = false;
-
-            sb
-                    .append("CREATE TABLE IF NOT EXISTS ")
-                    .append(tableName)
-                    .append(" ( ");
-
-            for (int i = 0; i < headerRow.length; i++) {
-                String columnName = headerRow[i].trim();
-                if (columnName.length() == 0) {
-                    continue;
-                }
-                if (i != 0) {
-                    sb.append(", ");
-                }
-                String safeColumnName = ExternalDataUtil.toSafeColumnName(columnName,
-                        columnNamesCache);
-                if (safeColumnName.equals(ExternalDataUtil.SORT_COLUMN_NAME)) {
-                    sortColumnAlreadyPresent = true;
-                    sb.append(safeColumnName).append(" real ");
-                } else {
-                    sb.append(safeColumnName).append(" text collate nocase ");
-                }
-            }
-            if (!sortColumnAlreadyPresent) {
-                sb.append(", ");
-                sb.append(ExternalDataUtil.SORT_COLUMN_NAME).append(" real ");
-            }
-
-            sb.append(" );");
-            String sql = sb.toString();
+            reader = openCSV();
+            String[] headerRow = readHeaderRow(reader);
+            ColumnMapping columnMapping = new ColumnMapping(headerRow);
 
+            String sql = columnMapping.getCreateTableStatement(tableName);
             Timber.w("Creating database for %s with query: %s", dataSetFile, sql);
             db.execSQL(sql);
 
             // create the indexes.
             // save the sql for later because inserts will be much faster if we don't have
             // indexes already.
-            List<String> createIndexesCommands = new ArrayList<>();
-            for (String header : headerRow) {
-                if (header.endsWith("_key")) {
-                    String indexSQL = "CREATE INDEX " + header + "_idx ON " + tableName + " ("
-                            + ExternalDataUtil.toSafeColumnName(header, columnNamesCache) + ");";
-                    createIndexesCommands.add(indexSQL);
-                    Timber.w("Will create an index on %s later.", header);
-                }
-            }
-
-            // populate the database
-            String[] row = reader.readNext();
-            int rowCount = 0;
-            while (row != null && !formLoaderTask.isCancelled()) {
-                // SCTO-894 - first we should make sure that this is not an empty line
-                if (!ExternalDataUtil.containsAnyData(row)) {
-                    // yes, that is an empty row, ignore it
-                    row = reader.readNext();
-                    continue;
-                }
+            List<String> createIndexesCommands = columnMapping.getCreateIndexStatements(tableName);
 
-                // SCTO-894 - then check if the row contains less values than the header
-                // we should not ignore the existing values in the row,
-                // we will just fill up the rest with empty strings
-                if (row.length < headerRow.length) {
-                    row = ExternalDataUtil.fillUpNullValues(row, headerRow);
-                }
+            // The data is imported into a separate file that is discarded unless the import
+            // completes so we don't need a journal or to wait for the data to reach the disk
+            // while building it.
+            setJournalMode(db, "OFF");
+            db.execSQL("PRAGMA synchronous=OFF");
 
-                ContentValues values = new ContentValues();
-                if (!sortColumnAlreadyPresent) {
-                    values.put(ExternalDataUtil.SORT_COLUMN_NAME, rowCount + 1);
-                }
+            SQLiteStatement insertStatement = db.compileStatement(columnMapping.getInsertStatement(tableName));
 
-                for (int i = 0; i < row.length && i < headerRow.length; i++) {
-                    String columnName = headerRow[i].trim();
-                    String columnValue = row[i];
-                    if (columnName.length() == 0) {
-                        continue;
-                    }
-                    String safeColumnName = ExternalDataUtil.toSafeColumnName(columnName,
-                            columnNamesCache);
-                    if (safeColumnName.equals(ExternalDataUtil.SORT_COLUMN_NAME)) {
-                        try {
-                            values.put(safeColumnName, Double.parseDouble(columnValue));
-                        } catch (NumberFormatException e) {
-                            throw new ExternalDataException(Collect.getInstance().getString(
-                                    R.string.ext_sortBy_numeric_error, columnValue));
-                        }
-                    } else {
-                        values.put(safeColumnName, columnValue);
+            // populate the database
+            final long start = System.currentTimeMillis();
+            String[] row = readNextRow(reader, headerRow);
+            int rowCount = 0;
+            db.beginTransaction();
+            try {
+                while (row != null && !formLoaderTask.isCancelled()) {
+                    insertStatement.clearBindings();
+                    columnMapping.bindRow(insertStatement, 1, row, rowCount + 1);
+                    insertStatement.executeInsert();
+
+                    row = readNextRow(reader, headerRow);
+                    rowCount++;
+                    if (rowCount % IMPORT_BATCH_SIZE == 0) {
+                        db.setTransactionSuccessful();
+                        db.endTransaction();
+                        db.beginTransaction();
+
+                        onProgress(Collect.getInstance().getString(R.string.ext_import_progress_message,
+                                dataSetFile.getName(), " (" + rowCount + " records so far, "
+                                        + getRowsPerSecond(rowCount, start) + " per second)"));
                     }
                 }
-                db.insertOrThrow(tableName, null, values);
-                row = reader.readNext();
-                rowCount++;
-                if (rowCount % 100 == 0) {
-                    onProgress(Collect.getInstance().getString(R.string.ext_import_progress_message,
-                            dataSetFile.getName(), " (" + rowCount + " records so far)"));
-                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                insertStatement.close();
             }
 
+            Timber.i("Imported %d rows from %s in %.3f seconds (%d rows per second)", rowCount,
+                    dataSetFile.getName(), (System.currentTimeMillis() - start) / 1000F,
+                    getRowsPerSecond(rowCount, start));
+
             if (formLoaderTask.isCancelled()) {
                 Timber.w("User canceled reading data from %s", dataSetFile.toString());
                 onProgress(Collect.getInstance().getString(R.string.ext_import_cancelled_message));
@@ -243,9 +199,136 @@ public class ExternalSQLiteOpenHelper extends SQLiteOpenHelper {
                     db.execSQL(createIndexCommand);
                 }
 
+                createFullTextIndex(db, tableName, columnMapping);
+
+                db.execSQL("CREATE TABLE " + IMPORT_COMPLETE_TABLE_NAME + " (completed integer)");
+
                 Timber.w("Read all data from %s", dataSetFile.toString());
                 onProgress(Collect.getInstance().getString(R.string.ext_import_completed_message));
             }
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    Timber.e(e);
+                }
+            }
+
+            db.execSQL("PRAGMA synchronous=FULL");
+            setJournalMode(db, "DELETE");
+        }
+    }
+
+    private boolean updateNamed(SQLiteDatabase db, String tableName) throws Exception {
+        Timber.w("Reading changed data from '%s", dataSetFile.toString());
+
+        onProgress(Collect.getInstance().getString(R.string.ext_import_progress_message,
+                dataSetFile.getName(), ""));
+
+        if (!isImportComplete(db)) {
+            Timber.i("The previous import of %s didn't complete", dataSetFile.getName());
+            return false;
+        }
+
+        CSVReader reader = null;
+        try {
+            reader = openCSV();
+            String[] headerRow = readHeaderRow(reader);
+            ColumnMapping columnMapping = new ColumnMapping(headerRow);
+
+            if (!columnMapping.getTableColumnNames().equals(getTableColumnNames(db, tableName))) {
+                Timber.i("The columns of %s have changed", dataSetFile.getName());
+                return false;
+            }
+
+            if (columnMapping.keyColumnIndexes.isEmpty()) {
+                Timber.i("%s has no _key columns to match rows with", dataSetFile.getName());
+                return false;
+            }
+
+            Map<String, Long> existingRowIds = getRowIdsByKey(db, tableName, columnMapping);
+            if (existingRowIds == null) {
+                Timber.i("The existing keys for %s aren't unique", dataSetFile.getName());
+                return false;
+            }
+
+            SQLiteStatement insertStatement = db.compileStatement(columnMapping.getInsertStatement(tableName));
+            SQLiteStatement updateStatement = db.compileStatement(columnMapping.getUpdateIfChangedStatement(tableName));
+            SQLiteStatement deleteStatement = db.compileStatement("DELETE FROM " + tableName + " WHERE rowid = ?");
+            int updateRowIdIndex = columnMapping.getBoundColumnCount() + 1;
+
+            final long start = System.currentTimeMillis();
+            int rowCount = 0;
+            int inserted = 0;
+            int updated = 0;
+            int deleted = 0;
+            db.beginTransaction();
+            try {
+                String[] row = readNextRow(reader, headerRow);
+                while (row != null && !formLoaderTask.isCancelled()) {
+                    rowCount++;
+                    Long rowId = existingRowIds.remove(columnMapping.getKey(row));
+                    if (rowId == null) {
+                        insertStatement.clearBindings();
+                        columnMapping.bindRow(insertStatement, 1, row, rowCount);
+                        insertStatement.executeInsert();
+                        inserted++;
+                    } else {
+                        updateStatement.clearBindings();
+                        columnMapping.bindRow(updateStatement, 1, row, rowCount);
+                        updateStatement.bindLong(updateRowIdIndex, rowId);
+                        columnMapping.bindRow(updateStatement, updateRowIdIndex + 1, row, rowCount);
+                        if (updateStatement.executeUpdateDelete() > 0) {
+                            updated++;
+                        }
+                    }
+
+                    row = readNextRow(reader, headerRow);
+                    if (rowCount % IMPORT_BATCH_SIZE == 0) {
+                        onProgress(Collect.getInstance().getString(R.string.ext_import_progress_message,
+                                dataSetFile.getName(), " (" + rowCount + " records so far, "
+                                        + getRowsPerSecond(rowCount, start) + " per second)"));
+                    }
+                }
+
+                if (formLoaderTask.isCancelled()) {
+                    Timber.w("User canceled reading data from %s", dataSetFile.toString());
+                    onProgress(Collect.getInstance().getString(R.string.ext_import_cancelled_message));
+                    return true;
+                }
+
+                // Whatever hasn't been matched is no longer in the csv
+                for (Long rowId : existingRowIds.values()) {
+                    deleteStatement.bindLong(1, rowId);
+                    deleteStatement.executeUpdateDelete();
+                    deleted++;
+                }
+
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                insertStatement.close();
+                updateStatement.close();
+                deleteStatement.close();
+            }
+
+            Timber.i("Applied changes from %s in %.3f seconds: %d rows read, %d inserted, %d updated, %d deleted",
+                    dataSetFile.getName(), (System.currentTimeMillis() - start) / 1000F,
+                    rowCount, inserted, updated, deleted);
+
+            // Lookups by key rely on these indexes so any that are missing are created now
+            for (String createIndexCommand : columnMapping.getCreateIndexStatements(tableName)) {
+                db.execSQL(createIndexCommand);
+            }
+
+            // Data imported before there was a full-text index gets one now. Otherwise the
+            // triggers have already kept it up to date.
+            if (!hasFullTextIndex(db)) {
+                createFullTextIndex(db, tableName, columnMapping);
+            }
+            onProgress(Collect.getInstance().getString(R.string.ext_import_completed_message));
+            return true;
         } finally {
             if (reader != null) {
                 try {
@@ -257,6 +340,202 @@ public class ExternalSQLiteOpenHelper extends SQLiteOpenHelper {
         }
     }
 
+    private static boolean isImportComplete(SQLiteDatabase db) {
+        return DatabaseUtils.queryNumEntries(db, "sqlite_master", "type = 'table' AND name = ?",
+                new String[]{IMPORT_COMPLETE_TABLE_NAME}) > 0;
+    }
+
+    /**
+     * Returns true if the data has a full-text index that search() can use.
+     */
+    public static boolean hasFullTextIndex(SQLiteDatabase db) {
+        return DatabaseUtils.queryNumEntries(db, "sqlite_master", "type = 'table' AND name = ?",
+                new String[]{ExternalDataUtil.EXTERNAL_DATA_FTS_TABLE_NAME}) > 0;
+    }
+
+    /**
+     * Builds an FTS4 index of the text columns for search()'s contains and startsWith queries.
+     * The index reads the values from the table rather than storing a copy of them, and triggers
+     * keep it up to date when rows are inserted, updated or deleted. If the index can't be
+     * created, search() falls back to scanning the table.
+     */
+    private void createFullTextIndex(SQLiteDatabase db, String tableName, ColumnMapping columnMapping) {
+        List<String> textColumnNames = columnMapping.getTextColumnNames();
+        if (textColumnNames.isEmpty()) {
+            return;
+        }
+
+        String ftsTableName = ExternalDataUtil.EXTERNAL_DATA_FTS_TABLE_NAME;
+        StringBuilder columns = new StringBuilder();
+        StringBuilder newValues = new StringBuilder();
+        for (String textColumnName : textColumnNames) {
+            columns.append(", ").append(textColumnName);
+            newValues.append(", new.").append(textColumnName);
+        }
+        String columnList = columns.substring(2);
+
+        onProgress(Collect.getInstance().getString(R.string.ext_import_finalizing_message));
+
+        final long start = System.currentTimeMillis();
+        boolean created = false;
+        db.beginTransaction();
+        try {
+            db.execSQL("CREATE VIRTUAL TABLE " + ftsTableName + " USING fts4(content=\"" + tableName
+                    + "\", " + columnList + ")");
+            db.execSQL("INSERT INTO " + ftsTableName + " (docid, " + columnList + ") SELECT rowid, "
+                    + columnList + " FROM " + tableName);
+
+            // The old values have to be removed while the index can still read them
+            db.execSQL("CREATE TRIGGER " + ftsTableName + "_bu BEFORE UPDATE ON " + tableName
+                    + " BEGIN DELETE FROM " + ftsTableName + " WHERE docid = old.rowid; END");
+            db.execSQL("CREATE TRIGGER " + ftsTableName + "_bd BEFORE DELETE ON " + tableName
+                    + " BEGIN DELETE FROM " + ftsTableName + " WHERE docid = old.rowid; END");
+            db.execSQL("CREATE TRIGGER " + ftsTableName + "_au AFTER UPDATE ON " + tableName
+                    + " BEGIN INSERT INTO " + ftsTableName + " (docid, " + columnList
+                    + ") VALUES (new.rowid" + newValues + "); END");
+            db.execSQL("CREATE TRIGGER " + ftsTableName + "_ai AFTER INSERT ON " + tableName
+                    + " BEGIN INSERT INTO " + ftsTableName + " (docid, " + columnList
+                    + ") VALUES (new.rowid" + newValues + "); END");
+
+            db.setTransactionSuccessful();
+            created = true;
+        } catch (SQLiteException e) {
+            Timber.w(e, "Unable to create a full-text index for %s", dataSetFile.getName());
+        } finally {
+            db.endTransaction();
+        }
+
+        if (!created) {
+            // A rollback isn't reliable while the journal is off so clean up explicitly
+            dropFullTextIndex(db);
+            return;
+        }
+
+        Timber.i("Created a full-text index of %d columns for %s in %.3f seconds",
+                textColumnNames.size(), dataSetFile.getName(), (System.currentTimeMillis() - start) / 1000F);
+    }
+
+    private static void dropFullTextIndex(SQLiteDatabase db) {
+        String ftsTableName = ExternalDataUtil.EXTERNAL_DATA_FTS_TABLE_NAME;
+        for (String suffix : new String[]{"_bu", "_bd", "_au", "_ai"}) {
+            db.execSQL("DROP TRIGGER IF EXISTS " + ftsTableName + suffix);
+        }
+        db.execSQL("DROP TABLE IF EXISTS " + ftsTableName);
+    }
+
+    private CSVReader openCSV() throws IOException {
+        return new CSVReader(new InputStreamReader(new FileInputStream(dataSetFile), "UTF-8"),
+                DELIMITING_CHAR, QUOTE_CHAR, ESCAPE_CHAR);
+    }
+
+    private String[] readHeaderRow(CSVReader reader) throws IOException {
+        String[] headerRow = reader.readNext();
+
+        headerRow[0] = removeByteOrderMark(headerRow[0]);
+
+        if (!ExternalDataUtil.containsAnyData(headerRow)) {
+            throw new ExternalDataException(
+                    Collect.getInstance().getString(R.string.ext_file_no_data_error));
+        }
+
+        List<String> conflictingColumns =
+                ExternalDataUtil.findMatchingColumnsAfterSafeningNames(headerRow);
+
+        if (conflictingColumns != null && !conflictingColumns.isEmpty()) {
+            // this means that after removing invalid characters, some column names resulted
+            // with the same name,
+            // so the create table query will fail with "duplicate column" error.
+            throw new ExternalDataException(
+                    Collect.getInstance().getString(R.string.ext_conflicting_columns_error,
+                            conflictingColumns));
+        }
+
+        return headerRow;
+    }
+
+    /**
+     * Returns the next row that contains any data, filled up to the length of the header row,
+     * or null at the end of the csv.
+     */
+    private static String[] readNextRow(CSVReader reader, String[] headerRow) throws IOException {
+        String[] row = reader.readNext();
+
+        // SCTO-894 - first we should make sure that this is not an empty line
+        while (row != null && !ExternalDataUtil.containsAnyData(row)) {
+            // yes, that is an empty row, ignore it
+            row = reader.readNext();
+        }
+
+        // SCTO-894 - then check if the row contains less values than the header
+        // we should not ignore the existing values in the row,
+        // we will just fill up the rest with empty strings
+        if (row != null && row.length < headerRow.length) {
+            row = ExternalDataUtil.fillUpNullValues(row, headerRow);
+        }
+
+        return row;
+    }
+
+    private static Set<String> getTableColumnNames(SQLiteDatabase db, String tableName) {
+        Set<String> columnNames = new HashSet<>();
+        Cursor cursor = db.rawQuery("PRAGMA table_info(" + tableName + ")", null);
+        try {
+            int nameColumnIndex = cursor.getColumnIndex("name");
+            while (cursor.moveToNext()) {
+                columnNames.add(cursor.getString(nameColumnIndex));
+            }
+        } finally {
+            cursor.close();
+        }
+        return columnNames;
+    }
+
+    /**
+     * Returns the row ids of the existing rows by their key or null if the keys aren't unique.
+     */
+    private static Map<String, Long> getRowIdsByKey(SQLiteDatabase db, String tableName,
+                                                    ColumnMapping columnMapping) {
+        StringBuilder sql = new StringBuilder("SELECT rowid");
+        for (int keyColumnIndex : columnMapping.keyColumnIndexes) {
+            sql.append(", ").append(columnMapping.safeColumnNames.get(keyColumnIndex));
+        }
+        sql.append(" FROM ").append(tableName);
+
+        Map<String, Long> rowIdsByKey = new HashMap<>();
+        Cursor cursor = db.rawQuery(sql.toString(), null);
+        try {
+            String[] keyValues = new String[columnMapping.keyColumnIndexes.size()];
+            while (cursor.moveToNext()) {
+                for (int i = 0; i < keyValues.length; i++) {
+                    keyValues[i] = cursor.getString(i + 1);
+                }
+                if (rowIdsByKey.put(ColumnMapping.joinKey(keyValues), cursor.getLong(0)) != null) {
+                    return null;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return rowIdsByKey;
+    }
+
+    /**
+     * Sets the journal mode. This pragma returns the new mode so it has to be run as a query.
+     */
+    private static void setJournalMode(SQLiteDatabase db, String journalMode) {
+        Cursor cursor = db.rawQuery("PRAGMA journal_mode=" + journalMode, null);
+        try {
+            cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static long getRowsPerSecond(int rowCount, long start) {
+        long elapsed = System.currentTimeMillis() - start;
+        return elapsed == 0 ? rowCount : rowCount * 1000L / elapsed;
+    }
+
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
     }
@@ -276,4 +555,193 @@ public class ExternalSQLiteOpenHelper extends SQLiteOpenHelper {
     private String removeByteOrderMark(String bomCheckString) {
         return bomCheckString.startsWith("\uFEFF") ? bomCheckString.substring(1) : bomCheckString;
     }
+
+    /**
+     * Maps the columns of a csv to the columns of the table it is imported into. Columns with
+     * an empty header are skipped and the sort column, when it isn't in the csv, is added last.
+     */
+    private static class ColumnMapping {
+        private final String[] headerRow;
+        private final List<Integer> csvColumnIndexes = new ArrayList<>();
+        private final List<String> safeColumnNames = new ArrayList<>();
+        private final List<Integer> keyColumnIndexes = new ArrayList<>();
+        private final Map<String, String> columnNamesCache = new HashMap<>();
+        private int sortColumnIndex = -1;
+
+        ColumnMapping(String[] headerRow) {
+            this.headerRow = headerRow;
+
+            for (int i = 0; i < headerRow.length; i++) {
+                String columnName = headerRow[i].trim();
+                if (columnName.length() == 0) {
+                    continue;
+                }
+                String safeColumnName = ExternalDataUtil.toSafeColumnName(columnName,
+                        columnNamesCache);
+                if (safeColumnName.equals(ExternalDataUtil.SORT_COLUMN_NAME)) {
+                    sortColumnIndex = safeColumnNames.size();
+                }
+                if (headerRow[i].endsWith("_key")) {
+                    keyColumnIndexes.add(safeColumnNames.size());
+                }
+                csvColumnIndexes.add(i);
+                safeColumnNames.add(safeColumnName);
+            }
+        }
+
+        boolean isSortColumnAlreadyPresent() {
+            return sortColumnIndex != -1;
+        }
+
+        /**
+         * Returns the number of values bound by {@link #bindRow}.
+         */
+        int getBoundColumnCount() {
+            return isSortColumnAlreadyPresent() ? safeColumnNames.size() : safeColumnNames.size() + 1;
+        }
+
+        /**
+         * Returns the names of the text columns, i.e. all columns except the sort column.
+         */
+        List<String> getTextColumnNames() {
+            List<String> textColumnNames = new ArrayList<>(safeColumnNames);
+            if (isSortColumnAlreadyPresent()) {
+                textColumnNames.remove(sortColumnIndex);
+            }
+            return textColumnNames;
+        }
+
+        Set<String> getTableColumnNames() {
+            Set<String> tableColumnNames = new HashSet<>(safeColumnNames);
+            tableColumnNames.add(ExternalDataUtil.SORT_COLUMN_NAME);
+            return tableColumnNames;
+        }
+
+        String getCreateTableStatement(String tableName) {
+            StringBuilder sb = new StringBuilder();
+
+            sb
+                    .append("CREATE TABLE IF NOT EXISTS ")
+                    .append(tableName)
+                    .append(" ( ");
+
+            for (int i = 0; i < safeColumnNames.size(); i++) {
+                if (csvColumnIndexes.get(i) != 0) {
+                    sb.append(", ");
+                }
+                String safeColumnName = safeColumnNames.get(i);
+                if (i == sortColumnIndex) {
+                    sb.append(safeColumnName).append(" real ");
+                } else {
+                    sb.append(safeColumnName).append(" text collate nocase ");
+                }
+            }
+            if (!isSortColumnAlreadyPresent()) {
+                sb.append(", ");
+                sb.append(ExternalDataUtil.SORT_COLUMN_NAME).append(" real ");
+            }
+
+            sb.append(" );");
+            return sb.toString();
+        }
+
+        List<String> getCreateIndexStatements(String tableName) {
+            List<String> createIndexesCommands = new ArrayList<>();
+            for (String header : headerRow) {
+                if (header.endsWith("_key")) {
+                    String indexSQL = "CREATE INDEX IF NOT EXISTS " + header + "_idx ON " + tableName + " ("
+                            + ExternalDataUtil.toSafeColumnName(header, columnNamesCache) + ");";
+                    createIndexesCommands.add(indexSQL);
+                    Timber.w("Will create an index on %s later.", header);
+                }
+            }
+            return createIndexesCommands;
+        }
+
+        String getInsertStatement(String tableName) {
+            StringBuilder sb = new StringBuilder("INSERT INTO ").append(tableName).append(" (");
+            StringBuilder placeholders = new StringBuilder();
+            List<String> boundColumnNames = getBoundColumnNames();
+            for (int i = 0; i < boundColumnNames.size(); i++) {
+                if (i != 0) {
+                    sb.append(", ");
+                    placeholders.append(", ");
+                }
+                sb.append(boundColumnNames.get(i));
+                placeholders.append('?');
+            }
+            return sb.append(") VALUES (").append(placeholders).append(')').toString();
+        }
+
+        /**
+         * Returns an update of all columns of the row with a given rowid which only matches if
+         * any of the values differ. The values are bound first, then the rowid and then the
+         * values again.
+         */
+        String getUpdateIfChangedStatement(String tableName) {
+            StringBuilder sb = new StringBuilder("UPDATE ").append(tableName).append(" SET ");
+            StringBuilder unchanged = new StringBuilder();
+            List<String> boundColumnNames = getBoundColumnNames();
+            for (int i = 0; i < boundColumnNames.size(); i++) {
+                if (i != 0) {
+                    sb.append(", ");
+                    unchanged.append(" AND ");
+                }
+                sb.append(boundColumnNames.get(i)).append(" = ?");
+                // Text columns are case insensitive but a change of case is still a change
+                unchanged.append(boundColumnNames.get(i)).append(" IS ? COLLATE BINARY");
+            }
+            return sb.append(" WHERE rowid = ? AND NOT (").append(unchanged).append(')').toString();
+        }
+
+        private List<String> getBoundColumnNames() {
+            List<String> boundColumnNames = new ArrayList<>(safeColumnNames);
+            if (!isSortColumnAlreadyPresent()) {
+                boundColumnNames.add(ExternalDataUtil.SORT_COLUMN_NAME);
+            }
+            return boundColumnNames;
+        }
+
+        /**
+         * Binds the values of a csv row starting at the given parameter index.
+         *
+         * @param rowNumber the value of the sort column if it isn't in the csv
+         */
+        void bindRow(SQLiteStatement statement, int firstIndex, String[] row, int rowNumber) {
+            for (int i = 0; i < csvColumnIndexes.size(); i++) {
+                String columnValue = row[csvColumnIndexes.get(i)];
+                if (i == sortColumnIndex) {
+                    try {
+                        statement.bindDouble(firstIndex + i, Double.parseDouble(columnValue));
+                    } catch (NumberFormatException | NullPointerException e) {
+                        throw new ExternalDataException(Collect.getInstance().getString(
+                                R.string.ext_sortBy_numeric_error, columnValue));
+                    }
+                } else if (columnValue == null) {
+                    statement.bindNull(firstIndex + i);
+                } else {
+                    statement.bindString(firstIndex + i, columnValue);
+                }
+            }
+            if (!isSortColumnAlreadyPresent()) {
+                statement.bindLong(firstIndex + csvColumnIndexes.size(), rowNumber);
+            }
+        }
+
+        String getKey(String[] row) {
+            String[] keyValues = new String[keyColumnIndexes.size()];
+            for (int i = 0; i < keyValues.length; i++) {
+                keyValues[i] = row[csvColumnIndexes.get(keyColumnIndexes.get(i))];
+            }
+            return joinKey(keyValues);
+        }
+
+        static String joinKey(String[] keyValues) {
+            StringBuilder key = new StringBuilder();
+            for (String keyValue : keyValues) {
+                key.append(keyValue).append('\u0000');
+            }
+            return key.toString();
+        }
+    }
 }
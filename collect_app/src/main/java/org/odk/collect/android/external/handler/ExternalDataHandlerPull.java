@@ -18,14 +18,12 @@
 
 package org.odk.collect.android.external.handler;
 
-import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 
 import org.javarosa.core.model.condition.EvaluationContext;
 import org.javarosa.xpath.expr.XPathFuncExpr;
 import org.odk.collect.android.external.ExternalDataManager;
-import org.odk.collect.android.external.ExternalDataUtil;
 import org.odk.collect.android.external.ExternalSQLiteOpenHelper;
 
 import java.util.ArrayList;
@@ -82,7 +80,6 @@ public class ExternalDataHandlerPull extends ExternalDataHandlerBase {
         // SCTO-545
         dataSetName = normalize(dataSetName);
 
-        Cursor c = null;
         try {
             ExternalSQLiteOpenHelper sqLiteOpenHelper = getExternalDataManager().getDatabase(
                     dataSetName, false);
@@ -91,27 +88,11 @@ public class ExternalDataHandlerPull extends ExternalDataHandlerBase {
             }
 
             SQLiteDatabase db = sqLiteOpenHelper.getReadableDatabase();
-            String[] columns = {ExternalDataUtil.toSafeColumnName(queriedColumn)};
-            String selection = ExternalDataUtil.toSafeColumnName(referenceColumn) + "=?";
-            String[] selectionArgs = {referenceValue};
-
-            c = db.query(ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME, columns, selection,
-                    selectionArgs, null, null, null);
-            if (c.getCount() > 0) {
-                c.moveToFirst();
-                return ExternalDataUtil.nullSafe(c.getString(0));
-            } else {
-                Timber.i("Could not find a value in %s where the column %s has the value %s",
-                        queriedColumn, referenceColumn, referenceValue);
-                return "";
-            }
+            return getExternalDataManager().getLookupCache().pull(db, dataSetName, queriedColumn,
+                    referenceColumn, referenceValue);
         } catch (SQLiteException e) {
             Timber.i(e);
             return "";
-        } finally {
-            if (c != null) {
-                c.close();
-            }
         }
     }
 }
@@ -20,6 +20,7 @@ package org.odk.collect.android.external.handler;
 
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 
 import org.javarosa.core.model.SelectChoice;
 import org.javarosa.core.model.condition.EvaluationContext;
@@ -33,6 +34,7 @@ import org.odk.collect.android.external.ExternalSQLiteOpenHelper;
 import org.odk.collect.android.external.ExternalSelectChoice;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -49,6 +51,12 @@ public class ExternalDataHandlerSearch extends ExternalDataHandlerBase {
 
     public static final String HANDLER_NAME = "search";
 
+    /**
+     * The maximum number of rows returned for a search that uses the full-text index, e.g. while
+     * the user is still typing the first few letters of a name into a large list.
+     */
+    private static final int MAX_FULL_TEXT_RESULTS = 1000;
+
     private final String displayColumns;
     private final String valueColumn;
     private final String imageColumn;
@@ -154,36 +162,48 @@ public class ExternalDataHandlerSearch extends ExternalDataHandlerBase {
 
             String[] sqlColumns = columnsToFetch.toArray(new String[columnsToFetch.size()]);
 
-            String selection;
-            String[] selectionArgs;
-
-            if (searchRows && useFilter) {
-                selection = "( " + createLikeExpression(queriedColumns) + " ) AND "
-                        + ExternalDataUtil.toSafeColumnName(filterColumn) + "=? ";
-                String[] likeArgs = externalDataSearchType.constructLikeArguments(queriedValue,
-                        queriedColumns.size());
-                selectionArgs = new String[likeArgs.length + 1];
-                System.arraycopy(likeArgs, 0, selectionArgs, 0, likeArgs.length);
-                selectionArgs[selectionArgs.length - 1] = filterValue;
-            } else if (searchRows) {
-                selection = createLikeExpression(queriedColumns);
-                selectionArgs = externalDataSearchType.constructLikeArguments(queriedValue,
+            String searchSelection = null;
+            String[] searchArgs = null;
+            if (searchRows) {
+                searchSelection = createLikeExpression(queriedColumns);
+                searchArgs = externalDataSearchType.constructLikeArguments(queriedValue,
                         queriedColumns.size());
-            } else if (useFilter) {
-                selection = ExternalDataUtil.toSafeColumnName(filterColumn) + "=? ";
-                selectionArgs = new String[]{filterValue};
-            } else {
-                selection = null;
-                selectionArgs = null;
             }
 
-            try {
-                c = db.query(ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME, sqlColumns, selection,
-                        selectionArgs, null, null, ExternalDataUtil.SORT_COLUMN_NAME);
-            } catch (Exception e) {
-                Timber.e(Collect.getInstance().getString(R.string.ext_import_csv_missing_error, dataSetName, dataSetName));
-                c = db.query(ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME, sqlColumns, selection,
-                        selectionArgs, null, null, null);
+            String filterSelection = null;
+            String[] filterArgs = null;
+            if (useFilter) {
+                filterSelection = ExternalDataUtil.toSafeColumnName(filterColumn) + "=? ";
+                filterArgs = new String[]{filterValue};
+            }
+
+            String matchArgument = null;
+            if (searchRows && externalDataSearchType.canUseFullTextIndex()
+                    && ExternalSQLiteOpenHelper.hasFullTextIndex(db)) {
+                matchArgument = ExternalDataSearchType.constructMatchArgument(queriedValue);
+            }
+
+            if (matchArgument != null) {
+                // Only the rows found by the index are compared with the like expression
+                String matchSelection = createMatchExpression(queriedColumns) + " AND ( "
+                        + searchSelection + " )";
+                String[] matchArgs = new String[queriedColumns.size()];
+                Arrays.fill(matchArgs, matchArgument);
+                try {
+                    c = query(db, dataSetName, sqlColumns, combineSelections(matchSelection, filterSelection),
+                            concat(concat(matchArgs, searchArgs), filterArgs), String.valueOf(MAX_FULL_TEXT_RESULTS));
+                    if (c.getCount() == MAX_FULL_TEXT_RESULTS) {
+                        Timber.i("Search of %s for \"%s\" was cut off at %d rows", dataSetName,
+                                queriedValue, MAX_FULL_TEXT_RESULTS);
+                    }
+                } catch (SQLiteException e) {
+                    Timber.w(e, "Unable to search %s using its full-text index", dataSetName);
+                }
+            }
+
+            if (c == null) {
+                c = query(db, dataSetName, sqlColumns, combineSelections(searchSelection, filterSelection),
+                        concat(searchArgs, filterArgs), null);
             }
 
             return createDynamicSelectChoices(c, selectColumnMap, safeImageColumn);
@@ -194,6 +214,41 @@ public class ExternalDataHandlerSearch extends ExternalDataHandlerBase {
         }
     }
 
+    private static Cursor query(SQLiteDatabase db, String dataSetName, String[] sqlColumns,
+            String selection, String[] selectionArgs, String limit) {
+        try {
+            return db.query(ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME, sqlColumns, selection,
+                    selectionArgs, null, null, ExternalDataUtil.SORT_COLUMN_NAME, limit);
+        } catch (Exception e) {
+            Timber.e(Collect.getInstance().getString(R.string.ext_import_csv_missing_error, dataSetName, dataSetName));
+            return db.query(ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME, sqlColumns, selection,
+                    selectionArgs, null, null, null, limit);
+        }
+    }
+
+    private static String combineSelections(String searchSelection, String filterSelection) {
+        if (searchSelection == null) {
+            return filterSelection;
+        } else if (filterSelection == null) {
+            return searchSelection;
+        } else {
+            return "( " + searchSelection + " ) AND " + filterSelection;
+        }
+    }
+
+    private static String[] concat(String[] first, String[] second) {
+        if (first == null) {
+            return second;
+        } else if (second == null) {
+            return first;
+        }
+
+        String[] args = new String[first.length + second.length];
+        System.arraycopy(first, 0, args, 0, first.length);
+        System.arraycopy(second, 0, args, first.length, second.length);
+        return args;
+    }
+
     protected ArrayList<SelectChoice> createDynamicSelectChoices(Cursor c,
             LinkedHashMap<String, String> selectColumnMap, String safeImageColumn) {
         List<String> columnsToExcludeFromLabels = new ArrayList<>();
@@ -250,6 +305,22 @@ public class ExternalDataHandlerSearch extends ExternalDataHandlerBase {
         return sb.toString();
     }
 
+    /**
+     * Selects the rows where any of the queried columns matches the full-text query. A MATCH
+     * constraint can only be used once per select so the columns are searched separately.
+     */
+    protected String createMatchExpression(List<String> queriedColumns) {
+        StringBuilder sb = new StringBuilder();
+        for (String queriedColumn : queriedColumns) {
+            if (sb.length() > 0) {
+                sb.append(" UNION ");
+            }
+            sb.append("SELECT docid FROM ").append(ExternalDataUtil.EXTERNAL_DATA_FTS_TABLE_NAME)
+                    .append(" WHERE ").append(queriedColumn).append(" MATCH ?");
+        }
+        return "rowid IN ( " + sb + " )";
+    }
+
     /**
      * So here are examples of labels with one, two, and three columns:
      * <p/>
@@ -18,6 +18,8 @@
 
 package org.odk.collect.android.external.handler;
 
+import org.odk.collect.android.external.ExternalDataUtil;
+
 /**
  * Author: Meletis Margaritis
  * Date: 20/05/13
@@ -30,6 +32,11 @@ enum ExternalDataSearchType {
         protected String getSingleLikeArgument(String queriedValue) {
             return '%' + queriedValue + '%';
         }
+
+        @Override
+        public boolean canUseFullTextIndex() {
+            return true;
+        }
     },
 
     MATCHES("matches") {
@@ -44,6 +51,11 @@ enum ExternalDataSearchType {
         protected String getSingleLikeArgument(String queriedValue) {
             return queriedValue + '%';
         }
+
+        @Override
+        public boolean canUseFullTextIndex() {
+            return true;
+        }
     },
 
     ENDS("endsWith") {
@@ -86,4 +98,42 @@ enum ExternalDataSearchType {
     }
 
     protected abstract String getSingleLikeArgument(String queriedValue);
+
+    /**
+     * Returns true if the rows can be narrowed down with the full-text index before the like
+     * arguments are applied. The index only finds words by their beginning so a contains search
+     * then only matches values where the queried value starts at the beginning of a word.
+     */
+    public boolean canUseFullTextIndex() {
+        return false;
+    }
+
+    /**
+     * Returns a full-text query that matches the rows which contain words starting with each of
+     * the words of the queried value or null if the value doesn't contain any words. Words are
+     * split the same way as by the index's tokenizer: at every ASCII character that isn't a
+     * letter or digit.
+     */
+    public static String constructMatchArgument(String queriedValue) {
+        if (queriedValue == null) {
+            return null;
+        }
+
+        StringBuilder matchArgument = new StringBuilder();
+        StringBuilder word = new StringBuilder();
+        String foldedValue = ExternalDataUtil.foldCase(queriedValue);
+        for (int i = 0; i <= foldedValue.length(); i++) {
+            char c = i < foldedValue.length() ? foldedValue.charAt(i) : ' ';
+            if (c >= 0x80 || Character.isLetterOrDigit(c)) {
+                word.append(c);
+            } else if (word.length() > 0) {
+                if (matchArgument.length() > 0) {
+                    matchArgument.append(' ');
+                }
+                matchArgument.append(word).append('*');
+                word.setLength(0);
+            }
+        }
+        return matchArgument.length() > 0 ? matchArgument.toString() : null;
+    }
 }
@@ -0,0 +1,247 @@
+package org.odk.collect.android.formentry.audit;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import timber.log.Timber;
+
+import static org.odk.collect.android.formentry.audit.AuditEventCSVLine.toCSVLine;
+
+/**
+ * Appends events to the audit log of an instance.
+ *
+ * All the audit logs are written by a single background thread. Events are handed over
+ * through a lock-free queue that never refuses them, and everything that is queued by the
+ * time the thread gets to it is appended in one buffered write. The file is synced to the
+ * disk at most every few seconds and whenever the form is saved or exited.
+ *
+ * The thread runs its tasks in the order they were handed to it, so a task that is queued after
+ * a drain only runs once the events of that drain are in the file. This is what lets saving wait
+ * for events that were flushed just before it.
+ *
+ * The header is checked once per writer. A header that lacks columns needed by the current
+ * audit config (e.g. because the app was updated between sessions) is replaced, moving the
+ * rest of the file with a channel transfer rather than line by line.
+ */
+public class AuditEventFileWriter implements AuditEventLogger.AuditEventWriter {
+
+    private static final Executor WRITER_THREAD = Executors.newSingleThreadExecutor();
+
+    private static final long FORCE_INTERVAL_MS = 3000;
+
+    private static final String DEFAULT_COLUMNS = "event,node,start,end";
+    private static final String LOCATION_COORDINATES_COLUMNS = ",latitude,longitude,accuracy";
+    private static final String ANSWER_VALUES_COLUMNS = ",old-value,new-value";
+    private static final String USER_COLUMNS = ",user";
+    private static final String CHANGE_REASON_COLUMNS = ",change-reason";
+
+    private final @NonNull File file;
+    private final boolean isLocationEnabled;
+    private final boolean isTrackingChangesEnabled;
+    private final boolean isUserRequired;
+    private final boolean isTrackChangesReasonEnabled;
+    private final Executor executor;
+
+    private final Queue<AuditEvent> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean isDrainScheduled = new AtomicBoolean();
+
+    // Only used on the writer thread
+    private boolean isHeaderChecked;
+    private long lastForceTime;
+
+    public AuditEventFileWriter(@NonNull File file, boolean isLocationEnabled, boolean isTrackingChangesEnabled, boolean isUserRequired, boolean isTrackChangesReasonEnabled) {
+        this(file, isLocationEnabled, isTrackingChangesEnabled, isUserRequired, isTrackChangesReasonEnabled, WRITER_THREAD);
+    }
+
+    /**
+     * @param executor must run tasks one at a time in the order they are submitted
+     */
+    @VisibleForTesting
+    AuditEventFileWriter(@NonNull File file, boolean isLocationEnabled, boolean isTrackingChangesEnabled, boolean isUserRequired, boolean isTrackChangesReasonEnabled, Executor executor) {
+        this.file = file;
+        this.isLocationEnabled = isLocationEnabled;
+        this.isTrackingChangesEnabled = isTrackingChangesEnabled;
+        this.isUserRequired = isUserRequired;
+        this.isTrackChangesReasonEnabled = isTrackChangesReasonEnabled;
+        this.executor = executor;
+    }
+
+    @Override
+    public void writeEvents(List<AuditEvent> auditEvents) {
+        queue.addAll(auditEvents);
+        if (isDrainScheduled.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+
+    @Override
+    public ListenableFuture<?> getPendingWrites() {
+        ListenableFutureTask<Void> marker = ListenableFutureTask.create(() -> { }, null);
+        executor.execute(marker);
+        return marker;
+    }
+
+    /**
+     * Events are always accepted, so the logger never has to hold them back.
+     */
+    @Override
+    public boolean isWriting() {
+        return false;
+    }
+
+    /**
+     * Writes everything that is queued. Events that are queued while the file is being written
+     * are picked up by the same drain unless another one was scheduled for them.
+     */
+    private void drain() {
+        while (true) {
+            List<AuditEvent> events = new ArrayList<>();
+            AuditEvent event;
+            while ((event = queue.poll()) != null) {
+                events.add(event);
+            }
+            if (!events.isEmpty()) {
+                append(events);
+            }
+
+            isDrainScheduled.set(false);
+            if (queue.isEmpty() || !isDrainScheduled.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+
+    private void append(List<AuditEvent> events) {
+        if (!isHeaderChecked) {
+            updateHeaderIfNeeded();
+            isHeaderChecked = true;
+        }
+
+        try (FileOutputStream fos = new FileOutputStream(file, true);
+             Writer writer = new BufferedWriter(new OutputStreamWriter(fos, "UTF-8"))) {
+            if (fos.getChannel().position() == 0) {
+                writer.write(getHeader() + "\n");
+            }
+            for (AuditEvent event : events) {
+                writer.write(toCSVLine(event, isLocationEnabled, isTrackingChangesEnabled, isTrackChangesReasonEnabled) + "\n");
+            }
+            writer.flush();
+
+            long now = System.currentTimeMillis();
+            if (now - lastForceTime >= FORCE_INTERVAL_MS || endsSession(events)) {
+                fos.getChannel().force(false);
+                lastForceTime = now;
+            }
+            Timber.i("Logged %d audit events", events.size());
+        } catch (IOException e) {
+            Timber.e(e);
+        }
+    }
+
+    private static boolean endsSession(List<AuditEvent> events) {
+        for (AuditEvent event : events) {
+            switch (event.getAuditEventType()) {
+                case FORM_SAVE:
+                case FORM_EXIT:
+                case FORM_FINALIZE:
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Replaces the header of an existing file if it lacks columns for the current config.
+     */
+    private void updateHeaderIfNeeded() {
+        if (!file.exists() || file.length() == 0) {
+            return;
+        }
+
+        File temporaryFile = new File(file.getParentFile(), "temporaryAudit.csv");
+        try {
+            long bodyOffset;
+            try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+                String header = readFirstLine(in);
+                if (!shouldHeaderBeUpdated(header)) {
+                    return;
+                }
+                bodyOffset = header.getBytes("UTF-8").length + 1;
+            }
+
+            try (FileChannel source = new FileInputStream(file).getChannel();
+                 FileOutputStream fos = new FileOutputStream(temporaryFile)) {
+                fos.write((getHeader() + "\n").getBytes("UTF-8"));
+                FileChannel target = fos.getChannel();
+                long size = source.size();
+                long position = Math.min(bodyOffset, size);
+                while (position < size) {
+                    position += source.transferTo(position, size - position, target);
+                }
+                target.force(false);
+            }
+
+            if (!temporaryFile.renameTo(file)) {
+                throw new IOException("Could not replace " + file);
+            }
+        } catch (IOException e) {
+            Timber.e(e);
+            temporaryFile.delete();
+        }
+    }
+
+    /** Reads the first line of the file, without its line break. */
+    private static String readFirstLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1 && c != '\n') {
+            line.append((char) c);
+        }
+        return line.toString();
+    }
+
+    private boolean shouldHeaderBeUpdated(String header) {
+        return header == null
+                || (isLocationEnabled && !header.contains(LOCATION_COORDINATES_COLUMNS))
+                || (isTrackingChangesEnabled && !header.contains(ANSWER_VALUES_COLUMNS))
+                || (isUserRequired && !header.contains(USER_COLUMNS));
+    }
+
+    private String getHeader() {
+        String header = DEFAULT_COLUMNS;
+        if (isLocationEnabled) {
+            header += LOCATION_COORDINATES_COLUMNS;
+        }
+        if (isTrackingChangesEnabled) {
+            header += ANSWER_VALUES_COLUMNS;
+        }
+        if (isUserRequired) {
+            header += USER_COLUMNS;
+        }
+        if (isTrackChangesReasonEnabled) {
+            header += CHANGE_REASON_COLUMNS;
+        }
+        return header;
+    }
+}
@@ -4,8 +4,12 @@ package org.odk.collect.android.formentry.audit;
 import android.location.Location;
 import android.os.SystemClock;
 
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
 import org.javarosa.core.model.FormIndex;
 import org.javarosa.core.model.data.IAnswerData;
+import org.odk.collect.android.location.LocationWindow;
 import org.odk.collect.android.logic.FormController;
 
 import java.util.ArrayList;
@@ -29,8 +33,11 @@ import static org.odk.collect.android.formentry.audit.AuditEvent.AuditEventType.
  */
 public class AuditEventLogger {
 
+    private static final int MIN_LOCATION_WINDOW_CAPACITY = 16;
+    private static final int MAX_LOCATION_WINDOW_CAPACITY = 1024;
+
     private final AuditEventWriter writer;
-    private List<Location> locations = new ArrayList<>();
+    private final LocationWindow locations;
 
     private ArrayList<AuditEvent> auditEvents = new ArrayList<>();
     private long surveyOpenTime;
@@ -46,6 +53,23 @@ public class AuditEventLogger {
         this.auditConfig = auditConfig;
         this.writer = writer;
         this.formController = formController;
+        this.locations = auditConfig != null
+                ? new LocationWindow(getLocationWindowCapacity(auditConfig), auditConfig.getLocationMaxAge())
+                : null;
+    }
+
+    /**
+     * Returns a capacity that holds every fix received during the max age even if fixes come
+     * in up to twice as often as the min interval.
+     */
+    static int getLocationWindowCapacity(AuditConfig auditConfig) {
+        Long minInterval = auditConfig.getLocationMinInterval();
+        Long maxAge = auditConfig.getLocationMaxAge();
+        if (minInterval == null || maxAge == null || minInterval <= 0) {
+            return MIN_LOCATION_WINDOW_CAPACITY;
+        }
+        long capacity = 2 * (maxAge / minInterval) + 2;
+        return (int) Math.max(MIN_LOCATION_WINDOW_CAPACITY, Math.min(MAX_LOCATION_WINDOW_CAPACITY, capacity));
     }
 
     public void logEvent(AuditEvent.AuditEventType eventType, boolean writeImmediatelyToDisk, long currentTime) {
@@ -107,11 +131,19 @@ public class AuditEventLogger {
         }
     }
 
+    /**
+     * Returns a future that is done once the events that have been written so far, e.g. by
+     * {@link #flush()}, are in the audit file.
+     */
+    public ListenableFuture<?> getPendingWrites() {
+        return isAuditEnabled() ? writer.getPendingWrites() : Futures.immediateFuture(null);
+    }
+
     private void addLocationCoordinatesToAuditEvent(AuditEvent auditEvent, long currentTime) {
-        Location location = getMostAccurateLocation(currentTime);
-        String latitude = location != null ? Double.toString(location.getLatitude()) : "";
-        String longitude = location != null ? Double.toString(location.getLongitude()) : "";
-        String accuracy = location != null ? Double.toString(location.getAccuracy()) : "";
+        LocationWindow.Fix location = locations.getMostAccurate(currentTime);
+        String latitude = location != null ? Double.toString(location.latitude) : "";
+        String longitude = location != null ? Double.toString(location.longitude) : "";
+        String accuracy = location != null ? Double.toString(location.accuracy) : "";
         auditEvent.setLocationCoordinates(latitude, longitude, accuracy);
     }
 
@@ -229,33 +261,8 @@ public class AuditEventLogger {
     }
 
     public void addLocation(Location location) {
-        locations.add(location);
-    }
-
-    @Nullable
-    private Location getMostAccurateLocation(long currentTime) {
-        removeExpiredLocations(currentTime);
-
-        Location bestLocation = null;
-        if (!locations.isEmpty()) {
-            for (Location location : locations) {
-                if (bestLocation == null || location.getAccuracy() < bestLocation.getAccuracy()) {
-                    bestLocation = location;
-                }
-            }
-        }
-        return bestLocation;
-    }
-
-    private void removeExpiredLocations(long currentTime) {
-        if (!locations.isEmpty()) {
-            List<Location> unexpiredLocations = new ArrayList<>();
-            for (Location location : locations) {
-                if (currentTime <= location.getTime() + auditConfig.getLocationMaxAge()) {
-                    unexpiredLocations.add(location);
-                }
-            }
-            locations = unexpiredLocations;
+        if (locations != null) {
+            locations.add(location.getTime(), location.getLatitude(), location.getLongitude(), location.getAccuracy());
         }
     }
 
@@ -267,7 +274,8 @@ public class AuditEventLogger {
         return auditConfig != null;
     }
 
-    List<Location> getLocations() {
+    @Nullable
+    public LocationWindow getLocationWindow() {
         return locations;
     }
 
@@ -303,6 +311,11 @@ public class AuditEventLogger {
 
         void writeEvents(List<AuditEvent> auditEvents);
 
+        /**
+         * Returns a future that is done once every event handed to the writer so far is written.
+         */
+        ListenableFuture<?> getPendingWrites();
+
         boolean isWriting();
     }
 }
\ No newline at end of file
@@ -5,6 +5,8 @@ import android.location.Location;
 import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.formentry.audit.AuditConfig;
 import org.odk.collect.android.formentry.audit.AuditEvent;
+import org.odk.collect.android.location.LocationWindow;
+import org.odk.collect.android.logic.FormController;
 import org.odk.collect.android.preferences.GeneralSharedPreferences;
 import org.odk.collect.android.utilities.PermissionUtils;
 import org.odk.collect.android.utilities.PlayServicesUtil;
@@ -86,4 +88,15 @@ public class BackgroundLocationHelper {
     void provideLocationToAuditLogger(Location location) {
         Collect.getInstance().getFormController().getAuditEventLogger().addLocation(location);
     }
+
+    /**
+     * Returns the window of recent fixes kept by the global audit event logger, or null if
+     * there is none.
+     */
+    LocationWindow getAuditLocationWindow() {
+        FormController formController = Collect.getInstance().getFormController();
+        return formController != null && formController.getAuditEventLogger() != null
+                ? formController.getAuditEventLogger().getLocationWindow()
+                : null;
+    }
 }
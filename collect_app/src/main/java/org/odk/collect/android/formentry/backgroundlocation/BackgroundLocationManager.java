@@ -10,8 +10,11 @@ import org.odk.collect.android.R;
 import org.odk.collect.android.location.client.LocationClient;
 import org.odk.collect.android.formentry.audit.AuditConfig;
 import org.odk.collect.android.formentry.audit.AuditEvent;
+import org.odk.collect.android.location.LocationWindow;
 import org.odk.collect.android.logic.actions.setgeopoint.CollectSetGeopointAction;
 
+import timber.log.Timber;
+
 /**
  * Manages background location for the location audit logging and odk:setgeopoint action features.
  * Provides precondition checking and user feedback for both features.
@@ -235,6 +238,12 @@ public class BackgroundLocationManager implements LocationClient.LocationClientL
         locationClient.setListener(null);
         locationClient.stop();
 
+        LocationWindow window = helper.getAuditLocationWindow();
+        if (window != null) {
+            Timber.i("Audit location window holds %d of %d fixes in %d bytes",
+                    window.size(), window.getCapacity(), window.getMemoryFootprint());
+        }
+
         currentState = BackgroundLocationState.STOPPED;
     }
 
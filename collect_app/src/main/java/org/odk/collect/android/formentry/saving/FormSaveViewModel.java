@@ -10,16 +10,24 @@ import androidx.lifecycle.MutableLiveData;
 import androidx.lifecycle.ViewModel;
 import androidx.lifecycle.ViewModelProvider;
 
+import com.google.common.util.concurrent.MoreExecutors;
+
 import org.javarosa.form.api.FormEntryController;
 import org.odk.collect.android.formentry.audit.AuditEvent;
 import org.odk.collect.android.formentry.audit.AuditEventLogger;
 import org.odk.collect.android.formentry.audit.AuditUtils;
+import org.odk.collect.android.instances.InstanceEncryptionWorker;
 import org.odk.collect.android.logic.FormController;
 import org.odk.collect.android.fragments.dialogs.ProgressDialogFragment;
 import org.odk.collect.android.tasks.SaveFormToDisk;
 import org.odk.collect.android.tasks.SaveToDiskResult;
 import org.odk.collect.utilities.Clock;
 
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import timber.log.Timber;
+
 import static org.odk.collect.android.tasks.SaveFormToDisk.SAVED;
 import static org.odk.collect.android.tasks.SaveFormToDisk.SAVED_AND_EXIT;
 import static org.odk.collect.android.utilities.StringUtils.isBlank;
@@ -115,7 +123,8 @@ public class FormSaveViewModel extends ViewModel implements ProgressDialogFragme
     }
 
     private void saveToDisk(SaveRequest saveRequest) {
-        saveTask = new SaveTask(saveRequest, formSaver, formController, new SaveTask.Listener() {
+        Future<?> auditWrites = auditEventLogger != null ? auditEventLogger.getPendingWrites() : null;
+        saveTask = new SaveTask(saveRequest, formSaver, formController, auditWrites, new SaveTask.Listener() {
             @Override
             public void onProgressPublished(String progress) {
                 saveResult.setValue(new SaveResult(SaveResult.State.SAVING, saveRequest, progress));
@@ -147,6 +156,10 @@ public class FormSaveViewModel extends ViewModel implements ProgressDialogFragme
                     }
                 }
 
+                if (taskResult.getInstanceToEncrypt() != null) {
+                    requestEncryption(taskResult);
+                }
+
                 saveResult.setValue(new SaveResult(SaveResult.State.SAVED, saveRequest, taskResult.getSaveErrorMessage()));
                 break;
             }
@@ -181,6 +194,21 @@ public class FormSaveViewModel extends ViewModel implements ProgressDialogFragme
         }
     }
 
+    /**
+     * The audit log is encrypted along with the rest of the instance so encryption is only
+     * requested once the events about the save that finalized it are in the file.
+     */
+    private void requestEncryption(SaveToDiskResult taskResult) {
+        Runnable request = () -> InstanceEncryptionWorker.schedule(taskResult.getInstanceToEncrypt(),
+                taskResult.getInstanceId(), taskResult.getLastSavedPath());
+
+        if (auditEventLogger != null) {
+            auditEventLogger.getPendingWrites().addListener(request, MoreExecutors.directExecutor());
+        } else {
+            request.run();
+        }
+    }
+
     private boolean requiresReasonToSave() {
         return auditEventLogger != null
                 && auditEventLogger.isEditing()
@@ -249,16 +277,31 @@ public class FormSaveViewModel extends ViewModel implements ProgressDialogFragme
 
         private final Listener listener;
         private final FormController formController;
+        private final Future<?> auditWrites;
 
-        SaveTask(SaveRequest saveRequest, FormSaver formSaver, FormController formController, Listener listener) {
+        SaveTask(SaveRequest saveRequest, FormSaver formSaver, FormController formController,
+                 @Nullable Future<?> auditWrites, Listener listener) {
             this.saveRequest = saveRequest;
             this.formSaver = formSaver;
             this.listener = listener;
             this.formController = formController;
+            this.auditWrites = auditWrites;
         }
 
         @Override
         protected SaveToDiskResult doInBackground(Void... voids) {
+            // The audit log is saved with the instance, so the events that were flushed before
+            // saving have to be in it first
+            if (auditWrites != null) {
+                try {
+                    auditWrites.get();
+                } catch (ExecutionException e) {
+                    Timber.e(e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
             return formSaver.save(saveRequest.uri, formController,
                     saveRequest.shouldFinalize,
                     saveRequest.viewExiting, saveRequest.updatedSaveName,
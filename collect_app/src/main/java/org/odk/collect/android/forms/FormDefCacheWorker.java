@@ -0,0 +1,235 @@
+package org.odk.collect.android.forms;
+
+import android.content.Context;
+import android.database.SQLException;
+
+import androidx.annotation.NonNull;
+import androidx.work.Constraints;
+import androidx.work.Data;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.ListenableWorker;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.WorkerParameters;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.reference.ReferenceManager;
+import org.javarosa.xform.util.XFormUtils;
+import org.odk.collect.android.database.ItemsetDbAdapter;
+import org.odk.collect.android.forms.FormUtils.ReferenceManagerState;
+import org.odk.collect.android.utilities.FileUtil;
+import org.odk.collect.android.utilities.FileUtils;
+import org.odk.collect.android.utilities.FormDefCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import timber.log.Timber;
+
+import static org.odk.collect.android.forms.FormUtils.restoreReferenceManagerState;
+import static org.odk.collect.android.forms.FormUtils.saveReferenceManagerState;
+import static org.odk.collect.android.forms.FormUtils.setupReferenceManagerForForm;
+
+/**
+ * Parses a newly downloaded or side-loaded form and writes it to the {@link FormDefCache} so
+ * that the first time the form is opened doesn't have to wait for the XML to be parsed. The
+ * form's itemsets.csv, if any, is imported and indexed for its itemset questions as well.
+ *
+ * Forms are parsed one at a time on a dedicated thread: parsing uses the global
+ * {@link ReferenceManager} and large forms need a lot of memory. A parse holds the reference
+ * manager's lock because the form's media roots have to stay set while it runs, so it is put off
+ * while a form is being opened rather than making the user wait for it.
+ */
+public class FormDefCacheWorker extends ListenableWorker {
+
+    static final String KEY_FORM_PATH = "formPath";
+
+    private static final ListeningExecutorService EXECUTOR =
+            MoreExecutors.listeningDecorator(Executors.newSingleThreadExecutor());
+
+    /**
+     * The number of forms that are being read to be filled in.
+     */
+    private static final AtomicInteger FOREGROUND_LOADS = new AtomicInteger();
+
+    public FormDefCacheWorker(@NonNull Context context, @NonNull WorkerParameters workerParams) {
+        super(context, workerParams);
+    }
+
+    /**
+     * Requests that the given form be parsed and cached in the background once the battery and
+     * storage aren't low. Replaces any pending request for the same form.
+     */
+    public static void schedule(File formXml) {
+        String formPath = formXml.getAbsolutePath();
+
+        Constraints constraints = new Constraints.Builder()
+                .setRequiresBatteryNotLow(true)
+                .setRequiresStorageNotLow(true)
+                .build();
+        OneTimeWorkRequest cacheWork =
+                new OneTimeWorkRequest.Builder(FormDefCacheWorker.class)
+                        .addTag(FormDefCacheWorker.class.getName())
+                        .setInputData(new Data.Builder().putString(KEY_FORM_PATH, formPath).build())
+                        .setConstraints(constraints)
+                        .build();
+        WorkManager.getInstance().enqueueUniqueWork(getUniqueWorkName(formPath),
+                ExistingWorkPolicy.REPLACE, cacheWork);
+    }
+
+    /**
+     * Cancels any pending request to cache the given form, e.g. because it has been deleted.
+     */
+    public static void cancel(String formPath) {
+        WorkManager.getInstance().cancelUniqueWork(getUniqueWorkName(new File(formPath).getAbsolutePath()));
+    }
+
+    /**
+     * Called before a form that is being opened is read. Until {@link #onForegroundLoadFinished()}
+     * is called no parse for the cache is started so that reading the form only has to wait for a
+     * parse that was already running.
+     */
+    public static void onForegroundLoadStarted() {
+        FOREGROUND_LOADS.incrementAndGet();
+    }
+
+    public static void onForegroundLoadFinished() {
+        FOREGROUND_LOADS.decrementAndGet();
+    }
+
+    private static String getUniqueWorkName(String formPath) {
+        return FormDefCacheWorker.class.getName() + ":" + formPath;
+    }
+
+    @NonNull
+    @Override
+    public ListenableFuture<Result> startWork() {
+        return EXECUTOR.submit(this::cacheForm);
+    }
+
+    private Result cacheForm() {
+        String formPath = getInputData().getString(KEY_FORM_PATH);
+        if (formPath == null || isStopped()) {
+            return Result.failure();
+        }
+
+        File formXml = new File(formPath);
+        if (!formXml.exists()) {
+            Timber.i("Not caching %s because it no longer exists", formPath);
+            return Result.success();
+        }
+
+        importItemsets(formXml);
+
+        if (FormDefCache.isCached(formXml)) {
+            Timber.i("%s is already cached", formXml.getName());
+            return Result.success();
+        }
+
+        if (FOREGROUND_LOADS.get() > 0) {
+            return deferForForegroundLoad(formXml);
+        }
+
+        final long start = System.currentTimeMillis();
+        FormDef formDef;
+        try {
+            formDef = parseForm(formXml);
+        } catch (RuntimeException | StackOverflowError e) {
+            // The user will see the parse error when opening the form
+            Timber.w(e, "Unable to parse %s for the cache", formPath);
+            return Result.failure();
+        }
+
+        if (isStopped()) {
+            return Result.failure();
+        }
+
+        if (formDef == null) {
+            return deferForForegroundLoad(formXml);
+        }
+
+        Timber.i("Parsed %s for the cache in %.3f seconds.", formXml.getName(),
+                (System.currentTimeMillis() - start) / 1000F);
+
+        createItemsetIndexes(formXml, formDef);
+
+        try {
+            FormDefCache.writeCache(formDef, formPath);
+        } catch (IOException e) {
+            Timber.e(e);
+            return Result.retry();
+        }
+
+        return Result.success();
+    }
+
+    private static Result deferForForegroundLoad(File formXml) {
+        Timber.i("Not caching %s while a form is being opened", formXml.getName());
+        return Result.retry();
+    }
+
+    private static void importItemsets(File formXml) {
+        File itemsetsCsv = new FileUtil().getItemsetFile(FileUtils.getFormMediaDir(formXml).getAbsolutePath());
+        if (!itemsetsCsv.exists()) {
+            return;
+        }
+
+        ItemsetDbAdapter ida = new ItemsetDbAdapter();
+        ida.open();
+        try {
+            ida.importItemsetsIfChanged(itemsetsCsv);
+        } catch (IOException | SQLException e) {
+            // The import is tried again when the form is opened
+            Timber.w(e, "Unable to import %s", itemsetsCsv);
+        } finally {
+            ida.close();
+        }
+    }
+
+    private static void createItemsetIndexes(File formXml, FormDef formDef) {
+        File itemsetsCsv = new FileUtil().getItemsetFile(FileUtils.getFormMediaDir(formXml).getAbsolutePath());
+        if (!itemsetsCsv.exists()) {
+            return;
+        }
+
+        ItemsetDbAdapter ida = new ItemsetDbAdapter();
+        ida.open();
+        try {
+            ida.createCoveringIndexes(itemsetsCsv, formDef);
+        } catch (SQLException e) {
+            // The indexes are created again when the form is opened
+            Timber.w(e, "Unable to index %s", itemsetsCsv);
+        } finally {
+            ida.close();
+        }
+    }
+
+    /**
+     * Parses the form with the reference manager configured for its media directory. The
+     * reference manager is put back exactly as it was before so that a form that is being opened
+     * or is open keeps resolving its media. Returns null without parsing if a form started being
+     * opened while this waited for the reference manager.
+     */
+    private static FormDef parseForm(File formXml) {
+        synchronized (ReferenceManager.instance()) {
+            if (FOREGROUND_LOADS.get() > 0) {
+                return null;
+            }
+
+            ReferenceManagerState previousState = saveReferenceManagerState(ReferenceManager.instance());
+            try {
+                setupReferenceManagerForForm(ReferenceManager.instance(), FileUtils.getFormMediaDir(formXml));
+                String lastSavedSrc = FileUtils.getOrCreateLastSavedSrc(formXml);
+                return XFormUtils.getFormFromFormXml(formXml.getAbsolutePath(), lastSavedSrc);
+            } finally {
+                restoreReferenceManagerState(ReferenceManager.instance(), previousState);
+            }
+        }
+    }
+}
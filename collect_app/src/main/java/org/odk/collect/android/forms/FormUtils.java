@@ -1,17 +1,30 @@
 package org.odk.collect.android.forms;
 
+import org.javarosa.core.reference.ReferenceFactory;
 import org.javarosa.core.reference.ReferenceManager;
 import org.javarosa.core.reference.RootTranslator;
+import org.kxml2.io.KXmlParser;
 import org.odk.collect.android.logic.FileReferenceFactory;
 import org.odk.collect.android.storage.StoragePathProvider;
 import org.odk.collect.android.storage.StorageSubdirectory;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class FormUtils {
 
+    // The session root translators added through this class. The reference manager doesn't
+    // expose them, so they're tracked here for saveReferenceManagerState. Guarded by the
+    // reference manager's lock like the reference manager itself.
+    private static final List<RootTranslator> SESSION_ROOT_TRANSLATORS = new ArrayList<>();
+
     private FormUtils() {
         
     }
@@ -26,6 +39,7 @@ public class FormUtils {
     public static void setupReferenceManagerForForm(ReferenceManager referenceManager, File formMediaDir) {
         // Clear mappings to the media dir for the previous form that was configured
         referenceManager.clearSession();
+        SESSION_ROOT_TRANSLATORS.clear();
 
         // This should get moved to the Application Class
         if (referenceManager.getFactories().length == 0) {
@@ -54,6 +68,69 @@ public class FormUtils {
     public static void addSessionRootTranslators(ReferenceManager referenceManager, List<RootTranslator> rootTranslators) {
         for (RootTranslator rootTranslator : rootTranslators) {
             referenceManager.addSessionRootTranslator(rootTranslator);
+            SESSION_ROOT_TRANSLATORS.add(rootTranslator);
+        }
+    }
+
+    /**
+     * Returns the reference factories and session root translators that the given reference
+     * manager currently uses. Must be called while holding the reference manager's lock and
+     * paired with {@link #restoreReferenceManagerState} before releasing it, so that parsing a
+     * form in the background doesn't change where the open form's media is resolved.
+     */
+    public static ReferenceManagerState saveReferenceManagerState(ReferenceManager referenceManager) {
+        return new ReferenceManagerState(referenceManager.getFactories(), SESSION_ROOT_TRANSLATORS);
+    }
+
+    /**
+     * Puts back exactly the reference factories and session root translators that were saved.
+     */
+    public static void restoreReferenceManagerState(ReferenceManager referenceManager, ReferenceManagerState state) {
+        referenceManager.reset();
+        SESSION_ROOT_TRANSLATORS.clear();
+        for (ReferenceFactory factory : state.factories) {
+            referenceManager.addReferenceFactory(factory);
+        }
+        addSessionRootTranslators(referenceManager, state.sessionRootTranslators);
+    }
+
+    public static class ReferenceManagerState {
+        private final List<ReferenceFactory> factories;
+        private final List<RootTranslator> sessionRootTranslators;
+
+        ReferenceManagerState(ReferenceFactory[] factories, List<RootTranslator> sessionRootTranslators) {
+            this.factories = new ArrayList<>(Arrays.asList(factories));
+            this.sessionRootTranslators = new ArrayList<>(sessionRootTranslators);
+        }
+    }
+
+    /**
+     * Returns true if the given form definition has instances that are loaded from a URI when the
+     * form is parsed (e.g. external secondary instances or the last-saved instance). Such forms can
+     * only be parsed once the reference manager has been set up for them. Only the form's model
+     * is read. Returns true if the form can't be read.
+     */
+    public static boolean hasExternalInstances(File formXml) {
+        try (InputStream is = new FileInputStream(formXml)) {
+            KXmlParser parser = new KXmlParser();
+            parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+            parser.setInput(is, null);
+
+            int event;
+            while ((event = parser.next()) != XmlPullParser.END_DOCUMENT) {
+                if (event == XmlPullParser.START_TAG) {
+                    if ("instance".equals(parser.getName()) && parser.getAttributeValue(null, "src") != null) {
+                        return true;
+                    } else if ("body".equals(parser.getName())) {
+                        return false;
+                    }
+                } else if (event == XmlPullParser.END_TAG && "model".equals(parser.getName())) {
+                    return false;
+                }
+            }
+            return false;
+        } catch (IOException | XmlPullParserException | RuntimeException e) {
+            return true;
         }
     }
 }
@@ -10,6 +10,8 @@ import androidx.annotation.Nullable;
 import org.odk.collect.android.activities.FormEntryActivity;
 import org.odk.collect.android.tasks.MediaLoadingTask;
 
+import java.io.File;
+
 public class MediaLoadingFragment extends Fragment {
 
     private MediaLoadingTask mediaLoadingTask;
@@ -20,6 +22,15 @@ public class MediaLoadingFragment extends Fragment {
         mediaLoadingTask.execute(uri);
     }
 
+    /**
+     * Converts an image that was captured into the given temporary file and moves it into
+     * the instance folder.
+     */
+    public void beginCapturedImageTask(File capturedImage) {
+        mediaLoadingTask = new MediaLoadingTask(formEntryActivity, true);
+        mediaLoadingTask.execute(Uri.fromFile(capturedImage));
+    }
+
     @Override
     public void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -90,6 +90,7 @@ public class GoogleMapFragment extends SupportMapFragment implements
     private int mapType;
     private File referenceLayerFile;
     private TileOverlay referenceOverlay;
+    private GoogleMapsMapBoxOfflineTileProvider referenceTileProvider;
 
     // During Robolectric tests, Google Play Services is unavailable; sadly, the
     // "map" field will be null and many operations will need to be stubbed out.
@@ -156,6 +157,14 @@ public class GoogleMapFragment extends SupportMapFragment implements
         super.onStop();
     }
 
+    @Override public void onDestroy() {
+        if (referenceTileProvider != null) {
+            referenceTileProvider.close();
+            referenceTileProvider = null;
+        }
+        super.onDestroy();
+    }
+
     @Override public void applyConfig(Bundle config) {
         mapType = config.getInt(KEY_MAP_TYPE, GoogleMap.MAP_TYPE_NORMAL);
         String path = config.getString(KEY_REFERENCE_LAYER);
@@ -459,9 +468,14 @@ public class GoogleMapFragment extends SupportMapFragment implements
             referenceOverlay.remove();
             referenceOverlay = null;
         }
+        if (referenceTileProvider != null) {
+            referenceTileProvider.close();
+            referenceTileProvider = null;
+        }
         if (referenceLayerFile != null) {
+            referenceTileProvider = new GoogleMapsMapBoxOfflineTileProvider(referenceLayerFile);
             referenceOverlay = this.map.addTileOverlay(new TileOverlayOptions().tileProvider(
-                new GoogleMapsMapBoxOfflineTileProvider(referenceLayerFile)
+                referenceTileProvider
             ));
             setLabelsVisibility("off");
         } else {
@@ -20,9 +20,6 @@ package org.odk.collect.android.geo;
  * @author jonnordling@gmail.com
  */
 
-import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
-
 import com.google.android.gms.maps.model.LatLng;
 import com.google.android.gms.maps.model.LatLngBounds;
 import com.google.android.gms.maps.model.Tile;
@@ -31,6 +28,8 @@ import com.google.android.gms.maps.model.TileProvider;
 import java.io.Closeable;
 import java.io.File;
 
+import timber.log.Timber;
+
 public class GoogleMapsMapBoxOfflineTileProvider implements TileProvider, Closeable {
 
     // ------------------------------------------------------------------------
@@ -43,21 +42,24 @@ public class GoogleMapsMapBoxOfflineTileProvider implements TileProvider, Closea
 
     private LatLngBounds bounds;
 
-    private SQLiteDatabase database;
+    private volatile MbtilesDatabase database;
 
     // ------------------------------------------------------------------------
     // Constructors
     // ------------------------------------------------------------------------
 
     public GoogleMapsMapBoxOfflineTileProvider(File file) {
-        this(file.getAbsolutePath());
+        try {
+            this.database = MbtilesDatabase.open(file);
+        } catch (MbtilesFile.MbtilesException e) {
+            Timber.w(e, "Could not open %s", file);
+        }
+        this.calculateZoomConstraints();
+        this.calculateBounds();
     }
 
     public GoogleMapsMapBoxOfflineTileProvider(String pathToFile) {
-        int flags = SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS;
-        this.database = SQLiteDatabase.openDatabase(pathToFile, null, flags);
-        this.calculateZoomConstraints();
-        this.calculateBounds();
+        this(new File(pathToFile));
     }
 
     // ------------------------------------------------------------------------
@@ -66,34 +68,21 @@ public class GoogleMapsMapBoxOfflineTileProvider implements TileProvider, Closea
 
     @Override
     public Tile getTile(int x, int y, int z) {
-        Tile tile = NO_TILE;
-        if (this.isZoomLevelAvailable(z) && this.isDatabaseAvailable()) {
-            String[] projection = {
-                    "tile_data"
-            };
-            int row = (int) (Math.pow(2, z) - y) - 1;
-            String predicate = "tile_row = ? AND tile_column = ? AND zoom_level = ?";
-            String[] values = {
-                    String.valueOf(row), String.valueOf(x), String.valueOf(z)
-            };
-            Cursor c = this.database.query("tiles", projection, predicate, values, null, null,
-                    null);
-            if (c != null) {
-                c.moveToFirst();
-                if (!c.isAfterLast()) {
-                    tile = new Tile(256, 256, c.getBlob(0));
-                }
-                c.close();
+        MbtilesDatabase database = this.database;
+        if (this.isZoomLevelAvailable(z) && database != null) {
+            byte[] data = database.getTile(z, x, y);
+            if (data != null) {
+                return new Tile(256, 256, data);
             }
         }
-        return tile;
+        return NO_TILE;
     }
 
     // ------------------------------------------------------------------------
     // Closeable Interface
     // ------------------------------------------------------------------------
     @Override
-    public void close() {
+    public synchronized void close() {
         if (this.database != null) {
             this.database.close();
             this.database = null;
@@ -125,57 +114,33 @@ public class GoogleMapsMapBoxOfflineTileProvider implements TileProvider, Closea
     // ------------------------------------------------------------------------
 
     private void calculateZoomConstraints() {
-        if (this.isDatabaseAvailable()) {
-
-            String[] projection = {"value"};
-            String[] minArgs = {"minzoom"};
-
-            Cursor c = this.database.query("metadata", projection, "name = ?", minArgs, null, null, null);
-
-            c.moveToFirst();
-            if (!c.isAfterLast()) {
-                this.minimumZoom = c.getInt(0);
-            }
-            c.close();
-
-            String[] maxArgs = {"maxzoom"};
-            c = this.database.query("metadata", projection, "name = ?", maxArgs, null, null, null);
-
-            c.moveToFirst();
-            if (!c.isAfterLast()) {
-                this.maximumZoom = c.getInt(0);
-            }
-            c.close();
+        if (this.database != null) {
+            try {
+                this.minimumZoom = Integer.parseInt(this.database.getMetadata("minzoom"));
+            } catch (NumberFormatException e) { /* ignore */ }
+            try {
+                this.maximumZoom = Integer.parseInt(this.database.getMetadata("maxzoom"));
+            } catch (NumberFormatException e) { /* ignore */ }
         }
     }
 
     private void calculateBounds() {
-        if (this.isDatabaseAvailable()) {
-            String[] projection = {"value"};
-            String[] subArgs = {"bounds"};
-
-            Cursor c = this.database.query("metadata", projection, "name = ?", subArgs, null, null,
-                    null);
-            c.moveToFirst();
-            if (!c.isAfterLast()) {
-                String[] parts = c.getString(0).split(",\\s*");
-
-                double w = Double.parseDouble(parts[0]);
-                double s = Double.parseDouble(parts[1]);
-                double e = Double.parseDouble(parts[2]);
-                double n = Double.parseDouble(parts[3]);
-
-                LatLng ne = new LatLng(n, e);
-                LatLng sw = new LatLng(s, w);
-
-                this.bounds = new LatLngBounds(sw, ne);
+        if (this.database != null) {
+            String[] parts = this.database.getMetadata("bounds").split(",\\s*");
+            if (parts.length == 4) {
+                try {
+                    double w = Double.parseDouble(parts[0]);
+                    double s = Double.parseDouble(parts[1]);
+                    double e = Double.parseDouble(parts[2]);
+                    double n = Double.parseDouble(parts[3]);
+
+                    LatLng ne = new LatLng(n, e);
+                    LatLng sw = new LatLng(s, w);
+
+                    this.bounds = new LatLngBounds(sw, ne);
+                } catch (NumberFormatException e) { /* ignore */ }
             }
-            c.close();
         }
     }
 
-    private boolean isDatabaseAvailable() {
-        return (this.database != null) && (this.database.isOpen());
-    }
-
 }
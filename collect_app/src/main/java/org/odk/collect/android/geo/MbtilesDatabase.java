@@ -0,0 +1,449 @@
+package org.odk.collect.android.geo;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.LruCache;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import timber.log.Timber;
+
+import static android.database.sqlite.SQLiteDatabase.NO_LOCALIZED_COLLATORS;
+import static android.database.sqlite.SQLiteDatabase.OPEN_READONLY;
+
+/**
+ * Reads the tiles and metadata of an .mbtiles file for all the map backends.
+ *
+ * There is one MbtilesDatabase per file no matter how many maps show it; it is
+ * obtained with open() and the file is closed when every opener has called close().
+ * Tiles are read through a small pool of read-only connections so that several
+ * tiles can be fetched at once.  On 64-bit devices every connection also memory-maps
+ * the first part of the file when the platform's SQLite supports it.  Tiles are always queried with the same SQL so that
+ * each connection compiles the query once and reuses it from its statement cache.
+ *
+ * Whenever a tile is fetched, its neighbours and the tiles that cover it at the next
+ * zoom level are read ahead in the background, so that panning and zooming in find
+ * them in memory.  A prefetched tile is handed over to the first caller that asks
+ * for it, since the map backends keep their own caches of tiles they have shown.
+ */
+class MbtilesDatabase implements Closeable {
+    private static final Map<String, MbtilesDatabase> OPEN_DATABASES = new HashMap<>();
+
+    private static final int MAX_CONNECTIONS = 3;
+    /**
+     * The number of bytes of the file that each connection memory-maps.  The maps of all the
+     * connections of all the open files have to fit into the address space next to the app,
+     * which is only large enough on 64-bit devices.
+     */
+    private static final long MMAP_SIZE = 32L * 1024 * 1024;
+    private static final boolean CAN_MMAP = System.getProperty("os.arch", "").contains("64");
+
+    private static final int MAX_PREFETCH_BYTES = 4 * 1024 * 1024;
+    private static final int MAX_PENDING_PREFETCHES = 64;
+    private static final int RECENT_TILE_COUNT = 256;
+
+    // TMS coordinates are used in .mbtiles files, so Y needs to be flipped.
+    private static final String TILE_QUERY = "SELECT tile_data FROM tiles"
+        + " WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?";
+
+    /** Stands for a tile that is not in the file in the prefetch cache. */
+    private static final byte[] NO_TILE = new byte[0];
+
+    private final File file;
+    private final String path;
+    private final Map<String, String> metadata;
+    private final Deque<SQLiteDatabase> idleConnections = new ArrayDeque<>();
+    private int connectionCount;
+    private int openCount;
+    private volatile boolean closed;
+
+    private final LruCache<String, byte[]> prefetchedTiles = new LruCache<String, byte[]>(MAX_PREFETCH_BYTES) {
+        @Override
+        protected int sizeOf(String key, byte[] data) {
+            return Math.max(1, data.length);
+        }
+    };
+    private final LruCache<String, Boolean> recentTiles = new LruCache<>(RECENT_TILE_COUNT);
+    private final Deque<int[]> pendingPrefetches = new ArrayDeque<>();
+    private final Set<String> pendingKeys = new HashSet<>();
+    private ExecutorService prefetchExecutor;
+    // Read with every tile so they aren't guarded by a lock; the queries may run more than once
+    private volatile int minZoom = -1;
+    private volatile int maxZoom = -1;
+
+    /**
+     * Opens the given .mbtiles file, or returns the MbtilesDatabase that is already
+     * open for it.  Every call must be balanced by a call to close().
+     */
+    static MbtilesDatabase open(File file) throws MbtilesFile.MbtilesException {
+        String path = file.getAbsolutePath();
+        synchronized (OPEN_DATABASES) {
+            MbtilesDatabase database = OPEN_DATABASES.get(path);
+            if (database == null) {
+                database = new MbtilesDatabase(file);
+                OPEN_DATABASES.put(path, database);
+            }
+            database.openCount++;
+            return database;
+        }
+    }
+
+    private MbtilesDatabase(File file) throws MbtilesFile.MbtilesException {
+        this.file = file;
+        this.path = file.getAbsolutePath();
+        try {
+            SQLiteDatabase db = openConnection();
+            connectionCount = 1;
+            idleConnections.push(db);
+            metadata = readMetadata(db);
+        } catch (Throwable e) {
+            closeConnections();
+            throw new MbtilesFile.MbtilesException(e);
+        }
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /** Returns a value from the "metadata" table, or "" if there is none. */
+    @NonNull String getMetadata(String key) {
+        String value = metadata.get(key);
+        return value != null ? value : "";
+    }
+
+    /** Returns the lowest zoom level that has tiles, or -1 if there are no tiles. */
+    int getMinZoom() {
+        if (minZoom < 0) {
+            minZoom = queryInt("SELECT MIN(zoom_level) FROM tiles");
+        }
+        return minZoom;
+    }
+
+    /** Returns the highest zoom level that has tiles, or -1 if there are no tiles. */
+    int getMaxZoom() {
+        if (maxZoom < 0) {
+            maxZoom = queryInt("SELECT MAX(zoom_level) FROM tiles");
+        }
+        return maxZoom;
+    }
+
+    /**
+     * Fetches a tile given in XYZ coordinates (Y increasing southward), or returns
+     * null if the file has no such tile.
+     */
+    // PMD complains about returning null for an array return type, but we
+    // really do want to return null when there is no tile available.
+    @SuppressWarnings("PMD.ReturnEmptyArrayRatherThanNull")
+    @Nullable byte[] getTile(int zoom, int x, int y) {
+        String key = getKey(zoom, x, y);
+        recentTiles.put(key, Boolean.TRUE);
+        byte[] data = prefetchedTiles.remove(key);
+        if (data == null) {
+            data = queryTile(zoom, x, y);
+        }
+        prefetchAround(zoom, x, y);
+        return data == NO_TILE ? null : data;
+    }
+
+    /** Fetches the first 16 bytes of any tile in the file. */
+    @NonNull byte[] getAnyTileHeader() throws MbtilesFile.MbtilesException {
+        SQLiteDatabase db = acquireConnection();
+        if (db == null) {
+            throw new MbtilesFile.MbtilesException("Could not read " + file);
+        }
+        try (Cursor results = db.rawQuery("SELECT substr(tile_data, 1, 16) FROM tiles LIMIT 1", null)) {
+            return results.moveToFirst() ? results.getBlob(0) : new byte[0];
+        } catch (Throwable e) {
+            throw new MbtilesFile.MbtilesException(e);
+        } finally {
+            releaseConnection(db);
+        }
+    }
+
+    /** Fetches any complete tile in the file, or returns null if there are no tiles. */
+    @SuppressWarnings("PMD.ReturnEmptyArrayRatherThanNull")
+    @Nullable byte[] getAnyTile() {
+        SQLiteDatabase db = acquireConnection();
+        if (db == null) {
+            return null;
+        }
+        try (Cursor results = db.rawQuery("SELECT tile_data FROM tiles LIMIT 1", null)) {
+            return results.moveToFirst() ? results.getBlob(0) : null;
+        } catch (Throwable e) {
+            Timber.w(e);
+            return null;
+        } finally {
+            releaseConnection(db);
+        }
+    }
+
+    /** Closes the file once every caller of open() has closed it. */
+    @Override public void close() {
+        synchronized (OPEN_DATABASES) {
+            if (--openCount > 0) {
+                return;
+            }
+            OPEN_DATABASES.remove(path);
+        }
+
+        ExecutorService executor;
+        synchronized (pendingPrefetches) {
+            pendingPrefetches.clear();
+            pendingKeys.clear();
+            executor = prefetchExecutor;
+            prefetchExecutor = null;
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        closeConnections();
+        prefetchedTiles.evictAll();
+    }
+
+    /** Queries a tile, returning NO_TILE if it is missing or cannot be read. */
+    private @NonNull byte[] queryTile(int zoom, int x, int y) {
+        String[] args = {
+            Integer.toString(zoom), Integer.toString(x), Integer.toString((1 << zoom) - 1 - y)
+        };
+        SQLiteDatabase db = acquireConnection();
+        if (db == null) {
+            return NO_TILE;
+        }
+        try (Cursor results = db.rawQuery(TILE_QUERY, args)) {
+            if (results.moveToFirst()) {
+                try {
+                    return results.getBlob(0);
+                } catch (IllegalStateException e) {
+                    Timber.w(e, "Could not select tile data at zoom=%d, x=%d, y=%d", zoom, x, y);
+                    // In Android, the SQLite cursor can handle at most 2 MB in one row;
+                    // exceeding 2 MB in an .mbtiles file is rare, but it can happen.
+                    // When an attempt to fetch a large row fails, the connection ends up
+                    // in an unusable state, so we need to close it and open another one.
+                    // See https://stackoverflow.com/questions/20094421/cursor-window-window-is-full
+                    db.close();
+                    discardConnection();
+                    db = null;
+                }
+            }
+        } catch (Throwable e) {
+            Timber.w(e);
+        } finally {
+            releaseConnection(db);
+        }
+        return NO_TILE;
+    }
+
+    /**
+     * Schedules the tiles around the given tile and the tiles that cover it at the
+     * next zoom level to be read ahead, unless they were requested recently.
+     */
+    private void prefetchAround(int zoom, int x, int y) {
+        int max = 1 << zoom;
+        boolean hasNextZoom = zoom < getMaxZoom();
+        synchronized (pendingPrefetches) {
+            if (closed) {
+                return;
+            }
+            for (int dy = -1; dy <= 1; dy++) {
+                for (int dx = -1; dx <= 1; dx++) {
+                    // Tiles wrap around the antimeridian but not the poles
+                    int ny = y + dy;
+                    if (ny >= 0 && ny < max) {
+                        schedulePrefetch(zoom, (x + dx + max) % max, ny);
+                    }
+                }
+            }
+            if (hasNextZoom) {
+                for (int i = 0; i < 4; i++) {
+                    schedulePrefetch(zoom + 1, 2 * x + i % 2, 2 * y + i / 2);
+                }
+            }
+            if (prefetchExecutor == null && !pendingPrefetches.isEmpty()) {
+                prefetchExecutor = Executors.newSingleThreadExecutor();
+                prefetchExecutor.execute(this::runPrefetches);
+            }
+        }
+    }
+
+    private void schedulePrefetch(int zoom, int x, int y) {
+        String key = getKey(zoom, x, y);
+        if (recentTiles.get(key) != null || prefetchedTiles.get(key) != null || !pendingKeys.add(key)) {
+            return;
+        }
+        // The most recently requested area is the most likely to be shown next
+        pendingPrefetches.addFirst(new int[] {zoom, x, y});
+        if (pendingPrefetches.size() > MAX_PENDING_PREFETCHES) {
+            int[] dropped = pendingPrefetches.removeLast();
+            pendingKeys.remove(getKey(dropped[0], dropped[1], dropped[2]));
+        }
+        pendingPrefetches.notifyAll();
+    }
+
+    private void runPrefetches() {
+        while (!Thread.currentThread().isInterrupted()) {
+            int[] tile;
+            synchronized (pendingPrefetches) {
+                while (pendingPrefetches.isEmpty()) {
+                    try {
+                        pendingPrefetches.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                tile = pendingPrefetches.removeFirst();
+            }
+
+            String key = getKey(tile[0], tile[1], tile[2]);
+            if (recentTiles.get(key) == null) {
+                byte[] data = queryTile(tile[0], tile[1], tile[2]);
+                if (recentTiles.get(key) == null) {
+                    prefetchedTiles.put(key, data);
+                }
+            }
+            synchronized (pendingPrefetches) {
+                pendingKeys.remove(key);
+            }
+        }
+    }
+
+    private int queryInt(String sql) {
+        SQLiteDatabase db = acquireConnection();
+        if (db == null) {
+            return -1;
+        }
+        try (Cursor results = db.rawQuery(sql, null)) {
+            return results.moveToFirst() && !results.isNull(0) ? results.getInt(0) : -1;
+        } catch (Throwable e) {
+            Timber.w(e);
+            return -1;
+        } finally {
+            releaseConnection(db);
+        }
+    }
+
+    /**
+     * Takes an idle connection, opening another one if there are fewer than
+     * MAX_CONNECTIONS, or waits for one to be released.  Returns null once the
+     * file has been closed.
+     */
+    private SQLiteDatabase acquireConnection() {
+        synchronized (idleConnections) {
+            while (!closed) {
+                if (!idleConnections.isEmpty()) {
+                    return idleConnections.pop();
+                }
+                if (connectionCount < MAX_CONNECTIONS) {
+                    connectionCount++;
+                    break;
+                }
+                try {
+                    idleConnections.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            if (closed) {
+                return null;
+            }
+        }
+
+        try {
+            return openConnection();
+        } catch (Throwable e) {
+            Timber.w(e, "Could not open %s", file);
+            discardConnection();
+            return null;
+        }
+    }
+
+    /** Returns a connection to the pool.  Does nothing if no connection was acquired. */
+    private void releaseConnection(@Nullable SQLiteDatabase db) {
+        if (db == null) {
+            return;
+        }
+        synchronized (idleConnections) {
+            if (closed) {
+                db.close();
+                connectionCount--;
+            } else {
+                idleConnections.push(db);
+            }
+            idleConnections.notifyAll();
+        }
+    }
+
+    /** Makes room in the pool for another connection after one was closed. */
+    private void discardConnection() {
+        synchronized (idleConnections) {
+            connectionCount--;
+            idleConnections.notifyAll();
+        }
+    }
+
+    private void closeConnections() {
+        synchronized (idleConnections) {
+            closed = true;
+            for (SQLiteDatabase db : idleConnections) {
+                db.close();
+                connectionCount--;
+            }
+            idleConnections.clear();
+            idleConnections.notifyAll();
+        }
+        synchronized (pendingPrefetches) {
+            pendingPrefetches.notifyAll();
+        }
+    }
+
+    private SQLiteDatabase openConnection() {
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(
+            path, null, OPEN_READONLY | NO_LOCALIZED_COLLATORS);
+        if (!CAN_MMAP) {
+            return db;
+        }
+        // Reading tiles through a memory map avoids copying every page into
+        // SQLite's cache; older versions of SQLite ignore this pragma.
+        try (Cursor ignored = db.rawQuery(
+            String.format(Locale.US, "PRAGMA mmap_size = %d", MMAP_SIZE), null)) {
+            ignored.moveToFirst();
+        } catch (Throwable e) {
+            Timber.i("Memory-mapped I/O is not available: %s", e.getMessage());
+        }
+        return db;
+    }
+
+    private static Map<String, String> readMetadata(SQLiteDatabase db) {
+        Map<String, String> metadata = new HashMap<>();
+        try (Cursor results = db.rawQuery("SELECT name, value FROM metadata", null)) {
+            while (results.moveToNext()) {
+                String name = results.getString(0);
+                if (name != null && !metadata.containsKey(name)) {
+                    metadata.put(name, results.getString(1));
+                }
+            }
+        }
+        return metadata;
+    }
+
+    private static String getKey(int zoom, int x, int y) {
+        return zoom + "/" + x + "/" + y;
+    }
+
+    @Override public String toString() {
+        return String.format(Locale.US, "MbtilesDatabase(%s, %d open)", path, openCount);
+    }
+}
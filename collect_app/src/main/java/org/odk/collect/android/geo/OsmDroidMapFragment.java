@@ -446,6 +446,7 @@ public class OsmDroidMapFragment extends Fragment implements MapFragment,
     private void loadReferenceOverlay() {
         if (referenceOverlay != null) {
             map.getOverlays().remove(referenceOverlay);
+            referenceOverlay.onDetach(map);  // closes the .mbtiles file
             referenceOverlay = null;
         }
         if (referenceLayerFile != null) {
@@ -61,6 +61,12 @@ public class OsmMBTileProvider extends MapTileProviderArray {
         Collections.addAll(mTileProviderList, tileProviderArray);
     }
 
+    @Override
+    public void detach() {
+        super.detach();
+        ((OsmMBTileSource) getTileSource()).close();
+    }
+
     // TODO: implement public Drawable getMapTile(final MapTile pTile) {}
     //       The current implementation is needlessly complex because it uses
     //       MapTileProviderArray as a basis.
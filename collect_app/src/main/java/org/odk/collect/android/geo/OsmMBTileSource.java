@@ -18,8 +18,6 @@
 
 package org.odk.collect.android.geo;
 
-import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 
@@ -27,23 +25,15 @@ import org.osmdroid.tileprovider.MapTile;
 import org.osmdroid.tileprovider.tilesource.BitmapTileSourceBase;
 
 import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.InputStream;
 
 import timber.log.Timber;
 
-public class OsmMBTileSource extends BitmapTileSourceBase {
+public class OsmMBTileSource extends BitmapTileSourceBase implements Closeable {
 
-    // Log log log log ...
-    // private static final Logger logger = LoggerFactory.getLogger(MBTileSource.class);
-    // Database related fields
-    public static final String TABLE_TILES = "tiles";
-    public static final String COL_TILES_ZOOM_LEVEL = "zoom_level";
-    public static final String COL_TILES_TILE_COLUMN = "tile_column";
-    public static final String COL_TILES_TILE_ROW = "tile_row";
-    public static final String COL_TILES_TILE_DATA = "tile_data";
-
-    protected SQLiteDatabase database;
+    protected volatile MbtilesDatabase database;
 
     // Reasonable defaults ..
     public static final int MIN_ZOOM = 8;
@@ -58,7 +48,7 @@ public class OsmMBTileSource extends BitmapTileSourceBase {
     protected OsmMBTileSource(int minZoom,
                               int maxZoom,
                               int tileSizePixels,
-                              SQLiteDatabase db) {
+                              MbtilesDatabase db) {
         super("MBTiles", minZoom, maxZoom, tileSizePixels, ".png");
 
         database = db;
@@ -72,84 +62,53 @@ public class OsmMBTileSource extends BitmapTileSourceBase {
      * defined by this class are used.
      */
     public static OsmMBTileSource createFromFile(File file) {
-        int flags = SQLiteDatabase.NO_LOCALIZED_COLLATORS | SQLiteDatabase.OPEN_READONLY;
         int tileSize = TILE_SIZE_PIXELS;
 
         // Open the database
-        SQLiteDatabase db = SQLiteDatabase.openDatabase(file.getAbsolutePath(), null, flags);
+        MbtilesDatabase db;
+        try {
+            db = MbtilesDatabase.open(file);
+        } catch (MbtilesFile.MbtilesException e) {
+            Timber.w(e, "Could not open %s", file);
+            return new OsmMBTileSource(MIN_ZOOM, MAX_ZOOM, tileSize, null);
+        }
 
         // Get the tile size
-        Cursor cursor = db.rawQuery("SELECT tile_data FROM tiles LIMIT 0,1",
-                new String[]{});
-
-        if (cursor.getCount() != 0) {
-            cursor.moveToFirst();
-            InputStream is = new ByteArrayInputStream(cursor.getBlob(0));
-
-            Bitmap bitmap = BitmapFactory.decodeStream(is);
+        byte[] data = db.getAnyTile();
+        if (data != null) {
+            Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
             if (bitmap != null) {
                 tileSize = bitmap.getHeight();
             }
-            Timber.w("Found a tile size of %d", tileSize);
+            Timber.i("Found a tile size of %d", tileSize);
         }
-        cursor.close();
 
         // Get the minimum zoomlevel from the MBTiles file
-        int value = getInt(db, "SELECT MIN(zoom_level) FROM tiles;");
+        int value = db.getMinZoom();
         int minZoomLevel = value > -1 ? value : MIN_ZOOM;
 
         // Get the maximum zoomlevel from the MBTiles file
-        value = getInt(db, "SELECT MAX(zoom_level) FROM tiles;");
+        value = db.getMaxZoom();
         int maxZoomLevel = value > -1 ? value : MAX_ZOOM;
 
         return new OsmMBTileSource(minZoomLevel, maxZoomLevel, tileSize, db);
     }
 
-    protected static int getInt(SQLiteDatabase db, String sql) {
-        Cursor cursor = db.rawQuery(sql, new String[]{});
-        int value = -1;
-
-        if (cursor.getCount() != 0) {
-            cursor.moveToFirst();
-            value = cursor.getInt(0);
-            Timber.e("Found a minimum zoomlevel of %d", value);
+    public InputStream getInputStream(MapTile mapTile) {
+        MbtilesDatabase database = this.database;
+        if (database == null) {
+            return null;
         }
 
-        cursor.close();
-        return value;
+        byte[] data = database.getTile(mapTile.getZoomLevel(), mapTile.getX(), mapTile.getY());
+        return data != null ? new ByteArrayInputStream(data) : null;
     }
 
-    public InputStream getInputStream(MapTile mapTile) {
-
-        try {
-            InputStream ret = null;
-            final String[] tile = {COL_TILES_TILE_DATA};
-            final String[] xyz = {Integer.toString(mapTile.getX()),
-                    Double.toString(Math.pow(2, mapTile.getZoomLevel()) - mapTile.getY() - 1),
-                    Integer.toString(mapTile.getZoomLevel())};
-
-            final Cursor cur = database.query(TABLE_TILES,
-                    tile,
-                    "tile_column=? and tile_row=? and zoom_level=?",
-                    xyz,
-                    null,
-                    null,
-                    null);
-
-            if (cur.getCount() != 0) {
-                cur.moveToFirst();
-                ret = new ByteArrayInputStream(cur.getBlob(0));
-            }
-
-            cur.close();
-
-            if (ret != null) {
-                return ret;
-            }
-
-        } catch (final Throwable e) {
-            Timber.w(e, "Error getting db stream: %s", mapTile);
+    @Override
+    public synchronized void close() {
+        if (database != null) {
+            database.close();
+            database = null;
         }
-        return null;
     }
 }
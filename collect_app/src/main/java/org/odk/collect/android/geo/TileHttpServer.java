@@ -1,27 +1,64 @@
 package org.odk.collect.android.geo;
 
-import java.io.BufferedReader;
+import android.util.LruCache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.BindException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.URLDecoder;
-import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
 
 import timber.log.Timber;
 
-/** A minimal HTTP server that serves tiles from a set of TileSources. */
+/**
+ * A minimal HTTP/1.1 server that serves tiles from a set of TileSources.
+ *
+ * Connections are kept alive and served by a bounded pool of worker threads; requests that are
+ * pipelined on a connection are answered in order. A kept-alive connection that is idle gives up
+ * its worker as soon as another connection is waiting for one. Recently served tiles are kept in memory,
+ * up to a byte budget shared by all the sources, and are sent with an ETag so that a client can
+ * revalidate them without receiving the tile again.
+ */
 class TileHttpServer {
     private static final int PORT_MIN = 8000;
     private static final int PORT_MAX = 8999;
 
-    private final Map<String, TileSource> sources = new HashMap<>();
+    static final int MAX_WORKER_THREADS = 8;
+
+    /** How long an idle kept-alive connection waits for another request before being closed. */
+    static final int KEEP_ALIVE_TIMEOUT_MS = 5000;
+
+    private static final int MAX_CACHE_BYTES = 16 * 1024 * 1024;
+
+    private final Map<String, TileSource> sources = new ConcurrentHashMap<>();
+    private final LruCache<String, Response> tileCache = new LruCache<String, Response>(getCacheSize()) {
+        @Override
+        protected int sizeOf(String key, Response response) {
+            return response.data.length;
+        }
+    };
+    private final Metrics metrics = new Metrics();
+    /** The kept-alive connections that are waiting for their next request. */
+    private final Queue<ConnectionHandler> idleConnections = new ConcurrentLinkedQueue<>();
+    private final ThreadPoolExecutor workers;
     private final ServerThread server;
     private final ServerSocket socket;
 
@@ -30,6 +67,9 @@ class TileHttpServer {
         if (socket == null) {
             throw new IOException("Could not find an available port");
         }
+        workers = new ThreadPoolExecutor(MAX_WORKER_THREADS, MAX_WORKER_THREADS,
+                KEEP_ALIVE_TIMEOUT_MS, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+        workers.allowCoreThreadTimeOut(true);
         server = new ServerThread(socket);
     }
 
@@ -52,7 +92,21 @@ class TileHttpServer {
      * Closeable, it will be closed when this server is finalized with destroy().
      */
     public void addSource(String key, TileSource source) {
-        sources.put(key, source);
+        TileSource previous = sources.put(key, source);
+        if (previous != null && previous != source) {
+            // Don't serve the previous source's tiles from the cache
+            String prefix = key + "/";
+            for (String cacheKey : tileCache.snapshot().keySet()) {
+                if (cacheKey.startsWith(prefix)) {
+                    tileCache.remove(cacheKey);
+                }
+            }
+        }
+    }
+
+    /** Returns the request and cache statistics of this server so far. */
+    public Metrics getMetrics() {
+        return metrics;
     }
 
     /** Permanently closes all sockets and closeable TileSources. */
@@ -61,6 +115,9 @@ class TileHttpServer {
             socket.close();
         } catch (IOException e) { /* ignore */ }
         server.interrupt();
+        workers.shutdownNow();
+        Timber.i("Tile server stopped: %s", metrics);
+        tileCache.evictAll();
         for (TileSource source : sources.values()) {
             if (source instanceof Closeable) {
                 try {
@@ -83,6 +140,10 @@ class TileHttpServer {
         return null;
     }
 
+    private static int getCacheSize() {
+        return (int) Math.min(MAX_CACHE_BYTES, Runtime.getRuntime().maxMemory() / 16);
+    }
+
     class ServerThread extends Thread {
         final ServerSocket socket;
 
@@ -96,8 +157,21 @@ class TileHttpServer {
                 Timber.i("Ready for requests on port %d", socket.getLocalPort());
                 while (!isInterrupted()) {
                     Socket connection = socket.accept();
-                    Timber.i("Accepted a client connection");
-                    new ResponseThread(connection).start();
+                    try {
+                        workers.execute(new ConnectionHandler(connection));
+                    } catch (RuntimeException e) {
+                        // The server is being destroyed
+                        connection.close();
+                        continue;
+                    }
+
+                    // The new connection waits for a worker so an idle one gives up its worker
+                    if (!workers.getQueue().isEmpty()) {
+                        ConnectionHandler idleConnection = idleConnections.poll();
+                        if (idleConnection != null) {
+                            idleConnection.release();
+                        }
+                    }
                 }
                 Timber.i("Server thread interrupted");
             } catch (IOException e) {
@@ -106,32 +180,99 @@ class TileHttpServer {
         }
     }
 
-    class ResponseThread extends Thread {
+    /** Serves the requests on a connection until the client or the server closes it. */
+    class ConnectionHandler implements Runnable {
         final Socket connection;
 
-        ResponseThread(Socket connection) {
+        ConnectionHandler(Socket connection) {
             this.connection = connection;
         }
 
         public void run() {
             try (Socket connection = this.connection) {
-                InputStreamReader reader = new InputStreamReader(connection.getInputStream());
-                String request = new BufferedReader(reader).readLine();
-                Timber.i("Received request: %s", request);
-                if (request == null) {
-                    return;
+                connection.setSoTimeout(KEEP_ALIVE_TIMEOUT_MS);
+                connection.setTcpNoDelay(true);
+                InputStream input = new BufferedInputStream(connection.getInputStream());
+                OutputStream output = new BufferedOutputStream(connection.getOutputStream());
+
+                boolean keepAlive = true;
+                boolean firstRequest = true;
+                while (keepAlive && !Thread.currentThread().isInterrupted()) {
+                    if (!firstRequest && !awaitNextRequest(input)) {
+                        break;
+                    }
+                    firstRequest = false;
+
+                    Request request = readRequest(input);
+                    if (request == null) {
+                        break;
+                    }
+
+                    long start = System.nanoTime();
+                    keepAlive = request.keepAlive;
+                    Response response = getResponse(request.line);
+                    if (response == null) {
+                        Timber.d("%s: No tile at these coordinates", request.line);
+                        sendNotFound(output, keepAlive);
+                    } else if (response.etag.equals(request.ifNoneMatch)) {
+                        metrics.notModified.incrementAndGet();
+                        sendNotModified(output, response, keepAlive);
+                    } else {
+                        sendResponse(output, response, keepAlive);
+                    }
+
+                    // Pipelined requests are answered together
+                    if (input.available() == 0) {
+                        output.flush();
+                    }
+                    metrics.recordRequest(System.nanoTime() - start);
                 }
-                long start = System.currentTimeMillis();
-                Response response = getResponse(request);
-                if (response == null) {
-                    Timber.i("%s: No tile at these coordinates", request);
-                    return;
+                output.flush();
+            } catch (SocketTimeoutException e) {
+                // The client kept the connection idle for too long
+            } catch (IOException e) {
+                Timber.d(e, "Connection closed");
+            }
+        }
+
+        /**
+         * Waits for the next request on a kept-alive connection. Returns false if the client
+         * closed the connection or another connection is waiting for a worker, either when this
+         * connection becomes idle or later when the server thread releases it. Throws
+         * SocketTimeoutException once the connection has been idle for
+         * {@link TileHttpServer#KEEP_ALIVE_TIMEOUT_MS}.
+         */
+        private boolean awaitNextRequest(InputStream input) throws IOException {
+            if (input.available() > 0) {
+                return true;
+            }
+
+            idleConnections.add(this);
+            boolean hasRequest = false;
+            try {
+                if (workers.getQueue().isEmpty()) {
+                    input.mark(1);
+                    hasRequest = input.read() != -1;
+                    if (hasRequest) {
+                        input.reset();
+                    }
                 }
-                sendResponse(connection, response);
-                long finish = System.currentTimeMillis();
-                Timber.i("%s: Served %d bytes in %d ms", request, response.data.length, finish - start);
+            } finally {
+                // The server thread removes the connection when it releases it
+                hasRequest &= idleConnections.remove(this);
+            }
+            return hasRequest;
+        }
+
+        /**
+         * Ends the wait of an idle connection for its next request so that its worker can serve
+         * a connection that is waiting for one.
+         */
+        void release() {
+            try {
+                connection.shutdownInput();
             } catch (IOException e) {
-                Timber.e(e, "Unable to read request from socket");
+                // The connection is already closed
             }
         }
 
@@ -145,13 +286,7 @@ class TileHttpServer {
                         int zoom = Integer.parseInt(parts[1]);
                         int x = Integer.parseInt(parts[2]);
                         int y = Integer.parseInt(parts[3]);
-                        TileSource source = sources.get(key);
-                        if (source != null) {
-                            byte[] data = source.getTileBlob(zoom, x, y);
-                            if (data != null) {
-                                return new Response(data, source.getContentType(), source.getContentEncoding());
-                            }
-                        }
+                        return getTile(key, zoom, x, y);
                     } catch (NumberFormatException e) {
                         Timber.w(e, "Bad request %s", request);
                     } catch (UnsupportedEncodingException e) { /* cannot happen because UTF-8 is built in */ }
@@ -161,38 +296,221 @@ class TileHttpServer {
             return null;
         }
 
-        protected void sendResponse(Socket connection, Response response) {
+        private Response getTile(String key, int zoom, int x, int y) {
+            TileSource source = sources.get(key);
+            if (source == null) {
+                return null;
+            }
+
+            String cacheKey = key + "/" + zoom + "/" + x + "/" + y;
+            Response response = tileCache.get(cacheKey);
+            if (response != null) {
+                metrics.cacheHits.incrementAndGet();
+                return response;
+            }
+
+            metrics.cacheMisses.incrementAndGet();
+            byte[] data = source.getTileBlob(zoom, x, y);
+            if (data == null) {
+                return null;
+            }
+
+            response = new Response(data, source.getContentType(), source.getContentEncoding());
+            if (sources.get(key) == source) {
+                tileCache.put(cacheKey, response);
+            }
+            return response;
+        }
+
+        protected void sendResponse(OutputStream output, Response response, boolean keepAlive) throws IOException {
             String headers = String.format(
                 Locale.US,
-                "HTTP/1.0 200\r\n" +
+                "HTTP/1.1 200 OK\r\n" +
                     "Content-Type: %s\r\n" +
                     "Content-Encoding: %s\r\n" +
                     "Content-Length: %d\r\n" +
+                    "ETag: %s\r\n" +
+                    "Connection: %s\r\n" +
                     "\r\n",
                 response.contentType,
                 response.contentEncoding,
-                response.data.length
+                response.data.length,
+                response.etag,
+                keepAlive ? "keep-alive" : "close"
             );
+            output.write(headers.getBytes("US-ASCII"));
+            output.write(response.data);
+        }
 
-            try (OutputStream output = connection.getOutputStream()) {
-                output.write(headers.getBytes());
-                output.write(response.data);
-                output.flush();
-            } catch (IOException e) {
-                Timber.e(e, "Unable to write response to socket");
+        private void sendNotModified(OutputStream output, Response response, boolean keepAlive) throws IOException {
+            String headers = String.format(
+                Locale.US,
+                "HTTP/1.1 304 Not Modified\r\n" +
+                    "ETag: %s\r\n" +
+                    "Connection: %s\r\n" +
+                    "\r\n",
+                response.etag,
+                keepAlive ? "keep-alive" : "close"
+            );
+            output.write(headers.getBytes("US-ASCII"));
+        }
+
+        private void sendNotFound(OutputStream output, boolean keepAlive) throws IOException {
+            String headers = String.format(
+                Locale.US,
+                "HTTP/1.1 404 Not Found\r\n" +
+                    "Content-Length: 0\r\n" +
+                    "Connection: %s\r\n" +
+                    "\r\n",
+                keepAlive ? "keep-alive" : "close"
+            );
+            output.write(headers.getBytes("US-ASCII"));
+        }
+    }
+
+    /**
+     * Reads the request line and the headers of the next request on a connection, or returns
+     * null if the client closed the connection.
+     */
+    static Request readRequest(InputStream input) throws IOException {
+        String line = readLine(input);
+        while (line != null && line.isEmpty()) {
+            line = readLine(input);  // tolerate blank lines between requests
+        }
+        if (line == null) {
+            return null;
+        }
+
+        // HTTP/1.1 connections are persistent unless the client asks otherwise
+        boolean keepAlive = line.endsWith("HTTP/1.1");
+        boolean close = false;
+        String ifNoneMatch = null;
+        String header;
+        while ((header = readLine(input)) != null && !header.isEmpty()) {
+            int colon = header.indexOf(':');
+            if (colon < 0) {
+                continue;
+            }
+            String name = header.substring(0, colon).trim().toLowerCase(Locale.US);
+            String value = header.substring(colon + 1).trim();
+            if (name.equals("connection")) {
+                // e.g. "keep-alive, Upgrade"
+                for (String option : value.split(",")) {
+                    option = option.trim();
+                    if (option.equalsIgnoreCase("close")) {
+                        close = true;
+                    } else if (option.equalsIgnoreCase("keep-alive")) {
+                        keepAlive = true;
+                    }
+                }
+            } else if (name.equals("if-none-match")) {
+                ifNoneMatch = value;
+            }
+        }
+        return new Request(line, keepAlive && !close, ifNoneMatch);
+    }
+
+    /** Reads a line terminated by CRLF or LF, or returns null at the end of the stream. */
+    private static String readLine(InputStream input) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = input.read()) != -1) {
+            if (b == '\n') {
+                break;
+            } else if (b != '\r') {
+                line.write(b);
             }
         }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        return line.toString("US-ASCII");
+    }
+
+    static class Request {
+        final String line;
+        final boolean keepAlive;
+        final String ifNoneMatch;
+
+        Request(String line, boolean keepAlive, String ifNoneMatch) {
+            this.line = line;
+            this.keepAlive = keepAlive;
+            this.ifNoneMatch = ifNoneMatch;
+        }
     }
 
     public static class Response {
         byte[] data;
         String contentType;
         String contentEncoding;
+        String etag;
 
         Response(byte[] data, String contentType, String contentEncoding) {
             this.data = data;
             this.contentType = contentType;
             this.contentEncoding = contentEncoding;
+
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            this.etag = String.format(Locale.US, "\"%x-%x\"", data.length, crc.getValue());
+        }
+    }
+
+    /** Request and cache statistics. */
+    public static class Metrics {
+        final AtomicLong requests = new AtomicLong();
+        final AtomicLong cacheHits = new AtomicLong();
+        final AtomicLong cacheMisses = new AtomicLong();
+        final AtomicLong notModified = new AtomicLong();
+        final AtomicLong totalLatencyNanos = new AtomicLong();
+        final AtomicLong maxLatencyNanos = new AtomicLong();
+
+        void recordRequest(long latencyNanos) {
+            requests.incrementAndGet();
+            totalLatencyNanos.addAndGet(latencyNanos);
+            long max;
+            do {
+                max = maxLatencyNanos.get();
+            } while (latencyNanos > max && !maxLatencyNanos.compareAndSet(max, latencyNanos));
+        }
+
+        public long getRequestCount() {
+            return requests.get();
+        }
+
+        public long getCacheHitCount() {
+            return cacheHits.get();
+        }
+
+        public long getCacheMissCount() {
+            return cacheMisses.get();
+        }
+
+        public long getNotModifiedCount() {
+            return notModified.get();
+        }
+
+        /** Returns the share of tile lookups that were served from memory, from 0 to 1. */
+        public double getCacheHitRate() {
+            long lookups = cacheHits.get() + cacheMisses.get();
+            return lookups == 0 ? 0 : (double) cacheHits.get() / lookups;
+        }
+
+        public double getAverageLatencyMillis() {
+            long count = requests.get();
+            return count == 0 ? 0 : totalLatencyNanos.get() / 1e6 / count;
+        }
+
+        public double getMaxLatencyMillis() {
+            return maxLatencyNanos.get() / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%d requests, %.0f%% cache hits, %d not modified, %.1f ms average, %.1f ms max",
+                    getRequestCount(), getCacheHitRate() * 100, getNotModifiedCount(),
+                    getAverageLatencyMillis(), getMaxLatencyMillis());
         }
     }
 }
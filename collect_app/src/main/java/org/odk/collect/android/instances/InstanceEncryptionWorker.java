@@ -0,0 +1,273 @@
+package org.odk.collect.android.instances;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.provider.BaseColumns;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.work.Data;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import org.kxml2.io.KXmlParser;
+import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.dao.FormsDao;
+import org.odk.collect.android.dao.InstancesDao;
+import org.odk.collect.android.exception.EncryptionException;
+import org.odk.collect.android.logic.FormController.InstanceMetadata;
+import org.odk.collect.android.preferences.GeneralSharedPreferences;
+import org.odk.collect.android.provider.InstanceProviderAPI;
+import org.odk.collect.android.provider.InstanceProviderAPI.InstanceColumns;
+import org.odk.collect.android.storage.StoragePathProvider;
+import org.odk.collect.android.upload.AutoSendWorker;
+import org.odk.collect.android.utilities.EncryptionUtils;
+import org.odk.collect.android.utilities.EncryptionUtils.EncryptedFormInformation;
+import org.odk.collect.android.utilities.FileUtils;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import timber.log.Timber;
+
+/**
+ * Encrypts a finalized instance of an encrypted form so that finalizing doesn't have to wait for
+ * its attachments to be encrypted. The instance has the {@link InstanceProviderAPI#STATUS_ENCRYPTING}
+ * status until the encrypted submission is ready to be sent and the plaintext files have been
+ * deleted. It is then marked as complete and auto-send is requested if it applies to the form.
+ *
+ * Every step can be repeated if the work is interrupted. If the submission can't be encrypted,
+ * the instance is marked as incomplete again so that it can be re-opened and finalized later,
+ * just like when encryption fails while saving. Once the plaintext instance has been replaced by
+ * the manifest that is no longer possible, so after a few failed attempts the instance is marked
+ * with {@link InstanceProviderAPI#STATUS_ENCRYPTION_FAILED} instead.
+ *
+ * Instances that are left encrypting without a request, e.g. because the app was killed right
+ * after one was finalized, are picked up by {@link #scheduleInterrupted()}.
+ */
+public class InstanceEncryptionWorker extends Worker {
+
+    static final String KEY_INSTANCE_URI = "instanceUri";
+    static final String KEY_INSTANCE_ID = "instanceId";
+    static final String KEY_LAST_SAVED_PATH = "lastSavedPath";
+
+    private static final int MAX_RUN_ATTEMPTS = 3;
+
+    public InstanceEncryptionWorker(@NonNull Context context, @NonNull WorkerParameters workerParams) {
+        super(context, workerParams);
+    }
+
+    /**
+     * Requests that the instance with the given uri be encrypted. The instance must already have
+     * the {@link InstanceProviderAPI#STATUS_ENCRYPTING} status. The instance id and the last-saved
+     * path are read from the instance and its form if they aren't given.
+     */
+    public static void schedule(Uri instanceUri, @Nullable String instanceId, @Nullable String lastSavedPath) {
+        Data inputData = new Data.Builder()
+                .putString(KEY_INSTANCE_URI, instanceUri.toString())
+                .putString(KEY_INSTANCE_ID, instanceId)
+                .putString(KEY_LAST_SAVED_PATH, lastSavedPath)
+                .build();
+        OneTimeWorkRequest encryptionWork =
+                new OneTimeWorkRequest.Builder(InstanceEncryptionWorker.class)
+                        .addTag(InstanceEncryptionWorker.class.getName())
+                        .setInputData(inputData)
+                        .build();
+        WorkManager.getInstance().enqueueUniqueWork(
+                InstanceEncryptionWorker.class.getName() + ":" + instanceUri,
+                ExistingWorkPolicy.KEEP, encryptionWork);
+    }
+
+    /**
+     * Requests that every instance that is still encrypting be encrypted. Instances that already
+     * have a pending request keep it.
+     */
+    public static void scheduleInterrupted() {
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(() -> {
+            try (Cursor cursor = new InstancesDao().getInstancesCursor(new String[]{BaseColumns._ID},
+                    InstanceColumns.STATUS + "=?", new String[]{InstanceProviderAPI.STATUS_ENCRYPTING}, null)) {
+                while (cursor != null && cursor.moveToNext()) {
+                    Uri instanceUri = Uri.withAppendedPath(InstanceColumns.CONTENT_URI, cursor.getString(0));
+                    Timber.i("Requesting encryption of %s", instanceUri);
+                    schedule(instanceUri, null, null);
+                }
+            }
+        });
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        String instanceUriString = getInputData().getString(KEY_INSTANCE_URI);
+        String instanceId = getInputData().getString(KEY_INSTANCE_ID);
+        String lastSavedPath = getInputData().getString(KEY_LAST_SAVED_PATH);
+        if (instanceUriString == null) {
+            return Result.failure();
+        }
+
+        Uri instanceUri = Uri.parse(instanceUriString);
+        String instancePath;
+        String jrFormId;
+        String jrVersion;
+        try (Cursor cursor = Collect.getInstance().getContentResolver().query(instanceUri,
+                new String[]{InstanceColumns.INSTANCE_FILE_PATH, InstanceColumns.JR_FORM_ID, InstanceColumns.STATUS, InstanceColumns.JR_VERSION},
+                null, null, null)) {
+            if (cursor == null || !cursor.moveToFirst()) {
+                Timber.i("Not encrypting %s because it no longer exists", instanceUri);
+                return Result.success();
+            }
+
+            if (!InstanceProviderAPI.STATUS_ENCRYPTING.equals(cursor.getString(2))) {
+                Timber.i("%s is not waiting to be encrypted", instanceUri);
+                return Result.success();
+            }
+
+            instancePath = new StoragePathProvider().getAbsoluteInstanceFilePath(cursor.getString(0));
+            jrFormId = cursor.getString(1);
+            jrVersion = cursor.getString(3);
+        }
+
+        if (lastSavedPath == null) {
+            String formMediaPath = new FormsDao().getFormMediaPath(jrFormId, jrVersion);
+            if (formMediaPath != null) {
+                lastSavedPath = FileUtils.getLastSavedPath(new File(formMediaPath));
+            }
+        }
+
+        File instanceXml = new File(instancePath);
+        File submissionXml = new File(instanceXml.getParentFile(), "submission.xml");
+
+        final long start = System.currentTimeMillis();
+        try {
+            encryptSubmission(instanceUri, instanceId, instanceXml, submissionXml);
+        } catch (IOException | EncryptionException e) {
+            Timber.e(e, "Unable to encrypt %s", instanceXml.getAbsolutePath());
+
+            boolean canRetry = getRunAttemptCount() + 1 < MAX_RUN_ATTEMPTS;
+
+            // Once the manifest has been written there is no going back
+            if (EncryptionUtils.isEncryptedSubmissionManifest(instanceXml)
+                    || (submissionXml.exists() && EncryptionUtils.isEncryptedSubmissionManifest(submissionXml))) {
+                if (canRetry) {
+                    return Result.retry();
+                }
+
+                markEncryptionFailed(instanceUri);
+                return Result.failure();
+            } else if (e instanceof IOException && canRetry) {
+                return Result.retry();
+            }
+
+            markIncomplete(instanceUri);
+            return Result.failure();
+        }
+
+        Timber.i("Encrypted %s in %.3f seconds.", instanceXml.getParentFile().getName(),
+                (System.currentTimeMillis() - start) / 1000F);
+
+        markComplete(instanceUri);
+
+        // if encrypted, delete all plaintext files
+        // (anything not named instanceXml or anything not ending in .enc)
+        if (!EncryptionUtils.deletePlaintextFiles(instanceXml, lastSavedPath != null ? new File(lastSavedPath) : null)) {
+            Timber.e("Error deleting plaintext files for %s", instanceXml.getAbsolutePath());
+        }
+
+        if (AutoSendWorker.formShouldBeAutoSent(jrFormId, GeneralSharedPreferences.isAutoSendEnabled())) {
+            AutoSendWorker.requestAutoSend();
+        }
+
+        return Result.success();
+    }
+
+    /**
+     * Encrypts the submission.xml written when the instance was finalized along with the
+     * attachments and replaces the instance file with the manifest of the encrypted submission.
+     * Steps that were completed before the work was interrupted are skipped.
+     */
+    private static void encryptSubmission(Uri instanceUri, @Nullable String instanceId, File instanceXml,
+                                          File submissionXml) throws IOException, EncryptionException {
+        if (submissionXml.exists() && !EncryptionUtils.isEncryptedSubmissionManifest(submissionXml)) {
+            if (instanceId == null) {
+                instanceId = readInstanceId(submissionXml);
+            }
+
+            EncryptedFormInformation formInfo = EncryptionUtils.getEncryptedFormInformation(instanceUri,
+                    new InstanceMetadata(instanceId, null, null));
+            if (formInfo == null) {
+                throw new EncryptionException("Encryption is not available for " + instanceUri, null);
+            }
+
+            EncryptionUtils.generateEncryptedSubmission(instanceXml, submissionXml, formInfo);
+        }
+
+        // replace the restore xml with the manifest
+        if (submissionXml.exists()) {
+            if (instanceXml.exists() && !instanceXml.delete()) {
+                throw new IOException("Error deleting " + instanceXml.getAbsolutePath()
+                        + " prior to renaming submission.xml");
+            }
+            if (!submissionXml.renameTo(instanceXml)) {
+                throw new IOException("Error renaming submission.xml to " + instanceXml.getAbsolutePath());
+            }
+        }
+
+        if (!EncryptionUtils.isEncryptedSubmissionManifest(instanceXml)) {
+            throw new IOException("No encrypted submission found for " + instanceXml.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Returns the text of the first instanceID element of the submission, or null if it has none.
+     */
+    @Nullable
+    private static String readInstanceId(File submissionXml) throws IOException {
+        try (InputStream is = new FileInputStream(submissionXml)) {
+            KXmlParser parser = new KXmlParser();
+            parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+            parser.setInput(is, null);
+            for (int event = parser.next(); event != XmlPullParser.END_DOCUMENT; event = parser.next()) {
+                if (event == XmlPullParser.START_TAG && "instanceID".equals(parser.getName())) {
+                    return parser.nextText();
+                }
+            }
+            return null;
+        } catch (XmlPullParserException e) {
+            throw new IOException("Unable to read the instanceID of " + submissionXml.getAbsolutePath(), e);
+        }
+    }
+
+    private static void markComplete(Uri instanceUri) {
+        ContentValues values = new ContentValues();
+        values.put(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_COMPLETE);
+
+        // Geometry fields represent data inside the form which can be very sensitive so they
+        // aren't kept once the form is encrypted.
+        values.put(InstanceColumns.GEOMETRY, (String) null);
+        values.put(InstanceColumns.GEOMETRY_TYPE, (String) null);
+        Collect.getInstance().getContentResolver().update(instanceUri, values, null, null);
+    }
+
+    private static void markIncomplete(Uri instanceUri) {
+        ContentValues values = new ContentValues();
+        values.put(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_INCOMPLETE);
+        values.put(InstanceColumns.CAN_EDIT_WHEN_COMPLETE, Boolean.toString(true));
+        Collect.getInstance().getContentResolver().update(instanceUri, values, null, null);
+    }
+
+    private static void markEncryptionFailed(Uri instanceUri) {
+        ContentValues values = new ContentValues();
+        values.put(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_ENCRYPTION_FAILED);
+        Collect.getInstance().getContentResolver().update(instanceUri, values, null, null);
+    }
+}
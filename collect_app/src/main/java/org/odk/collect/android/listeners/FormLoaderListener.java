@@ -18,6 +18,8 @@ import org.javarosa.core.model.FormDef;
 import org.odk.collect.android.tasks.FormLoaderTask;
 import org.odk.collect.android.tasks.ProgressNotifier;
 
+import java.util.Map;
+
 /**
  * @author Carl Hartung (carlhartung@gmail.com)
  */
@@ -25,4 +27,10 @@ public interface FormLoaderListener extends ProgressNotifier {
     void loadingComplete(FormLoaderTask task, FormDef fd, String warningMsg);
 
     void loadingError(String errorMsg);
+
+    /**
+     * Called before the load completes or fails with the time in milliseconds spent in each
+     * loading stage that ran, keyed by the FormLoaderTask.STAGE_* names.
+     */
+    void loadingStagesTimed(Map<String, Long> stageTimings);
 }
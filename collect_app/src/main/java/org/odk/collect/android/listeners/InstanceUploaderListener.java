@@ -26,5 +26,7 @@ public interface InstanceUploaderListener {
 
     void progressUpdate(int progress, int total);
 
+    void progressUpdate(int progress, int total, long bytesUploaded, long totalBytes);
+
     void authRequest(Uri url, HashMap<String, String> doneSoFar);
 }
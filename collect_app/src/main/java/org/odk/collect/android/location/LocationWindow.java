@@ -0,0 +1,148 @@
+package org.odk.collect.android.location;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Keeps the location fixes received during the last maxAge milliseconds and answers which of
+ * them is the most accurate.
+ *
+ * Fixes are kept in primitive ring buffers of a fixed capacity, so adding a fix allocates
+ * nothing and the oldest fix is overwritten once the window is full. Alongside the fixes, a
+ * queue of the fixes that may still become the most accurate one is maintained: a fix is
+ * dropped from it as soon as a more accurate, newer fix arrives. Expiring fixes and finding
+ * the most accurate one are therefore amortized O(1).
+ *
+ * Fixes are expected in the order of their times. A fix that is older than the newest one
+ * already in the window is ignored.
+ */
+public class LocationWindow {
+
+    private final int capacity;
+    private final long maxAge;
+
+    private final long[] times;
+    private final double[] latitudes;
+    private final double[] longitudes;
+    private final float[] accuracies;
+
+    // Sequence numbers of the fixes in the window are [head, tail)
+    private long head;
+    private long tail;
+
+    // Sequence numbers of the candidates for the most accurate fix, from oldest to newest
+    // and from most to least accurate
+    private final long[] candidates;
+    private int candidatesStart;
+    private int candidateCount;
+
+    /**
+     * @param maxAge how long fixes are kept in milliseconds, or null to keep them until they
+     *               are overwritten
+     */
+    public LocationWindow(int capacity, @Nullable Long maxAge) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.maxAge = maxAge != null ? maxAge : Long.MAX_VALUE;
+
+        times = new long[capacity];
+        latitudes = new double[capacity];
+        longitudes = new double[capacity];
+        accuracies = new float[capacity];
+        candidates = new long[capacity];
+    }
+
+    public synchronized void add(long time, double latitude, double longitude, float accuracy) {
+        if (tail > head && time < times[slot(tail - 1)]) {
+            return;
+        }
+
+        if (tail - head == capacity) {
+            head++;
+            dropOverwrittenCandidate();
+        }
+
+        int slot = slot(tail);
+        times[slot] = time;
+        latitudes[slot] = latitude;
+        longitudes[slot] = longitude;
+        accuracies[slot] = accuracy;
+
+        // Candidates that are less accurate than this fix expire before it, so they can never
+        // be the most accurate fix again. Equally accurate older ones are kept so that the
+        // first of them is preferred.
+        while (candidateCount > 0 && accuracies[slot(lastCandidate())] > accuracy) {
+            candidateCount--;
+        }
+        candidates[(candidatesStart + candidateCount) % capacity] = tail;
+        candidateCount++;
+        tail++;
+    }
+
+    /**
+     * Returns the most accurate fix that hasn't expired at the given time, or null if there
+     * is none.
+     */
+    @Nullable
+    public synchronized Fix getMostAccurate(long currentTime) {
+        removeExpired(currentTime);
+        if (candidateCount == 0) {
+            return null;
+        }
+
+        int slot = slot(candidates[candidatesStart]);
+        return new Fix(times[slot], latitudes[slot], longitudes[slot], accuracies[slot]);
+    }
+
+    public synchronized int size() {
+        return (int) (tail - head);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /** Returns the approximate number of bytes used by the buffers of this window. */
+    public long getMemoryFootprint() {
+        return (long) capacity * (Long.SIZE + Double.SIZE + Double.SIZE + Float.SIZE + Long.SIZE) / 8;
+    }
+
+    private void removeExpired(long currentTime) {
+        while (tail > head && currentTime - times[slot(head)] > maxAge) {
+            head++;
+            dropOverwrittenCandidate();
+        }
+    }
+
+    /** Drops the oldest candidate if it has left the window. */
+    private void dropOverwrittenCandidate() {
+        if (candidateCount > 0 && candidates[candidatesStart] < head) {
+            candidatesStart = (candidatesStart + 1) % capacity;
+            candidateCount--;
+        }
+    }
+
+    private long lastCandidate() {
+        return candidates[(candidatesStart + candidateCount - 1) % capacity];
+    }
+
+    private int slot(long sequence) {
+        return (int) (sequence % capacity);
+    }
+
+    /** A location fix taken out of the window. */
+    public static class Fix {
+        public final long time;
+        public final double latitude;
+        public final double longitude;
+        public final float accuracy;
+
+        Fix(long time, double latitude, double longitude, float accuracy) {
+            this.time = time;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.accuracy = accuracy;
+        }
+    }
+}
@@ -51,7 +51,7 @@ import org.javarosa.xpath.expr.XPathExpression;
 import org.odk.collect.android.exception.JavaRosaException;
 import org.odk.collect.android.external.ExternalDataUtil;
 import org.odk.collect.android.formentry.ODKView;
-import org.odk.collect.android.formentry.audit.AsyncTaskAuditEventWriter;
+import org.odk.collect.android.formentry.audit.AuditEventFileWriter;
 import org.odk.collect.android.formentry.audit.AuditConfig;
 import org.odk.collect.android.formentry.audit.AuditEventLogger;
 import org.odk.collect.android.logic.actions.setgeopoint.CollectSetGeopointActionHandler;
@@ -196,7 +196,7 @@ public class FormController {
             AuditConfig auditConfig = getSubmissionMetadata().auditConfig;
 
             if (auditConfig != null) {
-                setAuditEventLogger(new AuditEventLogger(auditConfig, new AsyncTaskAuditEventWriter(new File(instanceFile.getParentFile().getPath() + File.separator + AUDIT_FILE_NAME), auditConfig.isLocationEnabled(), auditConfig.isTrackingChangesEnabled(), auditConfig.isIdentifyUserEnabled(), auditConfig.isTrackChangesReasonEnabled()), this));
+                setAuditEventLogger(new AuditEventLogger(auditConfig, new AuditEventFileWriter(new File(instanceFile.getParentFile().getPath() + File.separator + AUDIT_FILE_NAME), auditConfig.isLocationEnabled(), auditConfig.isTrackingChangesEnabled(), auditConfig.isIdentifyUserEnabled(), auditConfig.isTrackChangesReasonEnabled()), this));
             } else {
                 setAuditEventLogger(new AuditEventLogger(null, null, this));
             }
@@ -215,8 +215,12 @@ public class FormController {
      * @return xpath value for this index
      */
     public String getXPath(FormIndex index) {
+        return getXPath(index, getEvent());
+    }
+
+    private static String getXPath(FormIndex index, int event) {
         String value;
-        switch (getEvent()) {
+        switch (event) {
             case FormEntryController.EVENT_BEGINNING_OF_FORM:
                 value = "beginningOfForm";
                 break;
@@ -257,15 +261,14 @@ public class FormController {
             default:
                 FormIndex returned = null;
                 FormIndex saved = getFormIndex();
-                // the only way I know how to do this is to step through the entire form
-                // until the XPath of a form entry matches that of the supplied XPath
+                // Step through the form until the XPath of a form entry matches the supplied
+                // XPath. Stepping rather than only incrementing the index creates the instances of
+                // repeats with a jr:count as they are reached, just like filling in the form does.
                 try {
                     jumpToIndex(FormIndex.createBeginningOfFormIndex());
                     int event = stepToNextEvent(true);
                     while (event != FormEntryController.EVENT_END_OF_FORM) {
-                        String candidateXPath = getXPath(getFormIndex());
-                        // Log.i(t, "xpath: " + candidateXPath);
-                        if (candidateXPath.equals(xpath)) {
+                        if (getXPath(getFormIndex(), event).equals(xpath)) {
                             returned = getFormIndex();
                             break;
                         }
@@ -17,6 +17,7 @@
 package org.odk.collect.android.openrosa;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import java.io.InputStream;
 import java.util.Map;
@@ -48,6 +49,20 @@ public class HttpGetResult {
         return hash;
     }
 
+    /**
+     * Returns the value of the response header with the given name, ignoring case, or null if
+     * the response doesn't have it.
+     */
+    @Nullable
+    public String getHeader(@NonNull String name) {
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey())) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
     public boolean isOpenRosaResponse() {
         boolean openRosaResponse = false;
 
@@ -78,6 +78,17 @@ public class OpenRosaAPIClient {
         return fetch(downloadUrl, contentType).getInputStream();
     }
 
+    /**
+     * Requests the file from the given byte offset on. Unlike {@link #getFile(String, String)}
+     * the result is returned whatever its status code so that the caller can tell whether the
+     * server resumed the download (206), sent the whole file (200) or refused the range.
+     */
+    @NonNull
+    public HttpGetResult getFileFrom(@NonNull String downloadUrl, long offset) throws Exception {
+        URI uri = toUri(downloadUrl);
+        return httpInterface.executeGetRequest(uri, null, webCredentialsUtils.getCredentials(uri), offset);
+    }
+
     /**
      * Creates a Http connection and input stream
      *
@@ -89,6 +100,12 @@ public class OpenRosaAPIClient {
 
     @NonNull
     private HttpGetResult fetch(@NonNull String downloadUrl, @Nullable final String contentType) throws Exception {
+        URI uri = toUri(downloadUrl);
+        return httpInterface.executeGetRequest(uri, contentType, webCredentialsUtils.getCredentials(uri));
+    }
+
+    @NonNull
+    private static URI toUri(@NonNull String downloadUrl) throws Exception {
         URI uri;
         try {
             // assume the downloadUrl is escaped properly
@@ -104,6 +121,6 @@ public class OpenRosaAPIClient {
             throw new Exception("Invalid server URL (no hostname): " + downloadUrl);
         }
 
-        return httpInterface.executeGetRequest(uri, contentType, webCredentialsUtils.getCredentials(uri));
+        return uri;
     }
 }
\ No newline at end of file
@@ -38,6 +38,19 @@ public interface OpenRosaHttpInterface {
     @NonNull
     HttpGetResult executeGetRequest(@NonNull URI uri, @Nullable String contentType, @Nullable HttpCredentialsInterface credentials) throws Exception;
 
+    /**
+     * Like {@link #executeGetRequest(URI, String, HttpCredentialsInterface)} but asks for the
+     * content from the given byte offset on so that a partial download can be resumed. A server
+     * that honors the range answers with 206 (Partial Content), otherwise the whole content is
+     * returned with 200.
+     *
+     * @param offset the number of bytes already downloaded, 0 for the whole content
+     * @return HttpGetResult - An object containing the Stream, Hash and Headers
+     * @throws Exception various Exceptions such as IOException can be thrown
+     */
+    @NonNull
+    HttpGetResult executeGetRequest(@NonNull URI uri, @Nullable String contentType, @Nullable HttpCredentialsInterface credentials, long offset) throws Exception;
+
     /**
      * Performs a Http Head request.
      *
@@ -66,9 +79,37 @@ public interface OpenRosaHttpInterface {
                                         @Nullable HttpCredentialsInterface credentials,
                                         @NonNull long contentLength) throws Exception;
 
+    /**
+     * Uploads files to a Server like {@link #uploadSubmissionFile(List, File, URI, HttpCredentialsInterface, long)}
+     * but retries each part that fails because of a network error with exponential backoff and
+     * tells the listener which attachments the server has acknowledged so that an interrupted
+     * submission can be resumed without sending them again.
+     *
+     * @param listener notified of progress and of every part the server has acknowledged
+     * @return ResponseMessageParser object that contains the response XML
+     * @throws IOException can be thrown if files do not exist or a part failed too many times
+     */
+    @NonNull
+    HttpPostResult uploadSubmissionFile(@NonNull List<File> fileList,
+                                        @NonNull File submissionFile,
+                                        @NonNull URI uri,
+                                        @Nullable HttpCredentialsInterface credentials,
+                                        @NonNull long contentLength,
+                                        @NonNull SubmissionUploadListener listener) throws Exception;
+
     interface FileToContentTypeMapper {
 
         @NonNull
         String map(String fileName);
     }
+
+    interface SubmissionUploadListener {
+
+        /**
+         * Called with the attachments of a part once the server has acknowledged it.
+         */
+        void onPartAcknowledged(List<File> attachments);
+
+        void onBytesUploaded(long bytesUploaded, long totalBytes);
+    }
 }
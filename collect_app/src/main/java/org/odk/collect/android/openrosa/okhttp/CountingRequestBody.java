@@ -0,0 +1,61 @@
+package org.odk.collect.android.openrosa.okhttp;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.ForwardingSink;
+import okio.Okio;
+
+/**
+ * Reports how many bytes of the wrapped body have been written to the network. The count starts
+ * over every time the body is written, e.g. when a request is repeated after an authentication
+ * challenge.
+ */
+class CountingRequestBody extends RequestBody {
+
+    interface Listener {
+        void onBytesWritten(long bytesWritten);
+    }
+
+    private final RequestBody delegate;
+    private final Listener listener;
+
+    CountingRequestBody(RequestBody delegate, Listener listener) {
+        this.delegate = delegate;
+        this.listener = listener;
+    }
+
+    @Nullable
+    @Override
+    public MediaType contentType() {
+        return delegate.contentType();
+    }
+
+    @Override
+    public long contentLength() throws IOException {
+        return delegate.contentLength();
+    }
+
+    @Override
+    public void writeTo(@NonNull BufferedSink sink) throws IOException {
+        BufferedSink countingSink = Okio.buffer(new ForwardingSink(sink) {
+            private long bytesWritten;
+
+            @Override
+            public void write(@NonNull Buffer source, long byteCount) throws IOException {
+                super.write(source, byteCount);
+                bytesWritten += byteCount;
+                listener.onBytesWritten(bytesWritten);
+            }
+        });
+
+        delegate.writeTo(countingSink);
+        countingSink.flush();
+    }
+}
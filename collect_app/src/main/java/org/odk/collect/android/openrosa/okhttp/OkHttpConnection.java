@@ -16,9 +16,11 @@ import org.odk.collect.android.utilities.FileUtils;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -37,6 +39,8 @@ import timber.log.Timber;
 public class OkHttpConnection implements OpenRosaHttpInterface {
 
     private static final String HTTP_CONTENT_TYPE_TEXT_XML = "text/xml";
+    private static final int MAX_PART_ATTEMPTS = 5;
+    private static final long FIRST_RETRY_DELAY_MS = 1000L;
 
     private final OkHttpOpenRosaServerClientProvider clientFactory;
 
@@ -55,16 +59,28 @@ public class OkHttpConnection implements OpenRosaHttpInterface {
     @NonNull
     @Override
     public HttpGetResult executeGetRequest(@NonNull URI uri, @Nullable String contentType, @Nullable HttpCredentialsInterface credentials) throws Exception {
+        return executeGetRequest(uri, contentType, credentials, 0L);
+    }
+
+    @NonNull
+    @Override
+    public HttpGetResult executeGetRequest(@NonNull URI uri, @Nullable String contentType, @Nullable HttpCredentialsInterface credentials, long offset) throws Exception {
         OpenRosaServerClient httpClient = clientFactory.get(uri.getScheme(), userAgent, credentials);
-        Request request = new Request.Builder()
+        Request.Builder requestBuilder = new Request.Builder()
                 .url(uri.toURL())
-                .get()
-                .build();
+                .get();
+        if (offset > 0) {
+            // OkHttp doesn't ask for a gzipped response when a range is set, so the offset
+            // counts bytes of the file itself
+            requestBuilder.header("Range", "bytes=" + offset + "-");
+        }
+        Request request = requestBuilder.build();
 
         Response response = httpClient.makeRequest(request, new Date());
         int statusCode = response.code();
 
-        if (statusCode != HttpURLConnection.HTTP_OK) {
+        if (statusCode != HttpURLConnection.HTTP_OK
+                && !(offset > 0 && statusCode == HttpURLConnection.HTTP_PARTIAL)) {
             discardEntityBytes(response);
             Timber.i("Error: %s (%s at %s", response.message(), String.valueOf(statusCode), uri.toString());
 
@@ -139,69 +155,139 @@ public class OkHttpConnection implements OpenRosaHttpInterface {
     @NonNull
     @Override
     public HttpPostResult uploadSubmissionFile(@NonNull List<File> fileList, @NonNull File submissionFile, @NonNull URI uri, @Nullable HttpCredentialsInterface credentials, @NonNull long contentLength) throws Exception {
-        HttpPostResult postResult = null;
-
-        boolean first = true;
-        int fileIndex = 0;
-        int lastFileIndex;
-        while (fileIndex < fileList.size() || first) {
-            lastFileIndex = fileIndex;
-            first = false;
-            long byteCount = 0L;
+        return uploadSubmissionFile(fileList, submissionFile, uri, credentials, contentLength, null, 1);
+    }
 
-            RequestBody requestBody = RequestBody.create(MediaType.parse(HTTP_CONTENT_TYPE_TEXT_XML), submissionFile);
+    @NonNull
+    @Override
+    public HttpPostResult uploadSubmissionFile(@NonNull List<File> fileList, @NonNull File submissionFile, @NonNull URI uri, @Nullable HttpCredentialsInterface credentials, @NonNull long contentLength, @NonNull SubmissionUploadListener listener) throws Exception {
+        return uploadSubmissionFile(fileList, submissionFile, uri, credentials, contentLength, listener, MAX_PART_ATTEMPTS);
+    }
 
-            MultipartBody.Builder multipartBuilder = new MultipartBody.Builder()
-                    .setType(MultipartBody.FORM)
-                    .addPart(MultipartBody.Part.createFormData("xml_submission_file", submissionFile.getName(), requestBody));
+    @NonNull
+    private HttpPostResult uploadSubmissionFile(@NonNull List<File> fileList, @NonNull File submissionFile, @NonNull URI uri, @Nullable HttpCredentialsInterface credentials, long contentLength, @Nullable SubmissionUploadListener listener, int maxAttempts) throws Exception {
+        List<List<File>> parts = splitIntoParts(fileList, submissionFile, contentLength);
+
+        List<MultipartBody> partBodies = new ArrayList<>();
+        long totalBytes = 0L;
+        for (int i = 0; i < parts.size(); i++) {
+            MultipartBody partBody = buildPartBody(submissionFile, parts.get(i), i < parts.size() - 1);
+            partBodies.add(partBody);
+            totalBytes += partBody.contentLength();
+        }
 
-            Timber.i("added xml_submission_file: %s", submissionFile.getName());
-            byteCount += submissionFile.length();
+        HttpPostResult postResult = null;
+        long uploadedBytes = 0L;
+        for (int i = 0; i < parts.size(); i++) {
+            RequestBody requestBody = partBodies.get(i);
+            if (listener != null) {
+                final long partOffset = uploadedBytes;
+                final long total = totalBytes;
+                requestBody = new CountingRequestBody(requestBody,
+                        bytesWritten -> listener.onBytesUploaded(partOffset + bytesWritten, total));
+            }
 
-            for (; fileIndex < fileList.size(); fileIndex++) {
-                File file = fileList.get(fileIndex);
+            postResult = executePostRequest(uri, credentials, requestBody, maxAttempts);
 
-                String contentType = fileToContentTypeMapper.map(file.getName());
+            if (postResult.getResponseCode() != HttpURLConnection.HTTP_CREATED &&
+                    postResult.getResponseCode() != HttpURLConnection.HTTP_ACCEPTED) {
+                return postResult;
+            }
 
-                RequestBody fileRequestBody = RequestBody.create(MediaType.parse(contentType), file);
-                multipartBuilder.addPart(MultipartBody.Part.createFormData(file.getName(), file.getName(), fileRequestBody));
+            uploadedBytes += partBodies.get(i).contentLength();
+            if (listener != null) {
+                listener.onPartAcknowledged(parts.get(i));
+            }
+        }
 
-                byteCount += file.length();
-                Timber.i("added file of type '%s' %s", contentType, file.getName());
+        return postResult;
+    }
 
-                // we've added at least one attachment to the request...
-                if (fileIndex + 1 < fileList.size()) {
-                    if ((fileIndex - lastFileIndex + 1 > 100) || (byteCount + fileList.get(fileIndex + 1).length()
-                            > contentLength)) {
-                        // the next file would exceed the 10MB threshold...
-                        Timber.i("Extremely long post is being split into multiple posts");
-                        multipartBuilder.addPart(MultipartBody.Part.createFormData("*isIncomplete*", "yes"));
-                        ++fileIndex; // advance over the last attachment added...
-                        break;
-                    }
+    /**
+     * Splits the attachments into the parts that are posted one after the other. A part holds at
+     * most 101 attachments and, unless a single attachment is already bigger, at most
+     * contentLength bytes including the submission file which is sent with every part.
+     */
+    private static List<List<File>> splitIntoParts(List<File> fileList, File submissionFile, long contentLength) {
+        List<List<File>> parts = new ArrayList<>();
+        List<File> part = new ArrayList<>();
+        long byteCount = submissionFile.length();
+
+        for (int fileIndex = 0; fileIndex < fileList.size(); fileIndex++) {
+            part.add(fileList.get(fileIndex));
+            byteCount += fileList.get(fileIndex).length();
+
+            // we've added at least one attachment to the request...
+            if (fileIndex + 1 < fileList.size()) {
+                if (part.size() > 100 || byteCount + fileList.get(fileIndex + 1).length() > contentLength) {
+                    // the next file would exceed the 10MB threshold...
+                    Timber.i("Extremely long post is being split into multiple posts");
+                    parts.add(part);
+                    part = new ArrayList<>();
+                    byteCount = submissionFile.length();
                 }
             }
+        }
 
-            MultipartBody multipartBody = multipartBuilder.build();
-            postResult = executePostRequest(uri, credentials, multipartBody);
+        parts.add(part);
+        return parts;
+    }
 
-            if (postResult.getResponseCode() != HttpURLConnection.HTTP_CREATED &&
-                    postResult.getResponseCode() != HttpURLConnection.HTTP_ACCEPTED) {
-                return postResult;
-            }
+    private MultipartBody buildPartBody(File submissionFile, List<File> attachments, boolean isIncomplete) {
+        RequestBody requestBody = RequestBody.create(MediaType.parse(HTTP_CONTENT_TYPE_TEXT_XML), submissionFile);
+
+        MultipartBody.Builder multipartBuilder = new MultipartBody.Builder()
+                .setType(MultipartBody.FORM)
+                .addPart(MultipartBody.Part.createFormData("xml_submission_file", submissionFile.getName(), requestBody));
+
+        Timber.i("added xml_submission_file: %s", submissionFile.getName());
+
+        for (File file : attachments) {
+            String contentType = fileToContentTypeMapper.map(file.getName());
+
+            RequestBody fileRequestBody = RequestBody.create(MediaType.parse(contentType), file);
+            multipartBuilder.addPart(MultipartBody.Part.createFormData(file.getName(), file.getName(), fileRequestBody));
 
+            Timber.i("added file of type '%s' %s", contentType, file.getName());
         }
 
-        return postResult;
+        if (isIncomplete) {
+            multipartBuilder.addPart(MultipartBody.Part.createFormData("*isIncomplete*", "yes"));
+        }
+
+        return multipartBuilder.build();
+    }
+
+    /**
+     * Posts the body, trying again after a network error until it has been tried maxAttempts
+     * times. The delay between attempts doubles every time.
+     */
+    @NonNull
+    private HttpPostResult executePostRequest(@NonNull URI uri, @Nullable HttpCredentialsInterface credentials, RequestBody requestBody, int maxAttempts) throws Exception {
+        long retryDelay = FIRST_RETRY_DELAY_MS;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return executePostRequest(uri, credentials, requestBody);
+            } catch (IOException e) {
+                if (attempt >= maxAttempts) {
+                    throw e;
+                }
+
+                Timber.w(e, "Attempt %d of %d to post to %s failed. Trying again in %d ms.",
+                        attempt, maxAttempts, uri, retryDelay);
+                Thread.sleep(retryDelay);
+                retryDelay *= 2;
+            }
+        }
     }
 
     @NonNull
-    private HttpPostResult executePostRequest(@NonNull URI uri, @Nullable HttpCredentialsInterface credentials, MultipartBody multipartBody) throws Exception {
+    private HttpPostResult executePostRequest(@NonNull URI uri, @Nullable HttpCredentialsInterface credentials, RequestBody requestBody) throws Exception {
         OpenRosaServerClient httpClient = clientFactory.get(uri.getScheme(), userAgent, credentials);
         HttpPostResult postResult;
         Request request = new Request.Builder()
                 .url(uri.toURL())
-                .post(multipartBody)
+                .post(requestBody)
                 .build();
         Response response = httpClient.makeRequest(request, new Date());
 
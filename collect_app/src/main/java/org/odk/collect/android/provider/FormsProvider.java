@@ -15,8 +15,11 @@
 package org.odk.collect.android.provider;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.SQLException;
@@ -27,14 +30,17 @@ import android.text.TextUtils;
 
 import org.odk.collect.android.database.ItemsetDbAdapter;
 import org.odk.collect.android.database.helpers.FormsDatabaseHelper;
+import org.odk.collect.android.forms.FormDefCacheWorker;
 import org.odk.collect.android.provider.FormsProviderAPI.FormsColumns;
 import org.odk.collect.android.storage.StorageInitializer;
 import org.odk.collect.android.storage.StoragePathProvider;
 import org.odk.collect.android.utilities.FileUtils;
+import org.odk.collect.android.utilities.FormDefCache;
 import org.odk.collect.android.utilities.MediaUtils;
 import org.odk.collect.android.utilities.UriUtils;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -150,6 +156,30 @@ public class FormsProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Applies all the operations in a single transaction so that either all or none of them take
+     * effect.
+     */
+    @NonNull
+    @Override
+    public synchronized ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        FormsDatabaseHelper formsDatabaseHelper = getDbHelper();
+        if (formsDatabaseHelper == null) {
+            return super.applyBatch(operations);
+        }
+
+        SQLiteDatabase db = formsDatabaseHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            return results;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
     @Override
     public synchronized Uri insert(@NonNull Uri uri, ContentValues initialValues) {
         // Validate the requested uri
@@ -274,6 +304,19 @@ public class FormsProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Cancels any pending background caching of the form at the cursor's position and removes
+     * its FormDef cache entries.
+     */
+    private void deleteFormDefCacheEntries(Cursor cursor, String formFilePath) {
+        FormDefCacheWorker.cancel(formFilePath);
+
+        String formId = cursor.getString(cursor.getColumnIndex(FormsColumns.JR_FORM_ID));
+        if (formId != null) {
+            FormDefCache.invalidate(formId, cursor.getString(cursor.getColumnIndex(FormsColumns.JR_VERSION)));
+        }
+    }
+
     /**
      * This method removes the entry from the content provider, and also removes
      * any associated files. files: form.xml, [formmd5].formdef, formname-media
@@ -304,6 +347,7 @@ public class FormsProvider extends ContentProvider {
                                 String formFilePath = storagePathProvider.getAbsoluteFormFilePath(del.getString(del
                                         .getColumnIndex(FormsColumns.FORM_FILE_PATH)));
                                 deleteFileOrDir(formFilePath);
+                                deleteFormDefCacheEntries(del, formFilePath);
                                 deleteFileOrDir(storagePathProvider.getAbsoluteFormFilePath(del.getString(del
                                         .getColumnIndex(FormsColumns.FORM_MEDIA_PATH))));
                             } while (del.moveToNext());
@@ -331,6 +375,7 @@ public class FormsProvider extends ContentProvider {
                                 String formFilePath = storagePathProvider.getAbsoluteFormFilePath(c.getString(c
                                         .getColumnIndex(FormsColumns.FORM_FILE_PATH)));
                                 deleteFileOrDir(formFilePath);
+                                deleteFormDefCacheEntries(c, formFilePath);
                                 deleteFileOrDir(storagePathProvider.getAbsoluteFormFilePath(c.getString(c
                                         .getColumnIndex(FormsColumns.FORM_MEDIA_PATH))));
 
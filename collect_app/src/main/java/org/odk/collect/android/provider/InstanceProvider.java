@@ -152,25 +152,8 @@ public class InstanceProvider extends ContentProvider {
 
         InstancesDatabaseHelper instancesDatabaseHelper = getDbHelper();
         if (instancesDatabaseHelper != null) {
-            ContentValues values;
-            if (initialValues != null) {
-                values = new ContentValues(initialValues);
-            } else {
-                values = new ContentValues();
-            }
-
-            Long now = System.currentTimeMillis();
-
-            // Make sure that the fields are all set
-            if (!values.containsKey(InstanceColumns.LAST_STATUS_CHANGE_DATE)) {
-                values.put(InstanceColumns.LAST_STATUS_CHANGE_DATE, now);
-            }
-
-            if (!values.containsKey(InstanceColumns.STATUS)) {
-                values.put(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_INCOMPLETE);
-            }
-
-            long rowId = instancesDatabaseHelper.getWritableDatabase().insert(INSTANCES_TABLE_NAME, null, values);
+            long rowId = instancesDatabaseHelper.getWritableDatabase().insert(INSTANCES_TABLE_NAME, null,
+                    getValuesToInsert(initialValues, System.currentTimeMillis()));
             if (rowId > 0) {
                 Uri instanceUri = ContentUris.withAppendedId(InstanceColumns.CONTENT_URI, rowId);
                 getContext().getContentResolver().notifyChange(instanceUri, null);
@@ -181,6 +164,66 @@ public class InstanceProvider extends ContentProvider {
         throw new SQLException("Failed to insert into the instances database.");
     }
 
+    /**
+     * Inserts all the given instances in a single transaction and notifies observers once.
+     */
+    @Override
+    public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] initialValues) {
+        // Validate the requested uri
+        if (URI_MATCHER.match(uri) != INSTANCES) {
+            throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+
+        if (!areStoragePermissionsGranted(getContext())) {
+            return 0;
+        }
+
+        InstancesDatabaseHelper instancesDatabaseHelper = getDbHelper();
+        if (instancesDatabaseHelper == null) {
+            throw new SQLException("Failed to insert into the instances database.");
+        }
+
+        SQLiteDatabase db = instancesDatabaseHelper.getWritableDatabase();
+        Long now = System.currentTimeMillis();
+        int inserted = 0;
+
+        db.beginTransaction();
+        try {
+            for (ContentValues values : initialValues) {
+                if (db.insert(INSTANCES_TABLE_NAME, null, getValuesToInsert(values, now)) > 0) {
+                    inserted++;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (inserted > 0) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+        return inserted;
+    }
+
+    private static ContentValues getValuesToInsert(ContentValues initialValues, Long now) {
+        ContentValues values;
+        if (initialValues != null) {
+            values = new ContentValues(initialValues);
+        } else {
+            values = new ContentValues();
+        }
+
+        // Make sure that the fields are all set
+        if (!values.containsKey(InstanceColumns.LAST_STATUS_CHANGE_DATE)) {
+            values.put(InstanceColumns.LAST_STATUS_CHANGE_DATE, now);
+        }
+
+        if (!values.containsKey(InstanceColumns.STATUS)) {
+            values.put(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_INCOMPLETE);
+        }
+        return values;
+    }
+
     public static String getDisplaySubtext(Context context, String state, Date date) {
         try {
             if (state == null) {
@@ -189,12 +232,17 @@ public class InstanceProvider extends ContentProvider {
             } else if (InstanceProviderAPI.STATUS_INCOMPLETE.equalsIgnoreCase(state)) {
                 return new SimpleDateFormat(context.getString(R.string.saved_on_date_at_time),
                         Locale.getDefault()).format(date);
-            } else if (InstanceProviderAPI.STATUS_COMPLETE.equalsIgnoreCase(state)) {
+            } else if (InstanceProviderAPI.STATUS_COMPLETE.equalsIgnoreCase(state)
+                    || InstanceProviderAPI.STATUS_ENCRYPTING.equalsIgnoreCase(state)) {
                 return new SimpleDateFormat(context.getString(R.string.finalized_on_date_at_time),
                         Locale.getDefault()).format(date);
             } else if (InstanceProviderAPI.STATUS_SUBMITTED.equalsIgnoreCase(state)) {
                 return new SimpleDateFormat(context.getString(R.string.sent_on_date_at_time),
                         Locale.getDefault()).format(date);
+            } else if (InstanceProviderAPI.STATUS_ENCRYPTION_FAILED.equalsIgnoreCase(state)) {
+                return new SimpleDateFormat(
+                        context.getString(R.string.encryption_failed_on_date_at_time),
+                        Locale.getDefault()).format(date);
             } else if (InstanceProviderAPI.STATUS_SUBMISSION_FAILED.equalsIgnoreCase(state)) {
                 return new SimpleDateFormat(
                         context.getString(R.string.sending_failed_on_date_at_time),
@@ -360,6 +408,18 @@ public class InstanceProvider extends ContentProvider {
                 values.remove(InstanceColumns.LAST_STATUS_CHANGE_DATE);
             }
 
+            // Recording the progress of a submission attempt doesn't change the status
+            if (values.containsKey(InstanceColumns.UPLOADED_ATTACHMENTS) && !values.containsKey(InstanceColumns.STATUS)) {
+                values.remove(InstanceColumns.LAST_STATUS_CHANGE_DATE);
+            }
+
+            // Attachments only need to be remembered until the submission succeeds or the
+            // instance is edited again
+            if (values.containsKey(InstanceColumns.STATUS)
+                    && !InstanceProviderAPI.STATUS_SUBMISSION_FAILED.equals(values.getAsString(InstanceColumns.STATUS))) {
+                values.putNull(InstanceColumns.UPLOADED_ATTACHMENTS);
+            }
+
             switch (URI_MATCHER.match(uri)) {
                 case INSTANCES:
                     count = db.update(INSTANCES_TABLE_NAME, values, where, whereArgs);
@@ -417,5 +477,6 @@ public class InstanceProvider extends ContentProvider {
         sInstancesProjectionMap.put(InstanceColumns.DELETED_DATE, InstanceColumns.DELETED_DATE);
         sInstancesProjectionMap.put(InstanceColumns.GEOMETRY, InstanceColumns.GEOMETRY);
         sInstancesProjectionMap.put(InstanceColumns.GEOMETRY_TYPE, InstanceColumns.GEOMETRY_TYPE);
+        sInstancesProjectionMap.put(InstanceColumns.UPLOADED_ATTACHMENTS, InstanceColumns.UPLOADED_ATTACHMENTS);
     }
 }
@@ -29,6 +29,10 @@ public final class InstanceProviderAPI {
     // status for instances
     public static final String STATUS_INCOMPLETE = "incomplete";
     public static final String STATUS_COMPLETE = "complete";
+    // finalized but the submission and its attachments are still being encrypted
+    public static final String STATUS_ENCRYPTING = "encrypting";
+    // the encrypted submission couldn't be completed and the plaintext instance is already gone
+    public static final String STATUS_ENCRYPTION_FAILED = "encryptionFailed";
     public static final String STATUS_SUBMITTED = "submitted";
     public static final String STATUS_SUBMISSION_FAILED = "submissionFailed";
 
@@ -53,5 +57,7 @@ public final class InstanceProviderAPI {
         public static final String DELETED_DATE = "deletedDate";
         public static final String GEOMETRY = "geometry";
         public static final String GEOMETRY_TYPE = "geometryType";
+        // attachments the server has acknowledged during an interrupted submission attempt
+        public static final String UPLOADED_ATTACHMENTS = "uploadedAttachments";
     }
 }
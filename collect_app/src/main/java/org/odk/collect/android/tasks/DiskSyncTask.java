@@ -14,20 +14,27 @@
 
 package org.odk.collect.android.tasks;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.RemoteException;
 
 import org.javarosa.core.reference.ReferenceManager;
 import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.dao.FormsDao;
+import org.odk.collect.android.forms.FormDefCacheWorker;
+import org.odk.collect.android.forms.FormUtils;
+import org.odk.collect.android.forms.FormUtils.ReferenceManagerState;
 import org.odk.collect.android.listeners.DiskSyncListener;
 import org.odk.collect.android.provider.FormsProviderAPI.FormsColumns;
 import org.odk.collect.android.storage.StoragePathProvider;
 import org.odk.collect.android.storage.StorageSubdirectory;
+import org.odk.collect.android.utilities.FileDigestIndex;
 import org.odk.collect.android.utilities.FileUtils;
 import org.odk.collect.android.utilities.Validator;
 
@@ -35,21 +42,38 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import timber.log.Timber;
 
+import static org.odk.collect.android.forms.FormUtils.restoreReferenceManagerState;
+import static org.odk.collect.android.forms.FormUtils.saveReferenceManagerState;
 import static org.odk.collect.android.forms.FormUtils.setupReferenceManagerForForm;
 
 /**
  * Background task for adding to the forms content provider, any forms that have been added to the
  * sdcard manually. Returns immediately if it detects an error.
  *
+ * The md5 hashes of forms are kept in a {@link FileDigestIndex} so that only forms whose size or
+ * last modified time changed are read to find out whether they need to be parsed again. New and
+ * changed forms are prepared on a small pool of threads, parsed one at a time and saved in a
+ * single transaction.
+ *
  * @author Carl Hartung (carlhartung@gmail.com)
  */
 public class DiskSyncTask extends AsyncTask<Void, String, String> {
 
+    private static final int MAX_PARSE_THREADS = Math.min(3, Runtime.getRuntime().availableProcessors());
+
     private static int counter;
     private DiskSyncListener listener;
     private String statusMessage = "";
@@ -74,12 +98,14 @@ public class DiskSyncTask extends AsyncTask<Void, String, String> {
                 File[] formDefs = formDir.listFiles();
 
                 // Step 1: assemble the candidate form files
-                List<File> formsToAdd = filterFormsToAdd(formDefs, instance);
+                Set<File> formsToAdd = new LinkedHashSet<>(filterFormsToAdd(formDefs, instance));
 
                 // Step 2: quickly run through and figure out what files we need to
-                // parse and update; this is quick, as we only calculate the md5
-                // and see if it has changed.
-                List<UriFile> uriToUpdate = new ArrayList<>();
+                // parse and update; this is quick, as we only calculate the md5 of
+                // files whose size or last modified time changed and see if it has changed.
+                FileDigestIndex digestIndex = FileDigestIndex.getFormsIndex();
+                Set<String> indexedPaths = new HashSet<>();
+                List<FormUpdate> formsToSave = new ArrayList<>();
                 Cursor cursor = null;
                 // open the cursor within a try-catch block so it can always be closed.
                 try {
@@ -104,14 +130,15 @@ public class DiskSyncTask extends AsyncTask<Void, String, String> {
                             // remove it from the list of forms (we only want forms
                             // we haven't added at the end)
                             formsToAdd.remove(sqlFile);
-                            String md5Computed = FileUtils.getMd5Hash(sqlFile);
+                            indexedPaths.add(sqlFile.getAbsolutePath());
+                            String md5Computed = digestIndex.getMd5Hash(sqlFile);
                             if (md5Computed == null || md5 == null || !md5Computed.equals(md5)) {
                                 // Probably someone overwrite the file on the sdcard
                                 // So re-parse it and update it's information
                                 String id = cursor.getString(
                                         cursor.getColumnIndex(FormsColumns._ID));
                                 Uri updateUri = Uri.withAppendedPath(FormsColumns.CONTENT_URI, id);
-                                uriToUpdate.add(new UriFile(updateUri, sqlFile));
+                                formsToSave.add(new FormUpdate(updateUri, sqlFile));
                             }
                         } else {
                             //File not found in sdcard but file path found in database
@@ -130,48 +157,18 @@ public class DiskSyncTask extends AsyncTask<Void, String, String> {
                     }
                 }
 
+                digestIndex.retainAll(indexedPaths);
+                digestIndex.save();
+
                 if (!idsToDelete.isEmpty()) {
                     //Delete the forms not found in sdcard from the database
                     formsDao.deleteFormsFromIDs(idsToDelete.toArray(new String[idsToDelete.size()]));
                 }
 
-                // Step3: go through uriToUpdate to parse and update each in turn.
+                // Step 3: parse the changed forms and the newly-discovered files in formsToAdd.
                 // Note: buildContentValues calls getMetadataFromFormDefinition which parses the
                 // form XML. This takes time for large forms and/or slow devices.
-                Collections.shuffle(uriToUpdate); // Big win if multiple DiskSyncTasks running
-                for (UriFile entry : uriToUpdate) {
-                    Uri updateUri = entry.uri;
-                    File formDefFile = entry.file;
-                    // Probably someone overwrite the file on the sdcard
-                    // So re-parse it and update it's information
-                    ContentValues values;
-
-                    try {
-                        values = buildContentValues(formDefFile);
-                    } catch (IllegalArgumentException e) {
-                        errors.append(e.getMessage()).append("\r\n");
-                        File badFile = new File(formDefFile.getParentFile(),
-                                formDefFile.getName() + ".bad");
-                        badFile.delete();
-                        formDefFile.renameTo(badFile);
-                        continue;
-                    }
-
-                    // update in content provider
-                    int count =
-                            Collect.getInstance().getContentResolver()
-                                    .update(updateUri, values, null, null);
-                    Timber.i("[%d] %d records successfully updated", instance, count);
-                }
-                uriToUpdate.clear();
-
-                // Step 4: go through the newly-discovered files in xFormsToAdd and add them.
-                // This is slow because buildContentValues(...) is slow.
-                //
-                Collections.shuffle(formsToAdd); // Big win if multiple DiskSyncTasks running
-                while (!formsToAdd.isEmpty()) {
-                    File formDefFile = formsToAdd.remove(0);
-
+                for (File formDefFile : formsToAdd) {
                     // Since parsing is so slow, if there are multiple tasks,
                     // they may have already updated the database.
                     // Skip this file if that is the case.
@@ -181,29 +178,14 @@ public class DiskSyncTask extends AsyncTask<Void, String, String> {
                         continue;
                     }
 
-                    // Parse it for the first time...
-                    ContentValues values;
+                    formsToSave.add(new FormUpdate(null, formDefFile));
+                }
 
-                    try {
-                        values = buildContentValues(formDefFile);
-                    } catch (IllegalArgumentException e) {
-                        errors.append(e.getMessage()).append("\r\n");
-                        File badFile = new File(formDefFile.getParentFile(),
-                                formDefFile.getName() + ".bad");
-                        badFile.delete();
-                        formDefFile.renameTo(badFile);
-                        continue;
-                    }
+                Collections.shuffle(formsToSave); // Big win if multiple DiskSyncTasks running
+                parseForms(formsToSave, errors);
 
-                    // insert into content provider
-                    try {
-                        // insert failures are OK and expected if multiple
-                        // DiskSync scanners are active.
-                        formsDao.saveForm(values);
-                    } catch (SQLException e) {
-                        Timber.i("[%d] %s", instance, e.toString());
-                    }
-                }
+                // Step 4: update and insert the parsed forms
+                saveForms(formsToSave, instance);
             }
             if (errors.length() != 0) {
                 statusMessage = errors.toString();
@@ -216,6 +198,96 @@ public class DiskSyncTask extends AsyncTask<Void, String, String> {
         }
     }
 
+    /**
+     * Parses the given forms on a bounded pool of threads and sets their values. The parses
+     * themselves are serialized by {@link #buildContentValues(File)}. Forms that can't be parsed
+     * are renamed to .bad and reported in the given errors.
+     */
+    private void parseForms(List<FormUpdate> formsToParse, StringBuilder errors) {
+        if (formsToParse.isEmpty()) {
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(MAX_PARSE_THREADS, formsToParse.size())));
+        try {
+            List<Future<ContentValues>> results = new ArrayList<>();
+            for (FormUpdate formUpdate : formsToParse) {
+                results.add(executor.submit(() -> buildContentValues(formUpdate.file)));
+            }
+
+            for (int i = 0; i < formsToParse.size(); i++) {
+                FormUpdate formUpdate = formsToParse.get(i);
+                try {
+                    formUpdate.values = results.get(i).get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IllegalArgumentException) {
+                        errors.append(e.getCause().getMessage()).append("\r\n");
+                        File badFile = new File(formUpdate.file.getParentFile(),
+                                formUpdate.file.getName() + ".bad");
+                        badFile.delete();
+                        formUpdate.file.renameTo(badFile);
+                    } else {
+                        Timber.e(e.getCause(), "Unable to parse %s", formUpdate.file);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Saves the parsed forms in a single transaction. If that fails, e.g. because another
+     * DiskSyncTask inserted one of the forms in the meantime, the forms are saved one by one.
+     */
+    private void saveForms(List<FormUpdate> formsToSave, int instance) {
+        List<FormUpdate> parsedForms = new ArrayList<>();
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        for (FormUpdate formUpdate : formsToSave) {
+            if (formUpdate.values != null) {
+                parsedForms.add(formUpdate);
+                operations.add(formUpdate.uri != null
+                        ? ContentProviderOperation.newUpdate(formUpdate.uri).withValues(formUpdate.values).build()
+                        : ContentProviderOperation.newInsert(FormsColumns.CONTENT_URI).withValues(formUpdate.values).build());
+            }
+        }
+
+        if (operations.isEmpty()) {
+            return;
+        }
+
+        try {
+            formsDao.applyBatch(operations);
+            Timber.i("[%d] %d records successfully saved", instance, operations.size());
+            for (FormUpdate formUpdate : parsedForms) {
+                FormDefCacheWorker.schedule(formUpdate.file);
+            }
+            return;
+        } catch (RemoteException | OperationApplicationException | SQLException e) {
+            Timber.i("[%d] %s", instance, e.toString());
+        }
+
+        for (FormUpdate formUpdate : parsedForms) {
+            try {
+                if (formUpdate.uri != null) {
+                    // update in content provider
+                    int count = Collect.getInstance().getContentResolver()
+                            .update(formUpdate.uri, formUpdate.values, null, null);
+                    Timber.i("[%d] %d records successfully updated", instance, count);
+                } else {
+                    // insert failures are OK and expected if multiple
+                    // DiskSync scanners are active.
+                    formsDao.saveForm(formUpdate.values);
+                }
+                FormDefCacheWorker.schedule(formUpdate.file);
+            } catch (SQLException e) {
+                Timber.i("[%d] %s", instance, e.toString());
+            }
+        }
+    }
+
     protected static List<File> filterFormsToAdd(File[] formDefs, int backgroundInstanceId) {
         List<File> formsToAdd = new LinkedList<>();
         if (formDefs != null) {
@@ -272,12 +344,27 @@ public class DiskSyncTask extends AsyncTask<Void, String, String> {
 
         HashMap<String, String> fields;
         try {
-            // If the form definition includes external secondary instances, they need to be resolved
-            final File formMediaDir = FileUtils.getFormMediaDir(formDefFile);
-            setupReferenceManagerForForm(ReferenceManager.instance(), formMediaDir);
-
             FileUtils.getOrCreateLastSavedSrc(formDefFile);
-            fields = FileUtils.getMetadataFromFormDefinition(formDefFile);
+
+            // JavaRosa's parser relies on static state that isn't thread safe so only one form is
+            // parsed at a time, under the same lock as the other users of the reference manager.
+            // The file work around the parse still runs in parallel.
+            boolean hasExternalInstances = FormUtils.hasExternalInstances(formDefFile);
+            synchronized (ReferenceManager.instance()) {
+                // If the form definition includes external secondary instances, they need to be resolved.
+                if (hasExternalInstances) {
+                    ReferenceManagerState previousState = saveReferenceManagerState(ReferenceManager.instance());
+                    try {
+                        final File formMediaDir = FileUtils.getFormMediaDir(formDefFile);
+                        setupReferenceManagerForForm(ReferenceManager.instance(), formMediaDir);
+                        fields = FileUtils.getMetadataFromFormDefinition(formDefFile);
+                    } finally {
+                        restoreReferenceManagerState(ReferenceManager.instance(), previousState);
+                    }
+                } else {
+                    fields = FileUtils.getMetadataFromFormDefinition(formDefFile);
+                }
+            }
         } catch (RuntimeException e) {
             throw new IllegalArgumentException(formDefFile.getName() + " :: " + e.toString());
         }
@@ -344,11 +431,15 @@ public class DiskSyncTask extends AsyncTask<Void, String, String> {
         }
     }
 
-    private static class UriFile {
+    /**
+     * A form to insert, or to update if it has a uri, and its values once it has been parsed.
+     */
+    private static class FormUpdate {
         public final Uri uri;
         public final File file;
+        public ContentValues values;
 
-        UriFile(Uri uri, File file) {
+        FormUpdate(Uri uri, File file) {
             this.uri = uri;
             this.file = file;
         }
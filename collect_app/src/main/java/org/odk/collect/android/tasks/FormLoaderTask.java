@@ -15,7 +15,6 @@
 package org.odk.collect.android.tasks;
 
 import android.content.Intent;
-import android.database.Cursor;
 import android.database.SQLException;
 import android.os.AsyncTask;
 
@@ -41,21 +40,27 @@ import org.odk.collect.android.external.ExternalDataManagerImpl;
 import org.odk.collect.android.external.ExternalDataReader;
 import org.odk.collect.android.external.ExternalDataReaderImpl;
 import org.odk.collect.android.external.handler.ExternalDataHandlerPull;
+import org.odk.collect.android.forms.FormDefCacheWorker;
 import org.odk.collect.android.listeners.FormLoaderListener;
 import org.odk.collect.android.logic.FormController;
 import org.odk.collect.android.utilities.FileUtils;
 import org.odk.collect.android.utilities.FormDefCache;
 import org.odk.collect.android.utilities.ZipUtils;
+import org.odk.collect.android.widgets.utilities.ItemsetChoicesCache;
 
 import java.io.File;
 import java.io.FileFilter;
-import java.io.FileReader;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import au.com.bytecode.opencsv.CSVReader;
 import timber.log.Timber;
 
 import static org.odk.collect.android.forms.FormUtils.setupReferenceManagerForForm;
@@ -69,6 +74,16 @@ import static org.odk.collect.android.forms.FormUtils.setupReferenceManagerForFo
 public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FECWrapper> {
     private static final String ITEMSETS_CSV = "itemsets.csv";
 
+    public static final String STAGE_UNZIP = "unzip";
+    public static final String STAGE_FORM_DEF = "formDef";
+    public static final String STAGE_EXTERNAL_DATA = "externalData";
+    public static final String STAGE_ITEMSETS = "itemsets";
+    public static final String STAGE_ITEMSET_INDEXES = "itemsetIndexes";
+    public static final String STAGE_INITIALIZE = "initialize";
+
+    // Runs the loading stages that can happen alongside reading the form definition
+    private static final ExecutorService STAGE_EXECUTOR = Executors.newFixedThreadPool(2);
+
     private FormLoaderListener stateListener;
     private String errorMsg;
     private String warningMsg;
@@ -80,7 +95,9 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
     private int resultCode;
     private Intent intent;
     private ExternalDataManager externalDataManager;
+    private ExternalDataReader externalDataReader;
     private FormDef formDef;
+    private final Map<String, Long> stageTimings = Collections.synchronizedMap(new LinkedHashMap<>());
 
     protected static class FECWrapper {
         FormController controller;
@@ -130,38 +147,87 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
         final File formXml = new File(formPath);
         final File formMediaDir = FileUtils.getFormMediaDir(formXml);
 
-        setupReferenceManagerForForm(ReferenceManager.instance(), formMediaDir);
+        // Itemset choices are only cached for a form session
+        ItemsetChoicesCache.clear();
 
-        FormDef formDef = null;
+        // Zip files may contain media or data files that the form definition references so they
+        // are extracted before anything else.
         try {
-            formDef = createFormDefFromCacheOrXml(formPath, formXml);
-        } catch (StackOverflowError e) {
-            Timber.e(e);
-            errorMsg = Collect.getInstance().getString(R.string.too_complex_form);
-        } catch (Exception | Error e) {
-            Timber.w(e);
+            runStage(STAGE_UNZIP, () -> unzipMediaFiles(formMediaDir));
+        } catch (Exception e) {
+            Timber.e(e, "Exception thrown while extracting media files");
             errorMsg = e.getMessage();
-        }
-
-        if (errorMsg != null || formDef == null) {
             return null;
         }
 
+        // External data and itemsets aren't needed until the form is initialized so they are
+        // imported while the form definition is read.
         externalDataManager = new ExternalDataManagerImpl(formMediaDir);
+        final Future<?> externalDataStage = STAGE_EXECUTOR.submit(
+                () -> runStage(STAGE_EXTERNAL_DATA, () -> loadExternalData(formMediaDir)));
+        final Future<?> itemsetsStage = STAGE_EXECUTOR.submit(
+                () -> runStage(STAGE_ITEMSETS, () -> processItemSets(formMediaDir)));
 
-        // add external data function handlers
-        ExternalDataHandler externalDataHandlerPull = new ExternalDataHandlerPull(
-                externalDataManager);
-        formDef.getEvaluationContext().addFunctionHandler(externalDataHandlerPull);
+        FormDef formDef = null;
+        final long formDefStart = System.currentTimeMillis();
+        // Forms may be parsed in the background by FormDefCacheWorker which also configures the
+        // reference manager. It doesn't start another parse while this form is read.
+        FormDefCacheWorker.onForegroundLoadStarted();
+        try {
+            synchronized (ReferenceManager.instance()) {
+                setupReferenceManagerForForm(ReferenceManager.instance(), formMediaDir);
+
+                try {
+                    formDef = createFormDefFromCacheOrXml(formPath, formXml);
+                } catch (StackOverflowError e) {
+                    Timber.e(e);
+                    errorMsg = Collect.getInstance().getString(R.string.too_complex_form);
+                } catch (Exception | Error e) {
+                    Timber.w(e);
+                    errorMsg = e.getMessage();
+                }
+            }
+        } finally {
+            FormDefCacheWorker.onForegroundLoadFinished();
+        }
+        stageTimings.put(STAGE_FORM_DEF, System.currentTimeMillis() - formDefStart);
 
+        // Wait for the other stages even if reading the form failed so that a new load doesn't
+        // import the same data concurrently
         try {
-            loadExternalData(formMediaDir);
+            awaitStage(externalDataStage);
+            if (externalDataReader != null) {
+                externalDataReader.archiveImportedFiles();
+            }
         } catch (Exception e) {
             Timber.e(e, "Exception thrown while loading external data");
-            errorMsg = e.getMessage();
+            if (errorMsg == null) {
+                errorMsg = e.getMessage();
+            }
+        }
+
+        try {
+            awaitStage(itemsetsStage);
+        } catch (Exception e) {
+            Timber.e(e, "Exception thrown while loading itemsets");
+            warningMsg = e.getMessage();
+        }
+
+        if (errorMsg != null || formDef == null) {
+            closeExternalDataManager();
             return null;
         }
 
+        // The covering indexes depend on the form's itemset questions so they are built once both
+        // the form definition and the itemsets are ready
+        final FormDef itemsetsFormDef = formDef;
+        runStage(STAGE_ITEMSET_INDEXES, () -> createItemsetIndexes(formMediaDir, itemsetsFormDef));
+
+        // add external data function handlers
+        ExternalDataHandler externalDataHandlerPull = new ExternalDataHandlerPull(
+                externalDataManager);
+        formDef.getEvaluationContext().addFunctionHandler(externalDataHandlerPull);
+
         if (isCancelled()) {
             // that means that the user has cancelled, so no need to go further
             return null;
@@ -177,6 +243,7 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
             Timber.i("Initializing form.");
             final long start = System.currentTimeMillis();
             usedSavepoint = initializeForm(formDef, fec);
+            stageTimings.put(STAGE_INITIALIZE, System.currentTimeMillis() - start);
             Timber.i("Form initialized in %.3f seconds.", (System.currentTimeMillis() - start) / 1000F);
         } catch (IOException | RuntimeException e) {
             Timber.e(e);
@@ -191,12 +258,11 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
                                 + "exception inside JR. We should allow editing.");
             } else {
                 errorMsg = e.getMessage();
+                closeExternalDataManager();
                 return null;
             }
         }
 
-        processItemSets(formMediaDir);
-
         final FormController fc = new FormController(formMediaDir, fec, instancePath == null ? null
                 : new File(instancePath));
         if (xpath != null) {
@@ -213,6 +279,29 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
         return data;
     }
 
+    private void runStage(String stage, Runnable stageWork) {
+        final long start = System.currentTimeMillis();
+        stageWork.run();
+        stageTimings.put(stage, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Waits for a stage submitted to {@link #STAGE_EXECUTOR} and rethrows anything it threw.
+     */
+    private static void awaitStage(Future<?> stage) throws Exception {
+        try {
+            stage.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
     private FormDef createFormDefFromCacheOrXml(String formPath, File formXml) {
         publishProgress(
                 Collect.getInstance().getString(R.string.survey_loading_reading_form_message));
@@ -250,37 +339,32 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
         // for itemsets.csv, we only check to see if the itemset file has been
         // updated
         final File csv = new File(formMediaDir.getAbsolutePath() + "/" + ITEMSETS_CSV);
-        String csvmd5 = null;
         if (csv.exists()) {
-            csvmd5 = FileUtils.getMd5Hash(csv);
-            boolean readFile = false;
             final ItemsetDbAdapter ida = new ItemsetDbAdapter();
             ida.open();
-            // get the database entry (if exists) for this itemsets.csv, based
-            // on the path
-            final Cursor c = ida.getItemsets(csv.getAbsolutePath());
-            if (c != null) {
-                if (c.getCount() == 1) {
-                    c.moveToFirst(); // should be only one, ever, if any
-                    final String oldmd5 = c.getString(c.getColumnIndex("hash"));
-                    if (oldmd5.equals(csvmd5)) {
-                        // they're equal, do nothing
-                    } else {
-                        // the csv has been updated, delete the old entries
-                        ida.dropTable(ItemsetDbAdapter.getMd5FromString(csv.getAbsolutePath()),
-                                csv.getAbsolutePath());
-                        // and read the new
-                        readFile = true;
-                    }
-                } else {
-                    // new csv, add it
-                    readFile = true;
-                }
-                c.close();
+            try {
+                ida.importItemsetsIfChanged(csv);
+            } catch (IOException | SQLException e) {
+                Timber.e(e);
+                warningMsg = e.getMessage();
+            } finally {
+                ida.close();
             }
-            ida.close();
-            if (readFile) {
-                readCSV(csv, csvmd5, ItemsetDbAdapter.getMd5FromString(csv.getAbsolutePath()));
+        }
+    }
+
+    private void createItemsetIndexes(File formMediaDir, FormDef formDef) {
+        final File csv = new File(formMediaDir.getAbsolutePath() + "/" + ITEMSETS_CSV);
+        if (csv.exists()) {
+            final ItemsetDbAdapter ida = new ItemsetDbAdapter();
+            ida.open();
+            try {
+                ida.createCoveringIndexes(csv, formDef);
+            } catch (SQLException e) {
+                // The itemsets can still be queried, only more slowly
+                Timber.w(e);
+            } finally {
+                ida.close();
             }
         }
     }
@@ -308,6 +392,11 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
                     Timber.i("Importing data");
                     publishProgress(Collect.getInstance().getString(R.string.survey_loading_reading_data_message));
                     importData(instanceXml, fec);
+                    if (usedSavepoint) {
+                        int replayed = SavepointWriter.replayJournal(savepointFile,
+                                SaveFormToDisk.getSavepointJournalFile(new File(instancePath).getName()), formDef);
+                        Timber.i("Replayed %d journaled savepoint values", replayed);
+                    }
                     formDef.initialize(false, instanceInit);
                 } catch (IOException | RuntimeException e) {
                     Timber.e(e);
@@ -331,8 +420,7 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
         return usedSavepoint;
     }
 
-    @SuppressWarnings("unchecked")
-    private void loadExternalData(File mediaFolder) {
+    private void unzipMediaFiles(File mediaFolder) {
         // SCTO-594
         File[] zipFiles = mediaFolder.listFiles(new FileFilter() {
             @Override
@@ -350,7 +438,9 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
                 }
             }
         }
+    }
 
+    private void loadExternalData(File mediaFolder) {
         File[] csvFiles = mediaFolder.listFiles(new FileFilter() {
             @Override
             public boolean accept(File file) {
@@ -375,7 +465,7 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
                 publishProgress(Collect.getInstance()
                         .getString(R.string.survey_loading_reading_csv_message));
 
-                ExternalDataReader externalDataReader = new ExternalDataReaderImpl(this);
+                externalDataReader = new ExternalDataReaderImpl(this);
                 externalDataReader.doImport(externalDataMap);
             }
         }
@@ -438,8 +528,17 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
     protected void onCancelled() {
         super.onCancelled();
 
+        closeExternalDataManager();
+    }
+
+    /**
+     * Closes the external data databases opened for a load that won't hand them over to the
+     * form entry session.
+     */
+    private void closeExternalDataManager() {
         if (externalDataManager != null) {
             externalDataManager.close();
+            externalDataManager = null;
         }
     }
 
@@ -448,6 +547,7 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
         synchronized (this) {
             try {
                 if (stateListener != null) {
+                    stateListener.loadingStagesTimed(new LinkedHashMap<>(stageTimings));
                     if (wrapper == null) {
                         stateListener.loadingError(errorMsg);
                     } else {
@@ -508,49 +608,6 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
         this.intent = intent;
     }
 
-    private void readCSV(File csv, String formHash, String pathHash) {
-
-        CSVReader reader;
-        ItemsetDbAdapter ida = new ItemsetDbAdapter();
-        ida.open();
-        boolean withinTransaction = false;
-
-        try {
-            reader = new CSVReader(new FileReader(csv));
-
-            String[] nextLine;
-            String[] columnHeaders = null;
-            int lineNumber = 0;
-            while ((nextLine = reader.readNext()) != null) {
-                lineNumber++;
-                if (lineNumber == 1) {
-                    // first line of csv is column headers
-                    columnHeaders = nextLine;
-                    ida.createTable(formHash, pathHash, columnHeaders,
-                            csv.getAbsolutePath());
-                    continue;
-                }
-                // add the rest of the lines to the specified database
-                // nextLine[] is an array of values from the line
-                // System.out.println(nextLine[4] + "etc...");
-                if (lineNumber == 2) {
-                    // start a transaction for the inserts
-                    withinTransaction = true;
-                    ida.beginTransaction();
-                }
-                ida.addRow(pathHash, columnHeaders, nextLine);
-
-            }
-        } catch (IOException | SQLException e) {
-            warningMsg = e.getMessage();
-        } finally {
-            if (withinTransaction) {
-                ida.commit();
-            }
-            ida.close();
-        }
-    }
-
     public FormDef getFormDef() {
         return formDef;
     }
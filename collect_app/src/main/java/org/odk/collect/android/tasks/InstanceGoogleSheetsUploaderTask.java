@@ -56,7 +56,7 @@ public class InstanceGoogleSheetsUploaderTask extends InstanceUploaderTask {
                 return outcome;
             }
 
-            publishProgress(i + 1, instancesToUpload.size());
+            publishProgress((long) i + 1, (long) instancesToUpload.size());
 
             // Get corresponding blank form and verify there is exactly 1
             FormsDao dao = new FormsDao();
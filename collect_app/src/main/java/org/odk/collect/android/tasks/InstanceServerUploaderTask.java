@@ -47,6 +47,8 @@ public class InstanceServerUploaderTask extends InstanceUploaderTask {
     private String customUsername;
     private String customPassword;
 
+    private int lastPublishedPercent;
+
     public InstanceServerUploaderTask() {
         Collect.getInstance().getComponent().inject(this);
     }
@@ -67,7 +69,19 @@ public class InstanceServerUploaderTask extends InstanceUploaderTask {
             }
             Instance instance = instancesToUpload.get(i);
 
-            publishProgress(i + 1, instancesToUpload.size());
+            final long instanceNumber = i + 1;
+            final long instanceCount = instancesToUpload.size();
+            publishProgress(instanceNumber, instanceCount);
+
+            lastPublishedPercent = -1;
+            uploader.setProgressListener((bytesUploaded, totalBytes) -> {
+                // Only publish changes the user can see
+                int percent = totalBytes > 0 ? (int) (bytesUploaded * 100 / totalBytes) : 100;
+                if (percent != lastPublishedPercent) {
+                    lastPublishedPercent = percent;
+                    publishProgress(instanceNumber, instanceCount, bytesUploaded, totalBytes);
+                }
+            });
 
             try {
                 String destinationUrl = uploader.getUrlToSubmitTo(instance, deviceId, completeDestinationUrl);
@@ -16,12 +16,13 @@ package org.odk.collect.android.tasks;
 
 import android.content.ContentValues;
 import android.database.Cursor;
-import android.net.Uri;
 import android.os.AsyncTask;
 import android.preference.PreferenceManager;
-import android.provider.BaseColumns;
+
+import androidx.annotation.Nullable;
 
 import org.apache.commons.io.FileUtils;
+import org.kxml2.io.KXmlParser;
 import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.dao.FormsDao;
@@ -35,18 +36,21 @@ import org.odk.collect.android.provider.InstanceProviderAPI;
 import org.odk.collect.android.storage.StoragePathProvider;
 import org.odk.collect.android.storage.StorageSubdirectory;
 import org.odk.collect.android.utilities.EncryptionUtils;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.LinkedList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
+import java.util.Map;
+import java.util.Set;
 
 import timber.log.Timber;
 
@@ -55,9 +59,16 @@ import static org.odk.collect.android.provider.InstanceProviderAPI.InstanceColum
 /**
  * Background task for syncing form instances from the instances folder to the instances table.
  * Returns immediately if it detects an error.
+ *
+ * Instance folders are matched with the instances table using hash sets and the forms are read
+ * once up front so that devices with many thousands of instances can be scanned quickly. Instances
+ * of encrypted forms are encrypted before they are inserted so that every new instance is inserted
+ * in its final state, in batches.
  */
 public class InstanceSyncTask extends AsyncTask<Void, String, String> {
 
+    private static final int INSERT_BATCH_SIZE = 500;
+
     private static int counter;
 
     private String currentStatus = "";
@@ -77,7 +88,7 @@ public class InstanceSyncTask extends AsyncTask<Void, String, String> {
         Timber.i("[%d] doInBackground begins!", instance);
         StoragePathProvider storagePathProvider = new StoragePathProvider();
         try {
-            List<String> candidateInstances = new LinkedList<>();
+            Set<String> candidateInstances = new HashSet<>();
             File instancesPath = new File(storagePathProvider.getDirPath(StorageSubdirectory.INSTANCES));
             if (instancesPath.exists() && instancesPath.isDirectory()) {
                 File[] instanceFolders = instancesPath.listFiles();
@@ -103,7 +114,6 @@ public class InstanceSyncTask extends AsyncTask<Void, String, String> {
                         Timber.i("[%d] Ignoring: %s", instance, instanceDir.getAbsolutePath());
                     }
                 }
-                Collections.sort(candidateInstances);
 
                 List<String> filesToRemove = new ArrayList<>();
 
@@ -125,9 +135,8 @@ public class InstanceSyncTask extends AsyncTask<Void, String, String> {
                                 instanceCursor.getColumnIndex(InstanceColumns.INSTANCE_FILE_PATH)));
                         String instanceStatus = instanceCursor.getString(
                                 instanceCursor.getColumnIndex(InstanceColumns.STATUS));
-                        if (candidateInstances.contains(instanceFilename) || instanceStatus.equals(InstanceProviderAPI.STATUS_SUBMITTED)) {
-                            candidateInstances.remove(instanceFilename);
-                        } else {
+                        if (!candidateInstances.remove(instanceFilename)
+                                && !instanceStatus.equals(InstanceProviderAPI.STATUS_SUBMITTED)) {
                             filesToRemove.add(instanceFilename);
                         }
                     }
@@ -144,55 +153,42 @@ public class InstanceSyncTask extends AsyncTask<Void, String, String> {
                         Collect.getInstance().getApplicationContext()).getBoolean(
                         GeneralKeys.KEY_INSTANCE_SYNC, true);
 
-                int counter = 0;
+                List<String> newInstances = new ArrayList<>(candidateInstances);
+                Collections.sort(newInstances);
+
+                Map<String, FormInfo> formsById = getFormsById();
+                List<ContentValues> instancesToInsert = new ArrayList<>();
+
                 // Begin parsing and add them to the content provider
-                for (String candidateInstance : candidateInstances) {
-                    String instanceFormId = getFormIdFromInstance(candidateInstance);
-                    // only process if we can find the id from the instance file
-                    if (instanceFormId != null) {
-                        Cursor formCursor = null;
-                        try {
-                            String selection = FormsColumns.JR_FORM_ID + " = ? ";
-                            String[] selectionArgs = {instanceFormId};
-                            // retrieve the form definition
-                            formCursor = new FormsDao().getFormsCursor(selection, selectionArgs);
-                            // TODO: optimize this by caching the previously found form definition
-                            // TODO: optimize this by caching unavailable form definition to skip
-                            if (formCursor != null && formCursor.moveToFirst()) {
-                                String submissionUri = null;
-                                if (!formCursor.isNull(formCursor.getColumnIndex(FormsColumns.SUBMISSION_URI))) {
-                                    submissionUri = formCursor.getString(formCursor.getColumnIndex(FormsColumns.SUBMISSION_URI));
-                                }
-                                String jrFormId = formCursor.getString(formCursor.getColumnIndex(FormsColumns.JR_FORM_ID));
-                                String jrVersion = formCursor.getString(formCursor.getColumnIndex(FormsColumns.JR_VERSION));
-                                String formName = formCursor.getString(formCursor.getColumnIndex(FormsColumns.DISPLAY_NAME));
-
-                                // add missing fields into content values
-                                ContentValues values = new ContentValues();
-                                values.put(InstanceColumns.INSTANCE_FILE_PATH, storagePathProvider.getInstanceDbPath(candidateInstance));
-                                values.put(InstanceColumns.SUBMISSION_URI, submissionUri);
-                                values.put(InstanceColumns.DISPLAY_NAME, formName);
-                                values.put(InstanceColumns.JR_FORM_ID, jrFormId);
-                                values.put(InstanceColumns.JR_VERSION, jrVersion);
-                                values.put(InstanceColumns.STATUS, instanceSyncFlag
-                                        ? InstanceProviderAPI.STATUS_COMPLETE : InstanceProviderAPI.STATUS_INCOMPLETE);
-                                values.put(InstanceColumns.CAN_EDIT_WHEN_COMPLETE, Boolean.toString(true));
-                                // save the new instance object
-
-                                instancesDao.saveInstance(values);
-                                counter++;
-
-                                encryptInstanceIfNeeded(formCursor, candidateInstance, values, instancesDao);
-                            }
-                        } catch (IOException | EncryptionException e) {
-                            Timber.w(e);
-                        } finally {
-                            if (formCursor != null) {
-                                formCursor.close();
-                            }
-                        }
+                for (String candidateInstance : newInstances) {
+                    InstanceFileInfo instanceFileInfo = readInstanceFileInfo(candidateInstance);
+                    // only process if the instance file is well-formed and its form is known
+                    FormInfo form = instanceFileInfo != null ? formsById.get(instanceFileInfo.formId) : null;
+                    if (form == null) {
+                        continue;
                     }
+
+                    boolean encrypted = form.isEncrypted() && encryptInstance(candidateInstance, instanceFileInfo, form);
+
+                    // add missing fields into content values
+                    ContentValues values = new ContentValues();
+                    values.put(InstanceColumns.INSTANCE_FILE_PATH, storagePathProvider.getInstanceDbPath(candidateInstance));
+                    values.put(InstanceColumns.SUBMISSION_URI, form.submissionUri);
+                    values.put(InstanceColumns.DISPLAY_NAME, form.formName);
+                    values.put(InstanceColumns.JR_FORM_ID, form.jrFormId);
+                    values.put(InstanceColumns.JR_VERSION, form.jrVersion);
+                    values.put(InstanceColumns.STATUS, instanceSyncFlag
+                            ? InstanceProviderAPI.STATUS_COMPLETE : InstanceProviderAPI.STATUS_INCOMPLETE);
+                    values.put(InstanceColumns.CAN_EDIT_WHEN_COMPLETE, Boolean.toString(!encrypted));
+                    instancesToInsert.add(values);
                 }
+
+                // save the new instance objects
+                int counter = 0;
+                for (List<ContentValues> batch : getBatches(instancesToInsert, INSERT_BATCH_SIZE)) {
+                    counter += instancesDao.saveInstances(batch.toArray(new ContentValues[0]));
+                }
+
                 if (counter > 0) {
                     currentStatus += String.format(
                             Collect.getInstance().getString(R.string.instance_scan_count),
@@ -205,80 +201,106 @@ public class InstanceSyncTask extends AsyncTask<Void, String, String> {
         return currentStatus;
     }
 
-    private String getFormIdFromInstance(final String instancePath) {
-        String instanceFormId = null;
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        try {
-            DocumentBuilder builder = factory.newDocumentBuilder();
-            Document document = builder.parse(new File(instancePath));
-            Element element = document.getDocumentElement();
-            instanceFormId = element.getAttribute("id");
-        } catch (Exception | Error e) {
-            Timber.w("Unable to read form id from %s", instancePath);
+    /**
+     * Returns the forms by form id. If there are several versions of a form, the first one the
+     * forms table returns is used.
+     */
+    private static Map<String, FormInfo> getFormsById() {
+        Map<String, FormInfo> formsById = new HashMap<>();
+        try (Cursor formCursor = new FormsDao().getFormsCursor()) {
+            if (formCursor == null) {
+                return formsById;
+            }
+
+            int submissionUriColumn = formCursor.getColumnIndex(FormsColumns.SUBMISSION_URI);
+            int jrFormIdColumn = formCursor.getColumnIndex(FormsColumns.JR_FORM_ID);
+            int jrVersionColumn = formCursor.getColumnIndex(FormsColumns.JR_VERSION);
+            int displayNameColumn = formCursor.getColumnIndex(FormsColumns.DISPLAY_NAME);
+            int publicKeyColumn = formCursor.getColumnIndex(FormsColumns.BASE64_RSA_PUBLIC_KEY);
+
+            while (formCursor.moveToNext()) {
+                String jrFormId = formCursor.getString(jrFormIdColumn);
+                if (jrFormId != null && !formsById.containsKey(jrFormId)) {
+                    formsById.put(jrFormId, new FormInfo(
+                            formCursor.getString(submissionUriColumn),
+                            jrFormId,
+                            formCursor.getString(jrVersionColumn),
+                            formCursor.getString(displayNameColumn),
+                            formCursor.getString(publicKeyColumn)));
+                }
+            }
         }
-        return instanceFormId;
+        return formsById;
     }
 
-    private String getInstanceIdFromInstance(final String instancePath) {
-        String instanceId = null;
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        try {
-            DocumentBuilder builder = factory.newDocumentBuilder();
-            Document document = builder.parse(new File(instancePath));
-            Element element = document.getDocumentElement();
-            instanceId = element.getAttribute("instanceID");
-        } catch (Exception | Error e) {
-            Timber.w("Unable to read form instanceID from %s", instancePath);
+    /**
+     * Splits the given list into consecutive sublists of at most batchSize elements.
+     */
+    static <T> List<List<T>> getBatches(List<T> list, int batchSize) {
+        List<List<T>> batches = new ArrayList<>();
+        for (int i = 0; i < list.size(); i += batchSize) {
+            batches.add(list.subList(i, Math.min(i + batchSize, list.size())));
         }
-        return instanceId;
+        return batches;
     }
 
-    private void encryptInstanceIfNeeded(Cursor formCursor, String candidateInstance,
-                                         ContentValues values, InstancesDao instancesDao)
-            throws EncryptionException, IOException {
-
-        Cursor instanceCursor = new InstancesDao().getInstancesCursorForFilePath(candidateInstance);
-        if (instanceCursor != null && instanceCursor.moveToFirst()) {
-            if (shouldInstanceBeEncrypted(formCursor)) {
-                encryptInstance(instanceCursor, candidateInstance, values, instancesDao);
+    /**
+     * Reads the form id and the instance id from the attributes of the root element of the given
+     * instance. Returns null if the file can't be read or isn't well-formed XML, which the whole
+     * file is streamed through the parser to check.
+     */
+    @Nullable
+    static InstanceFileInfo readInstanceFileInfo(String instancePath) {
+        try (InputStream is = new BufferedInputStream(new FileInputStream(instancePath))) {
+            KXmlParser parser = new KXmlParser();
+            parser.setInput(is, null);
+            parser.nextTag();
+            String formId = parser.getAttributeValue(null, "id");
+            String instanceId = parser.getAttributeValue(null, "instanceID");
+            while (parser.next() != XmlPullParser.END_DOCUMENT) {
+                // only checking that the rest of the file is well-formed
             }
+            return new InstanceFileInfo(formId != null ? formId : "", instanceId != null ? instanceId : "");
+        } catch (IOException | XmlPullParserException | RuntimeException e) {
+            Timber.w("Unable to read form id from %s", instancePath);
+            return null;
         }
     }
 
-    private void encryptInstance(Cursor instanceCursor, String candidateInstance,
-                                 ContentValues values, InstancesDao instancesDao)
-            throws EncryptionException, IOException {
-
+    /**
+     * Encrypts the given instance of an encrypted form with the form's key. Returns true if the
+     * instance is encrypted, also if that was done by an earlier sync.
+     */
+    private static boolean encryptInstance(String candidateInstance, InstanceFileInfo instanceFileInfo, FormInfo form) {
         File instanceXml = new File(candidateInstance);
-        if (!new File(instanceXml.getParentFile(), "submission.xml.enc").exists()) {
-            Uri uri = Uri.parse(InstanceColumns.CONTENT_URI + "/" + instanceCursor.getInt(instanceCursor.getColumnIndex(BaseColumns._ID)));
-            FormController.InstanceMetadata instanceMetadata = new FormController.InstanceMetadata(getInstanceIdFromInstance(candidateInstance), null, null);
-            EncryptionUtils.EncryptedFormInformation formInfo = EncryptionUtils.getEncryptedFormInformation(uri, instanceMetadata);
+        if (new File(instanceXml.getParentFile(), "submission.xml.enc").exists()) {
+            return true;
+        }
 
-            if (formInfo != null) {
-                File submissionXml = new File(instanceXml.getParentFile(), "submission.xml");
-                FileUtils.copyFile(instanceXml, submissionXml);
+        try {
+            FormController.InstanceMetadata instanceMetadata = new FormController.InstanceMetadata(instanceFileInfo.instanceId, null, null);
+            EncryptionUtils.EncryptedFormInformation formInfo = EncryptionUtils.getEncryptedFormInformation(
+                    form.jrFormId, form.jrVersion, form.base64RSAPublicKey, instanceMetadata);
+            if (formInfo == null) {
+                return false;
+            }
 
-                EncryptionUtils.generateEncryptedSubmission(instanceXml, submissionXml, formInfo);
+            File submissionXml = new File(instanceXml.getParentFile(), "submission.xml");
+            FileUtils.copyFile(instanceXml, submissionXml);
 
-                values.put(InstanceColumns.CAN_EDIT_WHEN_COMPLETE, Boolean.toString(false));
-                values.put(InstanceColumns.GEOMETRY_TYPE, (String) null);
-                values.put(InstanceColumns.GEOMETRY, (String) null);
-                instancesDao.updateInstance(values, InstanceColumns.INSTANCE_FILE_PATH + "=?", new String[]{new StoragePathProvider().getInstanceDbPath(candidateInstance)});
+            EncryptionUtils.generateEncryptedSubmission(instanceXml, submissionXml, formInfo);
 
-                SaveFormToDisk.manageFilesAfterSavingEncryptedForm(instanceXml, submissionXml);
-                if (!EncryptionUtils.deletePlaintextFiles(instanceXml, null)) {
-                    Timber.e("Error deleting plaintext files for %s", instanceXml.getAbsolutePath());
-                }
+            SaveFormToDisk.manageFilesAfterSavingEncryptedForm(instanceXml, submissionXml);
+            if (!EncryptionUtils.deletePlaintextFiles(instanceXml, null)) {
+                Timber.e("Error deleting plaintext files for %s", instanceXml.getAbsolutePath());
             }
+            return true;
+        } catch (IOException | EncryptionException e) {
+            Timber.w(e);
+            return false;
         }
     }
 
-    private boolean shouldInstanceBeEncrypted(Cursor formCursor) {
-        String base64RSAPublicKey = formCursor.getString(formCursor.getColumnIndex(FormsColumns.BASE64_RSA_PUBLIC_KEY));
-        return base64RSAPublicKey != null && !base64RSAPublicKey.isEmpty();
-    }
-
     @Override
     protected void onPostExecute(String result) {
         super.onPostExecute(result);
@@ -286,4 +308,40 @@ public class InstanceSyncTask extends AsyncTask<Void, String, String> {
             diskSyncListener.syncComplete(result);
         }
     }
+
+    /**
+     * The attributes of the root element of an instance file.
+     */
+    static class InstanceFileInfo {
+        final String formId;
+        final String instanceId;
+
+        InstanceFileInfo(String formId, String instanceId) {
+            this.formId = formId;
+            this.instanceId = instanceId;
+        }
+    }
+
+    /**
+     * The columns of a form that new instances are filled in from.
+     */
+    private static class FormInfo {
+        final String submissionUri;
+        final String jrFormId;
+        final String jrVersion;
+        final String formName;
+        final String base64RSAPublicKey;
+
+        FormInfo(String submissionUri, String jrFormId, String jrVersion, String formName, String base64RSAPublicKey) {
+            this.submissionUri = submissionUri;
+            this.jrFormId = jrFormId;
+            this.jrVersion = jrVersion;
+            this.formName = formName;
+            this.base64RSAPublicKey = base64RSAPublicKey;
+        }
+
+        boolean isEncrypted() {
+            return base64RSAPublicKey != null && !base64RSAPublicKey.isEmpty();
+        }
+    }
 }
@@ -39,7 +39,7 @@ import java.util.Set;
 
 import timber.log.Timber;
 
-public abstract class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploaderTask.Outcome> {
+public abstract class InstanceUploaderTask extends AsyncTask<Long, Long, InstanceUploaderTask.Outcome> {
 
     private InstanceUploaderListener stateListener;
     private Boolean deleteInstanceAfterSubmission;
@@ -123,10 +123,15 @@ public abstract class InstanceUploaderTask extends AsyncTask<Long, Integer, Inst
     }
 
     @Override
-    protected void onProgressUpdate(Integer... values) {
+    protected void onProgressUpdate(Long... values) {
         synchronized (this) {
             if (stateListener != null) {
-                stateListener.progressUpdate(values[0], values[1]);
+                // Uploaders that can tell how much of an instance has been sent add its byte counts
+                if (values.length == 4) {
+                    stateListener.progressUpdate(values[0].intValue(), values[1].intValue(), values[2], values[3]);
+                } else {
+                    stateListener.progressUpdate(values[0].intValue(), values[1].intValue());
+                }
             }
         }
     }
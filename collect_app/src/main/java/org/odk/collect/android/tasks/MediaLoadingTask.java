@@ -29,8 +29,19 @@ import timber.log.Timber;
 public class MediaLoadingTask extends AsyncTask<Uri, Void, File> {
 
     private WeakReference<FormEntryActivity> formEntryActivity;
+    private final boolean isCapturedImage;
+    private QuestionWidget questionWidget;
 
     public MediaLoadingTask(FormEntryActivity formEntryActivity) {
+        this(formEntryActivity, false);
+    }
+
+    /**
+     * @param isCapturedImage whether the task is given a temporary file that an image was
+     *                        captured into, which is moved rather than copied
+     */
+    public MediaLoadingTask(FormEntryActivity formEntryActivity, boolean isCapturedImage) {
+        this.isCapturedImage = isCapturedImage;
         onAttach(formEntryActivity);
     }
 
@@ -42,6 +53,18 @@ public class MediaLoadingTask extends AsyncTask<Uri, Void, File> {
         formEntryActivity = null;
     }
 
+    /**
+     * Reads the widget that the media is for while the activity is certainly there. The
+     * activity may be gone or recreated by the time the media has been loaded.
+     */
+    @Override
+    protected void onPreExecute() {
+        FormEntryActivity activity = formEntryActivity.get();
+        if (activity != null) {
+            questionWidget = activity.getWidgetWaitingForBinaryData();
+        }
+    }
+
     @Override
     protected File doInBackground(Uri... uris) {
 
@@ -52,30 +75,33 @@ public class MediaLoadingTask extends AsyncTask<Uri, Void, File> {
             instanceFile = formController.getInstanceFile();
             if (instanceFile != null) {
                 String instanceFolder = instanceFile.getParent();
-                String extension = ContentResolverHelper.getFileExtensionFromUri(formEntryActivity.get(), uris[0]);
+                if (isCapturedImage) {
+                    return moveCapturedImage(new File(uris[0].getPath()), instanceFolder);
+                }
+
+                String extension = ContentResolverHelper.getFileExtensionFromUri(Collect.getInstance(), uris[0]);
                 String destMediaPath = instanceFolder + File.separator + System.currentTimeMillis() + extension;
 
                 try {
-                    File chosenFile = MediaUtils.getFileFromUri(formEntryActivity.get(), uris[0], MediaStore.Images.Media.DATA);
+                    File chosenFile = MediaUtils.getFileFromUri(Collect.getInstance(), uris[0], MediaStore.Images.Media.DATA);
                     if (chosenFile != null) {
                         final File newFile = new File(destMediaPath);
                         FileUtils.copyFile(chosenFile, newFile);
-                        QuestionWidget questionWidget = formEntryActivity.get().getWidgetWaitingForBinaryData();
 
                         // apply image conversion if the widget is an image widget
                         if (questionWidget instanceof BaseImageWidget) {
-                            ImageConverter.execute(newFile.getPath(), questionWidget, formEntryActivity.get());
+                            ImageConverter.execute(newFile.getPath(), questionWidget, Collect.getInstance());
                         }
 
                         return newFile;
                     } else {
                         Timber.e("Could not receive chosen file");
-                        formEntryActivity.get().runOnUiThread(() -> ToastUtils.showShortToastInMiddle(R.string.error_occured));
+                        runOnUiThread(() -> ToastUtils.showShortToastInMiddle(R.string.error_occured));
                         return null;
                     }
                 } catch (GDriveConnectionException e) {
                     Timber.e("Could not receive chosen file due to connection problem");
-                    formEntryActivity.get().runOnUiThread(() -> ToastUtils.showLongToastInMiddle(R.string.gdrive_connection_exception));
+                    runOnUiThread(() -> ToastUtils.showLongToastInMiddle(R.string.gdrive_connection_exception));
                     return null;
                 }
             }
@@ -84,6 +110,25 @@ public class MediaLoadingTask extends AsyncTask<Uri, Void, File> {
 
     }
 
+    private File moveCapturedImage(File capturedImage, String instanceFolder) {
+        ImageConverter.execute(capturedImage.getPath(), questionWidget, Collect.getInstance());
+
+        File newFile = new File(instanceFolder + File.separator + System.currentTimeMillis() + ".jpg");
+        if (!capturedImage.renameTo(newFile)) {
+            Timber.e("Failed to rename %s", capturedImage.getAbsolutePath());
+        } else {
+            Timber.i("Renamed %s to %s", capturedImage.getAbsolutePath(), newFile.getAbsolutePath());
+        }
+        return newFile;
+    }
+
+    private void runOnUiThread(Runnable action) {
+        FormEntryActivity activity = formEntryActivity != null ? formEntryActivity.get() : null;
+        if (activity != null) {
+            activity.runOnUiThread(action);
+        }
+    }
+
     @Override
     protected void onPostExecute(File result) {
         Fragment prev = formEntryActivity.get().getSupportFragmentManager().findFragmentByTag(ProgressDialogFragment.COLLECT_PROGRESS_DIALOG_TAG);
@@ -127,7 +127,7 @@ public class SaveFormToDisk {
         }
 
         try {
-            exportData(shouldFinalize, progressListener);
+            exportData(shouldFinalize, progressListener, saveToDiskResult);
 
             if (formController.getInstanceFile() != null) {
                 removeSavepointFiles(formController.getInstanceFile().getName());
@@ -159,12 +159,18 @@ public class SaveFormToDisk {
      * the instance currently managed by the {@link FormController}.
      */
     private void updateInstanceDatabase(boolean incomplete, boolean canEditAfterCompleted) {
+        updateInstanceDatabase(incomplete, canEditAfterCompleted, false);
+    }
+
+    private void updateInstanceDatabase(boolean incomplete, boolean canEditAfterCompleted, boolean needsEncryption) {
         ContentValues values = new ContentValues();
         if (instanceName != null) {
             values.put(InstanceColumns.DISPLAY_NAME, instanceName);
         }
         if (incomplete || !shouldFinalize) {
             values.put(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_INCOMPLETE);
+        } else if (needsEncryption) {
+            values.put(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_ENCRYPTING);
         } else {
             values.put(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_COMPLETE);
         }
@@ -335,6 +341,14 @@ public class SaveFormToDisk {
         return new File(tempDir, instanceName + ".save");
     }
 
+    /**
+     * Return the journal of values that changed since the savepoint file was written.
+     */
+    static File getSavepointJournalFile(String instanceName) {
+        File tempDir = new File(new StoragePathProvider().getDirPath(StorageSubdirectory.CACHE));
+        return new File(tempDir, instanceName + ".save.journal");
+    }
+
     /**
      * Return the formIndex file for a given instance.
      */
@@ -345,8 +359,10 @@ public class SaveFormToDisk {
 
     public static void removeSavepointFiles(String instanceName) {
         File savepointFile = getSavepointFile(instanceName);
+        File savepointJournalFile = getSavepointJournalFile(instanceName);
         File formIndexFile = getFormIndexFile(instanceName);
         FileUtils.deleteAndReport(savepointFile);
+        FileUtils.deleteAndReport(savepointJournalFile);
         FileUtils.deleteAndReport(formIndexFile);
     }
 
@@ -355,7 +371,8 @@ public class SaveFormToDisk {
      * In theory we don't have to write to disk, and this is where you'd add
      * other methods.
      */
-    private void exportData(boolean markCompleted, FormSaver.ProgressListener progressListener) throws IOException, EncryptionException {
+    private void exportData(boolean markCompleted, FormSaver.ProgressListener progressListener,
+                            SaveToDiskResult saveToDiskResult) throws IOException, EncryptionException {
         FormController formController = Collect.getInstance().getFormController();
 
         progressListener.onProgressUpdate(Collect.getInstance().getString(R.string.survey_saving_collecting_message));
@@ -388,7 +405,6 @@ public class SaveFormToDisk {
             // now see if the packaging of the data for the server would make it
             // non-reopenable (e.g., encryption or send an SMS or other fraction of the form).
             boolean canEditAfterCompleted = formController.isSubmissionEntireForm();
-            boolean isEncrypted = false;
 
             // build a submission.xml to hold the data being submitted
             // and (if appropriate) encrypt the files on the side
@@ -412,29 +428,27 @@ public class SaveFormToDisk {
             if (formInfo != null) {
                 // if we are encrypting, the form cannot be reopened afterward
                 canEditAfterCompleted = false;
-                // and encrypt the submission (this is a one-way operation)...
-
-                progressListener.onProgressUpdate(
-                        Collect.getInstance().getString(R.string.survey_saving_encrypting_message));
-
-                EncryptionUtils.generateEncryptedSubmission(instanceXml, submissionXml, formInfo);
-                isEncrypted = true;
             }
 
             // At this point, we have:
             // 1. the saved original instanceXml,
             // 2. all the plaintext attachments
-            // 2. the submission.xml that is the completed xml (whether encrypting or not)
-            // 3. all the encrypted attachments if encrypting (isEncrypted = true).
+            // 3. the submission.xml that is the completed xml (whether encrypting or not)
             //
             // NEXT:
-            // 1. Update the instance database (with status complete).
+            // 1. Update the instance database (with status complete or, if encrypting, with
+            //    status encrypting until the submission has been encrypted in the background).
             // 2. Overwrite the instanceXml with the submission.xml
-            //    and remove the plaintext attachments if encrypting
+            //    unless encrypting. The encryption worker replaces the instanceXml with the
+            //    encrypted submission's manifest and removes the plaintext attachments.
 
-            updateInstanceDatabase(false, canEditAfterCompleted);
+            updateInstanceDatabase(false, canEditAfterCompleted, formInfo != null);
 
-            if (!canEditAfterCompleted) {
+            if (formInfo != null) {
+                // Encryption is requested by the caller once the audit events about this save
+                // are written because the audit log is encrypted with the rest of the instance.
+                saveToDiskResult.setInstanceToEncrypt(uri, formController.getSubmissionMetadata().instanceId, lastSavedPath);
+            } else if (!canEditAfterCompleted) {
                 manageFilesAfterSavingEncryptedForm(instanceXml, submissionXml);
             } else {
                 // try to delete the submissionXml file, since it is
@@ -446,28 +460,6 @@ public class SaveFormToDisk {
                     Timber.w(msg);
                 }
             }
-
-            // if encrypted, delete all plaintext files
-            // (anything not named instanceXml or anything not ending in .enc)
-            if (isEncrypted) {
-                // Clear the geometry. Done outside of updateInstanceDatabase to avoid multiple
-                // branches and because it has no knowledge of encryption status.
-                ContentValues values = new ContentValues();
-                values.put(InstanceColumns.GEOMETRY, (String) null);
-                values.put(InstanceColumns.GEOMETRY_TYPE, (String) null);
-                try {
-                    int updated = Collect.getInstance().getContentResolver().update(uri, values, null, null);
-                    if (updated < 1) {
-                        Timber.w("Instance geometry not cleared after encryption");
-                    }
-                } catch (IllegalArgumentException e) {
-                    Timber.w(e);
-                }
-
-                if (!EncryptionUtils.deletePlaintextFiles(instanceXml, new File(lastSavedPath))) {
-                    Timber.e("Error deleting plaintext files for %s", instanceXml.getAbsolutePath());
-                }
-            }
         }
     }
 
@@ -20,7 +20,6 @@ package org.odk.collect.android.tasks;
 
 import android.os.AsyncTask;
 
-import org.javarosa.core.services.transport.payload.ByteArrayPayload;
 import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.listeners.SavePointListener;
 import org.odk.collect.android.logic.FormController;
@@ -38,6 +37,7 @@ public class SavePointTask extends AsyncTask<Void, Void, String> {
 
     private static final Object LOCK = new Object();
     private static int lastPriorityUsed;
+    private static SavepointWriter savepointWriter;
 
     private final SavePointListener listener;
     private final int priority;
@@ -59,17 +59,19 @@ public class SavePointTask extends AsyncTask<Void, Void, String> {
 
             try {
                 FormController formController = Collect.getInstance().getFormController();
-                File temp = SaveFormToDisk.getSavepointFile(formController.getInstanceFile().getName());
-                ByteArrayPayload payload = formController.getFilledInFormXml();
+                String instanceName = formController.getInstanceFile().getName();
+                File temp = SaveFormToDisk.getSavepointFile(instanceName);
 
-                if (priority < lastPriorityUsed) {
+                // Savepoints of the same form session only journal the values that changed
+                if (savepointWriter == null || !savepointWriter.isFor(formController.getFormDef(), temp)) {
+                    savepointWriter = new SavepointWriter(formController.getFormDef(), temp,
+                            SaveFormToDisk.getSavepointJournalFile(instanceName));
+                }
+                if (!savepointWriter.writeSavepoint(formController, () -> priority < lastPriorityUsed)) {
                     Timber.w("Savepoint thread (p=%d) was cancelled (b) because another one is waiting (p=%d)", priority, lastPriorityUsed);
                     return null;
                 }
 
-                // write out xml
-                SaveFormToDisk.writeFile(payload, temp.getAbsolutePath());
-
                 long end = System.currentTimeMillis();
                 Timber.i("Savepoint ms: %s to %s", Long.toString(end - start), temp.toString());
 
@@ -18,6 +18,8 @@
 
 package org.odk.collect.android.tasks;
 
+import android.net.Uri;
+
 /**
  * Author: Meletis Margaritis
  * Date: 15/3/2013
@@ -29,6 +31,11 @@ public class SaveToDiskResult {
     private boolean complete;
     private String saveErrorMessage;
 
+    // Set when a finalized instance still has to be encrypted
+    private Uri instanceToEncrypt;
+    private String instanceId;
+    private String lastSavedPath;
+
     public int getSaveResult() {
         return saveResult;
     }
@@ -49,4 +56,22 @@ public class SaveToDiskResult {
     public String getSaveErrorMessage() {
         return saveErrorMessage;
     }
+
+    public void setInstanceToEncrypt(Uri instanceUri, String instanceId, String lastSavedPath) {
+        this.instanceToEncrypt = instanceUri;
+        this.instanceId = instanceId;
+        this.lastSavedPath = lastSavedPath;
+    }
+
+    public Uri getInstanceToEncrypt() {
+        return instanceToEncrypt;
+    }
+
+    public String getInstanceId() {
+        return instanceId;
+    }
+
+    public String getLastSavedPath() {
+        return lastSavedPath;
+    }
 }
@@ -0,0 +1,294 @@
+package org.odk.collect.android.tasks;
+
+import android.text.TextUtils;
+
+import androidx.annotation.Nullable;
+
+import com.google.common.io.CountingInputStream;
+
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.model.data.IAnswerData;
+import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.core.model.instance.TreeReference;
+import org.javarosa.xform.util.XFormAnswerDataSerializer;
+import org.odk.collect.android.external.ExternalAnswerResolver;
+import org.odk.collect.android.logic.FormController;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+import timber.log.Timber;
+
+/**
+ * Writes the savepoints of a form session. Serializing the whole instance every time the user
+ * moves to another screen gets slow for large forms, so only the first savepoint is a full
+ * snapshot of the instance. The values that changed since the previous savepoint are then
+ * appended to a journal next to the snapshot and replayed by {@link #replayJournal} when the
+ * savepoint is loaded.
+ *
+ * Values are compared with the ones of the previous savepoint rather than recorded as they are
+ * answered so that values set by calculations and actions are journaled as well. A new snapshot
+ * is written whenever the structure of the instance changes (e.g. a repeat is added or removed),
+ * when the snapshot on disk is not the one the journal was started for and when the journal
+ * grows too large.
+ */
+class SavepointWriter {
+
+    private static final int JOURNAL_VERSION = 1;
+    private static final int MAX_JOURNAL_RECORDS = 1000;
+
+    private final WeakReference<FormDef> formDef;
+    private final File savepointFile;
+    private final File journalFile;
+    private final XFormAnswerDataSerializer serializer = new XFormAnswerDataSerializer();
+
+    // The leaf values and structure of the instance as of the last savepoint
+    private IAnswerData[] checkpointData;
+    private String[] checkpointValues;
+    private int checkpointStructure;
+
+    private long snapshotLength;
+    private long snapshotLastModified;
+    private int journalRecords;
+
+    SavepointWriter(FormDef formDef, File savepointFile, File journalFile) {
+        this.formDef = new WeakReference<>(formDef);
+        this.savepointFile = savepointFile;
+        this.journalFile = journalFile;
+    }
+
+    boolean isFor(FormDef formDef, File savepointFile) {
+        return this.formDef.get() == formDef && this.savepointFile.equals(savepointFile);
+    }
+
+    /**
+     * Writes a savepoint of the form currently open in the given controller unless the
+     * cancellation says so once the values have been compared, before anything is written.
+     *
+     * @return false if the savepoint was cancelled
+     */
+    boolean writeSavepoint(FormController formController, Cancellation cancellation) throws IOException {
+        List<TreeElement> leaves = new ArrayList<>();
+        int structure = collectLeaves(formController.getFormDef().getMainInstance().getRoot(), leaves, 1);
+
+        boolean writeSnapshot = checkpointValues == null
+                || structure != checkpointStructure
+                || !journalFile.exists()
+                || journalRecords >= MAX_JOURNAL_RECORDS
+                || journalFile.length() > snapshotLength / 2
+                || savepointFile.length() != snapshotLength
+                || savepointFile.lastModified() != snapshotLastModified;
+
+        IAnswerData[] data = new IAnswerData[leaves.size()];
+        String[] values = new String[leaves.size()];
+        List<Integer> changed = new ArrayList<>();
+        for (int i = 0; i < data.length; i++) {
+            data[i] = leaves.get(i).getValue();
+            if (!writeSnapshot && data[i] == checkpointData[i]) {
+                values[i] = checkpointValues[i];
+                continue;
+            }
+
+            Object serialized = data[i] == null ? null : serializer.serializeAnswerData(data[i]);
+            if (serialized != null && !(serialized instanceof String)) {
+                // Values that aren't plain text are only written in snapshots
+                writeSnapshot = true;
+            } else {
+                values[i] = (String) serialized;
+                if (!writeSnapshot && !TextUtils.equals(values[i], checkpointValues[i])) {
+                    changed.add(i);
+                }
+            }
+        }
+
+        if (cancellation.isCancelled()) {
+            return false;
+        }
+
+        if (writeSnapshot) {
+            writeSnapshot(formController);
+        } else if (!changed.isEmpty()) {
+            appendToJournal(leaves, values, changed);
+        }
+
+        checkpointData = data;
+        checkpointValues = values;
+        checkpointStructure = structure;
+        return true;
+    }
+
+    private void writeSnapshot(FormController formController) throws IOException {
+        // The snapshot is about to change so the journal mustn't be replayed on top of it
+        if (journalFile.exists() && !journalFile.delete()) {
+            throw new IOException("Cannot delete " + journalFile);
+        }
+
+        SaveFormToDisk.writeFile(formController.getFilledInFormXml(), savepointFile.getAbsolutePath());
+        snapshotLength = savepointFile.length();
+        snapshotLastModified = savepointFile.lastModified();
+        journalRecords = 0;
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journalFile)))) {
+            writeHeader(out, snapshotLength, snapshotLastModified);
+        }
+    }
+
+    private void appendToJournal(List<TreeElement> leaves, String[] values, List<Integer> changed) throws IOException {
+        try (FileOutputStream fos = new FileOutputStream(journalFile, true);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+            for (int i : changed) {
+                writeRecord(out, getReferenceString(leaves.get(i)), values[i]);
+            }
+            out.flush();
+            fos.getFD().sync();
+        }
+        journalRecords += changed.size();
+    }
+
+    /**
+     * Adds the leaves of the given subtree to the list in document order and returns a hash of
+     * the names and multiplicities of its nodes.
+     */
+    private static int collectLeaves(TreeElement element, List<TreeElement> leaves, int structure) {
+        structure = 31 * structure + element.getName().hashCode();
+        structure = 31 * structure + element.getMult();
+
+        if (element.getNumChildren() == 0) {
+            leaves.add(element);
+            return structure;
+        }
+
+        for (int i = 0; i < element.getNumChildren(); i++) {
+            TreeElement child = element.getChildAt(i);
+            if (child.getMult() != TreeReference.INDEX_TEMPLATE) {
+                structure = collectLeaves(child, leaves, structure);
+            }
+        }
+        return structure;
+    }
+
+    /**
+     * Applies the journal of the given savepoint to the instance of the form. Must be called after
+     * the savepoint has been imported and before the form is initialized. The journal is ignored
+     * if it wasn't written for this savepoint.
+     *
+     * @return the number of values that were restored from the journal
+     */
+    static int replayJournal(File savepointFile, File journalFile, FormDef formDef) throws IOException {
+        if (!journalFile.exists()) {
+            return 0;
+        }
+
+        long journalLength = journalFile.length();
+        try (CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+             DataInputStream in = new DataInputStream(counter)) {
+            if (!readHeader(in, savepointFile.length(), savepointFile.lastModified())) {
+                Timber.w("Ignoring journal %s that was written for another savepoint", journalFile);
+                return 0;
+            }
+
+            ExternalAnswerResolver answerResolver = new ExternalAnswerResolver();
+            int replayed = 0;
+            String[] record;
+            while ((record = readRecord(in, journalLength - counter.getCount())) != null) {
+                TreeElement element = formDef.getMainInstance().resolveReference(parseReference(record[0]));
+                if (element == null) {
+                    Timber.w("Skipping journaled value of %s which is not in the instance", record[0]);
+                    continue;
+                }
+
+                element.setAnswer(record[1] == null ? null : answerResolver.resolveAnswer(record[1], element, formDef));
+                replayed++;
+            }
+            return replayed;
+        }
+    }
+
+    static void writeHeader(DataOutputStream out, long snapshotLength, long snapshotLastModified) throws IOException {
+        out.writeInt(JOURNAL_VERSION);
+        out.writeLong(snapshotLength);
+        out.writeLong(snapshotLastModified);
+    }
+
+    static boolean readHeader(DataInputStream in, long snapshotLength, long snapshotLastModified) throws IOException {
+        try {
+            return in.readInt() == JOURNAL_VERSION
+                    && in.readLong() == snapshotLength
+                    && in.readLong() == snapshotLastModified;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    static void writeRecord(DataOutputStream out, String reference, @Nullable String value) throws IOException {
+        out.writeUTF(reference);
+        out.writeBoolean(value != null);
+        if (value != null) {
+            byte[] bytes = value.getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Returns the reference and value of the next record or null at the end of the journal. A
+     * record that was only partially written because the app was killed is ignored, as is one
+     * whose value is longer than the rest of the journal, so that a corrupt length isn't
+     * allocated.
+     */
+    @Nullable
+    static String[] readRecord(DataInputStream in, long remainingBytes) throws IOException {
+        try {
+            String reference = in.readUTF();
+            String value = null;
+            if (in.readBoolean()) {
+                int length = in.readInt();
+                if (length < 0 || length > remainingBytes) {
+                    Timber.w("Ignoring journal record of %s with a value of %d bytes", reference, length);
+                    return null;
+                }
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                value = new String(bytes, "UTF-8");
+            }
+            return new String[]{reference, value};
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    interface Cancellation {
+        boolean isCancelled();
+    }
+
+    /**
+     * Returns the reference of the given element with the multiplicity of every step, e.g.
+     * /data[0]/group[2]/name[0].
+     */
+    static String getReferenceString(TreeElement element) {
+        StringBuilder reference = new StringBuilder();
+        for (TreeElement e = element; e != null && e.getName() != null; e = (TreeElement) e.getParent()) {
+            reference.insert(0, "/" + e.getName() + "[" + e.getMult() + "]");
+        }
+        return reference.toString();
+    }
+
+    static TreeReference parseReference(String reference) {
+        TreeReference ref = TreeReference.rootRef();
+        for (String step : reference.substring(1).split("/")) {
+            int bracket = step.lastIndexOf('[');
+            ref.add(step.substring(0, bracket), Integer.parseInt(step.substring(bracket + 1, step.length() - 1)));
+        }
+        return ref;
+    }
+}
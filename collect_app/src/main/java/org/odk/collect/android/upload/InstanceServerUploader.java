@@ -14,9 +14,13 @@
 
 package org.odk.collect.android.upload;
 
+import android.content.ContentValues;
 import android.content.SharedPreferences;
+import android.database.Cursor;
 import android.net.Uri;
 import android.preference.PreferenceManager;
+import android.text.TextUtils;
+
 import androidx.annotation.NonNull;
 
 import org.odk.collect.android.R;
@@ -28,6 +32,8 @@ import org.odk.collect.android.openrosa.HttpPostResult;
 import org.odk.collect.android.openrosa.OpenRosaConstants;
 import org.odk.collect.android.openrosa.OpenRosaHttpInterface;
 import org.odk.collect.android.preferences.GeneralKeys;
+import org.odk.collect.android.provider.InstanceProviderAPI;
+import org.odk.collect.android.provider.InstanceProviderAPI.InstanceColumns;
 import org.odk.collect.android.utilities.ResponseMessageParser;
 import org.odk.collect.android.utilities.WebCredentialsUtils;
 
@@ -37,8 +43,12 @@ import java.net.URI;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.net.ssl.HttpsURLConnection;
 
@@ -50,6 +60,7 @@ public class InstanceServerUploader extends InstanceUploader {
     private final OpenRosaHttpInterface httpInterface;
     private final WebCredentialsUtils webCredentialsUtils;
     private final Map<Uri, Uri> uriRemap;
+    private ProgressListener progressListener;
 
     public InstanceServerUploader(OpenRosaHttpInterface httpInterface,
                                   WebCredentialsUtils webCredentialsUtils,
@@ -67,6 +78,12 @@ public class InstanceServerUploader extends InstanceUploader {
      */
     @Override
     public String uploadOneSubmission(Instance instance, String urlString) throws UploadException {
+        // The instance file is still the plaintext restore file and must not be sent. The status
+        // is left alone because the instance will be sent once it has been encrypted.
+        if (InstanceProviderAPI.STATUS_ENCRYPTING.equals(instance.getStatus())) {
+            throw new UploadException(Collect.getInstance().getString(R.string.instance_not_yet_encrypted));
+        }
+
         Uri submissionUri = Uri.parse(urlString);
 
         long contentLength = 10000000L;
@@ -188,8 +205,9 @@ public class InstanceServerUploader extends InstanceUploader {
         try {
             URI uri = URI.create(submissionUri.toString());
 
-            postResult = httpInterface.uploadSubmissionFile(files, submissionFile, uri,
-                    webCredentialsUtils.getCredentials(uri), contentLength);
+            postResult = httpInterface.uploadSubmissionFile(getFilesToUpload(instance, files),
+                    submissionFile, uri, webCredentialsUtils.getCredentials(uri), contentLength,
+                    new SubmissionProgressRecorder(instance));
 
             int responseCode = postResult.getResponseCode();
             messageParser.setMessageResponse(postResult.getHttpResponse());
@@ -229,6 +247,99 @@ public class InstanceServerUploader extends InstanceUploader {
         return null;
     }
 
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * Returns the attachments that the server hasn't acknowledged during an earlier attempt to
+     * submit the instance, in a stable order so that the parts of a resumed attempt line up with
+     * the parts of the interrupted one.
+     */
+    private List<File> getFilesToUpload(Instance instance, List<File> files) {
+        Set<String> uploadedAttachments = getUploadedAttachments(instance);
+
+        List<File> filesToUpload = new ArrayList<>();
+        for (File file : files) {
+            if (!uploadedAttachments.contains(getAttachmentKey(file))) {
+                filesToUpload.add(file);
+            }
+        }
+
+        if (filesToUpload.size() < files.size()) {
+            Timber.i("Resuming submission of instance %s, %d of %d attachments were already acknowledged",
+                    instance.getDatabaseId(), files.size() - filesToUpload.size(), files.size());
+        }
+
+        Collections.sort(filesToUpload, (file1, file2) -> file1.getName().compareTo(file2.getName()));
+        return filesToUpload;
+    }
+
+    private Set<String> getUploadedAttachments(Instance instance) {
+        Set<String> uploadedAttachments = new LinkedHashSet<>();
+
+        try (Cursor cursor = Collect.getInstance().getContentResolver().query(getInstanceUri(instance),
+                new String[]{InstanceColumns.UPLOADED_ATTACHMENTS}, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst() && !cursor.isNull(0)) {
+                uploadedAttachments.addAll(Arrays.asList(cursor.getString(0).split("\n")));
+            }
+        }
+
+        return uploadedAttachments;
+    }
+
+    /**
+     * Identifies an attachment by its name, size and modification time so that an attachment
+     * that has been replaced since it was acknowledged is sent again.
+     */
+    private static String getAttachmentKey(File file) {
+        return file.getName() + '\t' + file.length() + '\t' + file.lastModified();
+    }
+
+    private static Uri getInstanceUri(Instance instance) {
+        return Uri.withAppendedPath(InstanceColumns.CONTENT_URI, instance.getDatabaseId().toString());
+    }
+
+    /**
+     * Writes the attachments of every part the server acknowledges to the database right away
+     * so that they aren't sent again if the submission is interrupted.
+     */
+    private class SubmissionProgressRecorder implements OpenRosaHttpInterface.SubmissionUploadListener {
+        private final Instance instance;
+        private final Set<String> uploadedAttachments;
+
+        SubmissionProgressRecorder(Instance instance) {
+            this.instance = instance;
+            this.uploadedAttachments = getUploadedAttachments(instance);
+        }
+
+        @Override
+        public void onPartAcknowledged(List<File> attachments) {
+            if (attachments.isEmpty()) {
+                return;
+            }
+
+            for (File attachment : attachments) {
+                uploadedAttachments.add(getAttachmentKey(attachment));
+            }
+
+            ContentValues contentValues = new ContentValues();
+            contentValues.put(InstanceColumns.UPLOADED_ATTACHMENTS, TextUtils.join("\n", uploadedAttachments));
+            Collect.getInstance().getContentResolver().update(getInstanceUri(instance), contentValues, null, null);
+        }
+
+        @Override
+        public void onBytesUploaded(long bytesUploaded, long totalBytes) {
+            if (progressListener != null) {
+                progressListener.onBytesUploaded(bytesUploaded, totalBytes);
+            }
+        }
+    }
+
+    public interface ProgressListener {
+        void onBytesUploaded(long bytesUploaded, long totalBytes);
+    }
+
     private List<File> getFilesInParentDirectory(File instanceFile, File submissionFile) {
         List<File> files = new ArrayList<>();
 
@@ -22,6 +22,7 @@ import android.util.Base64;
 import androidx.annotation.Nullable;
 
 import org.apache.commons.io.IOUtils;
+import org.kxml2.io.KXmlParser;
 import org.kxml2.io.KXmlSerializer;
 import org.kxml2.kdom.Document;
 import org.kxml2.kdom.Element;
@@ -33,16 +34,18 @@ import org.odk.collect.android.exception.EncryptionException;
 import org.odk.collect.android.logic.FormController.InstanceMetadata;
 import org.odk.collect.android.provider.FormsProviderAPI.FormsColumns;
 import org.odk.collect.android.provider.InstanceProviderAPI.InstanceColumns;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStreamWriter;
-import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.KeyFactory;
@@ -55,10 +58,13 @@ import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
-import javax.crypto.CipherOutputStream;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.IvParameterSpec;
@@ -100,6 +106,8 @@ public class EncryptionUtils {
             "base64EncryptedElementSignature";
     private static final String NEW_LINE = "\n";
     private static final String ENCRYPTION_PROVIDER = "BC";
+    private static final int ENCRYPTION_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_ENCRYPTION_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
 
     private EncryptionUtils() {
     }
@@ -176,11 +184,6 @@ public class EncryptionUtils {
             elementSignatureSource.append(value).append('\n');
         }
 
-        public void appendFileSignatureSource(File file) {
-            String md5Hash = FileUtils.getMd5Hash(file);
-            appendElementSignatureSource(file.getName() + "::" + md5Hash);
-        }
-
         public String getBase64EncryptedElementSignature() {
             // Step 0: construct the text of the elements in elementSignatureSource (done)
             //     Where...
@@ -266,7 +269,7 @@ public class EncryptionUtils {
         // fetch the form information
         String formId;
         String formVersion;
-        PublicKey pk;
+        String base64RsaPublicKey;
 
         Cursor formCursor = null;
         try {
@@ -321,45 +324,58 @@ public class EncryptionUtils {
             }
 
             formId = formCursor.getString(formCursor.getColumnIndex(FormsColumns.JR_FORM_ID));
-            if (formId == null || formId.length() == 0) {
-                String msg = Collect.getInstance().getString(R.string.no_form_id_specified);
-                Timber.d(msg);
-                throw new EncryptionException(msg, null);
-            }
             int idxVersion = formCursor.getColumnIndex(FormsColumns.JR_VERSION);
             int idxBase64RsaPublicKey = formCursor.getColumnIndex(
                     FormsColumns.BASE64_RSA_PUBLIC_KEY);
             formVersion = formCursor.isNull(idxVersion) ? null : formCursor.getString(idxVersion);
-            String base64RsaPublicKey = formCursor.isNull(idxBase64RsaPublicKey)
+            base64RsaPublicKey = formCursor.isNull(idxBase64RsaPublicKey)
                     ? null : formCursor.getString(idxBase64RsaPublicKey);
-
-            if (base64RsaPublicKey == null || base64RsaPublicKey.length() == 0) {
-                return null; // this is legitimately not an encrypted form
-            }
-
-            byte[] publicKey = Base64.decode(base64RsaPublicKey, Base64.NO_WRAP);
-            X509EncodedKeySpec publicKeySpec = new X509EncodedKeySpec(publicKey);
-            KeyFactory kf;
-            try {
-                kf = KeyFactory.getInstance(RSA_ALGORITHM);
-            } catch (NoSuchAlgorithmException e) {
-                String msg = Collect.getInstance().getString(R.string.phone_does_not_support_rsa);
-                Timber.d(e, "%s due to %s ", msg, e.getMessage());
-                throw new EncryptionException(msg, e);
-            }
-            try {
-                pk = kf.generatePublic(publicKeySpec);
-            } catch (InvalidKeySpecException e) {
-                String msg = Collect.getInstance().getString(R.string.invalid_rsa_public_key);
-                Timber.d(e, "%s due to %s ", msg, e.getMessage());
-                throw new EncryptionException(msg, e);
-            }
         } finally {
             if (formCursor != null) {
                 formCursor.close();
             }
         }
 
+        return getEncryptedFormInformation(formId, formVersion, base64RsaPublicKey, instanceMetadata);
+    }
+
+    /**
+     * Retrieve the encryption information for an instance of the form with the given id, version
+     * and public key, e.g. when the form's row has already been read.
+     *
+     * @see #getEncryptedFormInformation(Uri, InstanceMetadata)
+     */
+    public static EncryptedFormInformation getEncryptedFormInformation(String formId, String formVersion,
+            String base64RsaPublicKey, InstanceMetadata instanceMetadata) throws EncryptionException {
+        if (formId == null || formId.length() == 0) {
+            String msg = Collect.getInstance().getString(R.string.no_form_id_specified);
+            Timber.d(msg);
+            throw new EncryptionException(msg, null);
+        }
+
+        if (base64RsaPublicKey == null || base64RsaPublicKey.length() == 0) {
+            return null; // this is legitimately not an encrypted form
+        }
+
+        PublicKey pk;
+        byte[] publicKey = Base64.decode(base64RsaPublicKey, Base64.NO_WRAP);
+        X509EncodedKeySpec publicKeySpec = new X509EncodedKeySpec(publicKey);
+        KeyFactory kf;
+        try {
+            kf = KeyFactory.getInstance(RSA_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            String msg = Collect.getInstance().getString(R.string.phone_does_not_support_rsa);
+            Timber.d(e, "%s due to %s ", msg, e.getMessage());
+            throw new EncryptionException(msg, e);
+        }
+        try {
+            pk = kf.generatePublic(publicKeySpec);
+        } catch (InvalidKeySpecException e) {
+            String msg = Collect.getInstance().getString(R.string.invalid_rsa_public_key);
+            Timber.d(e, "%s due to %s ", msg, e.getMessage());
+            throw new EncryptionException(msg, e);
+        }
+
         // submission must have an OpenRosa metadata block with a non-null instanceID
         if (instanceMetadata.instanceId == null) {
             throw new EncryptionException("This form does not specify an instanceID. You must specify one to enable encryption.", null);
@@ -385,52 +401,52 @@ public class EncryptionUtils {
         return new EncryptedFormInformation(formId, formVersion, instanceMetadata, pk);
     }
 
-    private static void encryptFile(File file, EncryptedFormInformation formInfo)
-            throws IOException, EncryptionException {
+    /**
+     * Encrypts the file to a file with the same name and an .enc suffix in a single pass that
+     * also computes the md5 hash of the plaintext, which is returned. The cipher must be obtained
+     * from {@link EncryptedFormInformation#getCipher()} in the order the files are listed in the
+     * submission manifest.
+     */
+    private static String encryptFile(File file, Cipher cipher) throws EncryptionException {
         File encryptedFile = new File(file.getParentFile(), file.getName()
                 + ".enc");
 
-        if (encryptedFile.exists() && !encryptedFile.delete()) {
-            throw new IOException("Cannot overwrite " + encryptedFile.getAbsolutePath()
-                    + ". Perhaps the file is locked?");
-        }
-
-        // add elementSignatureSource for this file...
-        formInfo.appendFileSignatureSource(file);
-
-        RandomAccessFile randomAccessFile = null;
-        CipherOutputStream cipherOutputStream = null;
         try {
-            Cipher c = formInfo.getCipher();
-
-            randomAccessFile = new RandomAccessFile(encryptedFile, "rws");
-            ByteArrayOutputStream encryptedData = new ByteArrayOutputStream();
-            cipherOutputStream = new CipherOutputStream(encryptedData, c);
-            InputStream fin = new FileInputStream(file);
-            byte[] buffer = new byte[2048];
-            int len = fin.read(buffer);
-            while (len != -1) {
-                cipherOutputStream.write(buffer, 0, len);
-                len = fin.read(buffer);
+            if (encryptedFile.exists() && !encryptedFile.delete()) {
+                throw new IOException("Cannot overwrite " + encryptedFile.getAbsolutePath()
+                        + ". Perhaps the file is locked?");
             }
-            fin.close();
-            cipherOutputStream.flush();
-            cipherOutputStream.close();
 
-            randomAccessFile.write(encryptedData.toByteArray());
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            byte[] buffer = new byte[ENCRYPTION_BUFFER_SIZE];
+            byte[] encryptedBuffer = new byte[cipher.getOutputSize(ENCRYPTION_BUFFER_SIZE)];
+
+            try (InputStream fin = new FileInputStream(file);
+                 FileOutputStream fout = new FileOutputStream(encryptedFile)) {
+                int len = fin.read(buffer);
+                while (len != -1) {
+                    md.update(buffer, 0, len);
+                    fout.write(encryptedBuffer, 0, cipher.update(buffer, 0, len, encryptedBuffer));
+                    len = fin.read(buffer);
+                }
+                fout.write(cipher.doFinal());
+
+                // The plaintext may be deleted as soon as the submission has been encrypted
+                fout.getChannel().force(true);
+            }
 
             Timber.i("Encrpyted:%s -> %s", file.getName(), encryptedFile.getName());
+
+            StringBuilder md5 = new StringBuilder(new BigInteger(1, md.digest()).toString(16));
+            while (md5.length() < 32) {
+                md5.insert(0, "0");
+            }
+            return md5.toString();
         } catch (Exception e) {
             String msg = "Error encrypting: " + file.getName() + " -> "
                     + encryptedFile.getName();
             Timber.e(e, "%s due to %s ", msg, e.getMessage());
             throw new EncryptionException(msg, e);
-        } finally {
-            IOUtils.closeQuietly(cipherOutputStream);
-
-            if (randomAccessFile != null) {
-                randomAccessFile.close();
-            }
         }
     }
 
@@ -496,17 +512,64 @@ public class EncryptionUtils {
                 filesToProcess.add(f);
             }
         }
-        // encrypt here...
-        for (File f : filesToProcess) {
-            encryptFile(f, formInfo);
-        }
-
         // encrypt the submission.xml as the last file...
-        encryptFile(submissionXml, formInfo);
+        List<File> filesToEncrypt = new ArrayList<>(filesToProcess);
+        filesToEncrypt.add(submissionXml);
+
+        List<String> md5Hashes = encryptFiles(filesToEncrypt, formInfo);
+        for (int i = 0; i < filesToEncrypt.size(); i++) {
+            formInfo.appendElementSignatureSource(filesToEncrypt.get(i).getName() + "::" + md5Hashes.get(i));
+        }
 
         return filesToProcess;
     }
 
+    /**
+     * Encrypts the files in parallel and returns the md5 hashes of their plaintext in the same
+     * order. The ciphers are obtained up front because each one uses the next iv in the sequence
+     * that the server expects for the position of its file in the manifest.
+     */
+    private static List<String> encryptFiles(List<File> files, EncryptedFormInformation formInfo)
+            throws EncryptionException {
+        List<Cipher> ciphers = new ArrayList<>();
+        for (File file : files) {
+            try {
+                ciphers.add(formInfo.getCipher());
+            } catch (GeneralSecurityException e) {
+                String msg = "Error encrypting: " + file.getName();
+                Timber.e(e, "%s due to %s ", msg, e.getMessage());
+                throw new EncryptionException(msg, e);
+            }
+        }
+
+        int threadCount = Math.min(files.size(), MAX_ENCRYPTION_THREADS);
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            List<Future<String>> md5Hashes = new ArrayList<>();
+            for (int i = 0; i < files.size(); i++) {
+                File file = files.get(i);
+                Cipher cipher = ciphers.get(i);
+                md5Hashes.add(executor.submit(() -> encryptFile(file, cipher)));
+            }
+
+            List<String> result = new ArrayList<>();
+            for (Future<String> md5Hash : md5Hashes) {
+                result.add(md5Hash.get());
+            }
+            return result;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof EncryptionException) {
+                throw (EncryptionException) e.getCause();
+            }
+            throw new EncryptionException("Error encrypting submission", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EncryptionException("Interrupted while encrypting submission", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     /**
      * Constructs the encrypted attachments, encrypted form xml, and the
      * plaintext submission manifest (with signature) for the form submission.
@@ -532,6 +595,25 @@ public class EncryptionUtils {
         writeSubmissionManifest(formInfo, submissionXml, mediaFiles);
     }
 
+    /**
+     * Returns whether the file is the manifest written by
+     * {@link #generateEncryptedSubmission(File, File, EncryptedFormInformation)} rather than the
+     * plaintext submission it replaces.
+     */
+    public static boolean isEncryptedSubmissionManifest(File file) {
+        try (InputStream is = new FileInputStream(file)) {
+            KXmlParser parser = new KXmlParser();
+            parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+            parser.setInput(is, UTF_8);
+            parser.nextTag();
+            return XML_ENCRYPTED_TAG_NAMESPACE.equals(parser.getNamespace())
+                    && DATA.equals(parser.getName());
+        } catch (IOException | XmlPullParserException e) {
+            Timber.w(e, "Unable to read %s", file.getAbsolutePath());
+            return false;
+        }
+    }
+
     private static void writeSubmissionManifest(
             EncryptedFormInformation formInfo,
             File submissionXml, List<File> mediaFiles) throws EncryptionException {
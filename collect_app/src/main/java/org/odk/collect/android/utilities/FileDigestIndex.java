@@ -0,0 +1,314 @@
+package org.odk.collect.android.utilities;
+
+import androidx.annotation.Nullable;
+
+import org.odk.collect.android.storage.StoragePathProvider;
+import org.odk.collect.android.storage.StorageSubdirectory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import timber.log.Timber;
+
+/**
+ * Remembers the md5 hash of files along with their size and last modified time so that files
+ * which haven't changed don't have to be read again to get their hash. The index is kept in a
+ * file and only written by {@link #save()}, which also forgets the files that no longer exist.
+ * Files are only read outside of the index's lock so that one caller hashing a large file doesn't
+ * hold up the others.
+ *
+ * The index counts how many hashes it could answer without reading the file so that its
+ * effectiveness can be checked in the logs.
+ */
+public class FileDigestIndex {
+
+    private static final String FORMS_INDEX_FILE_NAME = "forms.digests";
+    private static final String MEDIA_INDEX_FILE_NAME = "media.digests";
+
+    private static FileDigestIndex formsIndex;
+    private static FileDigestIndex mediaIndex;
+
+    private static final int INDEX_MAGIC = 0x4f444b44; // "ODKD"
+    private static final int INDEX_FORMAT_VERSION = 1;
+
+    /**
+     * Files modified this recently may still be modified again within the resolution of the
+     * last modified time without their fingerprint changing, so their hash isn't remembered.
+     */
+    private static final long MIN_FINGERPRINT_AGE_MS = 2000;
+
+    private final File indexFile;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private boolean isLoaded;
+    private boolean isChanged;
+    private long hitCount;
+    private long missCount;
+
+    /**
+     * Returns the index of the files in the forms directory. Like the media index it is shared so
+     * that form list updates that overlap don't overwrite each other's entries.
+     */
+    public static synchronized FileDigestIndex getFormsIndex() {
+        if (formsIndex == null) {
+            formsIndex = new FileDigestIndex(new File(new StoragePathProvider().getDirPath(StorageSubdirectory.CACHE),
+                    FORMS_INDEX_FILE_NAME));
+        }
+        return formsIndex;
+    }
+
+    /**
+     * Returns the index of the media files of forms. It is shared by everything that reads or
+     * writes media files so that their updates don't overwrite each other.
+     */
+    public static synchronized FileDigestIndex getMediaIndex() {
+        if (mediaIndex == null) {
+            mediaIndex = new FileDigestIndex(new File(new StoragePathProvider().getDirPath(StorageSubdirectory.CACHE),
+                    MEDIA_INDEX_FILE_NAME));
+        }
+        return mediaIndex;
+    }
+
+    public FileDigestIndex(File indexFile) {
+        this.indexFile = indexFile;
+    }
+
+    /**
+     * Returns the md5 hash of the given file, only reading it if it has changed since its hash was
+     * last computed. Returns null if the file can't be read.
+     */
+    @Nullable
+    public String getMd5Hash(File file) {
+        String path = file.getAbsolutePath();
+        long length = file.length();
+        long lastModified = file.lastModified();
+
+        synchronized (this) {
+            load();
+
+            Entry entry = entries.get(path);
+            if (entry != null && entry.length == length && entry.lastModified == lastModified) {
+                hitCount++;
+                return entry.md5;
+            }
+            missCount++;
+        }
+
+        String md5 = FileUtils.getMd5Hash(file);
+
+        // The hash is only remembered if the file didn't change while it was read
+        boolean isUnchanged = file.length() == length && file.lastModified() == lastModified;
+        synchronized (this) {
+            if (md5 != null && isUnchanged && lastModified != 0
+                    && lastModified < System.currentTimeMillis() - MIN_FINGERPRINT_AGE_MS) {
+                entries.put(path, new Entry(length, lastModified, md5));
+                isChanged = true;
+            } else if (entries.remove(path) != null) {
+                isChanged = true;
+            }
+        }
+        return md5;
+    }
+
+    /**
+     * Remembers the hash of a file that has just been written, e.g. because it was computed while
+     * the file was downloaded.
+     */
+    public synchronized void put(File file, String md5) {
+        load();
+
+        long lastModified = file.lastModified();
+        if (lastModified != 0) {
+            entries.put(file.getAbsolutePath(), new Entry(file.length(), lastModified, md5));
+            isChanged = true;
+        }
+    }
+
+    /**
+     * Keeps the hashes of files that have been moved from one directory to another. A hash is
+     * only kept if the moved file still has the same size and last modified time.
+     */
+    public synchronized void moveAll(File fromDir, File toDir) {
+        load();
+
+        String fromPrefix = fromDir.getAbsolutePath() + File.separator;
+        Map<String, Entry> moved = new HashMap<>();
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Entry> entry = iterator.next();
+            String path = entry.getKey();
+            if (path.startsWith(fromPrefix)) {
+                iterator.remove();
+                isChanged = true;
+
+                File file = new File(toDir, path.substring(fromPrefix.length()));
+                if (file.length() == entry.getValue().length && file.lastModified() == entry.getValue().lastModified) {
+                    moved.put(file.getAbsolutePath(), entry.getValue());
+                }
+            }
+        }
+        entries.putAll(moved);
+    }
+
+    /**
+     * Forgets the hashes of all files in the given directory, e.g. because it has been deleted.
+     */
+    public synchronized void removeAll(File dir) {
+        load();
+
+        String prefix = dir.getAbsolutePath() + File.separator;
+        Iterator<String> iterator = entries.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().startsWith(prefix)) {
+                iterator.remove();
+                isChanged = true;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of hashes that were answered from the index since it was created.
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Returns the number of hashes for which the file had to be read since the index was created.
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Returns the share of hashes that were answered from the index, or 0 if none were asked for.
+     */
+    public synchronized double getHitRate() {
+        long total = hitCount + missCount;
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    /**
+     * Forgets the hashes of all files except the given ones, e.g. because the others have been
+     * deleted.
+     */
+    public synchronized void retainAll(Set<String> paths) {
+        load();
+
+        Iterator<String> iterator = entries.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (!paths.contains(iterator.next())) {
+                iterator.remove();
+                isChanged = true;
+            }
+        }
+    }
+
+    /**
+     * Forgets the hashes of files that no longer exist and writes the index if it has changed.
+     * The index is replaced atomically so that it is never read partially written.
+     */
+    public void save() {
+        List<String> paths;
+        synchronized (this) {
+            paths = new ArrayList<>(entries.keySet());
+        }
+
+        List<String> missingPaths = new ArrayList<>();
+        for (String path : paths) {
+            if (!new File(path).exists()) {
+                missingPaths.add(path);
+            }
+        }
+
+        synchronized (this) {
+            for (String missingPath : missingPaths) {
+                if (entries.remove(missingPath) != null) {
+                    isChanged = true;
+                }
+            }
+            write();
+        }
+    }
+
+    private void write() {
+        if (!isChanged) {
+            return;
+        }
+
+        File tempFile = new File(indexFile.getParentFile(), indexFile.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_FORMAT_VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue().length);
+                out.writeLong(entry.getValue().lastModified);
+                out.writeUTF(entry.getValue().md5);
+            }
+        } catch (IOException e) {
+            Timber.w(e, "Unable to write %s", tempFile);
+            tempFile.delete();
+            return;
+        }
+
+        if (tempFile.renameTo(indexFile)) {
+            isChanged = false;
+        } else {
+            Timber.w("Unable to replace %s", indexFile);
+            tempFile.delete();
+        }
+    }
+
+    private void load() {
+        if (isLoaded) {
+            return;
+        }
+        isLoaded = true;
+
+        if (!indexFile.exists()) {
+            return;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_FORMAT_VERSION) {
+                Timber.i("Ignoring %s written in another format", indexFile);
+                return;
+            }
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                entries.put(path, new Entry(in.readLong(), in.readLong(), in.readUTF()));
+            }
+        } catch (IOException e) {
+            // The hashes will be computed again
+            Timber.w(e, "Unable to read %s", indexFile);
+            entries.clear();
+        }
+    }
+
+    private static class Entry {
+        final long length;
+        final long lastModified;
+        final String md5;
+
+        Entry(long length, long lastModified, String md5) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.md5 = md5;
+        }
+    }
+}
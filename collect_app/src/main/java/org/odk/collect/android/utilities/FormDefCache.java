@@ -1,22 +1,67 @@
 package org.odk.collect.android.utilities;
 
+import android.database.Cursor;
+import android.util.LruCache;
+
+import androidx.annotation.Nullable;
+
 import org.javarosa.core.model.FormDef;
 import org.javarosa.core.util.externalizable.ExtUtil;
+import org.odk.collect.android.BuildConfig;
+import org.odk.collect.android.dao.FormsDao;
+import org.odk.collect.android.provider.FormsProviderAPI.FormsColumns;
 import org.odk.collect.android.storage.StoragePathProvider;
 import org.odk.collect.android.storage.StorageSubdirectory;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilenameFilter;
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
 import timber.log.Timber;
 
-/** Methods for reading from and writing to the FormDef cache */
+/**
+ * Methods for reading from and writing to the FormDef cache.
+ *
+ * Serialized FormDefs are kept in two tiers: a byte-budgeted in-memory LRU of recently used
+ * forms and .formdef files in the cache directory. Entries are keyed by the form's id and
+ * version plus the size and last modified time of the form file, so looking up a form no
+ * longer requires hashing its whole contents. Every entry starts with a header recording the
+ * cache format and JavaRosa versions so that entries written by another JavaRosa are
+ * discarded without attempting to deserialize them. Each read deserializes a fresh FormDef
+ * because callers mutate the FormDef they are given.
+ */
 public class FormDefCache {
 
+    private static final String CACHE_FILE_EXTENSION = ".formdef";
+    private static final int CACHE_MAGIC = 0x4f444b46; // "ODKF"
+    private static final int CACHE_FORMAT_VERSION = 1;
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_MEMORY_CACHE_BYTES = 32 * 1024 * 1024;
+
+    private static final LruCache<String, byte[]> MEMORY_CACHE = new LruCache<String, byte[]>(getMemoryCacheSize()) {
+        @Override
+        protected int sizeOf(String key, byte[] value) {
+            return value.length;
+        }
+    };
+
+    private static final Stats STATS = new Stats();
+
+    /** Cache files were named after the MD5 hash of the form's contents before entries had keys. */
+    private static final Pattern LEGACY_CACHE_FILE_NAME = Pattern.compile("[0-9a-f]{32}\\" + CACHE_FILE_EXTENSION);
+
+    private static final AtomicBoolean LEGACY_ENTRIES_PURGED = new AtomicBoolean();
+
     private FormDefCache() {
         // Private constructor
     }
@@ -24,24 +69,28 @@ public class FormDefCache {
     /**
      * Serializes a FormDef and saves it in the cache. To avoid problems from two callers
      * trying to cache the same file at the same time, we serialize into a temporary file,
-     * and rename it when done.
+     * and rename it when done. Older cache entries for the same form are removed.
      *
      * @param formDef  - The FormDef to be cached
      * @param formPath - The form XML file
      */
     public static void writeCache(FormDef formDef, String formPath) throws IOException {
         final long formSaveStart = System.currentTimeMillis();
-        File cachedFormDefFile = FormDefCache.getCacheFile(new File(formPath));
-        final File tempCacheFile = File.createTempFile("cache", null,
-                new File(new StoragePathProvider().getDirPath(StorageSubdirectory.CACHE)));
+        final File formXml = new File(formPath);
+        final String formKey = getFormKey(formXml);
+        final String cacheKey = getCacheKey(formKey, formXml);
+        File cachedFormDefFile = getCacheFile(cacheKey);
+        final File tempCacheFile = File.createTempFile("cache", null, getCacheDir());
         Timber.i("Started saving %s to the cache via temp file %s",
                 formDef.getTitle(), tempCacheFile.getName());
 
+        byte[] serializedFormDef = null;
         Exception caughtException = null;
         try {
-            DataOutputStream dos = new DataOutputStream(new FileOutputStream(tempCacheFile));
-            formDef.writeExternal(dos);
-            dos.close();
+            serializedFormDef = serializeFormDef(formDef);
+            try (FileOutputStream fos = new FileOutputStream(tempCacheFile)) {
+                fos.write(serializedFormDef);
+            }
         } catch (IOException exception) {
             caughtException = exception;
         }
@@ -56,7 +105,9 @@ public class FormDefCache {
                 Timber.e("Unable to delete " + tempCacheFile.getName());
             }
         } else {
+            deleteStaleEntries(formKey, cachedFormDefFile);
             if (tempCacheFile.renameTo(cachedFormDefFile)) {
+                MEMORY_CACHE.put(cacheKey, serializedFormDef);
                 Timber.i("Renamed %s to %s",
                         tempCacheFile.getName(), cachedFormDefFile.getName());
                 Timber.i("Caching %s took %.3f seconds.", formDef.getTitle(),
@@ -78,44 +129,206 @@ public class FormDefCache {
      * @return a FormDef, or null if the form is not present in the cache
      */
     public static FormDef readCache(File formXml) {
-        final File cachedForm = getCacheFile(formXml);
+        final long start = System.currentTimeMillis();
+        final String cacheKey = getCacheKey(getFormKey(formXml), formXml);
+
+        byte[] serializedFormDef = MEMORY_CACHE.get(cacheKey);
+        if (serializedFormDef != null) {
+            final FormDef formDef = deserializeFormDef(serializedFormDef);
+            if (formDef != null) {
+                STATS.recordMemoryHit(System.currentTimeMillis() - start);
+                Timber.i("Loaded %s from memory cache in %.3f seconds. %s", formXml.getName(),
+                        (System.currentTimeMillis() - start) / 1000F, STATS);
+                return formDef;
+            }
+            MEMORY_CACHE.remove(cacheKey);
+        }
+
+        final File cachedForm = getCacheFile(cacheKey);
         if (cachedForm.exists()) {
             Timber.i("Attempting to load %s from cached file: %s.",
                     formXml.getName(), cachedForm.getName());
-            final long start = System.currentTimeMillis();
-            final FormDef deserializedFormDef = deserializeFormDef(cachedForm);
+            serializedFormDef = readCacheFile(cachedForm);
+            final FormDef deserializedFormDef = serializedFormDef != null
+                    ? deserializeFormDef(serializedFormDef)
+                    : null;
             if (deserializedFormDef != null) {
-                Timber.i("Loaded in %.3f seconds.", (System.currentTimeMillis() - start) / 1000F);
+                MEMORY_CACHE.put(cacheKey, serializedFormDef);
+                STATS.recordDiskHit(System.currentTimeMillis() - start);
+                Timber.i("Loaded in %.3f seconds. %s", (System.currentTimeMillis() - start) / 1000F, STATS);
                 return deserializedFormDef;
             }
 
-            // An error occurred with deserialization. Remove the file, and make a
-            // new .formdef from xml.
+            // The entry is stale or an error occurred with deserialization. Remove the file,
+            // and make a new .formdef from xml.
             Timber.w("Deserialization FAILED! Deleting cache file: %s",
                     cachedForm.getAbsolutePath());
             cachedForm.delete();
         }
+
+        STATS.recordMiss();
         return null;
     }
 
+    /**
+     * Removes every cached entry for the given form from both the memory and the disk tiers.
+     */
+    public static void invalidate(File formXml) {
+        invalidate(getFormKey(formXml));
+    }
+
+    /**
+     * Removes every cached entry for the form with the given id and version.
+     */
+    public static void invalidate(String formId, @Nullable String formVersion) {
+        invalidate(getFormKey(formId, formVersion));
+    }
+
+    private static void invalidate(final String formKey) {
+        for (String cacheKey : MEMORY_CACHE.snapshot().keySet()) {
+            if (cacheKey.startsWith(formKey)) {
+                MEMORY_CACHE.remove(cacheKey);
+            }
+        }
+        deleteStaleEntries(formKey, null);
+    }
+
+    /**
+     * Returns true if an up-to-date cache file exists for the given form.
+     */
+    public static boolean isCached(File formXml) {
+        return getCacheFile(getCacheKey(getFormKey(formXml), formXml)).exists();
+    }
+
+    public static Stats getStats() {
+        return STATS;
+    }
+
+    /**
+     * Identifies a form independently of its contents. The form id and version are used when
+     * the form is known to the forms database; otherwise we fall back to the form's path.
+     */
+    private static String getFormKey(File formXml) {
+        String formId = null;
+        String formVersion = null;
+
+        try (Cursor cursor = new FormsDao().getFormsCursorForFormFilePath(formXml.getAbsolutePath())) {
+            if (cursor != null && cursor.moveToFirst()) {
+                formId = cursor.getString(cursor.getColumnIndex(FormsColumns.JR_FORM_ID));
+                formVersion = cursor.getString(cursor.getColumnIndex(FormsColumns.JR_VERSION));
+            }
+        } catch (RuntimeException e) {
+            Timber.w(e, "Unable to look up form %s in the forms database", formXml.getName());
+        }
+
+        return formId != null
+                ? getFormKey(formId, formVersion)
+                : getFormKey(formXml.getAbsolutePath(), null);
+    }
+
+    static String getFormKey(String formIdOrPath, @Nullable String formVersion) {
+        return FileUtils.getMd5Hash(new ByteArrayInputStream(
+                (formIdOrPath + "\n" + formVersion).getBytes()));
+    }
+
+    static String getCacheKey(String formKey, long formSize, long formLastModified) {
+        return formKey + "-" + Long.toHexString(formSize) + "-" + Long.toHexString(formLastModified);
+    }
+
+    private static String getCacheKey(String formKey, File formXml) {
+        return getCacheKey(formKey, formXml.length(), formXml.lastModified());
+    }
+
+    /**
+     * Returns the cache directory. The first time the cache is used, the files left by the
+     * previous naming scheme are deleted since they can never be looked up again.
+     */
+    private static File getCacheDir() {
+        File cacheDir = new File(new StoragePathProvider().getDirPath(StorageSubdirectory.CACHE));
+        if (LEGACY_ENTRIES_PURGED.compareAndSet(false, true)) {
+            purgeLegacyEntries(cacheDir);
+        }
+        return cacheDir;
+    }
+
+    private static void purgeLegacyEntries(File cacheDir) {
+        File[] legacyEntries = cacheDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return isLegacyCacheFile(name);
+            }
+        });
+
+        if (legacyEntries != null) {
+            for (File legacyEntry : legacyEntries) {
+                Timber.i("Deleting legacy cache file %s", legacyEntry.getName());
+                FileUtils.deleteAndReport(legacyEntry);
+            }
+        }
+    }
+
+    static boolean isLegacyCacheFile(String name) {
+        return LEGACY_CACHE_FILE_NAME.matcher(name).matches();
+    }
+
     /**
      * Builds and returns a File object for the cached version of a form.
-     * @param formXml the File containing the XML form
+     * @param cacheKey the key identifying the form file and its revision
      * @return a File object
      */
-    private static File getCacheFile(File formXml) {
-        return new File(new StoragePathProvider().getDirPath(StorageSubdirectory.CACHE) + File.separator +
-                FileUtils.getMd5Hash(formXml) + ".formdef");
+    private static File getCacheFile(String cacheKey) {
+        return new File(getCacheDir(), cacheKey + CACHE_FILE_EXTENSION);
     }
 
-    private static FormDef deserializeFormDef(File serializedFormDef) {
-        FileInputStream fis;
+    private static void deleteStaleEntries(final String formKey, @Nullable final File currentEntry) {
+        File[] staleEntries = getCacheDir().listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(formKey) && name.endsWith(CACHE_FILE_EXTENSION)
+                        && (currentEntry == null || !name.equals(currentEntry.getName()));
+            }
+        });
+
+        if (staleEntries != null) {
+            for (File staleEntry : staleEntries) {
+                Timber.i("Deleting stale cache file %s", staleEntry.getName());
+                FileUtils.deleteAndReport(staleEntry);
+            }
+        }
+    }
+
+    private static byte[] serializeFormDef(FormDef formDef) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(STREAM_BUFFER_SIZE);
+        DataOutputStream dos = new DataOutputStream(bos);
+        writeHeader(dos);
+        formDef.writeExternal(dos);
+        dos.close();
+        return bos.toByteArray();
+    }
+
+    @Nullable
+    private static byte[] readCacheFile(File cachedForm) {
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(cachedForm), STREAM_BUFFER_SIZE))) {
+            byte[] serializedFormDef = new byte[(int) cachedForm.length()];
+            dis.readFully(serializedFormDef);
+            return serializedFormDef;
+        } catch (IOException e) {
+            Timber.e(e);
+            return null;
+        }
+    }
+
+    @Nullable
+    private static FormDef deserializeFormDef(byte[] serializedFormDef) {
         FormDef fd;
         try {
             // create new form def
             fd = new FormDef();
-            fis = new FileInputStream(serializedFormDef);
-            DataInputStream dis = new DataInputStream(fis);
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(serializedFormDef));
+            if (!readHeader(dis)) {
+                Timber.i("Cached FormDef was written by another cache format or JavaRosa version");
+                return null;
+            }
 
             // read serialized formdef into new formdef
             fd.readExternal(dis, ExtUtil.defaultPrototypes());
@@ -127,4 +340,75 @@ public class FormDefCache {
 
         return fd;
     }
+
+    static void writeHeader(DataOutputStream dos) throws IOException {
+        dos.writeInt(CACHE_MAGIC);
+        dos.writeInt(CACHE_FORMAT_VERSION);
+        dos.writeUTF(BuildConfig.JAVAROSA_VERSION);
+    }
+
+    /**
+     * Reads the header and returns true if the rest of the stream was written in the current
+     * cache format by the current version of JavaRosa.
+     */
+    static boolean readHeader(DataInputStream dis) throws IOException {
+        return dis.readInt() == CACHE_MAGIC
+                && dis.readInt() == CACHE_FORMAT_VERSION
+                && BuildConfig.JAVAROSA_VERSION.equals(dis.readUTF());
+    }
+
+    private static int getMemoryCacheSize() {
+        return (int) Math.min(Runtime.getRuntime().maxMemory() / 16, MAX_MEMORY_CACHE_BYTES);
+    }
+
+    /** Hit, miss and load time counters for the FormDef cache. */
+    public static class Stats {
+        private final AtomicLong memoryHits = new AtomicLong();
+        private final AtomicLong diskHits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong memoryLoadMillis = new AtomicLong();
+        private final AtomicLong diskLoadMillis = new AtomicLong();
+
+        void recordMemoryHit(long millis) {
+            memoryHits.incrementAndGet();
+            memoryLoadMillis.addAndGet(millis);
+        }
+
+        void recordDiskHit(long millis) {
+            diskHits.incrementAndGet();
+            diskLoadMillis.addAndGet(millis);
+        }
+
+        void recordMiss() {
+            misses.incrementAndGet();
+        }
+
+        public long getMemoryHits() {
+            return memoryHits.get();
+        }
+
+        public long getDiskHits() {
+            return diskHits.get();
+        }
+
+        public long getMisses() {
+            return misses.get();
+        }
+
+        public long getAverageMemoryLoadMillis() {
+            long hits = memoryHits.get();
+            return hits == 0 ? 0 : memoryLoadMillis.get() / hits;
+        }
+
+        public long getAverageDiskLoadMillis() {
+            long hits = diskHits.get();
+            return hits == 0 ? 0 : diskLoadMillis.get() / hits;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("FormDef cache: %d memory hits (avg %d ms), %d disk hits (avg %d ms), %d misses",
+                    getMemoryHits(), getAverageMemoryLoadMillis(), getDiskHits(), getAverageDiskLoadMillis(), getMisses());
+        }
+    }
 }
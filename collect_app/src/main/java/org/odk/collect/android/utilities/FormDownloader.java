@@ -19,6 +19,9 @@ package org.odk.collect.android.utilities;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.net.Uri;
+import android.text.format.Formatter;
+
+import androidx.annotation.Nullable;
 
 import org.javarosa.core.reference.ReferenceManager;
 import org.javarosa.core.reference.RootTranslator;
@@ -27,6 +30,8 @@ import org.kxml2.kdom.Element;
 import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.dao.FormsDao;
+import org.odk.collect.android.forms.FormDefCacheWorker;
+import org.odk.collect.android.forms.FormUtils.ReferenceManagerState;
 import org.odk.collect.android.listeners.FormDownloaderListener;
 import org.odk.collect.android.logic.FileReferenceFactory;
 import org.odk.collect.android.logic.FormDetails;
@@ -44,14 +49,25 @@ import java.io.OutputStream;
 import java.net.URISyntaxException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.inject.Inject;
 
 import timber.log.Timber;
 
+import static org.odk.collect.android.forms.FormUtils.addSessionRootTranslators;
+import static org.odk.collect.android.forms.FormUtils.restoreReferenceManagerState;
+import static org.odk.collect.android.forms.FormUtils.saveReferenceManagerState;
 import static org.odk.collect.android.utilities.FileUtils.LAST_SAVED_FILENAME;
 import static org.odk.collect.android.utilities.FileUtils.STUB_XML;
 import static org.odk.collect.android.utilities.FileUtils.write;
@@ -60,11 +76,16 @@ public class FormDownloader {
 
     private static final String MD5_COLON_PREFIX = "md5:";
     private static final String TEMP_DOWNLOAD_EXTENSION = ".tempDownload";
+    private static final int MAX_FORMS_AWAITING_INSTALL = 1;
 
     private FormDownloaderListener stateListener;
 
     private FormsDao formsDao;
 
+    // The hashes of media files, which are recorded as they are downloaded so that checking for
+    // updated media doesn't have to read them again
+    private final FileDigestIndex mediaIndex = FileDigestIndex.getMediaIndex();
+
     @Inject
     OpenRosaAPIClient openRosaAPIClient;
 
@@ -99,36 +120,100 @@ public class FormDownloader {
         }
     }
 
+    /**
+     * Downloads and installs the given forms. While a form is parsed and installed on a background
+     * thread, the definition and media of the next forms are already downloaded. At most
+     * {@link #MAX_FORMS_AWAITING_INSTALL} forms wait to be installed so that downloads don't run
+     * far ahead of a slow parse.
+     */
     public HashMap<FormDetails, String> downloadForms(List<FormDetails> toDownload) {
         formsDao = new FormsDao();
         int total = toDownload.size();
         int count = 1;
 
         final HashMap<FormDetails, String> result = new HashMap<>();
+        final Map<FormDetails, Future<String>> installs = new LinkedHashMap<>();
+        ExecutorService installer = Executors.newSingleThreadExecutor();
 
-        for (FormDetails fd : toDownload) {
-            try {
-                String message = processOneForm(total, count++, fd);
-                result.put(fd, message.isEmpty() ?
+        try {
+            for (FormDetails fd : toDownload) {
+                DownloadedForm downloadedForm;
+                try {
+                    awaitInstalls(installs.values(), MAX_FORMS_AWAITING_INSTALL);
+                    downloadedForm = downloadOneForm(total, count++, fd);
+                } catch (TaskCancelledException cd) {
+                    break;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+
+                if (downloadedForm.error != null) {
+                    result.put(fd, downloadedForm.error);
+                } else {
+                    installs.put(fd, installer.submit(() -> installOneForm(downloadedForm)));
+                }
+            }
+
+            for (Map.Entry<FormDetails, Future<String>> install : installs.entrySet()) {
+                String message;
+                try {
+                    message = install.getValue().get();
+                } catch (ExecutionException e) {
+                    message = getExceptionMessage(e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                result.put(install.getKey(), message.isEmpty() ?
                         Collect.getInstance().getString(R.string.success) : message);
-            } catch (TaskCancelledException cd) {
-                break;
             }
+        } finally {
+            // Forms that are already downloaded are still parsed. If the task was cancelled,
+            // their files are cleaned up instead of being installed.
+            installer.shutdown();
         }
 
+        mediaIndex.save();
         return result;
     }
 
     /**
-     * Processes one form download.
+     * Waits until no more than the given number of installs are pending.
+     */
+    private static void awaitInstalls(Collection<Future<String>> installs, int maxPending) throws InterruptedException {
+        int pending = 0;
+        for (Future<String> install : installs) {
+            if (!install.isDone()) {
+                pending++;
+            }
+        }
+
+        for (Future<String> install : installs) {
+            if (pending <= maxPending) {
+                return;
+            }
+            if (!install.isDone()) {
+                try {
+                    install.get();
+                } catch (ExecutionException e) {
+                    // Reported with the results
+                }
+                pending--;
+            }
+        }
+    }
+
+    /**
+     * Downloads the definition and the media files of one form.
      *
      * @param total the total number of forms being downloaded by this task
      * @param count the number of this form
      * @param fd    the FormDetails
-     * @return an empty string for success, or a nonblank string with one or more error messages
+     * @return the downloaded form, or an error message if it couldn't be downloaded
      * @throws TaskCancelledException to signal that form downloading is to be canceled
      */
-    private String processOneForm(int total, int count, FormDetails fd) throws TaskCancelledException {
+    private DownloadedForm downloadOneForm(int total, int count, FormDetails fd) throws TaskCancelledException {
         if (stateListener != null) {
             stateListener.progressUpdate(fd.getFormName(), String.valueOf(count), String.valueOf(total));
         }
@@ -137,9 +222,10 @@ public class FormDownloader {
             throw new TaskCancelledException();
         }
 
-        // use a temporary media path until everything is ok.
+        // use a temporary media path until everything is ok. The form number keeps the paths of
+        // forms that are downloaded while others are still being installed apart.
         String tempMediaPath = new File(new StoragePathProvider().getDirPath(StorageSubdirectory.CACHE),
-                String.valueOf(System.currentTimeMillis())).getAbsolutePath();
+                System.currentTimeMillis() + "_" + count).getAbsolutePath();
         final String finalMediaPath;
         FileResult fileResult = null;
         try {
@@ -165,9 +251,22 @@ public class FormDownloader {
             // do not download additional forms.
             throw e;
         } catch (Exception e) {
-            return message + getExceptionMessage(e);
+            return new DownloadedForm(message + getExceptionMessage(e));
         }
 
+        return new DownloadedForm(fileResult, tempMediaPath, message);
+    }
+
+    /**
+     * Parses and installs a downloaded form.
+     *
+     * @return an empty string for success, or a nonblank string with one or more error messages
+     */
+    private String installOneForm(DownloadedForm downloadedForm) {
+        FileResult fileResult = downloadedForm.fileResult;
+        String tempMediaPath = downloadedForm.tempMediaPath;
+        String message = downloadedForm.message;
+
         if (stateListener != null && stateListener.isTaskCanceled()) {
             cleanUp(fileResult, null, tempMediaPath);
             fileResult = null;
@@ -183,12 +282,21 @@ public class FormDownloader {
                 // when parsing a form definition with last-saved reference
                 File tmpLastSaved = new File(tempMediaPath, LAST_SAVED_FILENAME);
                 write(tmpLastSaved, STUB_XML.getBytes(Charset.forName("UTF-8")));
-                ReferenceManager.instance().reset();
-                ReferenceManager.instance().addReferenceFactory(new FileReferenceFactory(tempMediaPath));
-                ReferenceManager.instance().addSessionRootTranslator(new RootTranslator("jr://file-csv/", "jr://file/"));
 
-                parsedFields = FileUtils.getMetadataFromFormDefinition(fileResult.file);
-                ReferenceManager.instance().reset();
+                // The references are set up for this form only while it is parsed and are then
+                // put back as they were for the form that may be open meanwhile
+                synchronized (ReferenceManager.instance()) {
+                    ReferenceManagerState previousState = saveReferenceManagerState(ReferenceManager.instance());
+                    try {
+                        ReferenceManager.instance().reset();
+                        ReferenceManager.instance().addReferenceFactory(new FileReferenceFactory(tempMediaPath));
+                        addSessionRootTranslators(ReferenceManager.instance(),
+                                Collections.singletonList(new RootTranslator("jr://file-csv/", "jr://file/")));
+                        parsedFields = FileUtils.getMetadataFromFormDefinition(fileResult.file);
+                    } finally {
+                        restoreReferenceManagerState(ReferenceManager.instance(), previousState);
+                    }
+                }
                 FileUtils.deleteAndReport(tmpLastSaved);
 
                 Timber.i("Parse finished in %.3f seconds.",
@@ -215,6 +323,32 @@ public class FormDownloader {
         return message;
     }
 
+    /**
+     * A form whose files have been downloaded and that is waiting to be installed.
+     */
+    private static class DownloadedForm {
+        private final FileResult fileResult;
+        private final String tempMediaPath;
+        private final String message;
+
+        // Set if the form couldn't be downloaded, in which case it isn't installed
+        private final String error;
+
+        DownloadedForm(FileResult fileResult, String tempMediaPath, String message) {
+            this.fileResult = fileResult;
+            this.tempMediaPath = tempMediaPath;
+            this.message = message;
+            this.error = null;
+        }
+
+        DownloadedForm(String error) {
+            this.fileResult = null;
+            this.tempMediaPath = null;
+            this.message = null;
+            this.error = error;
+        }
+    }
+
     private boolean isSubmissionOk(Map<String, String> parsedFields) {
         String submission = parsedFields.get(FileUtils.SUBMISSIONURI);
         return submission == null || Validator.isUrlValid(submission);
@@ -231,7 +365,11 @@ public class FormDownloader {
                 if (tempMediaPath != null) {
                     File formMediaPath = new File(uriResult.getMediaPath());
                     FileUtils.moveMediaFiles(tempMediaPath, formMediaPath);
+                    mediaIndex.moveAll(new File(tempMediaPath), formMediaPath);
                 }
+
+                // Parse and cache the form now so that opening it doesn't have to
+                FormDefCacheWorker.schedule(fileResult.getFile());
                 return true;
             } else {
                 Timber.w("Form uri = null");
@@ -267,6 +405,7 @@ public class FormDownloader {
 
         if (tempMediaPath != null) {
             FileUtils.purgeMediaPath(tempMediaPath);
+            mediaIndex.removeAll(new File(tempMediaPath));
         }
     }
 
@@ -644,7 +783,6 @@ public class FormDownloader {
 
         // OK we now have the full set of files to download...
         Timber.i("Downloading %d media files.", files.size());
-        int mediaCount = 0;
         if (!files.isEmpty()) {
             File tempMediaDir = new File(tempMediaPath);
             File finalMediaDir = new File(finalMediaPath);
@@ -652,31 +790,24 @@ public class FormDownloader {
             FileUtils.checkMediaPath(tempMediaDir);
             FileUtils.checkMediaPath(finalMediaDir);
 
+            List<MediaFileDownloader.Download> downloads = new ArrayList<>();
             for (MediaFile toDownload : files) {
-                ++mediaCount;
-                if (stateListener != null) {
-                    stateListener.progressUpdate(
-                            Collect.getInstance().getString(R.string.form_download_progress,
-                                    fd.getFormName(),
-                                    String.valueOf(mediaCount), String.valueOf(files.size())),
-                            String.valueOf(count), String.valueOf(total));
-                }
-
-                //try {
                 File finalMediaFile = new File(finalMediaDir, toDownload.getFilename());
                 File tempMediaFile = new File(tempMediaDir, toDownload.getFilename());
 
                 if (!finalMediaFile.exists()) {
-                    downloadFile(tempMediaFile, toDownload.getDownloadUrl());
+                    downloads.add(new MediaFileDownloader.Download(tempMediaFile,
+                            toDownload.getDownloadUrl(), getExpectedMd5Hash(toDownload.getHash())));
                 } else {
-                    String currentFileHash = FileUtils.getMd5Hash(finalMediaFile);
+                    String currentFileHash = mediaIndex.getMd5Hash(finalMediaFile);
                     String downloadFileHash = getMd5Hash(toDownload.getHash());
 
                     if (currentFileHash != null && downloadFileHash != null && !currentFileHash.contentEquals(downloadFileHash)) {
                         // if the hashes match, it's the same file
                         // otherwise delete our current one and replace it with the new one
                         FileUtils.deleteAndReport(finalMediaFile);
-                        downloadFile(tempMediaFile, toDownload.getDownloadUrl());
+                        downloads.add(new MediaFileDownloader.Download(tempMediaFile,
+                                toDownload.getDownloadUrl(), getExpectedMd5Hash(toDownload.getHash())));
                     } else {
                         // exists, and the hash is the same
                         // no need to download it again
@@ -684,14 +815,51 @@ public class FormDownloader {
                                 finalMediaFile.getAbsolutePath());
                     }
                 }
-                //  } catch (Exception e) {
-                //  return e.getLocalizedMessage();
-                //}
+            }
+
+            final int skippedCount = files.size() - downloads.size();
+            MediaFileDownloader mediaFileDownloader = new MediaFileDownloader(openRosaAPIClient,
+                    new File(new StoragePathProvider().getDirPath(StorageSubdirectory.CACHE)), mediaIndex,
+                    new MediaFileDownloader.Listener() {
+                        @Override
+                        public boolean isCancelled() {
+                            return stateListener != null && stateListener.isTaskCanceled();
+                        }
+
+                        @Override
+                        public void onProgress(int completedCount, long bytesReceived) {
+                            if (stateListener != null) {
+                                stateListener.progressUpdate(
+                                        Collect.getInstance().getString(R.string.form_download_progress,
+                                                fd.getFormName(),
+                                                String.valueOf(skippedCount + completedCount), String.valueOf(files.size()))
+                                                + "\n" + Collect.getInstance().getString(R.string.media_bytes_received,
+                                                Formatter.formatShortFileSize(Collect.getInstance(), bytesReceived)),
+                                        String.valueOf(count), String.valueOf(total));
+                            }
+                        }
+                    });
+
+            if (!mediaFileDownloader.downloadAll(downloads)) {
+                throw new TaskCancelledException();
             }
         }
         return null;
     }
 
+    /**
+     * Returns the lower case md5 hash given by a manifest hash such as "md5:...", or null if the
+     * manifest hash isn't a valid md5 hash.
+     */
+    @Nullable
+    static String getExpectedMd5Hash(String hash) {
+        if (hash == null || !hash.regionMatches(true, 0, MD5_COLON_PREFIX, 0, MD5_COLON_PREFIX.length())) {
+            return null;
+        }
+        String md5 = hash.substring(MD5_COLON_PREFIX.length()).trim().toLowerCase(Locale.US);
+        return md5.matches("[0-9a-f]{32}") ? md5 : null;
+    }
+
     public static String getMd5Hash(String hash) {
         return hash == null || hash.isEmpty() ? null : hash.substring(MD5_COLON_PREFIX.length());
     }
@@ -38,7 +38,9 @@ import java.io.File;
 import java.net.HttpURLConnection;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import timber.log.Timber;
 
@@ -55,6 +57,7 @@ public class FormListDownloader {
     private final OpenRosaAPIClient openRosaAPIClient;
     private final Application application;
     private final FormsDao formsDao;
+    private final FileDigestIndex mediaIndex = FileDigestIndex.getMediaIndex();
 
     public FormListDownloader(
             Application application,
@@ -73,6 +76,25 @@ public class FormListDownloader {
 
     public HashMap<String, FormDetails> downloadFormList(@Nullable String url, @Nullable String username,
                                                          @Nullable String password, boolean alwaysCheckMediaFiles) {
+        // The index is shared for the life of the process so its counts are compared with the
+        // ones before this refresh
+        long hitCountBefore = mediaIndex.getHitCount();
+        long missCountBefore = mediaIndex.getMissCount();
+        try {
+            return fetchFormList(url, username, password, alwaysCheckMediaFiles);
+        } finally {
+            long hitCount = mediaIndex.getHitCount() - hitCountBefore;
+            long missCount = mediaIndex.getMissCount() - missCountBefore;
+            Timber.i("Media digest index for this refresh: %d hits, %d misses (%.0f%% hit rate)", hitCount,
+                    missCount, hitCount + missCount == 0 ? 0 : hitCount * 100.0 / (hitCount + missCount));
+
+            // Keep the hashes of the media files that were checked for the next refresh
+            mediaIndex.save();
+        }
+    }
+
+    private HashMap<String, FormDetails> fetchFormList(@Nullable String url, @Nullable String username,
+                                                       @Nullable String password, boolean alwaysCheckMediaFiles) {
         SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(
                 application);
 
@@ -447,8 +469,9 @@ public class FormListDownloader {
         if (mediaDirPath != null) {
             File[] localMediaFiles = new File(mediaDirPath).listFiles();
             if (localMediaFiles != null) {
+                Set<String> localMediaHashes = getMd5Hashes(localMediaFiles);
                 for (MediaFile newMediaFile : newMediaFiles) {
-                    if (!isMediaFileAlreadyDownloaded(localMediaFiles, newMediaFile)) {
+                    if (!isMediaFileAlreadyDownloaded(localMediaHashes, newMediaFile)) {
                         return true;
                     }
                 }
@@ -460,7 +483,24 @@ public class FormListDownloader {
         return false;
     }
 
-    private static boolean isMediaFileAlreadyDownloaded(File[] localMediaFiles, MediaFile newMediaFile) {
+    /**
+     * Returns the md5 hashes of the given files. Only files that changed since their hash was last
+     * computed are read.
+     */
+    private Set<String> getMd5Hashes(File[] files) {
+        Set<String> hashes = new HashSet<>();
+        for (File file : files) {
+            if (file.isFile()) {
+                String md5 = mediaIndex.getMd5Hash(file);
+                if (md5 != null) {
+                    hashes.add(md5);
+                }
+            }
+        }
+        return hashes;
+    }
+
+    private static boolean isMediaFileAlreadyDownloaded(Set<String> localMediaHashes, MediaFile newMediaFile) {
         // TODO Zip files are ignored we should find a way to take them into account too
         if (newMediaFile.getFilename().endsWith(".zip")) {
             return true;
@@ -468,12 +508,7 @@ public class FormListDownloader {
 
         String mediaFileHash = newMediaFile.getHash();
         mediaFileHash = mediaFileHash.substring(4, mediaFileHash.length());
-        for (File localMediaFile : localMediaFiles) {
-            if (mediaFileHash.equals(FileUtils.getMd5Hash(localMediaFile))) {
-                return true;
-            }
-        }
-        return false;
+        return localMediaHashes.contains(mediaFileHash);
     }
 
     private static boolean isXformsListNamespacedElement(Element e) {
@@ -20,6 +20,7 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Matrix;
+import android.os.SystemClock;
 import androidx.exifinterface.media.ExifInterface;
 
 import org.javarosa.core.model.instance.TreeElement;
@@ -27,37 +28,49 @@ import org.odk.collect.android.R;
 import org.odk.collect.android.preferences.GeneralSharedPreferences;
 import org.odk.collect.android.widgets.QuestionWidget;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Locale;
 
 import timber.log.Timber;
 
 import static org.odk.collect.android.preferences.GeneralKeys.KEY_IMAGE_SIZE;
 import static org.odk.collect.android.utilities.ApplicationConstants.Namespaces.XML_OPENROSA_NAMESPACE;
 
+/**
+ * Rotates images according to their EXIF orientation and scales them down to the size
+ * configured in the form or in the settings.
+ *
+ * Photos are decoded only once, already subsampled by a power of two that keeps them at
+ * least as large as the requested size, and then rotated and scaled to the exact size in
+ * a single transformation. Images are converted one at a time and their bitmaps are recycled
+ * as soon as they have been saved so that no more than one photo is held in memory. This must
+ * not be called on the main thread.
+ */
 public class ImageConverter {
 
     private ImageConverter() {
     }
 
     public static void execute(String imagePath, QuestionWidget questionWidget, Context context) {
-        rotateImageIfNeeded(imagePath);
-        scaleDownImageIfNeeded(imagePath, questionWidget, context);
-    }
-
-    private static void scaleDownImageIfNeeded(String imagePath, QuestionWidget questionWidget, Context context) {
-        Integer maxPixels;
+        long start = SystemClock.elapsedRealtime();
 
+        int degrees = getRotationDegrees(imagePath);
+        int maxPixels = 0;
         if (questionWidget != null) {
-            maxPixels = getMaxPixelsFromFormIfDefined(questionWidget);
-
-            if (maxPixels == null) {
-                maxPixels = getMaxPixelsFromSettings(context);
+            Integer configuredMaxPixels = getMaxPixelsFromFormIfDefined(questionWidget);
+            if (configuredMaxPixels == null) {
+                configuredMaxPixels = getMaxPixelsFromSettings(context);
             }
-
-            if (maxPixels != null && maxPixels > 0) {
-                scaleDownImage(imagePath, maxPixels);
+            if (configuredMaxPixels != null) {
+                maxPixels = configuredMaxPixels;
             }
         }
+
+        if (convertImage(imagePath, degrees, maxPixels)) {
+            Timber.i("Converted %s in %d ms", imagePath, SystemClock.elapsedRealtime() - start);
+        }
     }
 
     private static Integer getMaxPixelsFromFormIfDefined(QuestionWidget questionWidget) {
@@ -93,70 +106,151 @@ public class ImageConverter {
     }
 
     /**
-     * This method is used to reduce an original picture size.
-     * maxPixels refers to the max pixels of the long edge, the short edge is scaled proportionately.
+     * Rotates the image by the given number of degrees and scales it down so that its
+     * long edge is at most maxPixels (if maxPixels is positive), replacing the file.
+     * Returns false if the image didn't need to be converted or couldn't be converted.
      */
-    private static void scaleDownImage(String imagePath, int maxPixels) {
-        Bitmap image = FileUtils.getBitmap(imagePath, new BitmapFactory.Options());
-
-        if (image != null) {
-            double originalWidth = image.getWidth();
-            double originalHeight = image.getHeight();
+    private static synchronized boolean convertImage(String imagePath, int degrees, int maxPixels) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(imagePath, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return false;
+        }
 
-            if (originalWidth > originalHeight && originalWidth > maxPixels) {
-                int newHeight = (int) (originalHeight / (originalWidth / maxPixels));
+        boolean swapsEdges = degrees == 90 || degrees == 270;
+        int rotatedWidth = swapsEdges ? options.outHeight : options.outWidth;
+        int rotatedHeight = swapsEdges ? options.outWidth : options.outHeight;
+        int[] scaledSize = maxPixels > 0 ? getScaledSize(rotatedWidth, rotatedHeight, maxPixels) : null;
+        if (degrees == 0 && scaledSize == null) {
+            return false;
+        }
 
-                image = Bitmap.createScaledBitmap(image, maxPixels, newHeight, false);
-                FileUtils.saveBitmapToFile(image, imagePath);
-            } else if (originalHeight > maxPixels) {
-                int newWidth = (int) (originalWidth / (originalHeight / maxPixels));
+        int targetWidth = scaledSize != null ? scaledSize[0] : rotatedWidth;
+        int targetHeight = scaledSize != null ? scaledSize[1] : rotatedHeight;
+        Bitmap image = decodeSampledBitmap(imagePath,
+                getSampleSize(Math.max(rotatedWidth, rotatedHeight), Math.max(targetWidth, targetHeight)));
+        if (image == null) {
+            return false;
+        }
 
-                image = Bitmap.createScaledBitmap(image, newWidth, maxPixels, false);
-                FileUtils.saveBitmapToFile(image, imagePath);
+        Bitmap result = image;
+        try {
+            Matrix matrix = new Matrix();
+            matrix.postRotate(degrees);
+            int sampledWidth = swapsEdges ? image.getHeight() : image.getWidth();
+            int sampledHeight = swapsEdges ? image.getWidth() : image.getHeight();
+            matrix.postScale((float) targetWidth / sampledWidth, (float) targetHeight / sampledHeight);
+            if (!matrix.isIdentity()) {
+                result = Bitmap.createBitmap(image, 0, 0, image.getWidth(), image.getHeight(), matrix, true);
             }
+        } catch (OutOfMemoryError e) {
+            // Save the image as it was decoded rather than not at all
+            Timber.w(e);
         }
+
+        boolean saved = saveBitmap(result, imagePath);
+        if (result != image) {
+            result.recycle();
+        }
+        image.recycle();
+        return saved;
     }
 
     /**
-     * Sometimes an image might be taken up sideways.
-     * https://github.com/opendatakit/collect/issues/36
+     * Returns the width and height of an image whose long edge is scaled down to maxPixels,
+     * or null if the image is already small enough.
      */
-    private static void rotateImageIfNeeded(String imagePath) {
-        ExifInterface exif = null;
+    static int[] getScaledSize(int width, int height, int maxPixels) {
+        double originalWidth = width;
+        double originalHeight = height;
+
+        if (originalWidth > originalHeight && originalWidth > maxPixels) {
+            return new int[] {maxPixels, (int) (originalHeight / (originalWidth / maxPixels))};
+        } else if (originalHeight > maxPixels) {
+            return new int[] {(int) (originalWidth / (originalHeight / maxPixels)), maxPixels};
+        }
+        return null;
+    }
+
+    /**
+     * Returns the largest power of two by which an image can be subsampled without its
+     * long edge getting shorter than the target.
+     */
+    static int getSampleSize(int longEdge, int targetLongEdge) {
+        int sampleSize = 1;
+        while (longEdge / (sampleSize * 2) >= targetLongEdge) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private static Bitmap decodeSampledBitmap(String imagePath, int sampleSize) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+
         try {
-            exif = new ExifInterface(imagePath);
-        } catch (IOException e) {
-            Timber.w(e);
+            return BitmapFactory.decodeFile(imagePath, options);
+        } catch (OutOfMemoryError e) {
+            Timber.i(e);
+            // Like FileUtils.getBitmap, fall back to a smaller image rather than none
+            return FileUtils.getBitmap(imagePath, getSmallerSampleOptions(sampleSize));
         }
+    }
 
-        if (exif != null) {
-            Bitmap image = FileUtils.getBitmap(imagePath, new BitmapFactory.Options());
+    private static BitmapFactory.Options getSmallerSampleOptions(int sampleSize) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize * 2;
+        return options;
+    }
 
-            int orientation = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
-            switch (orientation) {
-                case ExifInterface.ORIENTATION_ROTATE_90:
-                    rotateBitmap(image, 90, imagePath);
-                    break;
-                case ExifInterface.ORIENTATION_ROTATE_180:
-                    rotateBitmap(image, 180, imagePath);
-                    break;
+    /**
+     * Encodes the bitmap into a file next to the image and then replaces the image with it,
+     * so that the image isn't lost if encoding fails.
+     */
+    private static boolean saveBitmap(Bitmap bitmap, String imagePath) {
+        Bitmap.CompressFormat compressFormat = imagePath.toLowerCase(Locale.getDefault()).endsWith(".png") ?
+                Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG;
 
-                case ExifInterface.ORIENTATION_ROTATE_270:
-                    rotateBitmap(image, 270, imagePath);
-                    break;
+        File imageFile = new File(imagePath);
+        File tempFile = new File(imageFile.getParentFile(), imageFile.getName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tempFile)) {
+            if (!bitmap.compress(compressFormat, 100, out)) {
+                throw new IOException("Could not encode " + imagePath);
             }
+        } catch (IOException e) {
+            Timber.e(e);
+            tempFile.delete();
+            return false;
         }
+
+        if (!tempFile.renameTo(imageFile)) {
+            Timber.e("Could not replace %s", imagePath);
+            tempFile.delete();
+            return false;
+        }
+        return true;
     }
 
-    private static void rotateBitmap(Bitmap image, int degrees, String imagePath) {
+    /**
+     * Sometimes an image might be taken up sideways.
+     * https://github.com/opendatakit/collect/issues/36
+     */
+    private static int getRotationDegrees(String imagePath) {
         try {
-            Matrix matrix = new Matrix();
-            matrix.postRotate(degrees);
-            image = Bitmap.createBitmap(image, 0, 0, image.getWidth(), image.getHeight(), matrix, true);
-        } catch (OutOfMemoryError e) {
+            ExifInterface exif = new ExifInterface(imagePath);
+            switch (exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL)) {
+                case ExifInterface.ORIENTATION_ROTATE_90:
+                    return 90;
+                case ExifInterface.ORIENTATION_ROTATE_180:
+                    return 180;
+                case ExifInterface.ORIENTATION_ROTATE_270:
+                    return 270;
+            }
+        } catch (IOException e) {
             Timber.w(e);
         }
-        FileUtils.saveBitmapToFile(image, imagePath);
+        return 0;
     }
 
     public static Bitmap scaleImageToNewWidth(Bitmap bitmap, int newWidth) {
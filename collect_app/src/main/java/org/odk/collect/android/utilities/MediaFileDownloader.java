@@ -0,0 +1,374 @@
+package org.odk.collect.android.utilities;
+
+import androidx.annotation.Nullable;
+
+import org.odk.collect.android.openrosa.HttpGetResult;
+import org.odk.collect.android.openrosa.OpenRosaAPIClient;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.security.MessageDigest;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import timber.log.Timber;
+
+/**
+ * Downloads the media files of a form, a few of them at a time.
+ *
+ * Each file is first written to a partial file in the cache directory. When a transfer fails,
+ * the next attempt asks the server for the rest of the file with a Range header rather than
+ * starting over. Partial files of media whose md5 hash is given by the manifest are named after
+ * that hash, so they are also resumed by a later download of the same form, e.g. when the user
+ * tries again after a download failed on a poor connection. The md5 hash is computed while the
+ * file is streamed and a file that doesn't match the manifest is discarded. The hash of every
+ * downloaded file is added to a {@link FileDigestIndex} so that it isn't read again to be compared
+ * with later manifests.
+ */
+class MediaFileDownloader {
+
+    static final int MAX_PARALLEL_DOWNLOADS = 4;
+
+    private static final int MAX_ATTEMPT_COUNT = 3;
+    private static final long RETRY_DELAY_MS = 1000;
+    private static final long PROGRESS_INTERVAL_MS = 250;
+    private static final long STOP_TIMEOUT_MS = 5000;
+    private static final long MAX_PARTIAL_AGE_MS = 7 * 24 * 60 * 60 * 1000L;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    private static final String PARTIAL_PREFIX = "media-";
+    private static final String PARTIAL_EXTENSION = ".tempDownload";
+
+    // Names of the partial files being written, so that two downloads of the same file (e.g.
+    // the same image attached to two forms) don't write to the same partial file
+    private static final Set<String> PARTIALS_IN_USE = new HashSet<>();
+
+    private final OpenRosaAPIClient openRosaAPIClient;
+    private final File partialsDir;
+    private final FileDigestIndex digestIndex;
+    private final Listener listener;
+
+    private final AtomicInteger completedCount = new AtomicInteger();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private volatile boolean isStopped;
+
+    MediaFileDownloader(OpenRosaAPIClient openRosaAPIClient, File partialsDir, FileDigestIndex digestIndex, Listener listener) {
+        this.openRosaAPIClient = openRosaAPIClient;
+        this.partialsDir = partialsDir;
+        this.digestIndex = digestIndex;
+        this.listener = listener;
+    }
+
+    /**
+     * Downloads the given files, reporting progress and checking for cancellation on the calling
+     * thread. As soon as a file fails to download the remaining downloads are stopped and the
+     * failure is thrown.
+     *
+     * @return true if all the files were downloaded, false if the downloads were cancelled
+     */
+    boolean downloadAll(List<Download> downloads) throws Exception {
+        if (downloads.isEmpty()) {
+            return true;
+        }
+        deleteStalePartials();
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(MAX_PARALLEL_DOWNLOADS, downloads.size()));
+        CompletionService<Void> completionService = new ExecutorCompletionService<>(executor);
+        for (Download download : downloads) {
+            completionService.submit(() -> {
+                download(download);
+                return null;
+            });
+        }
+
+        try {
+            int remaining = downloads.size();
+            int reportedCount = -1;
+            long reportedBytes = -1;
+            while (remaining > 0) {
+                if (listener.isCancelled()) {
+                    return false;
+                }
+
+                Future<Void> future = completionService.poll(PROGRESS_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                if (future != null) {
+                    remaining--;
+                    getResult(future);
+                }
+
+                int count = completedCount.get();
+                long bytes = bytesReceived.get();
+                if (count != reportedCount || bytes != reportedBytes) {
+                    listener.onProgress(count, bytes);
+                    reportedCount = count;
+                    reportedBytes = bytes;
+                }
+            }
+            return !listener.isCancelled();
+        } finally {
+            isStopped = true;
+            executor.shutdownNow();
+            executor.awaitTermination(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            Timber.i("Received %d bytes for %d of %d media files", bytesReceived.get(), completedCount.get(), downloads.size());
+        }
+    }
+
+    private static void getResult(Future<Void> future) throws Exception {
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+
+    private void download(Download download) throws Exception {
+        File partialFile = claimPartialFile(download);
+        AtomicLong fileBytesReceived = new AtomicLong();
+        try {
+            for (int attempt = 1; !isStopped; attempt++) {
+                try {
+                    String md5 = transfer(download, partialFile, fileBytesReceived);
+                    if (md5 != null && !isStopped) {
+                        moveToFinalFile(partialFile, download.file);
+                        digestIndex.put(download.file, md5);
+                        completedCount.incrementAndGet();
+                    }
+                    return;
+                } catch (Exception e) {
+                    if (attempt == MAX_ATTEMPT_COUNT || isStopped) {
+                        throw e;
+                    }
+                    // Network connections can be renegotiated during a large download, so
+                    // silently retry with what has been received so far
+                    Timber.w("Retrying download of %s after: %s", download.url, e.toString());
+                    Thread.sleep(RETRY_DELAY_MS * attempt);
+                }
+            }
+        } finally {
+            releasePartialFile(partialFile, download);
+        }
+    }
+
+    /**
+     * Appends the rest of the file to the partial file, or replaces it if the server doesn't
+     * resume the download. In that case the bytes received for the file by earlier attempts are
+     * taken off the progress so that they aren't counted twice.
+     *
+     * @param fileBytesReceived the number of bytes received for this file by earlier attempts
+     *
+     * @return the md5 hash of the file if all of it was received, null if the download was
+     * stopped first
+     */
+    @Nullable
+    private String transfer(Download download, File partialFile, AtomicLong fileBytesReceived) throws Exception {
+        long offset = partialFile.length();
+        HttpGetResult result = openRosaAPIClient.getFileFrom(download.url, offset);
+        int statusCode = result.getStatusCode();
+
+        if (statusCode == HTTP_RANGE_NOT_SATISFIABLE && offset > 0) {
+            // Either the whole file was received by an earlier download that didn't get to move
+            // it or the file on the server is shorter than the partial file
+            if (download.md5 != null && download.md5.equals(getMd5Hash(partialFile))) {
+                return download.md5;
+            }
+            FileUtils.deleteAndReport(partialFile);
+            throw new IOException("The server refused to resume the download of " + download.url);
+        }
+
+        InputStream inputStream = result.getInputStream();
+        if (inputStream == null) {
+            throw new IOException("Error " + statusCode + " while downloading " + download.url);
+        }
+
+        boolean isResumed = statusCode == HttpURLConnection.HTTP_PARTIAL;
+        if (isResumed && !isContentRangeFrom(result.getHeader("Content-Range"), offset)) {
+            inputStream.close();
+            FileUtils.deleteAndReport(partialFile);
+            throw new IOException("Unexpected Content-Range while downloading " + download.url);
+        }
+        if (isResumed) {
+            Timber.i("Resuming download of %s at byte %d", download.url, offset);
+        } else {
+            bytesReceived.addAndGet(-fileBytesReceived.getAndSet(0));
+        }
+
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+        if (isResumed) {
+            updateDigest(digest, partialFile);
+        }
+
+        try (InputStream is = inputStream;
+             OutputStream os = new FileOutputStream(partialFile, isResumed)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int length;
+            while ((length = is.read(buffer)) != -1) {
+                if (isStopped) {
+                    return null;
+                }
+                os.write(buffer, 0, length);
+                digest.update(buffer, 0, length);
+                bytesReceived.addAndGet(length);
+                fileBytesReceived.addAndGet(length);
+            }
+        }
+
+        String md5 = toHex(digest.digest());
+        if (download.md5 != null && !download.md5.equals(md5)) {
+            FileUtils.deleteAndReport(partialFile);
+            throw new IOException("The downloaded file " + download.file.getName()
+                    + " doesn't match the md5 hash in the manifest");
+        }
+        return md5;
+    }
+
+    private static boolean isContentRangeFrom(@Nullable String contentRange, long offset) {
+        return contentRange != null && contentRange.trim().startsWith("bytes " + offset + "-");
+    }
+
+    private static void moveToFinalFile(File partialFile, File finalFile) throws IOException {
+        FileUtils.deleteAndReport(finalFile);
+        if (partialFile.renameTo(finalFile)) {
+            return;
+        }
+
+        String errorMessage = FileUtils.copyFile(partialFile, finalFile);
+        if (!finalFile.exists()) {
+            throw new IOException("Unable to move " + partialFile + " to " + finalFile + ": " + errorMessage);
+        }
+        FileUtils.deleteAndReport(partialFile);
+    }
+
+    /**
+     * Returns the partial file to download the given file to. If its md5 hash is known and no
+     * other download is using the partial file named after it, that one is used so that an earlier
+     * download can be resumed.
+     */
+    private File claimPartialFile(Download download) throws IOException {
+        if (download.md5 != null) {
+            File partialFile = new File(partialsDir, getResumablePartialName(download.md5));
+            synchronized (PARTIALS_IN_USE) {
+                if (PARTIALS_IN_USE.add(partialFile.getName())) {
+                    return partialFile;
+                }
+            }
+        }
+
+        File partialFile = File.createTempFile(download.file.getName(), PARTIAL_EXTENSION, partialsDir);
+        synchronized (PARTIALS_IN_USE) {
+            PARTIALS_IN_USE.add(partialFile.getName());
+        }
+        return partialFile;
+    }
+
+    /**
+     * Lets other downloads use the partial file again. A partial file that can't be resumed by a
+     * later download is deleted.
+     */
+    private static void releasePartialFile(File partialFile, Download download) {
+        synchronized (PARTIALS_IN_USE) {
+            PARTIALS_IN_USE.remove(partialFile.getName());
+        }
+        if (download.md5 == null || !partialFile.getName().equals(getResumablePartialName(download.md5))) {
+            FileUtils.deleteAndReport(partialFile);
+        }
+    }
+
+    private static String getResumablePartialName(String md5) {
+        return PARTIAL_PREFIX + md5 + PARTIAL_EXTENSION;
+    }
+
+    /**
+     * Deletes the partial files that haven't been resumed for a while.
+     */
+    private void deleteStalePartials() {
+        File[] files = partialsDir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long oldest = System.currentTimeMillis() - MAX_PARTIAL_AGE_MS;
+        synchronized (PARTIALS_IN_USE) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(PARTIAL_PREFIX) && name.endsWith(PARTIAL_EXTENSION)
+                        && file.lastModified() < oldest && !PARTIALS_IN_USE.contains(name)) {
+                    FileUtils.deleteAndReport(file);
+                }
+            }
+        }
+    }
+
+    private static String getMd5Hash(File file) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+        updateDigest(digest, file);
+        return toHex(digest.digest());
+    }
+
+    private static void updateDigest(MessageDigest digest, File file) throws IOException {
+        try (InputStream is = new FileInputStream(file)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int length;
+            while ((length = is.read(buffer)) != -1) {
+                digest.update(buffer, 0, length);
+            }
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    static class Download {
+        final File file;
+        final String url;
+
+        // Lower case hex md5 hash of the file, or null if the manifest doesn't give it
+        @Nullable
+        final String md5;
+
+        Download(File file, String url, @Nullable String md5) {
+            this.file = file;
+            this.url = url;
+            this.md5 = md5;
+        }
+    }
+
+    interface Listener {
+
+        boolean isCancelled();
+
+        /**
+         * Called on the thread that is downloading the files when more of them have been
+         * received.
+         *
+         * @param completedCount the number of files that have been downloaded completely
+         * @param bytesReceived  the number of bytes received for all the files so far
+         */
+        void onProgress(int completedCount, long bytesReceived);
+    }
+}
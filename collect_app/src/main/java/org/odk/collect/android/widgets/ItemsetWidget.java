@@ -35,6 +35,7 @@ import org.odk.collect.android.formentry.questions.QuestionDetails;
 import org.odk.collect.android.logic.FormController;
 import org.odk.collect.android.utilities.FileUtil;
 import org.odk.collect.android.utilities.XPathParseTool;
+import org.odk.collect.android.widgets.utilities.ItemsetChoicesCache;
 
 import java.io.File;
 import java.util.ArrayList;
@@ -233,6 +234,24 @@ public class ItemsetWidget extends AbstractSelectOneWidget {
             // name of the itemset table for this form
             String pathHash = ItemsetDbAdapter.getMd5FromString(itemsetFile.getAbsolutePath());
             try {
+                // try to get the value associated with the label:lang
+                // string if that doen't exist, then just use label
+                String lang = "";
+                if (formController.getLanguages() != null && formController.getLanguages().length > 0) {
+                    lang = formController.getLanguage();
+                }
+
+                // the hash changes whenever the csv is re-imported
+                String itemsetHash = adapter.getItemsetHash(itemsetFile.getAbsolutePath());
+                String cacheKey = itemsetHash == null ? null
+                        : ItemsetChoicesCache.getKey(pathHash, itemsetHash, lang, selection, selectionArgs);
+                if (cacheKey != null) {
+                    List<SelectChoice> cachedItems = ItemsetChoicesCache.get(cacheKey);
+                    if (cachedItems != null) {
+                        return cachedItems;
+                    }
+                }
+
                 Cursor c = adapter.query(pathHash, selection, selectionArgs);
                 if (c != null) {
                     c.move(-1);
@@ -241,13 +260,6 @@ public class ItemsetWidget extends AbstractSelectOneWidget {
                         String label;
                         String val;
 
-                        // try to get the value associated with the label:lang
-                        // string if that doen't exist, then just use label
-                        String lang = "";
-                        if (formController.getLanguages() != null && formController.getLanguages().length > 0) {
-                            lang = formController.getLanguage();
-                        }
-
                         // apparently you only need the double quotes in the
                         // column name when creating the column with a : included
                         String labelLang = "label" + "::" + lang;
@@ -266,6 +278,10 @@ public class ItemsetWidget extends AbstractSelectOneWidget {
                     }
                     c.close();
                 }
+
+                if (cacheKey != null) {
+                    ItemsetChoicesCache.put(cacheKey, items);
+                }
             } catch (SQLiteException e) {
                 Timber.i(e);
             } finally {
@@ -0,0 +1,77 @@
+package org.odk.collect.android.widgets.utilities;
+
+import android.util.LruCache;
+
+import org.javarosa.core.model.SelectChoice;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Remembers the choices of itemset questions for the form session. Itemset widgets are rebuilt on
+ * every screen refresh and every time an answer that a cascading select depends on changes, so
+ * the same choices are queried again and again.
+ *
+ * Choices are keyed by the itemset table, the hash of the csv it was imported from, the language
+ * and the resolved query. Choices of a csv that has been re-imported are therefore never
+ * returned and are evicted like any other least recently used entry.
+ */
+public final class ItemsetChoicesCache {
+
+    private static final int MAX_CACHED_CHOICES = 20000;
+
+    private static final LruCache<String, List<SelectChoice>> CHOICES =
+            new LruCache<String, List<SelectChoice>>(MAX_CACHED_CHOICES) {
+                @Override
+                protected int sizeOf(String key, List<SelectChoice> choices) {
+                    return Math.max(1, choices.size());
+                }
+            };
+
+    private ItemsetChoicesCache() {
+
+    }
+
+    public static String getKey(String pathHash, String itemsetHash, String language,
+                                String selection, String[] selectionArgs) {
+        StringBuilder key = new StringBuilder()
+                .append(pathHash).append('\u0000')
+                .append(itemsetHash).append('\u0000')
+                .append(language).append('\u0000')
+                .append(selection);
+        for (String selectionArg : selectionArgs) {
+            key.append('\u0000').append(selectionArg);
+        }
+        return key.toString();
+    }
+
+    /**
+     * Returns a copy of the cached choices so that callers can't change the cached ones, or null
+     * if there are none.
+     */
+    public static List<SelectChoice> get(String key) {
+        List<SelectChoice> choices = CHOICES.get(key);
+        return choices == null ? null : copy(choices);
+    }
+
+    public static void put(String key, List<SelectChoice> choices) {
+        CHOICES.put(key, copy(choices));
+    }
+
+    /**
+     * Forgets all choices, e.g. because another form is being opened.
+     */
+    public static void clear() {
+        CHOICES.evictAll();
+    }
+
+    private static List<SelectChoice> copy(List<SelectChoice> choices) {
+        List<SelectChoice> copies = new ArrayList<>(choices.size());
+        for (SelectChoice choice : choices) {
+            SelectChoice copy = new SelectChoice(null, choice.getLabelInnerText(), choice.getValue(), false);
+            copy.setIndex(choice.getIndex());
+            copies.add(copy);
+        }
+        return copies;
+    }
+}
@@ -0,0 +1,132 @@
+package org.odk.collect.android.activities;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class HierarchyWalkerTest {
+
+    private final HierarchyWalker walker = new HierarchyWalker();
+    private final List<String> events = new ArrayList<>();
+
+    @Before
+    public void setup() {
+        // Lets the tests decide when a walk runs
+        Robolectric.getBackgroundThreadScheduler().pause();
+    }
+
+    @Test
+    public void walk_deliversTheResultOnceTheWalkHasRun() {
+        walker.walk(cancellation -> "rows", new RecordingListener("first"));
+        assertTrue(walker.isWalking());
+        assertThat(events, empty());
+
+        Robolectric.getBackgroundThreadScheduler().runOneTask();
+        assertFalse(walker.isWalking());
+        assertThat(events, contains("first walked rows"));
+    }
+
+    @Test
+    public void walk_whenTheWalkThrows_reportsTheException() {
+        walker.walk(cancellation -> {
+            throw new IllegalStateException("broken");
+        }, new RecordingListener("first"));
+
+        Robolectric.getBackgroundThreadScheduler().runOneTask();
+        assertFalse(walker.isWalking());
+        assertThat(events, contains("first failed broken"));
+    }
+
+    @Test
+    public void afterWalk_whenNoWalkIsRunning_runsTheActionStraightAway() {
+        walker.afterWalk(() -> events.add("action"));
+        assertThat(events, contains("action"));
+    }
+
+    @Test
+    public void afterWalk_whileWalking_cancelsTheWalkWithoutWaitingAndRunsTheActionOnceItHasStopped() {
+        walker.walk(cancellation -> {
+            events.add("walk cancelled " + cancellation.isCancelled());
+            return "rows";
+        }, new RecordingListener("first"));
+
+        walker.afterWalk(() -> events.add("action"));
+        assertThat(events, empty());
+        assertTrue(walker.isWalking());
+
+        Robolectric.getBackgroundThreadScheduler().runOneTask();
+        assertFalse(walker.isWalking());
+        assertThat(events, contains("action"));
+    }
+
+    @Test
+    public void afterWalk_whenTheWalkHasAlreadyStarted_letsItSeeTheCancellation() {
+        List<Boolean> cancellations = new ArrayList<>();
+        walker.walk(cancellation -> {
+            cancellations.add(cancellation.isCancelled());
+            walker.cancel();
+            cancellations.add(cancellation.isCancelled());
+            return "rows";
+        }, new RecordingListener("first"));
+
+        Robolectric.getBackgroundThreadScheduler().runOneTask();
+        assertThat(cancellations, contains(false, true));
+        assertThat(events, empty());
+    }
+
+    @Test
+    public void walk_whileWalking_onlyStartsOnceThePreviousWalkHasStopped() {
+        walker.walk(cancellation -> "first rows", new RecordingListener("first"));
+        walker.walk(cancellation -> "second rows", new RecordingListener("second"));
+        assertThat(Robolectric.getBackgroundThreadScheduler().size(), equalTo(1));
+
+        Robolectric.getBackgroundThreadScheduler().runOneTask();
+        assertTrue(walker.isWalking());
+        assertThat(events, empty());
+
+        Robolectric.getBackgroundThreadScheduler().runOneTask();
+        assertFalse(walker.isWalking());
+        assertThat(events, contains("second walked second rows"));
+    }
+
+    @Test
+    public void cancel_dropsTheResultOfTheWalk() {
+        walker.walk(cancellation -> "rows", new RecordingListener("first"));
+        walker.cancel();
+
+        Robolectric.getBackgroundThreadScheduler().runOneTask();
+        assertFalse(walker.isWalking());
+        assertThat(events, empty());
+    }
+
+    private class RecordingListener implements HierarchyWalker.Listener<String> {
+        private final String name;
+
+        RecordingListener(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void onWalked(String result) {
+            events.add(name + " walked " + result);
+        }
+
+        @Override
+        public void onWalkFailed(Exception e) {
+            events.add(name + " failed " + e.getMessage());
+        }
+    }
+}
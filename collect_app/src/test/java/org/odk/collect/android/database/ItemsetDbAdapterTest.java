@@ -0,0 +1,49 @@
+package org.odk.collect.android.database;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+
+public class ItemsetDbAdapterTest {
+
+    @Test
+    public void getFilterColumns_returnsTheColumnsComparedForEquality() {
+        assertThat(ItemsetDbAdapter.getFilterColumns(
+                "instance('cities')/root/item[state=/data/state and county=/data/county]"),
+                contains("state", "county"));
+        assertThat(ItemsetDbAdapter.getFilterColumns(
+                "instance('cities')/root/item[state = /data/state or county = /data/county]"),
+                contains("state", "county"));
+    }
+
+    @Test
+    public void getFilterColumns_leavesOutOtherComparisons() {
+        assertThat(ItemsetDbAdapter.getFilterColumns(
+                "instance('cities')/root/item[state!=/data/state and size>=/data/size and rank<3 and county=/data/county]"),
+                contains("county"));
+    }
+
+    @Test
+    public void getFilterColumns_doesNotSplitQuotedLiterals() {
+        assertThat(ItemsetDbAdapter.getFilterColumns(
+                "instance('cities')/root/item[label='a=b and c=d' and state=/data/state]"),
+                contains("label", "state"));
+        assertThat(ItemsetDbAdapter.getFilterColumns(
+                "instance('cities')/root/item['x=y'=state]"),
+                empty());
+    }
+
+    @Test
+    public void getFilterColumns_leavesOutExpressionsThatAreNotColumnNames() {
+        assertThat(ItemsetDbAdapter.getFilterColumns(
+                "instance('cities')/root/item[lower-case(state)=/data/state and \"county\"=/data/county]"),
+                empty());
+    }
+
+    @Test
+    public void getFilterColumns_whenThereIsNoPredicate_returnsNoColumns() {
+        assertThat(ItemsetDbAdapter.getFilterColumns("instance('cities')/root/item"), empty());
+    }
+}
@@ -0,0 +1,72 @@
+package org.odk.collect.android.external;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.odk.collect.android.application.Collect;
+import org.robolectric.RobolectricTestRunner;
+
+import static android.content.Context.MODE_PRIVATE;
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+public class ExternalDataLookupCacheTest {
+
+    private SQLiteDatabase db;
+    private ExternalDataLookupCache lookupCache;
+
+    @Before
+    public void setup() {
+        db = Collect.getInstance().openOrCreateDatabase("lookupCacheTest", MODE_PRIVATE, null);
+        db.execSQL("DROP TABLE IF EXISTS " + ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME);
+        db.execSQL("CREATE TABLE " + ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME
+                + " (c_name_key text collate nocase, c_label text collate nocase, c_sortby real);");
+        insert("a", "First");
+        insert("B", "Second");
+        insert("b", "Duplicate");
+
+        lookupCache = new ExternalDataLookupCache();
+    }
+
+    @Test
+    public void pull_returnsValueOfFirstMatchingRow() {
+        assertEquals("First", lookupCache.pull(db, "data", "label", "name_key", "a"));
+        assertEquals("Second", lookupCache.pull(db, "data", "label", "name_key", "b"));
+    }
+
+    @Test
+    public void pull_matchesReferenceValueIgnoringCase() {
+        assertEquals("First", lookupCache.pull(db, "data", "label", "name_key", "A"));
+    }
+
+    @Test
+    public void pull_returnsEmptyStringWhenNothingMatches() {
+        assertEquals("", lookupCache.pull(db, "data", "label", "name_key", "z"));
+    }
+
+    @Test
+    public void pull_answersRepeatedLookupsFromMemory() {
+        lookupCache.pull(db, "data", "label", "name_key", "a");
+        lookupCache.pull(db, "data", "label", "name_key", "a");
+
+        assertEquals(1.0, lookupCache.getHitRatio(), 0);
+    }
+
+    @Test
+    public void invalidate_forgetsValuesOfDataSet() {
+        assertEquals("First", lookupCache.pull(db, "data", "label", "name_key", "a"));
+
+        db.execSQL("UPDATE " + ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME + " SET c_label = 'Changed' WHERE c_name_key = 'a'");
+        assertEquals("First", lookupCache.pull(db, "data", "label", "name_key", "a"));
+
+        lookupCache.invalidate("data");
+        assertEquals("Changed", lookupCache.pull(db, "data", "label", "name_key", "a"));
+    }
+
+    private void insert(String name, String label) {
+        db.execSQL("INSERT INTO " + ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME
+                + " (c_name_key, c_label, c_sortby) VALUES (?, ?, 0)", new Object[]{name, label});
+    }
+}
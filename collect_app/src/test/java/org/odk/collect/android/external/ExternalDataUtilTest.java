@@ -26,4 +26,10 @@ public class ExternalDataUtilTest {
         Assert.assertEquals("c_new_line", ExternalDataUtil.toSafeColumnName("new\nline"));
         Assert.assertEquals("c_double_quote", ExternalDataUtil.toSafeColumnName("double\"quote"));
     }
+
+    @Test
+    public void foldCase_onlyFoldsAsciiLetters() {
+        Assert.assertEquals("abc-É", ExternalDataUtil.foldCase("AbC-É"));
+        Assert.assertNull(ExternalDataUtil.foldCase(null));
+    }
 }
@@ -0,0 +1,50 @@
+package org.odk.collect.android.external.handler;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ExternalDataSearchTypeTest {
+
+    @Test
+    public void matchArgument_matchesTheBeginningOfEachWord() {
+        assertEquals("ban*", ExternalDataSearchType.constructMatchArgument("ban"));
+        assertEquals("st* mary* s*", ExternalDataSearchType.constructMatchArgument("St. Mary's"));
+    }
+
+    @Test
+    public void matchArgument_searchesForEveryWordIncludingAPartialOneAsAPrefix() {
+        assertEquals("ana*", ExternalDataSearchType.constructMatchArgument("ana"));
+        assertEquals("mary* s*", ExternalDataSearchType.constructMatchArgument("Mary's"));
+    }
+
+    @Test
+    public void matchArgument_onlyFoldsAsciiLetters() {
+        assertEquals("École*", ExternalDataSearchType.constructMatchArgument("École"));
+        assertEquals("ecole*", ExternalDataSearchType.constructMatchArgument("ECOLE"));
+    }
+
+    @Test
+    public void matchArgument_cannotContainQuerySyntax() {
+        assertEquals("a* or* b*", ExternalDataSearchType.constructMatchArgument("a OR \"b\""));
+        assertEquals("x* y*", ExternalDataSearchType.constructMatchArgument("-x* (y)"));
+    }
+
+    @Test
+    public void matchArgument_isNullWithoutWords() {
+        assertNull(ExternalDataSearchType.constructMatchArgument(null));
+        assertNull(ExternalDataSearchType.constructMatchArgument(""));
+        assertNull(ExternalDataSearchType.constructMatchArgument(" - "));
+    }
+
+    @Test
+    public void onlyContainsAndStartsWithUseTheFullTextIndex() {
+        assertTrue(ExternalDataSearchType.CONTAINS.canUseFullTextIndex());
+        assertTrue(ExternalDataSearchType.STARTS.canUseFullTextIndex());
+        assertFalse(ExternalDataSearchType.MATCHES.canUseFullTextIndex());
+        assertFalse(ExternalDataSearchType.ENDS.canUseFullTextIndex());
+    }
+}
@@ -28,9 +28,12 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Future;
 
 import static java.util.Arrays.asList;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.odk.collect.android.formentry.audit.AuditEvent.AuditEventType.CHANGE_REASON;
 import static org.odk.collect.android.formentry.audit.AuditEvent.AuditEventType.END_OF_FORM;
 import static org.odk.collect.android.formentry.audit.AuditEvent.AuditEventType.FORM_EXIT;
@@ -46,7 +49,7 @@ import static org.odk.collect.android.formentry.audit.AuditEvent.AuditEventType.
 import static org.odk.collect.android.formentry.audit.AuditEvent.AuditEventType.QUESTION;
 
 @RunWith(RobolectricTestRunner.class)
-public class AsyncTaskAuditEventWriterTest {
+public class AuditEventFileWriterTest {
 
     private File auditFile;
 
@@ -57,7 +60,7 @@ public class AsyncTaskAuditEventWriterTest {
 
     @Test
     public void saveAuditWithLocation() throws Exception {
-        AsyncTaskAuditEventWriter writer = new AsyncTaskAuditEventWriter(auditFile, true, false, false, false);
+        AuditEventFileWriter writer = new AuditEventFileWriter(auditFile, true, false, false, false, Runnable::run);
         writer.writeEvents(getSampleAuditEventsWithLocations());
 
         String expectedAuditContent = FileUtils.readFileToString(auditFile);
@@ -81,7 +84,7 @@ public class AsyncTaskAuditEventWriterTest {
 
     @Test
     public void saveAuditWithLocationAndTrackingChanges() throws Exception {
-        AsyncTaskAuditEventWriter writer = new AsyncTaskAuditEventWriter(auditFile, true, true, false, false);
+        AuditEventFileWriter writer = new AuditEventFileWriter(auditFile, true, true, false, false, Runnable::run);
         writer.writeEvents(getSampleAuditEventsWithLocationsAndTrackingChanges());
 
         String expectedAuditContent = FileUtils.readFileToString(auditFile);
@@ -101,7 +104,7 @@ public class AsyncTaskAuditEventWriterTest {
 
     @Test
     public void saveAuditWithUser() throws Exception {
-        AsyncTaskAuditEventWriter writer = new AsyncTaskAuditEventWriter(auditFile, false, false, true, false);
+        AuditEventFileWriter writer = new AuditEventFileWriter(auditFile, false, false, true, false, Runnable::run);
         writer.writeEvents(getSampleAuditEventsWithUser());
 
         String expectedAuditContent = FileUtils.readFileToString(auditFile);
@@ -121,9 +124,46 @@ public class AsyncTaskAuditEventWriterTest {
         assertEquals(expectedData, expectedAuditContent);
     }
 
+    @Test
+    public void eventsQueuedBeforeTheWriterRuns_areAppendedTogetherInOrder() throws Exception {
+        List<Runnable> scheduled = new ArrayList<>();
+        AuditEventFileWriter writer = new AuditEventFileWriter(auditFile, false, false, false, false, scheduled::add);
+        writer.writeEvents(asList(new AuditEvent(1548106927319L, FORM_START, null, null, null, null)));
+        writer.writeEvents(asList(new AuditEvent(1548106953601L, FORM_EXIT, null, null, null, null)));
+
+        assertFalse(writer.isWriting());
+        assertEquals(1, scheduled.size());
+        scheduled.get(0).run();
+
+        String expectedData = "event,node,start,end\n" +
+                "form start,,1548106927319,\n" +
+                "form exit,,1548106953601,\n";
+        assertEquals(expectedData, FileUtils.readFileToString(auditFile));
+    }
+
+    @Test
+    public void pendingWrites_areOnlyDoneOnceTheEventsWrittenBeforeThemAreInTheFile() throws Exception {
+        List<Runnable> scheduled = new ArrayList<>();
+        AuditEventFileWriter writer = new AuditEventFileWriter(auditFile, false, false, false, false, scheduled::add);
+        writer.writeEvents(asList(new AuditEvent(1548106953600L, FORM_SAVE, null, null, null, null)));
+        Future<?> pendingWrites = writer.getPendingWrites();
+        writer.writeEvents(asList(new AuditEvent(1548106953601L, FORM_EXIT, null, null, null, null)));
+
+        assertEquals(2, scheduled.size());
+        assertFalse(pendingWrites.isDone());
+
+        scheduled.get(0).run();
+        assertEquals("event,node,start,end\n" +
+                "form save,,1548106953600,\n" +
+                "form exit,,1548106953601,\n", FileUtils.readFileToString(auditFile));
+
+        scheduled.get(1).run();
+        assertTrue(pendingWrites.isDone());
+    }
+
     @Test
     public void saveAuditWithChangeReason() throws Exception {
-        AsyncTaskAuditEventWriter writer = new AsyncTaskAuditEventWriter(auditFile, false, false, false, true);
+        AuditEventFileWriter writer = new AuditEventFileWriter(auditFile, false, false, false, true, Runnable::run);
         writer.writeEvents(asList(
                 new AuditEvent(1548108900606L, FORM_RESUME, null, null, null, null),
                 new AuditEvent(1548108900606L, CHANGE_REASON, null, null, null, "A good reason")
@@ -138,7 +178,7 @@ public class AsyncTaskAuditEventWriterTest {
 
     @Test
     public void whenChangeReasonHasCommaOrQuotes_escapesThem() throws Exception {
-        AsyncTaskAuditEventWriter writer = new AsyncTaskAuditEventWriter(auditFile, false, false, false, true);
+        AuditEventFileWriter writer = new AuditEventFileWriter(auditFile, false, false, false, true, Runnable::run);
         writer.writeEvents(asList(
                 new AuditEvent(1548108900606L, FORM_RESUME, null, null, null, null),
                 new AuditEvent(1548108900606L, CHANGE_REASON, null, null, null, "A \"good\", reason")
@@ -153,7 +193,7 @@ public class AsyncTaskAuditEventWriterTest {
 
     @Test
     public void whenUserHasCommaOrQuotes_escapesThem() throws Exception {
-        AsyncTaskAuditEventWriter writer = new AsyncTaskAuditEventWriter(auditFile, false, false, true, false);
+        AuditEventFileWriter writer = new AuditEventFileWriter(auditFile, false, false, true, false, Runnable::run);
 
         List<AuditEvent> auditEvents = getSampleAuditEventsWithUser().subList(0, 1);
         auditEvents.get(0).setUser("User,\"1\"");
@@ -173,7 +213,7 @@ public class AsyncTaskAuditEventWriterTest {
     @Test
     public void whenAppUpdatedBetweenInstances_updatesHeader() throws Exception {
         // Use a form with enabled audit but without location
-        AsyncTaskAuditEventWriter writer = new AsyncTaskAuditEventWriter(auditFile, false, false, false, false);
+        AuditEventFileWriter writer = new AuditEventFileWriter(auditFile, false, false, false, false, Runnable::run);
         writer.writeEvents(getSampleAuditEventsWithoutLocations());
 
         String expectedAuditContent = FileUtils.readFileToString(auditFile);
@@ -192,7 +232,7 @@ public class AsyncTaskAuditEventWriterTest {
         assertEquals(expectedData, expectedAuditContent);
 
         // Upgrade a form to use location
-        writer = new AsyncTaskAuditEventWriter(auditFile, true, false, false, false);
+        writer = new AuditEventFileWriter(auditFile, true, false, false, false, Runnable::run);
         writer.writeEvents(getMoreSampleAuditEventsWithLocations());
 
         expectedAuditContent = FileUtils.readFileToString(auditFile);
@@ -220,7 +260,7 @@ public class AsyncTaskAuditEventWriterTest {
         assertEquals(expectedData2, expectedAuditContent);
 
         // Upgrade a form to use location and tracking changes
-        writer = new AsyncTaskAuditEventWriter(auditFile, true, true, false, false);
+        writer = new AuditEventFileWriter(auditFile, true, true, false, false, Runnable::run);
         writer.writeEvents(getMoreSampleAuditEventsWithLocationsAndTrackingChanges());
 
         expectedAuditContent = FileUtils.readFileToString(auditFile);
@@ -256,7 +296,7 @@ public class AsyncTaskAuditEventWriterTest {
         assertEquals(expectedData3, expectedAuditContent);
 
         // Upgrade a form to use location and tracking changes and user
-        writer = new AsyncTaskAuditEventWriter(auditFile, true, true, true, false);
+        writer = new AuditEventFileWriter(auditFile, true, true, true, false, Runnable::run);
         writer.writeEvents(getMoreSampleAuditEventsWithLocationsAndTrackingChangesAndUser());
 
         expectedAuditContent = FileUtils.readFileToString(auditFile);
@@ -18,6 +18,9 @@ package org.odk.collect.android.formentry.audit;
 
 import android.location.Location;
 
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
 import org.javarosa.form.api.FormEntryPrompt;
 import org.junit.Before;
 import org.junit.Test;
@@ -245,6 +248,11 @@ public class AuditEventLoggerTest {
             this.auditEvents.addAll(auditEvents);
         }
 
+        @Override
+        public ListenableFuture<?> getPendingWrites() {
+            return Futures.immediateFuture(null);
+        }
+
         @Override
         public boolean isWriting() {
             return false;
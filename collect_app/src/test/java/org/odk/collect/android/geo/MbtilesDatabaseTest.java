@@ -0,0 +1,99 @@
+package org.odk.collect.android.geo;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+@RunWith(RobolectricTestRunner.class)
+public class MbtilesDatabaseTest {
+
+    private File file;
+
+    @Before
+    public void setup() throws IOException {
+        file = File.createTempFile("test", ".mbtiles");
+        file.delete();
+        file.deleteOnExit();
+
+        try (SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(file, null)) {
+            db.execSQL("CREATE TABLE metadata (name text, value text)");
+            db.execSQL("CREATE TABLE tiles (zoom_level integer, tile_column integer, tile_row integer, tile_data blob)");
+            db.execSQL("INSERT INTO metadata VALUES ('name', 'Test'), ('format', 'png')");
+
+            // Tile x=1, y=0 at zoom level 1 is stored in TMS row 1
+            ContentValues values = new ContentValues();
+            values.put("zoom_level", 1);
+            values.put("tile_column", 1);
+            values.put("tile_row", 1);
+            values.put("tile_data", new byte[] {1, 2, 3});
+            db.insert("tiles", null, values);
+            values.put("zoom_level", 2);
+            values.put("tile_column", 2);
+            values.put("tile_row", 3);
+            values.put("tile_data", new byte[] {4, 5});
+            db.insert("tiles", null, values);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void getTile_flipsYCoordinate() throws IOException {
+        try (MbtilesDatabase db = MbtilesDatabase.open(file)) {
+            assertArrayEquals(new byte[] {1, 2, 3}, db.getTile(1, 1, 0));
+            assertNull(db.getTile(1, 1, 1));
+        }
+    }
+
+    @Test
+    public void getTile_returnsTilesAfterPrefetching() throws Exception {
+        try (MbtilesDatabase db = MbtilesDatabase.open(file)) {
+            db.getTile(1, 1, 0);  // prefetches the tiles that cover it at zoom level 2
+            Thread.sleep(200);
+            assertArrayEquals(new byte[] {4, 5}, db.getTile(2, 2, 0));
+            assertNull(db.getTile(2, 3, 0));
+        }
+    }
+
+    @Test
+    public void getMetadataAndZoomRange() throws IOException {
+        try (MbtilesDatabase db = MbtilesDatabase.open(file)) {
+            assertEquals("Test", db.getMetadata("name"));
+            assertEquals("", db.getMetadata("bounds"));
+            assertEquals(1, db.getMinZoom());
+            assertEquals(2, db.getMaxZoom());
+        }
+    }
+
+    @Test
+    public void open_sharesDatabaseUntilEveryOpenerClosesIt() throws IOException {
+        MbtilesDatabase first = MbtilesDatabase.open(file);
+        MbtilesDatabase second = MbtilesDatabase.open(file);
+        assertSame(first, second);
+
+        first.close();
+        assertArrayEquals(new byte[] {1, 2, 3}, second.getTile(1, 1, 0));
+        second.close();
+
+        try (MbtilesDatabase third = MbtilesDatabase.open(file)) {
+            assertNotSame(first, third);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package org.odk.collect.android.geo;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class TileHttpServerTest {
+
+    @Test
+    public void readRequest_readsPipelinedRequestsInOrder() throws IOException {
+        InputStream input = stream(
+                "GET /osm/1/2/3 HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                + "GET /osm/1/2/4 HTTP/1.1\r\nIf-None-Match: \"5-abc\"\r\nConnection: close\r\n\r\n");
+
+        TileHttpServer.Request first = TileHttpServer.readRequest(input);
+        assertEquals("GET /osm/1/2/3 HTTP/1.1", first.line);
+        assertTrue(first.keepAlive);
+        assertNull(first.ifNoneMatch);
+
+        TileHttpServer.Request second = TileHttpServer.readRequest(input);
+        assertEquals("GET /osm/1/2/4 HTTP/1.1", second.line);
+        assertFalse(second.keepAlive);
+        assertEquals("\"5-abc\"", second.ifNoneMatch);
+
+        assertNull(TileHttpServer.readRequest(input));
+    }
+
+    @Test
+    public void readRequest_closesHttp10ConnectionsUnlessAskedToKeepThemAlive() throws IOException {
+        assertFalse(TileHttpServer.readRequest(stream("GET /osm/1/2/3 HTTP/1.0\n\n")).keepAlive);
+        assertTrue(TileHttpServer.readRequest(stream("GET /osm/1/2/3 HTTP/1.0\nConnection: Keep-Alive\n\n")).keepAlive);
+    }
+
+    @Test
+    public void readRequest_readsTheConnectionHeaderAsAListOfOptions() throws IOException {
+        assertTrue(TileHttpServer.readRequest(stream("GET /osm/1/2/3 HTTP/1.1\nConnection: Upgrade\n\n")).keepAlive);
+        assertTrue(TileHttpServer.readRequest(stream("GET /osm/1/2/3 HTTP/1.0\nConnection: Upgrade, keep-alive\n\n")).keepAlive);
+        assertFalse(TileHttpServer.readRequest(stream("GET /osm/1/2/3 HTTP/1.1\nConnection: TE, Close\n\n")).keepAlive);
+        assertFalse(TileHttpServer.readRequest(stream("GET /osm/1/2/3 HTTP/1.1\nConnection: keep-alive,close\n\n")).keepAlive);
+    }
+
+    @Test
+    public void response_hasEtagThatDependsOnTheData() {
+        String etag = new TileHttpServer.Response(new byte[] {1, 2, 3}, "image/png", "identity").etag;
+
+        assertEquals(etag, new TileHttpServer.Response(new byte[] {1, 2, 3}, "image/png", "identity").etag);
+        assertNotEquals(etag, new TileHttpServer.Response(new byte[] {1, 2, 4}, "image/png", "identity").etag);
+    }
+
+    @Test
+    public void idleKeptAliveConnections_doNotMakeMoreConnectionsWaitForTheKeepAliveTimeout() throws Exception {
+        TileHttpServer server = new TileHttpServer();
+        server.addSource("test", new FakeTileSource());
+        server.start();
+
+        URL url = new URL(server.getUrlTemplate("test").replace("{z}/{x}/{y}", "1/2/3"));
+        List<Socket> connections = new ArrayList<>();
+        try {
+            for (int i = 0; i < TileHttpServer.MAX_WORKER_THREADS * 2; i++) {
+                Socket connection = new Socket(url.getHost(), url.getPort());
+                connections.add(connection);
+
+                // Waiting for an idle connection to time out fails the read
+                connection.setSoTimeout(TileHttpServer.KEEP_ALIVE_TIMEOUT_MS / 2);
+                OutputStream output = connection.getOutputStream();
+                output.write(("GET " + url.getPath() + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes("US-ASCII"));
+                output.flush();
+
+                assertEquals("HTTP/1.1 200 OK", readLine(connection.getInputStream()));
+            }
+        } finally {
+            for (Socket connection : connections) {
+                connection.close();
+            }
+            server.destroy();
+        }
+    }
+
+    private static String readLine(InputStream input) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = input.read()) != -1 && b != '\n') {
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return line.toString("US-ASCII");
+    }
+
+    private static InputStream stream(String text) {
+        return new ByteArrayInputStream(text.getBytes());
+    }
+
+    private static class FakeTileSource implements TileSource {
+        @Override
+        public byte[] getTileBlob(int zoom, int x, int y) {
+            return new byte[] {1, 2, 3};
+        }
+
+        @Override
+        public String getContentType() {
+            return "image/png";
+        }
+
+        @Override
+        public String getContentEncoding() {
+            return "identity";
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package org.odk.collect.android.location;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class LocationWindowTest {
+
+    @Test
+    public void getMostAccurate_returnsFirstOfTheMostAccurateFixes() {
+        LocationWindow window = new LocationWindow(8, 60_000L);
+        window.add(1000, 1, 1, 10f);
+        window.add(2000, 2, 2, 5f);
+        window.add(3000, 3, 3, 5f);
+        window.add(4000, 4, 4, 7f);
+
+        assertEquals(2, window.getMostAccurate(5000).latitude, 0);
+    }
+
+    @Test
+    public void getMostAccurate_ignoresExpiredFixes() {
+        LocationWindow window = new LocationWindow(8, 60_000L);
+        window.add(0, 1, 1, 2f);
+        window.add(61_000, 2, 2, 8f);
+        window.add(62_000, 3, 3, 4f);
+
+        assertEquals(1, window.getMostAccurate(60_000).latitude, 0);
+        assertEquals(3, window.getMostAccurate(61_000).latitude, 0);
+        assertEquals(3, window.getMostAccurate(122_000).latitude, 0);
+        assertNull(window.getMostAccurate(122_001));
+        assertEquals(0, window.size());
+    }
+
+    @Test
+    public void whenFull_overwritesOldestFix() {
+        LocationWindow window = new LocationWindow(3, null);
+        window.add(1000, 1, 1, 1f);
+        window.add(2000, 2, 2, 9f);
+        window.add(3000, 3, 3, 5f);
+        window.add(4000, 4, 4, 7f);
+
+        assertEquals(3, window.size());
+        assertEquals(3, window.getMostAccurate(Long.MAX_VALUE).latitude, 0);
+    }
+
+    @Test
+    public void ignoresFixesOlderThanTheNewest() {
+        LocationWindow window = new LocationWindow(8, 60_000L);
+        window.add(2000, 1, 1, 10f);
+        window.add(1000, 2, 2, 1f);
+
+        assertEquals(1, window.size());
+        assertEquals(1, window.getMostAccurate(2000).latitude, 0);
+    }
+}
@@ -152,6 +152,28 @@ public abstract class OpenRosaGetRequestTest {
         assertThat(result2.getStatusCode(), equalTo(304));
     }
 
+    @Test
+    public void withOffset_asksForTheRestOfTheContentAndReturnsPartialContent() throws Exception {
+        mockWebServer.enqueue(new MockResponse()
+                .setResponseCode(206)
+                .addHeader("Content-Range", "bytes 5-8/9")
+                .setBody("BODY"));
+
+        HttpGetResult result = subject.executeGetRequest(mockWebServer.url("").uri(), null, null, 5);
+        assertThat(mockWebServer.takeRequest().getHeader("Range"), equalTo("bytes=5-"));
+        assertThat(result.getStatusCode(), equalTo(206));
+        assertThat(result.getHeader("content-range"), equalTo("bytes 5-8/9"));
+        assertThat(IOUtils.toString(result.getInputStream(), Charset.defaultCharset()), equalTo("BODY"));
+    }
+
+    @Test
+    public void withoutOffset_doesNotAskForARange() throws Exception {
+        mockWebServer.enqueue(new MockResponse());
+
+        subject.executeGetRequest(mockWebServer.url("").uri(), null, null, 0);
+        assertThat(mockWebServer.takeRequest().getHeader("Range"), nullValue());
+    }
+
     private static byte[] gzip(String data) throws IOException {
         ByteArrayOutputStream outputStream = new ByteArrayOutputStream(data.length());
         GZIPOutputStream gzipStream = new GZIPOutputStream(outputStream);
@@ -22,6 +22,7 @@ import java.util.zip.GZIPOutputStream;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
 import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
 import okio.Buffer;
 
 import static java.util.Arrays.asList;
@@ -243,6 +244,66 @@ public abstract class OpenRosaPostRequestTest {
         assertThat(response.getResponseCode(), equalTo(500));
     }
 
+    @Test
+    public void withListener_reportsAttachmentsOfEachAcknowledgedPart() throws Exception {
+        mockWebServer.enqueue(new MockResponse().setResponseCode(201));
+        mockWebServer.enqueue(new MockResponse().setResponseCode(500));
+
+        URI uri = mockWebServer.url("/blah").uri();
+        File attachment1 = createTempFile("blah blah blah");
+        File attachment2 = createTempFile("blah2 blah2 blah2");
+        RecordingListener listener = new RecordingListener();
+        subject.uploadSubmissionFile(asList(attachment1, attachment2), createTempFile("<node>content</node>"), uri, null, 0, listener);
+
+        assertThat(listener.acknowledgedAttachments, equalTo(asList(attachment1)));
+    }
+
+    @Test
+    public void withListener_reportsBytesUploadedUpToTotal() throws Exception {
+        mockWebServer.enqueue(new MockResponse().setResponseCode(201));
+        mockWebServer.enqueue(new MockResponse().setResponseCode(201));
+
+        URI uri = mockWebServer.url("/blah").uri();
+        File attachment1 = createTempFile("blah blah blah");
+        File attachment2 = createTempFile("blah2 blah2 blah2");
+        RecordingListener listener = new RecordingListener();
+        subject.uploadSubmissionFile(asList(attachment1, attachment2), createTempFile("<node>content</node>"), uri, null, 0, listener);
+
+        long bodySizes = mockWebServer.takeRequest().getBodySize() + mockWebServer.takeRequest().getBodySize();
+        assertThat(listener.bytesUploaded, equalTo(bodySizes));
+        assertThat(listener.totalBytes, equalTo(bodySizes));
+    }
+
+    @Test
+    public void withListener_whenPartFailsWithNetworkError_triesItAgain() throws Exception {
+        mockWebServer.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST));
+        mockWebServer.enqueue(new MockResponse().setResponseCode(201));
+
+        URI uri = mockWebServer.url("/blah").uri();
+        HttpPostResult response = subject.uploadSubmissionFile(asList(createTempFile("blah blah blah")),
+                createTempFile("<node>content</node>"), uri, null, 1024, new RecordingListener());
+
+        assertThat(mockWebServer.getRequestCount(), equalTo(2));
+        assertThat(response.getResponseCode(), equalTo(201));
+    }
+
+    private static class RecordingListener implements OpenRosaHttpInterface.SubmissionUploadListener {
+        final List<File> acknowledgedAttachments = new ArrayList<>();
+        long bytesUploaded;
+        long totalBytes;
+
+        @Override
+        public void onPartAcknowledged(List<File> attachments) {
+            acknowledgedAttachments.addAll(attachments);
+        }
+
+        @Override
+        public void onBytesUploaded(long bytesUploaded, long totalBytes) {
+            this.bytesUploaded = bytesUploaded;
+            this.totalBytes = totalBytes;
+        }
+    }
+
     private File createTempFile(String content) throws Exception {
         return createTempFile(content, ".tmp");
     }
@@ -0,0 +1,75 @@
+package org.odk.collect.android.tasks;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class InstanceSyncTaskTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void readInstanceFileInfo_readsTheIdsFromTheRootElement() throws IOException {
+        File instance = writeInstance("<?xml version='1.0' ?><data id=\"my-form\" instanceID=\"uuid:1\">"
+                + "<name>Alice</name><meta><instanceID>uuid:1</instanceID></meta></data>");
+
+        InstanceSyncTask.InstanceFileInfo info = InstanceSyncTask.readInstanceFileInfo(instance.getAbsolutePath());
+        assertEquals("my-form", info.formId);
+        assertEquals("uuid:1", info.instanceId);
+    }
+
+    @Test
+    public void readInstanceFileInfo_returnsEmptyIdsForMissingAttributes() throws IOException {
+        File instance = writeInstance("<data><name>Alice</name></data>");
+
+        InstanceSyncTask.InstanceFileInfo info = InstanceSyncTask.readInstanceFileInfo(instance.getAbsolutePath());
+        assertEquals("", info.formId);
+        assertEquals("", info.instanceId);
+    }
+
+    @Test
+    public void readInstanceFileInfo_rejectsInstancesThatAreNotWellFormed() throws IOException {
+        assertNull(InstanceSyncTask.readInstanceFileInfo(
+                writeInstance("<data id=\"my-form\"><name>Alice</data>").getAbsolutePath()));
+        assertNull(InstanceSyncTask.readInstanceFileInfo(
+                writeInstance("<data id=\"my-form\"><name>Alice</name>").getAbsolutePath()));
+        assertNull(InstanceSyncTask.readInstanceFileInfo(
+                writeInstance("<data id=\"my-form\"><name>Alice & Bob</name></data>").getAbsolutePath()));
+        assertNull(InstanceSyncTask.readInstanceFileInfo(
+                writeInstance("").getAbsolutePath()));
+    }
+
+    @Test
+    public void readInstanceFileInfo_whenTheFileDoesNotExist_returnsNull() {
+        assertNull(InstanceSyncTask.readInstanceFileInfo(new File(temporaryFolder.getRoot(), "missing.xml").getAbsolutePath()));
+    }
+
+    @Test
+    public void getBatches_splitsTheListInOrder() {
+        List<Integer> values = Arrays.asList(1, 2, 3, 4, 5);
+
+        assertEquals(Arrays.asList(Arrays.asList(1, 2), Arrays.asList(3, 4), Collections.singletonList(5)),
+                InstanceSyncTask.getBatches(values, 2));
+        assertEquals(Collections.singletonList(values), InstanceSyncTask.getBatches(values, 5));
+        assertEquals(Collections.emptyList(), InstanceSyncTask.getBatches(Collections.emptyList(), 5));
+    }
+
+    private File writeInstance(String xml) throws IOException {
+        File instance = temporaryFolder.newFile();
+        try (FileOutputStream out = new FileOutputStream(instance)) {
+            out.write(xml.getBytes("UTF-8"));
+        }
+        return instance;
+    }
+}
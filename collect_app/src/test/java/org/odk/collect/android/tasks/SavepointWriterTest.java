@@ -0,0 +1,206 @@
+package org.odk.collect.android.tasks;
+
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.model.data.IAnswerData;
+import org.javarosa.core.model.data.IntegerData;
+import org.javarosa.core.model.data.StringData;
+import org.javarosa.core.model.instance.InstanceInitializationFactory;
+import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.core.model.instance.TreeReference;
+import org.javarosa.form.api.FormEntryController;
+import org.javarosa.form.api.FormEntryModel;
+import org.javarosa.xform.util.XFormUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.odk.collect.android.logic.FormController;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class SavepointWriterTest {
+
+    private static final String FORM = "<h:html xmlns=\"http://www.w3.org/2002/xforms\" xmlns:h=\"http://www.w3.org/1999/xhtml\">"
+            + "<h:head><h:title>Savepoint</h:title><model>"
+            // The notes make the snapshot large enough for a few journal records
+            + "<instance><data id=\"savepoint\"><name/><age/><notes>" + new String(new char[500]).replace('\0', 'x')
+            + "</notes></data></instance>"
+            + "<bind nodeset=\"/data/name\" type=\"string\"/><bind nodeset=\"/data/age\" type=\"int\"/>"
+            + "</model></h:head>"
+            + "<h:body><input ref=\"/data/name\"/><input ref=\"/data/age\"/></h:body></h:html>";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File savepointFile;
+    private File journalFile;
+
+    @Before
+    public void setup() {
+        savepointFile = new File(temporaryFolder.getRoot(), "instance.xml.save");
+        journalFile = new File(temporaryFolder.getRoot(), "instance.xml.journal");
+    }
+
+    @Test
+    public void readRecord_returnsRecordsInTheOrderTheyWereWritten() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        SavepointWriter.writeHeader(out, 100, 200);
+        SavepointWriter.writeRecord(out, "/data[0]/name[0]", "Zoë");
+        SavepointWriter.writeRecord(out, "/data[0]/age[0]", null);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bos.toByteArray()));
+        assertTrue(SavepointWriter.readHeader(in, 100, 200));
+        assertArrayEquals(new String[]{"/data[0]/name[0]", "Zoë"}, SavepointWriter.readRecord(in, bos.size()));
+        assertArrayEquals(new String[]{"/data[0]/age[0]", null}, SavepointWriter.readRecord(in, bos.size()));
+        assertNull(SavepointWriter.readRecord(in, bos.size()));
+    }
+
+    @Test
+    public void readRecord_ignoresPartiallyWrittenRecord() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        SavepointWriter.writeRecord(out, "/data[0]/name[0]", "Alice");
+        int firstRecordLength = bos.size();
+        SavepointWriter.writeRecord(out, "/data[0]/name[0]", "Bob");
+        byte[] journal = Arrays.copyOf(bos.toByteArray(), bos.size() - 2);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(journal));
+        assertArrayEquals(new String[]{"/data[0]/name[0]", "Alice"}, SavepointWriter.readRecord(in, journal.length));
+        assertNull(SavepointWriter.readRecord(in, journal.length));
+        assertTrue(journal.length > firstRecordLength);
+    }
+
+    @Test
+    public void readRecord_ignoresRecordWithValueLongerThanTheRestOfTheJournal() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeUTF("/data[0]/name[0]");
+        out.writeBoolean(true);
+        out.writeInt(Integer.MAX_VALUE);
+        out.write(new byte[]{1, 2, 3});
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bos.toByteArray()));
+        assertNull(SavepointWriter.readRecord(in, bos.size()));
+    }
+
+    @Test
+    public void replayJournal_restoresTheValuesThatChangedSinceTheSnapshot() throws IOException {
+        FormDef formDef = createFormDef();
+        FormController formController = createFormController(formDef);
+        SavepointWriter writer = new SavepointWriter(formDef, savepointFile, journalFile);
+        assertTrue(writer.writeSavepoint(formController, () -> false));
+        long snapshotLength = savepointFile.length();
+
+        setAnswer(formDef, "name", new StringData("Alice"));
+        setAnswer(formDef, "age", new IntegerData(42));
+        assertTrue(writer.writeSavepoint(formController, () -> false));
+        assertEquals(snapshotLength, savepointFile.length());
+
+        FormDef restoredFormDef = createFormDef();
+        assertEquals(2, SavepointWriter.replayJournal(savepointFile, journalFile, restoredFormDef));
+        assertEquals("Alice", getAnswer(restoredFormDef, "name"));
+        assertEquals(42, getAnswer(restoredFormDef, "age"));
+    }
+
+    @Test
+    public void replayJournal_ignoresTheRecordThatWasBeingWrittenWhenTheAppWasKilled() throws IOException {
+        FormDef formDef = createFormDef();
+        FormController formController = createFormController(formDef);
+        SavepointWriter writer = new SavepointWriter(formDef, savepointFile, journalFile);
+        writer.writeSavepoint(formController, () -> false);
+
+        setAnswer(formDef, "name", new StringData("Alice"));
+        writer.writeSavepoint(formController, () -> false);
+        setAnswer(formDef, "age", new IntegerData(42));
+        writer.writeSavepoint(formController, () -> false);
+
+        try (RandomAccessFile journal = new RandomAccessFile(journalFile, "rw")) {
+            journal.setLength(journal.length() - 1);
+        }
+
+        FormDef restoredFormDef = createFormDef();
+        assertEquals(1, SavepointWriter.replayJournal(savepointFile, journalFile, restoredFormDef));
+        assertEquals("Alice", getAnswer(restoredFormDef, "name"));
+        assertNull(getAnswer(restoredFormDef, "age"));
+    }
+
+    @Test
+    public void writeSavepoint_whenCancelled_writesNothingAndJournalsTheChangesNextTime() throws IOException {
+        FormDef formDef = createFormDef();
+        FormController formController = createFormController(formDef);
+        SavepointWriter writer = new SavepointWriter(formDef, savepointFile, journalFile);
+        writer.writeSavepoint(formController, () -> false);
+
+        setAnswer(formDef, "name", new StringData("Alice"));
+        long journalLength = journalFile.length();
+        assertFalse(writer.writeSavepoint(formController, () -> true));
+        assertEquals(journalLength, journalFile.length());
+
+        writer.writeSavepoint(formController, () -> false);
+        FormDef restoredFormDef = createFormDef();
+        assertEquals(1, SavepointWriter.replayJournal(savepointFile, journalFile, restoredFormDef));
+        assertEquals("Alice", getAnswer(restoredFormDef, "name"));
+    }
+
+    @Test
+    public void readHeader_rejectsJournalOfAnotherSnapshot() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        SavepointWriter.writeHeader(new DataOutputStream(bos), 100, 200);
+
+        assertFalse(SavepointWriter.readHeader(new DataInputStream(new ByteArrayInputStream(bos.toByteArray())), 101, 200));
+        assertFalse(SavepointWriter.readHeader(new DataInputStream(new ByteArrayInputStream(bos.toByteArray())), 100, 201));
+        assertFalse(SavepointWriter.readHeader(new DataInputStream(new ByteArrayInputStream(new byte[0])), 100, 200));
+    }
+
+    @Test
+    public void parseReference_keepsMultiplicityOfEveryStep() {
+        TreeReference ref = SavepointWriter.parseReference("/data[0]/repeat[2]/name[0]");
+
+        assertEquals(3, ref.size());
+        assertEquals("repeat", ref.getName(1));
+        assertEquals(2, ref.getMultiplicity(1));
+        assertEquals("name", ref.getName(2));
+        assertEquals(0, ref.getMultiplicity(2));
+    }
+
+    private FormController createFormController(FormDef formDef) throws IOException {
+        return new FormController(temporaryFolder.getRoot(),
+                new FormEntryController(new FormEntryModel(formDef)), temporaryFolder.newFile("instance.xml"));
+    }
+
+    private static FormDef createFormDef() throws IOException {
+        FormDef formDef = XFormUtils.getFormFromInputStream(new ByteArrayInputStream(FORM.getBytes("UTF-8")));
+        formDef.initialize(true, new InstanceInitializationFactory());
+        return formDef;
+    }
+
+    private static void setAnswer(FormDef formDef, String name, IAnswerData answer) {
+        getElement(formDef, name).setAnswer(answer);
+    }
+
+    private static Object getAnswer(FormDef formDef, String name) {
+        IAnswerData answer = getElement(formDef, name).getValue();
+        return answer == null ? null : answer.getValue();
+    }
+
+    private static TreeElement getElement(FormDef formDef, String name) {
+        return formDef.getMainInstance().resolveReference(SavepointWriter.parseReference("/data[0]/" + name + "[0]"));
+    }
+}
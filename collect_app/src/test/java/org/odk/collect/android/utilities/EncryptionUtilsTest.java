@@ -0,0 +1,44 @@
+package org.odk.collect.android.utilities;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EncryptionUtilsTest {
+
+    @Test
+    public void isEncryptedSubmissionManifest_isTrueForManifest() throws IOException {
+        File manifest = createTempFile("<?xml version='1.0' encoding='UTF-8' ?>"
+                + "<data xmlns=\"http://www.opendatakit.org/xforms/encrypted\" id=\"form\" encrypted=\"yes\">"
+                + "<base64EncryptedKey>key</base64EncryptedKey></data>");
+
+        assertTrue(EncryptionUtils.isEncryptedSubmissionManifest(manifest));
+    }
+
+    @Test
+    public void isEncryptedSubmissionManifest_isFalseForPlaintextSubmission() throws IOException {
+        File submission = createTempFile("<?xml version='1.0' encoding='UTF-8' ?>"
+                + "<data xmlns=\"http://www.opendatakit.org/xforms\" id=\"form\"><name>Alice</name></data>");
+
+        assertFalse(EncryptionUtils.isEncryptedSubmissionManifest(submission));
+    }
+
+    @Test
+    public void isEncryptedSubmissionManifest_isFalseForMissingFile() {
+        assertFalse(EncryptionUtils.isEncryptedSubmissionManifest(new File("does-not-exist.xml")));
+    }
+
+    private static File createTempFile(String contents) throws IOException {
+        File file = File.createTempFile("submission", ".xml");
+        file.deleteOnExit();
+        try (FileWriter writer = new FileWriter(file)) {
+            writer.write(contents);
+        }
+        return file;
+    }
+}
@@ -0,0 +1,166 @@
+package org.odk.collect.android.utilities;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FileDigestIndexTest {
+
+    private static final String HELLO_WORLD_MD5 = "bc6e6f16b8a077ef5fbc8d59d0b931b9";
+
+    private File indexFile;
+    private File file;
+
+    @Before
+    public void setup() throws IOException {
+        indexFile = File.createTempFile("index", ".digests");
+        indexFile.delete();
+        indexFile.deleteOnExit();
+
+        file = File.createTempFile("form", ".xml");
+        file.deleteOnExit();
+        write(file, "Hello, world");
+        file.setLastModified(System.currentTimeMillis() - 60_000);
+    }
+
+    @Test
+    public void getMd5Hash_returnsHashOfFile() {
+        assertEquals(HELLO_WORLD_MD5, new FileDigestIndex(indexFile).getMd5Hash(file));
+    }
+
+    @Test
+    public void getMd5Hash_returnsSavedHashWhenFingerprintIsUnchanged() throws IOException {
+        FileDigestIndex index = new FileDigestIndex(indexFile);
+        index.getMd5Hash(file);
+        index.save();
+        assertTrue(indexFile.exists());
+
+        // Same size and last modified time, so the file isn't read again
+        long lastModified = file.lastModified();
+        write(file, "Hello, WORLD");
+        file.setLastModified(lastModified);
+
+        assertEquals(HELLO_WORLD_MD5, new FileDigestIndex(indexFile).getMd5Hash(file));
+    }
+
+    @Test
+    public void getMd5Hash_readsFileAgainWhenLastModifiedChanges() throws IOException {
+        FileDigestIndex index = new FileDigestIndex(indexFile);
+        index.getMd5Hash(file);
+        index.save();
+
+        write(file, "Hello, WORLD");
+        file.setLastModified(System.currentTimeMillis() - 30_000);
+
+        assertEquals(FileUtils.getMd5Hash(file), new FileDigestIndex(indexFile).getMd5Hash(file));
+        assertFalse(HELLO_WORLD_MD5.equals(FileUtils.getMd5Hash(file)));
+    }
+
+    @Test
+    public void getMd5Hash_returnsNullForMissingFile() {
+        assertNull(new FileDigestIndex(indexFile).getMd5Hash(new File("does-not-exist.xml")));
+    }
+
+    @Test
+    public void retainAll_forgetsOtherFiles() throws IOException {
+        FileDigestIndex index = new FileDigestIndex(indexFile);
+        index.getMd5Hash(file);
+        index.retainAll(Collections.emptySet());
+        index.save();
+
+        long lastModified = file.lastModified();
+        write(file, "Hello, WORLD");
+        file.setLastModified(lastModified);
+
+        assertEquals(FileUtils.getMd5Hash(file), new FileDigestIndex(indexFile).getMd5Hash(file));
+    }
+
+    @Test
+    public void getHitRate_countsHashesAnsweredWithoutReadingFile() {
+        FileDigestIndex index = new FileDigestIndex(indexFile);
+        assertEquals(0, index.getHitRate(), 0);
+
+        index.getMd5Hash(file);
+        index.getMd5Hash(file);
+        index.getMd5Hash(file);
+
+        assertEquals(2, index.getHitCount());
+        assertEquals(1, index.getMissCount());
+        assertEquals(2 / 3.0, index.getHitRate(), 0.001);
+    }
+
+    @Test
+    public void put_remembersHashOfNewFile() throws IOException {
+        File newFile = File.createTempFile("media", ".jpg");
+        newFile.deleteOnExit();
+        write(newFile, "Hello, world");
+
+        FileDigestIndex index = new FileDigestIndex(indexFile);
+        index.put(newFile, "known");
+
+        assertEquals("known", index.getMd5Hash(newFile));
+        assertEquals(1, index.getHitCount());
+    }
+
+    @Test
+    public void moveAll_keepsHashesOfMovedFiles() throws IOException {
+        File fromDir = file.getParentFile();
+        File toDir = new File(fromDir, "moved" + System.nanoTime());
+        toDir.mkdir();
+        toDir.deleteOnExit();
+
+        FileDigestIndex index = new FileDigestIndex(indexFile);
+        index.getMd5Hash(file);
+
+        File movedFile = new File(toDir, file.getName());
+        long lastModified = file.lastModified();
+        assertTrue(file.renameTo(movedFile));
+        movedFile.setLastModified(lastModified);
+        movedFile.deleteOnExit();
+        index.moveAll(fromDir, toDir);
+
+        assertEquals(HELLO_WORLD_MD5, index.getMd5Hash(movedFile));
+        assertEquals(1, index.getHitCount());
+    }
+
+    @Test
+    public void removeAll_forgetsFilesInDirectory() {
+        FileDigestIndex index = new FileDigestIndex(indexFile);
+        index.getMd5Hash(file);
+        index.removeAll(file.getParentFile());
+
+        index.getMd5Hash(file);
+        assertEquals(0, index.getHitCount());
+    }
+
+    @Test
+    public void save_forgetsFilesThatNoLongerExist() throws IOException {
+        FileDigestIndex index = new FileDigestIndex(indexFile);
+        index.getMd5Hash(file);
+        long lastModified = file.lastModified();
+        assertTrue(file.delete());
+        index.save();
+
+        // A new file with the same fingerprint is read
+        write(file, "Hello, WORLD");
+        file.setLastModified(lastModified);
+
+        assertEquals(FileUtils.getMd5Hash(file), new FileDigestIndex(indexFile).getMd5Hash(file));
+        assertFalse(HELLO_WORLD_MD5.equals(FileUtils.getMd5Hash(file)));
+    }
+
+    private static void write(File file, String contents) throws IOException {
+        try (FileWriter writer = new FileWriter(file)) {
+            writer.write(contents);
+        }
+    }
+}
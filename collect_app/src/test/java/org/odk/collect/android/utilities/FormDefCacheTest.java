@@ -0,0 +1,76 @@
+package org.odk.collect.android.utilities;
+
+import org.junit.Test;
+import org.odk.collect.android.BuildConfig;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FormDefCacheTest {
+
+    @Test
+    public void readHeader_acceptsHeaderWrittenByWriteHeader() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        FormDefCache.writeHeader(new DataOutputStream(bos));
+
+        assertTrue(FormDefCache.readHeader(new DataInputStream(new ByteArrayInputStream(bos.toByteArray()))));
+    }
+
+    @Test
+    public void readHeader_rejectsHeaderFromAnotherJavaRosaVersion() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        FormDefCache.writeHeader(dos);
+        byte[] header = bos.toByteArray();
+
+        bos.reset();
+        dos.write(header, 0, 8);
+        dos.writeUTF(BuildConfig.JAVAROSA_VERSION + "-old");
+
+        assertFalse(FormDefCache.readHeader(new DataInputStream(new ByteArrayInputStream(bos.toByteArray()))));
+    }
+
+    @Test
+    public void readHeader_rejectsLegacyCacheFilesWithoutHeader() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeUTF("formdef");
+        dos.writeInt(42);
+
+        assertFalse(FormDefCache.readHeader(new DataInputStream(new ByteArrayInputStream(bos.toByteArray()))));
+    }
+
+    @Test
+    public void cacheKey_changesWithSizeAndLastModified() {
+        String formKey = FormDefCache.getFormKey("my-form", "1");
+
+        assertEquals(FormDefCache.getCacheKey(formKey, 100, 200), FormDefCache.getCacheKey(formKey, 100, 200));
+        assertNotEquals(FormDefCache.getCacheKey(formKey, 100, 200), FormDefCache.getCacheKey(formKey, 101, 200));
+        assertNotEquals(FormDefCache.getCacheKey(formKey, 100, 200), FormDefCache.getCacheKey(formKey, 100, 201));
+        assertTrue(FormDefCache.getCacheKey(formKey, 100, 200).startsWith(formKey));
+    }
+
+    @Test
+    public void legacyCacheFiles_areTheOnesNamedAfterAHashOnly() {
+        String formKey = FormDefCache.getFormKey("my-form", "1");
+
+        assertTrue(FormDefCache.isLegacyCacheFile(formKey + ".formdef"));
+        assertFalse(FormDefCache.isLegacyCacheFile(FormDefCache.getCacheKey(formKey, 100, 200) + ".formdef"));
+        assertFalse(FormDefCache.isLegacyCacheFile(formKey + ".tmp"));
+    }
+
+    @Test
+    public void formKey_dependsOnFormIdAndVersion() {
+        assertEquals(FormDefCache.getFormKey("my-form", "1"), FormDefCache.getFormKey("my-form", "1"));
+        assertNotEquals(FormDefCache.getFormKey("my-form", "1"), FormDefCache.getFormKey("my-form", "2"));
+        assertNotEquals(FormDefCache.getFormKey("my-form", "1"), FormDefCache.getFormKey("other-form", "1"));
+    }
+}
@@ -10,7 +10,9 @@ import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnit;
 import org.mockito.junit.MockitoRule;
 import org.odk.collect.android.injection.config.AppDependencyModule;
+import org.odk.collect.android.listeners.FormDownloaderListener;
 import org.odk.collect.android.logic.FormDetails;
+import org.odk.collect.android.openrosa.HttpGetResult;
 import org.odk.collect.android.openrosa.OpenRosaAPIClient;
 import org.odk.collect.android.openrosa.OpenRosaHttpInterface;
 import org.odk.collect.android.support.RobolectricHelpers;
@@ -33,7 +35,9 @@ import static org.hamcrest.MatcherAssert.assertThat;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @RunWith(RobolectricTestRunner.class)
@@ -202,8 +206,8 @@ public class FormDownloaderTest {
         out.close();
 
         when(openRosaAPIClient.getXML("https://testserver/manifest.xml")).thenReturn(buildManifestFetchResult("external-data.xml"));
-        when(openRosaAPIClient.getFile("https://testserver/external-data.xml",
-                null)).thenReturn(buildXmlExternalInstanceFetchResult());
+        when(openRosaAPIClient.getFileFrom("https://testserver/external-data.xml", 0L))
+                .thenReturn(new HttpGetResult(buildXmlExternalInstanceFetchResult(), new HashMap<>(), "", 200));
 
         FormDownloader downloader = spy(new FormDownloader());
         FormDetails test1 = new FormDetails("basic-external-xml-instance", "https://testserver/form.xml",
@@ -253,8 +257,8 @@ public class FormDownloaderTest {
         out.close();
 
         when(openRosaAPIClient.getXML("https://testserver/manifest.xml")).thenReturn(buildManifestFetchResult("external-data.csv"));
-        when(openRosaAPIClient.getFile("https://testserver/external-data.csv",
-                null)).thenReturn(buildCsvExternalInstanceFetchResult());
+        when(openRosaAPIClient.getFileFrom("https://testserver/external-data.csv", 0L))
+                .thenReturn(new HttpGetResult(buildCsvExternalInstanceFetchResult(), new HashMap<>(), "", 200));
 
         FormDownloader downloader = spy(new FormDownloader());
         FormDetails test1 = new FormDetails("basic-external-csv-instance", "https://testserver/form.xml",
@@ -367,8 +371,8 @@ public class FormDownloaderTest {
         out.close();
 
         when(openRosaAPIClient.getXML("https://testserver/manifest.xml")).thenReturn(buildManifestFetchResult("last-saved.xml"));
-        when(openRosaAPIClient.getFile("https://testserver/last-saved.xml",
-                null)).thenReturn(buildXmlExternalInstanceFetchResult());
+        when(openRosaAPIClient.getFileFrom("https://testserver/last-saved.xml", 0L))
+                .thenReturn(new HttpGetResult(buildXmlExternalInstanceFetchResult(), new HashMap<>(), "", 200));
 
         FormDownloader downloader = spy(new FormDownloader());
         FormDetails formDetails = new FormDetails("last-saved-attached", "https://testserver/form.xml",
@@ -384,6 +388,91 @@ public class FormDownloaderTest {
         assertThat(messages.get(formDetails), containsString("<label> node for itemset doesn't exist!"));
     }
 
+    @Test
+    public void downloadingSeveralForms_installsAllOfThem() throws Exception {
+        FormDownloader downloader = spy(new FormDownloader());
+        List<FormDetails> forms = new ArrayList<>();
+        for (int i = 1; i <= 3; i++) {
+            FormDetails formDetails = new FormDetails("Form " + i, "https://testserver/form" + i + ".xml",
+                    null, "form" + i, "2020010" + i, "hash" + i, null, false, false);
+            doReturn(new FormDownloader.FileResult(buildBasicForm("form" + i), true))
+                    .when(downloader).downloadXform(formDetails.getFormName(), formDetails.getDownloadUrl());
+            forms.add(formDetails);
+        }
+        doReturn(true).when(downloader).installEverything(any(), any(), any());
+
+        HashMap<FormDetails, String> messages = downloader.downloadForms(forms);
+        assertThat(messages.size(), is(3));
+        for (FormDetails formDetails : forms) {
+            assertThat(messages.get(formDetails), is("Success"));
+        }
+    }
+
+    @Test
+    public void whenDownloadIsCancelled_laterFormsAreNotDownloaded() throws Exception {
+        FormDownloader downloader = spy(new FormDownloader());
+        List<FormDetails> forms = new ArrayList<>();
+        for (int i = 1; i <= 3; i++) {
+            FormDetails formDetails = new FormDetails("Form " + i, "https://testserver/form" + i + ".xml",
+                    null, "form" + i, "2020010" + i, "hash" + i, null, false, false);
+            doReturn(new FormDownloader.FileResult(buildBasicForm("form" + i), true))
+                    .when(downloader).downloadXform(formDetails.getFormName(), formDetails.getDownloadUrl());
+            forms.add(formDetails);
+        }
+        doReturn(true).when(downloader).installEverything(any(), any(), any());
+
+        // Cancel when the second form starts downloading
+        downloader.setDownloaderListener(new FormDownloaderListener() {
+            private volatile boolean isCancelled;
+
+            @Override
+            public void progressUpdate(String currentFile, String progress, String total) {
+                if (progress.equals("2")) {
+                    isCancelled = true;
+                }
+            }
+
+            @Override
+            public boolean isTaskCanceled() {
+                return isCancelled;
+            }
+        });
+
+        HashMap<FormDetails, String> messages = downloader.downloadForms(forms);
+        assertThat(messages.containsKey(forms.get(1)), is(false));
+        assertThat(messages.containsKey(forms.get(2)), is(false));
+        verify(downloader, never()).downloadXform(forms.get(1).getFormName(), forms.get(1).getDownloadUrl());
+        verify(downloader, never()).downloadXform(forms.get(2).getFormName(), forms.get(2).getDownloadUrl());
+    }
+
+    private static File buildBasicForm(String formId) throws Exception {
+        String form = "<h:html xmlns=\"http://www.w3.org/2002/xforms\" xmlns:h=\"http://www.w3.org/1999/xhtml\">\n" +
+                "    <h:head>\n" +
+                "        <h:title>" + formId + "</h:title>\n" +
+                "        <model>\n" +
+                "            <instance>\n" +
+                "                <data id=\"" + formId + "\">\n" +
+                "                    <q1/>\n" +
+                "                </data>\n" +
+                "            </instance>\n" +
+                "            <bind nodeset=\"/data/q1\" type=\"string\"/>\n" +
+                "        </model>\n" +
+                "    </h:head>\n" +
+                "    <h:body>\n" +
+                "        <input ref=\"/data/q1\">\n" +
+                "            <label>Question</label>\n" +
+                "        </input>\n" +
+                "    </h:body>\n" +
+                "</h:html>";
+        File formXml = File.createTempFile(formId, ".xml");
+        formXml.deleteOnExit();
+
+        BufferedWriter out = new BufferedWriter(new FileWriter(formXml));
+        out.write(form);
+        out.close();
+        return formXml;
+    }
+
     public static DocumentFetchResult buildManifestFetchResult(String filename) throws Exception {
         String manifest = "<manifest xmlns=\"http://openrosa.org/xforms/xformsManifest\">\n" +
                 " <mediaFile>\n" +
@@ -0,0 +1,184 @@
+package org.odk.collect.android.utilities;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.odk.collect.android.openrosa.HttpGetResult;
+import org.odk.collect.android.openrosa.OpenRosaAPIClient;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricTestRunner.class)
+public class MediaFileDownloaderTest {
+
+    private static final String URL = "https://testserver/image.jpg";
+    private static final String CONTENT = "0123456789";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final OpenRosaAPIClient openRosaAPIClient = mock(OpenRosaAPIClient.class);
+    private File partialsDir;
+    private FileDigestIndex digestIndex;
+    private File file;
+    private String md5;
+    private long bytesReceived;
+
+    @Before
+    public void setup() throws Exception {
+        partialsDir = temporaryFolder.newFolder("cache");
+        digestIndex = new FileDigestIndex(new File(temporaryFolder.getRoot(), "media.digests"));
+        file = new File(temporaryFolder.newFolder("media"), "image.jpg");
+        md5 = FileUtils.getMd5Hash(new ByteArrayInputStream(CONTENT.getBytes()));
+    }
+
+    @Test
+    public void whenTransferFails_resumesItWithARangeRequest() throws Exception {
+        when(openRosaAPIClient.getFileFrom(URL, 0)).thenReturn(ok(new FailingInputStream(CONTENT.substring(0, 4))));
+        when(openRosaAPIClient.getFileFrom(URL, 4)).thenReturn(partial(4, CONTENT.substring(4)));
+
+        assertTrue(download(md5));
+        assertThat(read(file), equalTo(CONTENT));
+        assertThat(partialsDir.list().length, equalTo(0));
+    }
+
+    @Test
+    public void addsHashOfDownloadedFileToDigestIndex() throws Exception {
+        when(openRosaAPIClient.getFileFrom(URL, 0)).thenReturn(ok(new ByteArrayInputStream(CONTENT.getBytes())));
+
+        assertTrue(download(null));
+        assertThat(digestIndex.getMd5Hash(file), equalTo(md5));
+        assertThat(digestIndex.getHitCount(), equalTo(1L));
+    }
+
+    @Test
+    public void resumesPartialFileLeftByEarlierDownload() throws Exception {
+        write(new File(partialsDir, "media-" + md5 + ".tempDownload"), CONTENT.substring(0, 6));
+        when(openRosaAPIClient.getFileFrom(URL, 6)).thenReturn(partial(6, CONTENT.substring(6)));
+
+        assertTrue(download(md5));
+        assertThat(read(file), equalTo(CONTENT));
+    }
+
+    @Test
+    public void whenServerIgnoresRange_replacesPartialFile() throws Exception {
+        write(new File(partialsDir, "media-" + md5 + ".tempDownload"), "abc");
+        when(openRosaAPIClient.getFileFrom(URL, 3)).thenReturn(ok(new ByteArrayInputStream(CONTENT.getBytes())));
+
+        assertTrue(download(md5));
+        assertThat(read(file), equalTo(CONTENT));
+    }
+
+    @Test
+    public void whenServerIgnoresRangeOnRetry_doesNotCountTheFirstAttemptTwice() throws Exception {
+        when(openRosaAPIClient.getFileFrom(URL, 0)).thenReturn(ok(new FailingInputStream(CONTENT.substring(0, 4))));
+        when(openRosaAPIClient.getFileFrom(URL, 4)).thenReturn(ok(new ByteArrayInputStream(CONTENT.getBytes())));
+
+        assertTrue(download(md5));
+        assertThat(read(file), equalTo(CONTENT));
+        assertThat(bytesReceived, equalTo((long) CONTENT.length()));
+    }
+
+    @Test
+    public void whenHashDoesNotMatchManifest_throwsAndDiscardsFile() throws Exception {
+        when(openRosaAPIClient.getFileFrom(URL, 0))
+                .thenReturn(ok(new ByteArrayInputStream("corrupted".getBytes())))
+                .thenReturn(ok(new ByteArrayInputStream("corrupted".getBytes())))
+                .thenReturn(ok(new ByteArrayInputStream("corrupted".getBytes())));
+
+        try {
+            download(md5);
+            fail();
+        } catch (IOException e) {
+            assertFalse(file.exists());
+            assertThat(partialsDir.list().length, equalTo(0));
+        }
+    }
+
+    @Test
+    public void withoutHash_doesNotKeepPartialFile() throws Exception {
+        when(openRosaAPIClient.getFileFrom(URL, 0)).thenReturn(ok(new ByteArrayInputStream(CONTENT.getBytes())));
+
+        assertTrue(download(null));
+        assertThat(read(file), equalTo(CONTENT));
+        assertThat(partialsDir.list().length, equalTo(0));
+    }
+
+    private boolean download(String md5) throws Exception {
+        MediaFileDownloader downloader = new MediaFileDownloader(openRosaAPIClient, partialsDir, digestIndex, new MediaFileDownloader.Listener() {
+            @Override
+            public boolean isCancelled() {
+                return false;
+            }
+
+            @Override
+            public void onProgress(int completedCount, long bytesReceived) {
+                MediaFileDownloaderTest.this.bytesReceived = bytesReceived;
+            }
+        });
+        return downloader.downloadAll(Collections.singletonList(new MediaFileDownloader.Download(file, URL, md5)));
+    }
+
+    private static HttpGetResult ok(InputStream inputStream) {
+        return new HttpGetResult(inputStream, new HashMap<>(), "", 200);
+    }
+
+    private static HttpGetResult partial(int offset, String rest) {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Content-Range", "bytes " + offset + "-" + (CONTENT.length() - 1) + "/" + CONTENT.length());
+        return new HttpGetResult(new ByteArrayInputStream(rest.getBytes()), headers, "", 206);
+    }
+
+    private static String read(File file) throws IOException {
+        try (InputStream is = new FileInputStream(file)) {
+            return IOUtils.toString(is, Charset.defaultCharset());
+        }
+    }
+
+    private static void write(File file, String content) throws IOException {
+        try (FileOutputStream os = new FileOutputStream(file)) {
+            os.write(content.getBytes());
+        }
+    }
+
+    /**
+     * Returns the given content and then fails like a dropped connection.
+     */
+    private static class FailingInputStream extends InputStream {
+        private final InputStream content;
+
+        FailingInputStream(String content) {
+            this.content = new ByteArrayInputStream(content.getBytes());
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = content.read();
+            if (b == -1) {
+                throw new IOException("Connection reset");
+            }
+            return b;
+        }
+    }
+}
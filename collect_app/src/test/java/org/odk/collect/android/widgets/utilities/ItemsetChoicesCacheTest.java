@@ -0,0 +1,67 @@
+package org.odk.collect.android.widgets.utilities;
+
+import org.javarosa.core.model.SelectChoice;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+@RunWith(RobolectricTestRunner.class)
+public class ItemsetChoicesCacheTest {
+
+    @After
+    public void clearCache() {
+        ItemsetChoicesCache.clear();
+    }
+
+    @Test
+    public void get_returnsCopiesOfTheCachedChoices() {
+        String key = ItemsetChoicesCache.getKey("path", "hash", "", "list_name=?", new String[]{"cities"});
+        List<SelectChoice> choices = createChoices("Boston", "Chicago");
+        ItemsetChoicesCache.put(key, choices);
+
+        List<SelectChoice> cachedChoices = ItemsetChoicesCache.get(key);
+        assertEquals(2, cachedChoices.size());
+        assertNotSame(choices.get(1), cachedChoices.get(1));
+        assertEquals("Chicago", cachedChoices.get(1).getValue());
+        assertEquals("Chicago label", cachedChoices.get(1).getLabelInnerText());
+        assertEquals(1, cachedChoices.get(1).getIndex());
+    }
+
+    @Test
+    public void key_changesWithTheItemsetHashAndQuery() {
+        String key = ItemsetChoicesCache.getKey("path", "hash", "", "list_name=?", new String[]{"cities"});
+
+        assertNotEquals(key, ItemsetChoicesCache.getKey("path", "newHash", "", "list_name=?", new String[]{"cities"}));
+        assertNotEquals(key, ItemsetChoicesCache.getKey("path", "hash", "French", "list_name=?", new String[]{"cities"}));
+        assertNotEquals(key, ItemsetChoicesCache.getKey("path", "hash", "", "list_name=?", new String[]{"states"}));
+    }
+
+    @Test
+    public void clear_forgetsAllChoices() {
+        String key = ItemsetChoicesCache.getKey("path", "hash", "", "list_name=?", new String[]{"cities"});
+        ItemsetChoicesCache.put(key, createChoices("Boston"));
+
+        ItemsetChoicesCache.clear();
+
+        assertNull(ItemsetChoicesCache.get(key));
+    }
+
+    private static List<SelectChoice> createChoices(String... values) {
+        List<SelectChoice> choices = new ArrayList<>();
+        for (String value : values) {
+            SelectChoice choice = new SelectChoice(null, value + " label", value, false);
+            choice.setIndex(choices.size());
+            choices.add(choice);
+        }
+        return choices;
+    }
+}